@@ -0,0 +1,260 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.benchmarks;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.transaction.Status;
+import javax.transaction.TransactionSynchronizationRegistry;
+import javax.validation.Validation;
+import javax.validation.Validator;
+
+import org.jboss.quickstarts.wfk.customer.Customer;
+import org.jboss.quickstarts.wfk.taxi.Taxi;
+import org.jboss.quickstarts.wfk.util.ChangeCounter;
+
+/**
+ * <p>Builds the beans under test by hand, in place of CDI and the EJB container.</p>
+ *
+ * <p>The beans are created with their no argument constructors and their @Inject and @Resource fields are set by
+ * reflection, so the benchmarks run exactly the code that is deployed. Every fork works on its own in-memory H2
+ * database, see META-INF/persistence.xml.</p>
+ */
+public final class Fixtures {
+
+    public static final String PERSISTENCE_UNIT = "benchmarks_pu";
+
+    /** Bookings seeded with SQL take their ids from here up, well clear of the ids handed out by Booking_seq. */
+    public static final long SEEDED_BOOKING_ID_BASE = 1000000000L;
+
+    // Matches hibernate.jdbc.batch_size in persistence.xml
+    private static final int BATCH_SIZE = 50;
+
+    private Fixtures() {
+    }
+
+    public static EntityManagerFactory createEntityManagerFactory() {
+        return createChangeCounters(Persistence.createEntityManagerFactory(PERSISTENCE_UNIT));
+    }
+
+    /**
+     * <p>Creates the {@link ChangeCounter} rows, as {@link org.jboss.quickstarts.wfk.util.ChangeCounters} does when the
+     * application starts.</p>
+     *
+     * @return The EntityManagerFactory, for chaining
+     */
+    public static EntityManagerFactory createChangeCounters(EntityManagerFactory emf) {
+        EntityManager em = emf.createEntityManager();
+        try {
+            em.getTransaction().begin();
+            ChangeCounter.createMissing(em);
+            em.getTransaction().commit();
+            return emf;
+        } finally {
+            em.close();
+        }
+    }
+
+    public static Validator createValidator() {
+        return Validation.buildDefaultValidatorFactory().getValidator();
+    }
+
+    /**
+     * <p>Returns a logger for the beans under test. It only logs warnings, the repositories log every create at INFO
+     * and that would swamp the measurements.</p>
+     */
+    public static Logger createLogger() {
+        Logger log = Logger.getLogger("benchmarks");
+        log.setLevel(Level.WARNING);
+        return log;
+    }
+
+    /**
+     * <p>Returns a TransactionSynchronizationRegistry that always reports there is no JTA transaction, so beans that
+     * defer work until commit do it straight away.</p>
+     */
+    public static TransactionSynchronizationRegistry createNoTransactionRegistry() {
+        return (TransactionSynchronizationRegistry) Proxy.newProxyInstance(Fixtures.class.getClassLoader(),
+            new Class<?>[] { TransactionSynchronizationRegistry.class }, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if ("getTransactionStatus".equals(method.getName())) {
+                        return Status.STATUS_NO_TRANSACTION;
+                    }
+                    throw new IllegalStateException("There is no transaction");
+                }
+            });
+    }
+
+    /**
+     * <p>Sets a private field, in the way the container sets an @Inject or @Resource field.</p>
+     *
+     * @param target The bean to set the field on
+     * @param fieldName The name of the field, declared by the bean's class
+     * @param value The value to set
+     * @return The bean, for chaining
+     */
+    public static <T> T inject(T target, String fieldName, Object value) {
+        try {
+            Field field = target.getClass().getDeclaredField(fieldName);
+            field.setAccessible(true);
+            field.set(target, value);
+            return target;
+        } catch (Exception e) {
+            throw new IllegalStateException("Can not set " + fieldName + " on " + target.getClass().getName(), e);
+        }
+    }
+
+    /**
+     * <p>Returns midnight on the day the given number of days from today, a valid @Future booking date.</p>
+     */
+    public static Date daysFromNow(int days) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.add(Calendar.DAY_OF_MONTH, days);
+        return calendar.getTime();
+    }
+
+    /**
+     * <p>Returns a valid Customer that has not been persisted. Different numbers give different names and emails.</p>
+     */
+    public static Customer newCustomer(long number) {
+        Customer customer = new Customer();
+        customer.setName("Customer" + letters(number));
+        customer.setEmail("customer" + number + "@example.com");
+        customer.setPhoneNumber("07700900000");
+        return customer;
+    }
+
+    /**
+     * <p>Returns a valid Taxi that has not been persisted. Different numbers give different registrations.</p>
+     */
+    public static Taxi newTaxi(long number) {
+        Taxi taxi = new Taxi();
+        taxi.setNumSeats(2 + (int) (number % 19));
+        taxi.setReg("T" + String.format("%06d", number % 1000000));
+        return taxi;
+    }
+
+    /**
+     * <p>Persists the given number of Customers in one transaction, returning the id of the first.</p>
+     */
+    public static long persistCustomers(EntityManagerFactory emf, int count) {
+        EntityManager em = emf.createEntityManager();
+        try {
+            em.getTransaction().begin();
+            Long first = null;
+            for (int i = 0; i < count; i++) {
+                Customer customer = newCustomer(i);
+                em.persist(customer);
+                if (first == null) {
+                    first = customer.getId();
+                }
+                if ((i + 1) % BATCH_SIZE == 0) {
+                    em.flush();
+                    em.clear();
+                }
+            }
+            em.getTransaction().commit();
+            return first;
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * <p>Persists the given number of Taxis in one transaction, returning the id of the first.</p>
+     */
+    public static long persistTaxis(EntityManagerFactory emf, int count) {
+        EntityManager em = emf.createEntityManager();
+        try {
+            em.getTransaction().begin();
+            Long first = null;
+            for (int i = 0; i < count; i++) {
+                Taxi taxi = newTaxi(i);
+                em.persist(taxi);
+                if (first == null) {
+                    first = taxi.getId();
+                }
+                if ((i + 1) % BATCH_SIZE == 0) {
+                    em.flush();
+                    em.clear();
+                }
+            }
+            em.getTransaction().commit();
+            return first;
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * <p>Inserts the given number of Bookings with one SQL statement, so that even a million rows take seconds. The
+     * bookings are spread round robin over the taxis and customers, from tomorrow onwards, so no taxi is booked twice
+     * on one day.</p>
+     *
+     * @param emf The factory of the database to seed
+     * @param count The number of bookings to insert
+     * @param firstCustomerId The id of the first of the customers, which must have consecutive ids
+     * @param customers The number of customers
+     * @param firstTaxiId The id of the first of the taxis, which must have consecutive ids
+     * @param taxis The number of taxis
+     */
+    public static void insertBookings(EntityManagerFactory emf, int count, long firstCustomerId, int customers,
+        long firstTaxiId, int taxis) {
+        EntityManager em = emf.createEntityManager();
+        try {
+            em.getTransaction().begin();
+            em.createNativeQuery("INSERT INTO Booking (id, customerId, taxiId, booking_date, version) "
+                + "SELECT ?1 + X, ?2 + MOD(X, ?3), ?4 + MOD(X, ?5), DATEADD('DAY', 1 + X / ?5, CURRENT_DATE()), 0 "
+                + "FROM SYSTEM_RANGE(0, ?6 - 1)")
+                .setParameter(1, SEEDED_BOOKING_ID_BASE)
+                .setParameter(2, firstCustomerId)
+                .setParameter(3, customers)
+                .setParameter(4, firstTaxiId)
+                .setParameter(5, taxis)
+                .setParameter(6, count)
+                .executeUpdate();
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+    }
+
+    // Bean Validation only accepts letters in a customer name
+    private static String letters(long number) {
+        StringBuilder letters = new StringBuilder();
+        do {
+            letters.append((char) ('a' + number % 26));
+            number /= 26;
+        } while (number > 0);
+        return letters.toString();
+    }
+}
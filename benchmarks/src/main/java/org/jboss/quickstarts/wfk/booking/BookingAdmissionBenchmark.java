@@ -0,0 +1,204 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.booking;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.jboss.quickstarts.wfk.benchmarks.Fixtures;
+import org.jboss.quickstarts.wfk.taxi.Taxi;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Measures how many bookings per second {@link BookingAvailabilityIndex#claim(Booking)} admits, with every thread
+ * booking its own taxi and with all threads fighting over the same few taxis and days. Each operation claims a day,
+ * commits the booking and then deletes it again, so the day is free for the next operation.</p>
+ *
+ * <p>Run it with a growing number of threads to see how admission scales with cores, for example
+ * <code>java -jar target/benchmarks.jar BookingAdmission -t 4</code>. The <i>serialized</i> benchmark makes the same
+ * calls inside one shared lock, as admission would behave if every decision took a global lock.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BookingAdmissionBenchmark {
+
+    // The taxis every thread of sharedTaxis goes for, one day each
+    private static final int SHARED_TAXIS = 4;
+
+    private final AtomicLong ids = new AtomicLong();
+
+    private final AtomicLong taxiIds = new AtomicLong(SHARED_TAXIS);
+
+    private final Object globalLock = new Object();
+
+    private BookingAvailabilityIndex availability;
+
+    private Date date;
+
+    @Setup
+    public void setUp() {
+        availability = new BookingAvailabilityIndex();
+        Fixtures.inject(availability, "log", Fixtures.createLogger());
+        Fixtures.inject(availability, "txRegistry", new ThreadTransactions());
+        date = Fixtures.daysFromNow(1);
+    }
+
+    /**
+     * <p>The Bookings of one thread: one for a taxi no other thread books, and one for each of the shared taxis.</p>
+     */
+    @State(Scope.Thread)
+    public static class Requests {
+
+        Booking own;
+
+        final List<Booking> shared = new ArrayList<Booking>();
+
+        int next;
+
+        @Setup
+        public void setUp(BookingAdmissionBenchmark benchmark) {
+            own = newBooking(benchmark.taxiIds.getAndIncrement(), benchmark.date);
+            for (long taxiId = 0; taxiId < SHARED_TAXIS; taxiId++) {
+                shared.add(newBooking(taxiId, benchmark.date));
+            }
+        }
+
+        Booking nextShared() {
+            next = (next + 1) % SHARED_TAXIS;
+            return shared.get(next);
+        }
+    }
+
+    @Benchmark
+    public boolean ownTaxi(Requests requests) {
+        return book(requests.own);
+    }
+
+    @Benchmark
+    public boolean sharedTaxis(Requests requests) {
+        return book(requests.nextShared());
+    }
+
+    @Benchmark
+    public boolean serialized(Requests requests) {
+        synchronized (globalLock) {
+            return book(requests.own);
+        }
+    }
+
+    private boolean book(Booking booking) {
+        booking.setId(null);
+        ThreadTransactions.begin();
+        boolean admitted = availability.claim(booking);
+        if (admitted) {
+            booking.setId(ids.incrementAndGet());
+        }
+        ThreadTransactions.commit();
+
+        if (admitted) {
+            // Free the day again for the next operation
+            ThreadTransactions.begin();
+            availability.removed(booking);
+            ThreadTransactions.commit();
+        }
+        return admitted;
+    }
+
+    private static Booking newBooking(long taxiId, Date date) {
+        Taxi taxi = new Taxi();
+        taxi.setId(taxiId);
+        Booking booking = new Booking();
+        booking.setTaxi(taxi);
+        booking.setBookingDate(date);
+        return booking;
+    }
+
+    /**
+     * <p>A TransactionSynchronizationRegistry with one transaction per thread, begun and committed by hand.</p>
+     */
+    private static final class ThreadTransactions implements TransactionSynchronizationRegistry {
+
+        private static final ThreadLocal<List<Synchronization>> CURRENT = new ThreadLocal<List<Synchronization>>();
+
+        static void begin() {
+            CURRENT.set(new ArrayList<Synchronization>());
+        }
+
+        static void commit() {
+            List<Synchronization> synchronizations = CURRENT.get();
+            CURRENT.remove();
+            for (Synchronization synchronization : synchronizations) {
+                synchronization.afterCompletion(Status.STATUS_COMMITTED);
+            }
+        }
+
+        @Override
+        public int getTransactionStatus() {
+            return CURRENT.get() == null ? Status.STATUS_NO_TRANSACTION : Status.STATUS_ACTIVE;
+        }
+
+        @Override
+        public void registerInterposedSynchronization(Synchronization synchronization) {
+            CURRENT.get().add(synchronization);
+        }
+
+        @Override
+        public Object getTransactionKey() {
+            return CURRENT.get();
+        }
+
+        @Override
+        public void putResource(Object key, Object value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object getResource(Object key) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setRollbackOnly() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean getRollbackOnly() {
+            return false;
+        }
+    }
+}
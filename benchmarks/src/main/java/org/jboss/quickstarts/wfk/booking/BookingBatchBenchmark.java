@@ -0,0 +1,124 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.booking;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.validation.ValidationException;
+
+import org.jboss.quickstarts.wfk.benchmarks.Fixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Compares the rows per second written by {@link BookingService#createAll(List)}, which backs POST
+ * rest/bookings/batch, with writing the same bookings one at a time through {@link BookingService#create(Booking)},
+ * one transaction each, as POST rest/bookings does.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BookingBatchBenchmark {
+
+    private static final int CUSTOMERS = 1000;
+
+    private static final int TAXIS = 100;
+
+    /** The number of bookings written by each call. */
+    private static final int ROWS = 500;
+
+    private EntityManagerFactory emf;
+
+    private EntityManager em;
+
+    private BookingService service;
+
+    private long firstCustomerId;
+
+    private long firstTaxiId;
+
+    // Every call books the next days along, so the bookings never clash
+    private int nextDay = 1;
+
+    @Setup
+    public void setUp() {
+        emf = Fixtures.createEntityManagerFactory();
+        firstCustomerId = Fixtures.persistCustomers(emf, CUSTOMERS);
+        firstTaxiId = Fixtures.persistTaxis(emf, TAXIS);
+
+        em = emf.createEntityManager();
+        service = new BookingBeans(em).service;
+    }
+
+    @TearDown
+    public void tearDown() {
+        em.close();
+        emf.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public Map<Integer, ValidationException> createAll() throws Exception {
+        List<Booking> bookings = nextBookings();
+        em.getTransaction().begin();
+        Map<Integer, ValidationException> failures = service.createAll(bookings);
+        em.getTransaction().commit();
+        em.clear();
+        return failures;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public Booking create() throws Exception {
+        Booking created = null;
+        for (Booking booking : nextBookings()) {
+            em.getTransaction().begin();
+            created = service.create(booking);
+            em.getTransaction().commit();
+            em.clear();
+        }
+        return created;
+    }
+
+    private List<Booking> nextBookings() {
+        List<Booking> bookings = new ArrayList<Booking>(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            bookings.add(BookingBeans.newBooking(firstCustomerId + i % CUSTOMERS, firstTaxiId + i % TAXIS,
+                Fixtures.daysFromNow(nextDay + i / TAXIS)));
+        }
+        nextDay += (ROWS + TAXIS - 1) / TAXIS;
+        return bookings;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.booking;
+
+import static org.jboss.quickstarts.wfk.benchmarks.Fixtures.inject;
+
+import java.util.Date;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+
+import org.jboss.quickstarts.wfk.benchmarks.Fixtures;
+import org.jboss.quickstarts.wfk.customer.Customer;
+import org.jboss.quickstarts.wfk.customer.CustomerRepository;
+import org.jboss.quickstarts.wfk.taxi.Taxi;
+import org.jboss.quickstarts.wfk.taxi.TaxiBeans;
+import org.jboss.quickstarts.wfk.taxi.TaxiRepository;
+import org.jboss.quickstarts.wfk.taxi.TaxiSeatIndex;
+
+/**
+ * <p>Wires the booking beans together over one EntityManager, as CDI would inside a single request.</p>
+ */
+class BookingBeans {
+
+    final BookingAvailabilityIndex availability;
+
+    final TaxiSeatIndex seats;
+
+    final BookingRepository repository;
+
+    final BookingValidator validator;
+
+    final BookingService service;
+
+    /**
+     * <p>Creates the beans and loads the availability and seat indexes from the bookings and taxis already in the
+     * database.</p>
+     */
+    BookingBeans(EntityManager em) {
+        Logger log = Fixtures.createLogger();
+
+        availability = new BookingAvailabilityIndex();
+        inject(availability, "log", log);
+        inject(availability, "em", em);
+        inject(availability, "txRegistry", Fixtures.createNoTransactionRegistry());
+        availability.load();
+
+        repository = new BookingRepository();
+        inject(repository, "log", log);
+        inject(repository, "em", em);
+        inject(repository, "availability", availability);
+
+        CustomerRepository customers = inject(new CustomerRepository(), "log", log);
+        inject(customers, "em", em);
+        seats = TaxiBeans.createSeatIndex(em);
+        TaxiRepository taxis = TaxiBeans.createRepository(em, seats);
+
+        validator = new BookingValidator();
+        inject(validator, "validator", Fixtures.createValidator());
+        inject(validator, "availability", availability);
+        inject(validator, "CustomerCrud", customers);
+        inject(validator, "TaxiCrud", taxis);
+
+        service = new BookingService();
+        inject(service, "log", log);
+        inject(service, "validator", validator);
+        inject(service, "crud", repository);
+        inject(service, "availability", availability);
+        inject(service, "seats", seats);
+    }
+
+    /**
+     * <p>Returns a new Booking that refers to the customer and taxi by id only, as a booking posted to the REST
+     * service does.</p>
+     */
+    static Booking newBooking(long customerId, long taxiId, Date date) {
+        Customer customer = new Customer();
+        customer.setId(customerId);
+        Taxi taxi = new Taxi();
+        taxi.setId(taxiId);
+
+        Booking booking = new Booking();
+        booking.setCustomer(customer);
+        booking.setTaxi(taxi);
+        booking.setBookingDate(date);
+        return booking;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.booking;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.jboss.quickstarts.wfk.benchmarks.Fixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Compares finding the booking that holds a taxi on a day through the {@link BookingAvailabilityIndex} with the
+ * scan the validator used to do: load every booking of the taxi and compare their dates.</p>
+ *
+ * <p>The bookings are spread over {@link #TAXIS} taxis, so the scan reads a hundredth of the table.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BookingConflictBenchmark {
+
+    private static final int CUSTOMERS = 1000;
+
+    private static final int TAXIS = 100;
+
+    @Param({"10000", "100000", "1000000"})
+    public int bookings;
+
+    private EntityManagerFactory emf;
+
+    private EntityManager em;
+
+    private BookingBeans beans;
+
+    private long taxiId;
+
+    private Date date;
+
+    @Setup
+    public void setUp() {
+        emf = Fixtures.createEntityManagerFactory();
+        long firstCustomerId = Fixtures.persistCustomers(emf, CUSTOMERS);
+        taxiId = Fixtures.persistTaxis(emf, TAXIS);
+        Fixtures.insertBookings(emf, bookings, firstCustomerId, CUSTOMERS, taxiId, TAXIS);
+
+        em = emf.createEntityManager();
+        beans = new BookingBeans(em);
+
+        // A day half way through the taxi's bookings
+        date = Fixtures.daysFromNow(1 + bookings / TAXIS / 2);
+    }
+
+    @TearDown
+    public void tearDown() {
+        em.close();
+        emf.close();
+    }
+
+    @Benchmark
+    public Long index() {
+        return beans.availability.findBookingId(taxiId, date);
+    }
+
+    @Benchmark
+    public Long scan() {
+        em.clear();
+        int day = BookingAvailabilityIndex.dayOf(date);
+        for (Booking booking : beans.repository.findByTaxi(taxiId)) {
+            if (BookingAvailabilityIndex.dayOf(booking.getBookingDate()) == day) {
+                return booking.getId();
+            }
+        }
+        return null;
+    }
+}
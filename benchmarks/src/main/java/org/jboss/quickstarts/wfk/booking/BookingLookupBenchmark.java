@@ -0,0 +1,136 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.booking;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.TemporalType;
+
+import org.jboss.quickstarts.wfk.benchmarks.Fixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Times the lookups of bookings by customer and day, by taxi and day, and by day, as the Booking table grows. With
+ * the indexes declared on {@link Booking} the time should not depend on the number of bookings.</p>
+ *
+ * <p>The bookings are seeded as in {@link BookingConflictBenchmark}, so whatever the size of the table a customer or a
+ * taxi has at most one booking on the looked up day, and the day has {@link #TAXIS} of them. Only the ids are selected,
+ * so the time is that of finding the rows rather than loading them.</p>
+ *
+ * <p>Each call looks up the next of {@link #LOOKUPS} days spread over the table. H2 hands back the previous result of a
+ * query run again with the same parameters on an unchanged table, which would hide the cost of the lookup.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BookingLookupBenchmark {
+
+    private static final int CUSTOMERS = 1000;
+
+    private static final int TAXIS = 100;
+
+    private static final int LOOKUPS = 64;
+
+    @Param({"10000", "100000", "1000000"})
+    public int bookings;
+
+    private EntityManagerFactory emf;
+
+    private EntityManager em;
+
+    private final long[] customerIds = new long[LOOKUPS];
+
+    private long taxiId;
+
+    private final Date[] dates = new Date[LOOKUPS];
+
+    private int next;
+
+    @Setup
+    public void setUp() {
+        emf = Fixtures.createEntityManagerFactory();
+        long firstCustomerId = Fixtures.persistCustomers(emf, CUSTOMERS);
+        long firstTaxiId = Fixtures.persistTaxis(emf, TAXIS);
+        Fixtures.insertBookings(emf, bookings, firstCustomerId, CUSTOMERS, firstTaxiId, TAXIS);
+
+        em = emf.createEntityManager();
+
+        // The first booking of each day looked up, and its customer and taxi
+        int days = bookings / TAXIS;
+        for (int i = 0; i < LOOKUPS; i++) {
+            int day = (int) ((long) days * i / LOOKUPS);
+            customerIds[i] = firstCustomerId + (day * TAXIS) % CUSTOMERS;
+            dates[i] = Fixtures.daysFromNow(1 + day);
+        }
+        taxiId = firstTaxiId;
+    }
+
+    @TearDown
+    public void tearDown() {
+        em.close();
+        emf.close();
+    }
+
+    @Benchmark
+    public List<Long> byCustomerAndDate() {
+        int i = next();
+        return em.createQuery("SELECT b.id FROM Booking b WHERE b.customer.id = :customerId "
+            + "AND b.booking_date = :date", Long.class)
+            .setParameter("customerId", customerIds[i])
+            .setParameter("date", dates[i], TemporalType.DATE)
+            .getResultList();
+    }
+
+    @Benchmark
+    public List<Long> byTaxiAndDate() {
+        return em.createQuery("SELECT b.id FROM Booking b WHERE b.taxi.id = :taxiId "
+            + "AND b.booking_date = :date", Long.class)
+            .setParameter("taxiId", taxiId)
+            .setParameter("date", dates[next()], TemporalType.DATE)
+            .getResultList();
+    }
+
+    @Benchmark
+    public List<Long> byDate() {
+        return em.createQuery("SELECT b.id FROM Booking b WHERE b.booking_date = :date", Long.class)
+            .setParameter("date", dates[next()], TemporalType.DATE)
+            .getResultList();
+    }
+
+    private int next() {
+        next = (next + 1) % LOOKUPS;
+        return next;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.booking;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.jboss.quickstarts.wfk.benchmarks.Fixtures;
+import org.jboss.quickstarts.wfk.util.JacksonConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Compares a page of the booking list read as full Bookings with the same page read as {@link BookingSummary}
+ * objects, each written out as JSON as the REST endpoint would. Run it with <code>-prof gc</code> to see the bytes
+ * allocated per page (gc.alloc.rate.norm) next to the time.</p>
+ *
+ * <p>The persistence context is cleared before every page, as each request gets a new one. Pages start at one of
+ * {@link #CURSORS} places in the table in turn, so H2 can not hand back a cached result.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BookingSummaryBenchmark {
+
+    private static final int BOOKINGS = 100000;
+
+    private static final int CUSTOMERS = 1000;
+
+    private static final int TAXIS = 100;
+
+    private static final int CURSORS = 64;
+
+    @Param({"100", "1000"})
+    public int page;
+
+    private EntityManagerFactory emf;
+
+    private EntityManager em;
+
+    private BookingRepository repository;
+
+    private ObjectMapper mapper;
+
+    private final long[] cursors = new long[CURSORS];
+
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        emf = Fixtures.createEntityManagerFactory();
+        long firstCustomerId = Fixtures.persistCustomers(emf, CUSTOMERS);
+        long firstTaxiId = Fixtures.persistTaxis(emf, TAXIS);
+        Fixtures.insertBookings(emf, BOOKINGS, firstCustomerId, CUSTOMERS, firstTaxiId, TAXIS);
+
+        em = emf.createEntityManager();
+        repository = new BookingBeans(em).repository;
+        mapper = new JacksonConfig().getContext(Object.class);
+
+        for (int i = 0; i < CURSORS; i++) {
+            cursors[i] = Fixtures.SEEDED_BOOKING_ID_BASE + (long) (BOOKINGS - page) * i / CURSORS;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        em.close();
+        emf.close();
+    }
+
+    @Benchmark
+    public byte[] entities() throws Exception {
+        em.clear();
+        return mapper.writeValueAsBytes(repository.findPage(next(), page));
+    }
+
+    @Benchmark
+    public byte[] summaries() throws Exception {
+        em.clear();
+        return mapper.writeValueAsBytes(repository.findSummaryPage(next(), page));
+    }
+
+    private long next() {
+        next = (next + 1) % CURSORS;
+        return cursors[next];
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.booking;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.validation.ValidationException;
+
+import org.jboss.quickstarts.wfk.benchmarks.Fixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Measures {@link BookingValidator#validateBooking(Booking)} for a booking that passes every check and for one that
+ * clashes with an existing booking.</p>
+ *
+ * <p>The persistence context is cleared before each call, as each REST request gets a new one.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BookingValidatorBenchmark {
+
+    private static final int CUSTOMERS = 1000;
+
+    private static final int TAXIS = 100;
+
+    private static final int BOOKINGS = 10000;
+
+    private EntityManagerFactory emf;
+
+    private EntityManager em;
+
+    private BookingValidator validator;
+
+    private Booking freeBooking;
+
+    private Booking takenBooking;
+
+    @Setup
+    public void setUp() {
+        emf = Fixtures.createEntityManagerFactory();
+        long firstCustomerId = Fixtures.persistCustomers(emf, CUSTOMERS);
+        long firstTaxiId = Fixtures.persistTaxis(emf, TAXIS);
+        Fixtures.insertBookings(emf, BOOKINGS, firstCustomerId, CUSTOMERS, firstTaxiId, TAXIS);
+
+        em = emf.createEntityManager();
+        validator = new BookingBeans(em).validator;
+
+        // The seeded bookings fill the first BOOKINGS / TAXIS days from tomorrow
+        freeBooking = BookingBeans.newBooking(firstCustomerId, firstTaxiId, Fixtures.daysFromNow(BOOKINGS / TAXIS + 1));
+        takenBooking = BookingBeans.newBooking(firstCustomerId, firstTaxiId, Fixtures.daysFromNow(1));
+    }
+
+    @TearDown
+    public void tearDown() {
+        em.close();
+        emf.close();
+    }
+
+    @Benchmark
+    public Booking validateFreeBooking() {
+        em.clear();
+        validator.validateBooking(freeBooking);
+        return freeBooking;
+    }
+
+    @Benchmark
+    public ValidationException validateTakenBooking() {
+        em.clear();
+        try {
+            validator.validateBooking(takenBooking);
+        } catch (ValidationException e) {
+            return e;
+        }
+        throw new IllegalStateException("The booking should have clashed");
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.booking;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.TemporalType;
+
+import org.jboss.quickstarts.wfk.benchmarks.Fixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Times the search for {@link #LIMIT} free taxis with at least some number of seats as the fleet grows, in memory
+ * through {@link BookingService#findFreeTaxiIds(Date, int, int)} and as a database query.</p>
+ *
+ * <p>Half of the taxis, those with the lower ids, are booked on the day searched, so the search has to skip about half
+ * of the taxis with each number of seats before it finds free ones. The least number of seats goes round from 2 to 20
+ * from one call to the next, which also keeps H2 from handing back the previous result of the query.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FreeTaxiSearchBenchmark {
+
+    private static final int CUSTOMERS = 1000;
+
+    private static final int LIMIT = 20;
+
+    @Param({"1000", "10000", "100000"})
+    public int taxis;
+
+    private EntityManagerFactory emf;
+
+    private EntityManager em;
+
+    private BookingBeans beans;
+
+    private Date date;
+
+    private int minSeats;
+
+    @Setup
+    public void setUp() {
+        emf = Fixtures.createEntityManagerFactory();
+        long firstCustomerId = Fixtures.persistCustomers(emf, CUSTOMERS);
+        long firstTaxiId = Fixtures.persistTaxis(emf, taxis);
+        // One booking each for the first half of the taxis, all tomorrow
+        Fixtures.insertBookings(emf, taxis / 2, firstCustomerId, CUSTOMERS, firstTaxiId, taxis);
+
+        em = emf.createEntityManager();
+        beans = new BookingBeans(em);
+        date = Fixtures.daysFromNow(1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        em.close();
+        emf.close();
+    }
+
+    @Benchmark
+    public List<Long> index() {
+        return beans.service.findFreeTaxiIds(date, nextMinSeats(), LIMIT);
+    }
+
+    @Benchmark
+    public List<Long> query() {
+        return em.createQuery("SELECT t.id FROM Taxi t WHERE t.numSeats >= :minSeats AND NOT EXISTS "
+            + "(SELECT b.id FROM Booking b WHERE b.taxi = t AND b.booking_date = :date) "
+            + "ORDER BY t.numSeats ASC, t.id ASC", Long.class)
+            .setParameter("minSeats", nextMinSeats())
+            .setParameter("date", date, TemporalType.DATE)
+            .setMaxResults(LIMIT)
+            .getResultList();
+    }
+
+    private int nextMinSeats() {
+        minSeats = minSeats >= 20 ? 2 : Math.max(2, minSeats + 1);
+        return minSeats;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.booking;
+
+import java.util.BitSet;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.jboss.quickstarts.wfk.benchmarks.Fixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Compares reading which of the next 90 days a taxi is booked from its calendar in the
+ * {@link BookingAvailabilityIndex} with what a client had to do before: load every booking of the taxi and pick out
+ * the days in the range.</p>
+ *
+ * <p>The bookings are seeded as in {@link BookingConflictBenchmark}, so each taxi is booked every day for as many days
+ * as there are bookings per taxi.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TaxiAvailabilityBenchmark {
+
+    private static final int CUSTOMERS = 1000;
+
+    private static final int TAXIS = 100;
+
+    private static final int DAYS = 90;
+
+    @Param({"10000", "100000"})
+    public int bookings;
+
+    private EntityManagerFactory emf;
+
+    private EntityManager em;
+
+    private BookingBeans beans;
+
+    private long taxiId;
+
+    private Date from;
+
+    private Date to;
+
+    @Setup
+    public void setUp() {
+        emf = Fixtures.createEntityManagerFactory();
+        long firstCustomerId = Fixtures.persistCustomers(emf, CUSTOMERS);
+        taxiId = Fixtures.persistTaxis(emf, TAXIS);
+        Fixtures.insertBookings(emf, bookings, firstCustomerId, CUSTOMERS, taxiId, TAXIS);
+
+        em = emf.createEntityManager();
+        beans = new BookingBeans(em);
+
+        // A range that ends half way past the taxi's last booking, so it holds booked and free days
+        int lastBookedDay = bookings / TAXIS;
+        from = Fixtures.daysFromNow(lastBookedDay - DAYS / 2);
+        to = Fixtures.daysFromNow(lastBookedDay + DAYS / 2 - 1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        em.close();
+        emf.close();
+    }
+
+    @Benchmark
+    public BitSet calendar() {
+        return beans.availability.findBookedDays(taxiId, from, to);
+    }
+
+    @Benchmark
+    public BitSet scan() {
+        em.clear();
+        int first = BookingAvailabilityIndex.dayOf(from);
+        int last = BookingAvailabilityIndex.dayOf(to);
+        BitSet booked = new BitSet(DAYS);
+        for (Booking booking : beans.repository.findByTaxi(taxiId)) {
+            int day = BookingAvailabilityIndex.dayOf(booking.getBookingDate());
+            if (day >= first && day <= last) {
+                booked.set(day - first);
+            }
+        }
+        return booked;
+    }
+}
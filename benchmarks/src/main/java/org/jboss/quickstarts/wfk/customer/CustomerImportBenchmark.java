@@ -0,0 +1,181 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.customer;
+
+import static org.jboss.quickstarts.wfk.benchmarks.Fixtures.inject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.transaction.Status;
+import javax.transaction.UserTransaction;
+
+import org.jboss.quickstarts.wfk.benchmarks.Fixtures;
+import org.jboss.quickstarts.wfk.util.BulkImporter;
+import org.jboss.quickstarts.wfk.util.ImportReader;
+import org.jboss.quickstarts.wfk.util.JacksonConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Compares the customers per second created by {@link BulkImporter}, which backs POST rest/customers/import, from a
+ * CSV upload with creating the same customers one at a time through {@link CustomerService#create(Customer)}, each in
+ * its own transaction, as POST rest/customers does.</p>
+ *
+ * <p>Every call brings {@link #ROWS} new customers, so the table, and the set of emails the import reads at its start,
+ * grow as the benchmark runs.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CustomerImportBenchmark {
+
+    /** The number of customers in each upload. */
+    private static final int ROWS = 2000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private EntityManagerFactory emf;
+
+    private EntityManager em;
+
+    private CustomerService service;
+
+    private BulkImporter importer;
+
+    private CustomerImport target;
+
+    private long nextNumber;
+
+    @Setup
+    public void setUp() throws Exception {
+        emf = Fixtures.createEntityManagerFactory();
+        em = emf.createEntityManager();
+
+        CustomerRepository crud = inject(new CustomerRepository(), "log", Fixtures.createLogger());
+        inject(crud, "em", em);
+        CustomerValidator validator = inject(new CustomerValidator(), "validator", Fixtures.createValidator());
+        inject(validator, "crud", crud);
+        service = inject(new CustomerService(), "log", Fixtures.createLogger());
+        inject(service, "validator", validator);
+        inject(service, "crud", crud);
+
+        target = inject(new CustomerImport(), "crud", crud);
+        importer = inject(new BulkImporter(), "log", Fixtures.createLogger());
+        inject(importer, "validator", Fixtures.createValidator());
+        inject(importer, "jacksonConfig", new JacksonConfig());
+        inject(importer, "transaction", new LocalTransaction(em));
+    }
+
+    @TearDown
+    public void tearDown() {
+        em.close();
+        emf.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public byte[] importCsv() throws Exception {
+        StringBuilder csv = new StringBuilder("name,email,phoneNumber\n");
+        for (int i = 0; i < ROWS; i++) {
+            Customer customer = Fixtures.newCustomer(nextNumber++);
+            csv.append(customer.getName()).append(',').append(customer.getEmail()).append(',')
+                .append(customer.getPhoneNumber()).append('\n');
+        }
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        importer.importAll(target, ImportReader.CSV, new ByteArrayInputStream(csv.toString().getBytes(UTF_8)), report);
+        return report.toByteArray();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public Customer create() throws Exception {
+        Customer created = null;
+        for (int i = 0; i < ROWS; i++) {
+            em.getTransaction().begin();
+            created = service.create(Fixtures.newCustomer(nextNumber++));
+            em.getTransaction().commit();
+            em.clear();
+        }
+        return created;
+    }
+
+    /**
+     * <p>A UserTransaction over the resource local transaction of one EntityManager, which is cleared after each
+     * transaction as a transaction scoped one would be.</p>
+     */
+    private static final class LocalTransaction implements UserTransaction {
+
+        private final EntityManager em;
+
+        LocalTransaction(EntityManager em) {
+            this.em = em;
+        }
+
+        @Override
+        public void begin() {
+            em.getTransaction().begin();
+        }
+
+        @Override
+        public void commit() {
+            try {
+                em.getTransaction().commit();
+            } finally {
+                em.clear();
+            }
+        }
+
+        @Override
+        public void rollback() {
+            em.getTransaction().rollback();
+            em.clear();
+        }
+
+        @Override
+        public void setRollbackOnly() {
+            em.getTransaction().setRollbackOnly();
+        }
+
+        @Override
+        public int getStatus() {
+            return em.getTransaction().isActive() ? Status.STATUS_ACTIVE : Status.STATUS_NO_TRANSACTION;
+        }
+
+        @Override
+        public void setTransactionTimeout(int seconds) {
+            // Not needed here
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.customer;
+
+import static org.jboss.quickstarts.wfk.benchmarks.Fixtures.inject;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.jboss.quickstarts.wfk.benchmarks.Fixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Measures how many customers per second {@link CustomerRepository#create(Customer)} inserts from 1, 8 and 32
+ * threads, each insert in its own transaction. The ids come from the pooled Customer_seq, so most inserts do not read
+ * the sequence at all.</p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CustomerInsertBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Database {
+
+        final AtomicLong customerNumbers = new AtomicLong();
+
+        EntityManagerFactory emf;
+
+        @Setup
+        public void setUp() {
+            emf = Fixtures.createEntityManagerFactory();
+        }
+
+        @TearDown
+        public void tearDown() {
+            emf.close();
+        }
+    }
+
+    /** Each thread has its own EntityManager and repository, as each request does on the server. */
+    @State(Scope.Thread)
+    public static class Session {
+
+        EntityManager em;
+
+        CustomerRepository crud;
+
+        @Setup
+        public void setUp(Database database) {
+            em = database.emf.createEntityManager();
+            crud = inject(new CustomerRepository(), "log", Fixtures.createLogger());
+            inject(crud, "em", em);
+        }
+
+        @TearDown
+        public void tearDown() {
+            // JMH may already have closed the factory, which closes its EntityManagers
+            if (em.isOpen()) {
+                em.close();
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Customer insert1Thread(Database database, Session session) throws Exception {
+        return insert(database, session);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Customer insert8Threads(Database database, Session session) throws Exception {
+        return insert(database, session);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public Customer insert32Threads(Database database, Session session) throws Exception {
+        return insert(database, session);
+    }
+
+    private Customer insert(Database database, Session session) throws Exception {
+        Customer customer = Fixtures.newCustomer(database.customerNumbers.getAndIncrement());
+        session.em.getTransaction().begin();
+        session.crud.create(customer);
+        session.em.getTransaction().commit();
+        session.em.clear();
+        return customer;
+    }
+}
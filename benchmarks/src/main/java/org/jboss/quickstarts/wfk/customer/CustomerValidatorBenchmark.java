@@ -0,0 +1,103 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.customer;
+
+import static org.jboss.quickstarts.wfk.benchmarks.Fixtures.inject;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.jboss.quickstarts.wfk.benchmarks.Fixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Measures {@link CustomerValidator#emailAlreadyExists(String, Long)} for the three cases the service meets: a new
+ * email, an email held by another customer, and a customer being updated with their own email.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CustomerValidatorBenchmark {
+
+    private static final int CUSTOMERS = 10000;
+
+    private EntityManagerFactory emf;
+
+    private EntityManager em;
+
+    private CustomerValidator validator;
+
+    private long firstCustomerId;
+
+    private String takenEmail;
+
+    private String newEmail;
+
+    @Setup
+    public void setUp() {
+        emf = Fixtures.createEntityManagerFactory();
+        firstCustomerId = Fixtures.persistCustomers(emf, CUSTOMERS);
+
+        em = emf.createEntityManager();
+        CustomerRepository crud = inject(new CustomerRepository(), "log", Fixtures.createLogger());
+        inject(crud, "em", em);
+        validator = inject(new CustomerValidator(), "validator", Fixtures.createValidator());
+        inject(validator, "crud", crud);
+
+        takenEmail = Fixtures.newCustomer(CUSTOMERS / 2).getEmail();
+        newEmail = Fixtures.newCustomer(CUSTOMERS).getEmail();
+    }
+
+    @TearDown
+    public void tearDown() {
+        em.close();
+        emf.close();
+    }
+
+    @Benchmark
+    public boolean newEmail() {
+        em.clear();
+        return validator.emailAlreadyExists(newEmail, null);
+    }
+
+    @Benchmark
+    public boolean takenEmail() {
+        em.clear();
+        return validator.emailAlreadyExists(takenEmail, null);
+    }
+
+    @Benchmark
+    public boolean ownEmail() {
+        em.clear();
+        return validator.emailAlreadyExists(takenEmail, firstCustomerId + CUSTOMERS / 2);
+    }
+}
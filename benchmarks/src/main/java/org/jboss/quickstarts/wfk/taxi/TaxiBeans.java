@@ -0,0 +1,56 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.taxi;
+
+import static org.jboss.quickstarts.wfk.benchmarks.Fixtures.inject;
+
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+
+import org.jboss.quickstarts.wfk.benchmarks.Fixtures;
+
+/**
+ * <p>Creates the taxi beans that the benchmarks of other packages need, as CDI would.</p>
+ */
+public final class TaxiBeans {
+
+    private TaxiBeans() {
+    }
+
+    /**
+     * <p>Creates a TaxiSeatIndex and loads it from the taxis already in the database.</p>
+     */
+    public static TaxiSeatIndex createSeatIndex(EntityManager em) {
+        TaxiSeatIndex seats = new TaxiSeatIndex();
+        inject(seats, "log", Fixtures.createLogger());
+        inject(seats, "em", em);
+        inject(seats, "txRegistry", Fixtures.createNoTransactionRegistry());
+        seats.load();
+        return seats;
+    }
+
+    /**
+     * <p>Creates a TaxiRepository over the EntityManager that keeps the given index current.</p>
+     */
+    public static TaxiRepository createRepository(EntityManager em, TaxiSeatIndex seats) {
+        TaxiRepository taxis = inject(new TaxiRepository(), "log", Fixtures.createLogger());
+        inject(taxis, "em", em);
+        inject(taxis, "seats", seats);
+        return taxis;
+    }
+}
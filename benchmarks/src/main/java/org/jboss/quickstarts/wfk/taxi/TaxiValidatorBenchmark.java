@@ -0,0 +1,103 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.taxi;
+
+import static org.jboss.quickstarts.wfk.benchmarks.Fixtures.inject;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.jboss.quickstarts.wfk.benchmarks.Fixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Measures the latency of {@link TaxiValidator#regAlreadyExists(String, Long)} for a reg nobody holds, a reg held by
+ * another taxi and a taxi being updated with its own reg.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TaxiValidatorBenchmark {
+
+    private static final int TAXIS = 10000;
+
+    private EntityManagerFactory emf;
+
+    private EntityManager em;
+
+    private TaxiValidator validator;
+
+    private long firstTaxiId;
+
+    private String takenReg;
+
+    private String newReg;
+
+    @Setup
+    public void setUp() {
+        emf = Fixtures.createEntityManagerFactory();
+        firstTaxiId = Fixtures.persistTaxis(emf, TAXIS);
+
+        em = emf.createEntityManager();
+        TaxiRepository crud = inject(new TaxiRepository(), "log", Fixtures.createLogger());
+        inject(crud, "em", em);
+        validator = inject(new TaxiValidator(), "validator", Fixtures.createValidator());
+        inject(validator, "crud", crud);
+
+        takenReg = Fixtures.newTaxi(TAXIS / 2).getReg();
+        newReg = Fixtures.newTaxi(TAXIS).getReg();
+    }
+
+    @TearDown
+    public void tearDown() {
+        em.close();
+        emf.close();
+    }
+
+    @Benchmark
+    public boolean newReg() {
+        em.clear();
+        return validator.regAlreadyExists(newReg, null);
+    }
+
+    @Benchmark
+    public boolean takenReg() {
+        em.clear();
+        return validator.regAlreadyExists(takenReg, null);
+    }
+
+    @Benchmark
+    public boolean ownReg() {
+        em.clear();
+        return validator.regAlreadyExists(takenReg, firstTaxiId + TAXIS / 2);
+    }
+}
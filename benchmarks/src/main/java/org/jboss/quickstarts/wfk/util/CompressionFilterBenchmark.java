@@ -0,0 +1,222 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.util;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.jboss.quickstarts.wfk.benchmarks.Fixtures;
+import org.jboss.quickstarts.wfk.booking.Booking;
+import org.jboss.quickstarts.wfk.customer.Customer;
+import org.jboss.quickstarts.wfk.taxi.Taxi;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Measures the CPU time and bytes on the wire of a list of bookings sent through {@link CompressionFilter} and
+ * {@link JSONPRequestFilter}, chained in the order web.xml puts them, for each encoding a client can ask for.</p>
+ *
+ * <p>The list is serialized once up front and written in 8000 byte chunks, as in {@link JSONPRequestFilterBenchmark}.
+ * The score is the time per response; the <code>wireBytes</code> secondary result is the size of each response as
+ * sent, after compression and padding.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionFilterBenchmark {
+
+    // Jackson's output buffer size
+    private static final int CHUNK_SIZE = 8000;
+
+    @Param({"10", "1000", "10000"})
+    public int bookings;
+
+    @Param({"identity", "gzip", "deflate"})
+    public String encoding;
+
+    private final CompressionFilter compression = new CompressionFilter();
+
+    private final JSONPRequestFilter jsonp = new JSONPRequestFilter();
+
+    private HttpServletRequest jsonRequest;
+
+    private HttpServletRequest jsonpRequest;
+
+    private FilterChain chain;
+
+    /**
+     * <p>The size of the last response, reported by JMH next to the time.</p>
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Wire {
+        public long wireBytes;
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        jsonRequest = request(null);
+        jsonpRequest = request("angular.callbacks._0");
+
+        final byte[] body = new JacksonConfig().getContext(Object.class).writeValueAsBytes(bookingList());
+        final FilterChain resource = new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException {
+                response.setContentType("application/json");
+                ServletOutputStream out = response.getOutputStream();
+                for (int off = 0; off < body.length; off += CHUNK_SIZE) {
+                    out.write(body, off, Math.min(CHUNK_SIZE, body.length - off));
+                }
+            }
+        };
+        chain = new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException,
+                ServletException {
+                jsonp.doFilter(request, response, resource);
+            }
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        compression.destroy();
+    }
+
+    @Benchmark
+    public long json(Wire wire) throws IOException, ServletException {
+        return send(jsonRequest, wire);
+    }
+
+    @Benchmark
+    public long jsonp(Wire wire) throws IOException, ServletException {
+        return send(jsonpRequest, wire);
+    }
+
+    private long send(HttpServletRequest request, Wire wire) throws IOException, ServletException {
+        CountingOutputStream output = new CountingOutputStream();
+        compression.doFilter(request, response(output), chain);
+        wire.wireBytes = output.count;
+        return output.count;
+    }
+
+    private List<Booking> bookingList() {
+        List<Booking> list = new ArrayList<Booking>(bookings);
+        for (int i = 0; i < bookings; i++) {
+            Customer customer = Fixtures.newCustomer(i);
+            customer.setId((long) i);
+            Taxi taxi = Fixtures.newTaxi(i);
+            taxi.setId((long) i);
+            Booking booking = new Booking();
+            booking.setId((long) i);
+            booking.setCustomer(customer);
+            booking.setTaxi(taxi);
+            booking.setBookingDate(Fixtures.daysFromNow(1 + i));
+            list.add(booking);
+        }
+        return list;
+    }
+
+    private HttpServletRequest request(final String callback) {
+        return (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if ("getParameter".equals(method.getName()) && "jsonpcallback".equals(args[0])) {
+                        return callback;
+                    }
+                    if ("getHeaders".equals(method.getName())) {
+                        return "Accept-Encoding".equals(args[0])
+                            ? Collections.enumeration(Collections.singletonList(encoding))
+                            : Collections.enumeration(Collections.<String>emptyList());
+                    }
+                    return null;
+                }
+            });
+    }
+
+    // Only implements what the filters use; headers and content type set on it are dropped
+    private HttpServletResponse response(final CountingOutputStream output) {
+        return (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] { HttpServletResponse.class }, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if ("getOutputStream".equals(name)) {
+                        return output;
+                    }
+                    if ("getStatus".equals(name)) {
+                        return HttpServletResponse.SC_OK;
+                    }
+                    if ("getContentType".equals(name)) {
+                        return "application/json";
+                    }
+                    if ("getCharacterEncoding".equals(name)) {
+                        return "UTF-8";
+                    }
+                    if (method.getReturnType() == boolean.class) {
+                        // containsHeader(), isCommitted()
+                        return false;
+                    }
+                    return null;
+                }
+            });
+    }
+
+    private static class CountingOutputStream extends ServletOutputStream {
+
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.util;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.jboss.quickstarts.wfk.benchmarks.Fixtures;
+import org.jboss.quickstarts.wfk.booking.Booking;
+import org.jboss.quickstarts.wfk.customer.Customer;
+import org.jboss.quickstarts.wfk.taxi.Taxi;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Measures {@link JSONPRequestFilter#doFilter(ServletRequest, ServletResponse, FilterChain)} around a resource that
+ * writes a list of bookings, with and without a JSONP callback. At 50000 bookings the list is over ten megabytes.</p>
+ *
+ * <p>The list is serialized once up front and written in the 8000 byte chunks Jackson writes, so only the filter's
+ * own cost is measured. The servlet request and response are stand-ins that only implement what the filter uses. The
+ * response discards what is written to it and only counts the bytes. Run with <code>-prof gc</code> to see how much
+ * the filter allocates per response.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JSONPRequestFilterBenchmark {
+
+    // Jackson's output buffer size
+    private static final int CHUNK_SIZE = 8000;
+
+    @Param({"10", "10000", "50000"})
+    public int bookings;
+
+    private final JSONPRequestFilter filter = new JSONPRequestFilter();
+
+    private final CountingOutputStream output = new CountingOutputStream();
+
+    private HttpServletRequest jsonRequest;
+
+    private HttpServletRequest jsonpRequest;
+
+    private HttpServletResponse response;
+
+    private FilterChain resource;
+
+    @Setup
+    public void setUp() throws Exception {
+        jsonRequest = request(null);
+        jsonpRequest = request("angular.callbacks._0");
+        response = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] { HttpServletResponse.class }, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if ("getOutputStream".equals(method.getName())) {
+                        return output;
+                    }
+                    // setContentType(), setCharacterEncoding() and the like
+                    return null;
+                }
+            });
+
+        final byte[] body = new JacksonConfig().getContext(Object.class).writeValueAsBytes(bookingList());
+        resource = new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException {
+                ServletOutputStream out = response.getOutputStream();
+                for (int off = 0; off < body.length; off += CHUNK_SIZE) {
+                    out.write(body, off, Math.min(CHUNK_SIZE, body.length - off));
+                }
+            }
+        };
+    }
+
+    @Benchmark
+    public long json() throws IOException, ServletException {
+        filter.doFilter(jsonRequest, response, resource);
+        return output.count;
+    }
+
+    @Benchmark
+    public long jsonp() throws IOException, ServletException {
+        filter.doFilter(jsonpRequest, response, resource);
+        return output.count;
+    }
+
+    private List<Booking> bookingList() {
+        List<Booking> list = new ArrayList<Booking>(bookings);
+        for (int i = 0; i < bookings; i++) {
+            Customer customer = Fixtures.newCustomer(i);
+            customer.setId((long) i);
+            Taxi taxi = Fixtures.newTaxi(i);
+            taxi.setId((long) i);
+            Booking booking = new Booking();
+            booking.setId((long) i);
+            booking.setCustomer(customer);
+            booking.setTaxi(taxi);
+            booking.setBookingDate(Fixtures.daysFromNow(1 + i));
+            list.add(booking);
+        }
+        return list;
+    }
+
+    private HttpServletRequest request(final String callback) {
+        return (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if ("getParameter".equals(method.getName()) && "jsonpcallback".equals(args[0])) {
+                        return callback;
+                    }
+                    return null;
+                }
+            });
+    }
+
+    private static class CountingOutputStream extends ServletOutputStream {
+
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.jboss.quickstarts.wfk.benchmarks.Fixtures;
+import org.jboss.quickstarts.wfk.booking.Booking;
+import org.jboss.quickstarts.wfk.customer.Customer;
+import org.jboss.quickstarts.wfk.taxi.Taxi;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Measures writing and reading Booking, Customer and Taxi JSON with the ObjectMapper that {@link JacksonConfig}
+ * gives RESTEasy.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonSerializationBenchmark {
+
+    private ObjectMapper mapper;
+
+    private Booking booking;
+
+    private Customer customer;
+
+    private Taxi taxi;
+
+    private byte[] bookingJson;
+
+    private byte[] customerJson;
+
+    private byte[] taxiJson;
+
+    @Setup
+    public void setUp() throws Exception {
+        mapper = new JacksonConfig().getContext(Object.class);
+
+        customer = Fixtures.newCustomer(1);
+        customer.setId(1L);
+        taxi = Fixtures.newTaxi(1);
+        taxi.setId(1L);
+        booking = new Booking();
+        booking.setId(1L);
+        booking.setCustomer(customer);
+        booking.setTaxi(taxi);
+        booking.setBookingDate(Fixtures.daysFromNow(1));
+
+        bookingJson = mapper.writeValueAsBytes(booking);
+        customerJson = mapper.writeValueAsBytes(customer);
+        taxiJson = mapper.writeValueAsBytes(taxi);
+    }
+
+    @Benchmark
+    public byte[] writeBooking() throws Exception {
+        return mapper.writeValueAsBytes(booking);
+    }
+
+    @Benchmark
+    public Booking readBooking() throws Exception {
+        return mapper.readValue(bookingJson, Booking.class);
+    }
+
+    @Benchmark
+    public byte[] writeCustomer() throws Exception {
+        return mapper.writeValueAsBytes(customer);
+    }
+
+    @Benchmark
+    public Customer readCustomer() throws Exception {
+        return mapper.readValue(customerJson, Customer.class);
+    }
+
+    @Benchmark
+    public byte[] writeTaxi() throws Exception {
+        return mapper.writeValueAsBytes(taxi);
+    }
+
+    @Benchmark
+    public Taxi readTaxi() throws Exception {
+        return mapper.readValue(taxiJson, Taxi.class);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.booking;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.ServerSocket;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.LockTimeoutException;
+import javax.persistence.Persistence;
+import javax.persistence.PessimisticLockException;
+import javax.validation.ValidationException;
+
+import org.h2.tools.Server;
+import org.jboss.quickstarts.wfk.benchmarks.Fixtures;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * <p>Two nodes booking against one database: two EntityManagerFactories, each with its own booking beans and so its
+ * own availability index, connected to the same H2 server over TCP.</p>
+ *
+ * <p>The in-memory claims of one node can not see the other's, so these check that the taxi row lock in
+ * {@link BookingRepository} is what keeps the nodes apart.</p>
+ */
+public class TwoNodeBookingTest {
+
+    private static Server server;
+
+    private static EntityManagerFactory nodeA;
+
+    private static EntityManagerFactory nodeB;
+
+    private static long customerId;
+
+    private static long taxiId;
+
+    private EntityManager emA;
+
+    private EntityManager emB;
+
+    private BookingBeans beansA;
+
+    private BookingBeans beansB;
+
+    private ExecutorService executor;
+
+    @BeforeClass
+    public static void startNodes() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        server = Server.createTcpServer("-tcpPort", Integer.toString(port)).start();
+
+        // Row locks as on a production database, and H2's own LOCK_TIMEOUT in place of the hint it ignores
+        String url = "jdbc:h2:tcp://localhost:" + port + "/mem:twonodes;DB_CLOSE_DELAY=-1;MVCC=TRUE;LOCK_TIMEOUT="
+            + BookingRepository.LOCK_TIMEOUT_MILLIS;
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("javax.persistence.jdbc.url", url);
+        nodeA = Fixtures.createChangeCounters(Persistence.createEntityManagerFactory(Fixtures.PERSISTENCE_UNIT,
+            properties));
+        // The schema is node A's
+        properties.put("hibernate.hbm2ddl.auto", "validate");
+        nodeB = Persistence.createEntityManagerFactory(Fixtures.PERSISTENCE_UNIT, properties);
+
+        customerId = Fixtures.persistCustomers(nodeA, 2);
+        taxiId = Fixtures.persistTaxis(nodeA, 2);
+    }
+
+    @AfterClass
+    public static void stopNodes() {
+        nodeB.close();
+        nodeA.close();
+        server.stop();
+    }
+
+    @Before
+    public void setUp() {
+        emA = nodeA.createEntityManager();
+        emB = nodeB.createEntityManager();
+        beansA = new BookingBeans(emA);
+        beansB = new BookingBeans(emB);
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        for (EntityManager em : new EntityManager[] {emA, emB}) {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            em.close();
+        }
+    }
+
+    //Tests that node B waits for node A's booking of the taxi to commit, then finds the day taken
+    @Test
+    public void testSecondNodeWaitsThenConflicts() throws Exception {
+        Date date = Fixtures.daysFromNow(10);
+        emA.getTransaction().begin();
+        beansA.service.create(BookingBeans.newBooking(customerId, taxiId, date));
+
+        Future<Booking> second = book(emB, beansB, BookingBeans.newBooking(customerId + 1, taxiId, date));
+        Thread.sleep(BookingRepository.LOCK_TIMEOUT_MILLIS / 4);
+        assertFalse("Node B did not wait for the taxi", second.isDone());
+
+        emA.getTransaction().commit();
+        try {
+            second.get(BookingRepository.LOCK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            fail("Node B booked a taxi and day node A already had");
+        } catch (ExecutionException e) {
+            assertTrue("Unexpected failure " + e.getCause(), e.getCause() instanceof ValidationException);
+        }
+        assertEquals("Unexpected number of bookings", 1L, countBookings(taxiId, date));
+    }
+
+    //Tests that node B gives up with a lock timeout while node A holds the taxi for longer than the timeout
+    @Test
+    public void testSecondNodeTimesOut() throws Exception {
+        long taxi = taxiId + 1;
+        emA.getTransaction().begin();
+        beansA.service.create(BookingBeans.newBooking(customerId, taxi, Fixtures.daysFromNow(20)));
+
+        Future<Booking> second = book(emB, beansB,
+            BookingBeans.newBooking(customerId, taxi, Fixtures.daysFromNow(21)));
+        try {
+            second.get(4 * BookingRepository.LOCK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            fail("Node B booked the taxi while node A held it");
+        } catch (ExecutionException e) {
+            assertTrue("Unexpected failure " + e.getCause(), e.getCause() instanceof LockTimeoutException
+                || e.getCause() instanceof PessimisticLockException);
+        }
+
+        emA.getTransaction().commit();
+        assertEquals("Unexpected number of bookings", 0L, countBookings(taxi, Fixtures.daysFromNow(21)));
+    }
+
+    // Books on the other thread, in a transaction of its own that is left open
+    private Future<Booking> book(final EntityManager em, final BookingBeans beans, final Booking booking) {
+        return executor.submit(new Callable<Booking>() {
+            @Override
+            public Booking call() throws Exception {
+                em.getTransaction().begin();
+                return beans.service.create(booking);
+            }
+        });
+    }
+
+    private long countBookings(long taxi, Date date) {
+        EntityManager em = nodeA.createEntityManager();
+        try {
+            return em.createQuery("SELECT COUNT(b) FROM Booking b WHERE b.taxi.id = :taxi AND b.booking_date = :date",
+                Long.class).setParameter("taxi", taxi).setParameter("date", date).getSingleResult();
+        } finally {
+            em.close();
+        }
+    }
+}
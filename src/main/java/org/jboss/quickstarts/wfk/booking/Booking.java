@@ -27,6 +27,8 @@ import javax.validation.constraints.Pattern;
 import javax.validation.constraints.Size;
 import javax.xml.bind.annotation.XmlRootElement;
 
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.hibernate.annotations.Index;
 import org.hibernate.validator.constraints.Email;
 import org.hibernate.validator.constraints.NotEmpty;
 import org.jboss.quickstarts.wfk.customer.Customer;
@@ -44,15 +46,39 @@ import org.jboss.quickstarts.wfk.taxi.Taxi;
 /*
  * The @NamedQueries included here are for searching against the table that reflects this object.  This is the most efficient
  * form of query in JPA though is it more error prone due to the syntax being in a String.  This makes it harder to debug.
+ *
+ * The customer and taxi of a Booking are always needed, so the queries fetch them in the same SELECT. Without the fetch
+ * joins Hibernate issues one more SELECT per distinct customer and taxi in the result.
  */
 @Entity
 @NamedQueries({
-    @NamedQuery(name = Booking.FIND_ALL, query = "SELECT c FROM Booking c ORDER BY c.id ASC"),
-    @NamedQuery(name = Booking.FIND_BY_CUSTOMER, query = "SELECT c FROM Booking c WHERE c.customer.id=:customerId"),
-    @NamedQuery(name = Booking.FIND_BY_TAXI, query="SELECT c FROM Booking c WHERE c.taxi.id=:taxiId")
+    @NamedQuery(name = Booking.FIND_ALL, query = "SELECT c FROM Booking c "
+        + "LEFT JOIN FETCH c.customer LEFT JOIN FETCH c.taxi ORDER BY c.id ASC"),
+    @NamedQuery(name = Booking.FIND_PAGE_AFTER, query = "SELECT c FROM Booking c "
+        + "LEFT JOIN FETCH c.customer LEFT JOIN FETCH c.taxi WHERE c.id > :after ORDER BY c.id ASC"),
+    @NamedQuery(name = Booking.FIND_BY_CUSTOMER, query = "SELECT c FROM Booking c "
+        + "LEFT JOIN FETCH c.customer LEFT JOIN FETCH c.taxi WHERE c.customer.id=:customerId"),
+    @NamedQuery(name = Booking.FIND_BY_TAXI, query="SELECT c FROM Booking c "
+        + "LEFT JOIN FETCH c.customer LEFT JOIN FETCH c.taxi WHERE c.taxi.id=:taxiId"),
+    @NamedQuery(name = Booking.FIND_ALL_SUMMARIES, query = Booking.SELECT_SUMMARIES + "ORDER BY c.id ASC"),
+    @NamedQuery(name = Booking.FIND_SUMMARY_PAGE_AFTER, query = Booking.SELECT_SUMMARIES
+        + "WHERE c.id > :after ORDER BY c.id ASC"),
+    @NamedQuery(name = Booking.FIND_SUMMARIES_BY_CUSTOMER, query = Booking.SELECT_SUMMARIES
+        + "WHERE c.customer.id = :customerId ORDER BY c.id ASC"),
+    @NamedQuery(name = Booking.FIND_SUMMARIES_BY_TAXI, query = Booking.SELECT_SUMMARIES
+        + "WHERE c.taxi.id = :taxiId ORDER BY c.id ASC")
 })
 @XmlRootElement
-@Table(name = "Booking", uniqueConstraints = @UniqueConstraint(columnNames = "id"))
+@Table(name = "Booking", uniqueConstraints =
+    @UniqueConstraint(name = Booking.TAXI_DATE_CONSTRAINT, columnNames = {"taxiId", "booking_date"}))
+/*
+ * Bookings are looked up by customer, by taxi and by day. The unique constraint's index serves the lookups by taxi (and
+ * taxi and day); these two serve the others, so none of them has to read the whole table.
+ */
+@org.hibernate.annotations.Table(appliesTo = "Booking", indexes = {
+    @Index(name = "Booking_customer_date_idx", columnNames = {"customerId", "booking_date"}),
+    @Index(name = "Booking_date_idx", columnNames = "booking_date")
+})
 
 
 public class Booking implements Serializable {
@@ -60,8 +86,26 @@ public class Booking implements Serializable {
     private static final long serialVersionUID = 1L;
     
     public static final String FIND_ALL = "Booking.findAll";
+    public static final String FIND_PAGE_AFTER = "Booking.findPageAfter";
     public static final String FIND_BY_TAXI = "Booking.findByTaxi";
     public static final String FIND_BY_CUSTOMER = "Booking.findByCustomer";
+    public static final String FIND_ALL_SUMMARIES = "Booking.findAllSummaries";
+    public static final String FIND_SUMMARY_PAGE_AFTER = "Booking.findSummaryPageAfter";
+    public static final String FIND_SUMMARIES_BY_CUSTOMER = "Booking.findSummariesByCustomer";
+    public static final String FIND_SUMMARIES_BY_TAXI = "Booking.findSummariesByTaxi";
+
+    /*
+     * The summary queries only read the columns BookingSummary needs, joining the customer and taxi for their name and
+     * reg. The constructor expression hands back BookingSummary objects rather than managed entities.
+     */
+    static final String SELECT_SUMMARIES = "SELECT NEW org.jboss.quickstarts.wfk.booking.BookingSummary(c.id, "
+        + "c.booking_date, cu.id, cu.customerName, t.id, t.reg) FROM Booking c LEFT JOIN c.customer cu LEFT JOIN c.taxi t ";
+
+    /*
+     * A taxi can only be booked once a day. BookingValidator turns most double bookings away before they are written,
+     * but only the database can settle two requests for the same taxi and day that are validated at the same time.
+     */
+    public static final String TAXI_DATE_CONSTRAINT = "Booking_taxi_date_uk";
     /*
      * The  error messages match the ones in the UI so that the user isn't confused by two similar error messages for
      * the same error after hitting submit. This is if the form submits while having validation errors. The only
@@ -72,9 +116,14 @@ public class Booking implements Serializable {
      * variable occurs it can be sent to the correct input field on the form.  
      */
     
-    //ID generated automatically
+    /*
+     * ID generated automatically. Ids are handed out in blocks of 50 per server: the sequence is only read once per block and the rest are
+     * assigned in memory, so concurrent inserts do not queue up behind one another. Where the database has no sequences
+     * Hibernate keeps the counter in a table instead.
+     */
     @Id
-    @GeneratedValue(strategy = GenerationType.TABLE)
+    @SequenceGenerator(name = "Booking_seq", sequenceName = "Booking_seq", initialValue = 1, allocationSize = 50)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "Booking_seq")
     private Long id;
 
  
@@ -94,6 +143,15 @@ public class Booking implements Serializable {
   //  @NotNull
     @JoinColumn(name="taxiId")
     private Taxi taxi;
+
+    // Incremented on every update. A booking's ETag is made of this and the versions of its customer and taxi
+    @Version
+    @Column(name = "version")
+    private Long version;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "last_modified")
+    private Date lastModified;
     
     
     public Long getId() {
@@ -154,5 +212,24 @@ public class Booking implements Serializable {
         this.booking_date = date;
     }
 
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
+    @JsonIgnore
+    public Date getLastModified() {
+        return lastModified;
+    }
+
+    @PrePersist
+    @PreUpdate
+    void touch() {
+        lastModified = new Date();
+    }
+
    
 }
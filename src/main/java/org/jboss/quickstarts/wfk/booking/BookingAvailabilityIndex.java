@@ -0,0 +1,266 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.booking;
+
+import java.util.BitSet;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.persistence.EntityManager;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.jboss.quickstarts.wfk.util.AfterCommit;
+
+/**
+ * <p>An in-memory index of which taxi is booked on which day, used to answer the "is this taxi already booked on this
+ * date" question without going to the database.</p>
+ *
+ * <p>The index is built once from the Booking table when the application starts and is then kept current by
+ * {@link BookingRepository} on every create, update and delete. Changes are only applied once the surrounding
+ * transaction has committed, so a rolled back booking never shows up as taken.</p>
+ *
+ * <p>It is also where concurrent bookings are admitted: {@link #claim(Booking)} lets only one transaction at a time
+ * book a given taxi on a given day, without a lock and without holding up bookings of other taxis.</p>
+ *
+ * <p>Besides single days it answers which days of a range a taxi is booked, see
+ * {@link #findBookedDays(long, Date, Date)}, which is what {@link TaxiAvailabilityRESTService} serves.</p>
+ *
+ * @author Joshua Wilson
+ * @see BookingRepository
+ * @see BookingValidator
+ */
+/*
+ * Bean managed concurrency is used as all state lives in concurrent maps, so there is no need for the container to
+ * serialise access to the singleton.
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+public class BookingAvailabilityIndex {
+
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    @Inject
+    private @Named("logger") Logger log;
+
+    @Inject
+    private EntityManager em;
+
+    @Resource
+    private TransactionSynchronizationRegistry txRegistry;
+
+    // taxi id -> the days the taxi is booked
+    private final ConcurrentMap<Long, TaxiCalendar> calendars = new ConcurrentHashMap<Long, TaxiCalendar>();
+
+    /**
+     * <p>Loads the taxi, date and id of every persisted Booking into the index. Only those three columns are read, no
+     * Booking entities are created.</p>
+     */
+    @PostConstruct
+    @TransactionAttribute(TransactionAttributeType.REQUIRED)
+    void load() {
+        List<Object[]> rows = em.createQuery("SELECT b.id, b.taxi.id, b.booking_date FROM Booking b", Object[].class)
+            .getResultList();
+        for (Object[] row : rows) {
+            put((Long) row[1], (Date) row[2], (Long) row[0]);
+        }
+        log.info("BookingAvailabilityIndex.load() - Indexed " + rows.size() + " bookings");
+    }
+
+    /**
+     * <p>Returns the id of the Booking that holds the given taxi on the given day, or null if the taxi is free.</p>
+     *
+     * @param taxiId The id of the Taxi to look up
+     * @param date The day to look up, any time of day is ignored
+     * @return The id of the Booking for that taxi and day; or null
+     */
+    public Long findBookingId(long taxiId, Date date) {
+        return findBookingId(taxiId, dayOf(date));
+    }
+
+    /**
+     * <p>As {@link #findBookingId(long, Date)}, for a day already numbered by {@link #dayOf(Date)}.</p>
+     */
+    Long findBookingId(long taxiId, int day) {
+        TaxiCalendar calendar = calendars.get(taxiId);
+        return calendar == null ? null : calendar.bookingOn(day);
+    }
+
+    /**
+     * <p>Returns the days from one date to another on which the given taxi is booked. The days are read from the
+     * taxi's occupancy bitmap a word of 64 days at a time, see {@link TaxiCalendar}.</p>
+     *
+     * @param taxiId The id of the Taxi to look up
+     * @param from The first day, any time of day is ignored
+     * @param to The last day, any time of day is ignored; not before from
+     * @return The booked days, bit i being set if the taxi is booked i days after from
+     */
+    public BitSet findBookedDays(long taxiId, Date from, Date to) {
+        int first = dayOf(from);
+        int last = dayOf(to);
+        TaxiCalendar calendar = calendars.get(taxiId);
+        return calendar == null ? new BitSet(last - first + 1) : calendar.booked(first, last);
+    }
+
+    /**
+     * <p>Claims the taxi and day of the provided Booking for the current transaction, so that no other transaction can
+     * book them until it ends. If the transaction commits the Booking is recorded in the index before the claim is let
+     * go, otherwise the claim is simply let go.</p>
+     *
+     * <p>The claim fails if the taxi is already booked that day by another Booking, or if another transaction holds
+     * the claim; a Booking being updated may keep its own taxi and day. Outside a transaction the claim is only a
+     * check, as there is nothing to hold it until.</p>
+     *
+     * @param booking The Booking about to be created or updated
+     * @return true if the Booking may go ahead; false if it would double book the taxi
+     */
+    public boolean claim(final Booking booking) {
+        final long taxiId = booking.getTaxiId();
+        final Date date = booking.getBookingDate();
+        final int day = dayOf(date);
+        final TaxiCalendar calendar = calendarOf(taxiId);
+        final Object claim = new Object();
+        if (!calendar.claim(day, booking.getId(), claim)) {
+            return false;
+        }
+        AfterCommit.run(txRegistry, new Runnable() {
+            @Override
+            public void run() {
+                // The id is only known once the Booking has been persisted; if it never was there is nothing to add
+                if (booking.getId() != null) {
+                    put(taxiId, date, booking.getId());
+                }
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                calendar.unclaim(day, claim);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * <p>Records the provided Booking in the index once the current transaction commits.</p>
+     *
+     * @param booking The Booking that has been persisted
+     */
+    public void added(final Booking booking) {
+        final long taxiId = booking.getTaxiId();
+        final Date date = booking.getBookingDate();
+        final Long id = booking.getId();
+        afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                put(taxiId, date, id);
+            }
+        });
+    }
+
+    /**
+     * <p>Moves a Booking from its previous taxi and day to its current ones once the current transaction commits.</p>
+     *
+     * @param oldTaxiId The taxi the Booking held before the update
+     * @param oldDate The day the Booking held before the update
+     * @param booking The Booking as it has been updated
+     */
+    public void moved(final long oldTaxiId, final Date oldDate, final Booking booking) {
+        final long taxiId = booking.getTaxiId();
+        final Date date = booking.getBookingDate();
+        final Long id = booking.getId();
+        afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                remove(oldTaxiId, oldDate, id);
+                put(taxiId, date, id);
+            }
+        });
+    }
+
+    /**
+     * <p>Removes the provided Booking from the index once the current transaction commits.</p>
+     *
+     * @param booking The Booking that has been deleted
+     */
+    public void removed(final Booking booking) {
+        final long taxiId = booking.getTaxiId();
+        final Date date = booking.getBookingDate();
+        final Long id = booking.getId();
+        afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                remove(taxiId, date, id);
+            }
+        });
+    }
+
+    /**
+     * <p>Returns the day a Date falls on in the server's time zone, as a number of days since the epoch. Bookings are
+     * stored as dates only, so two Dates on the same day always map to the same number.</p>
+     *
+     * @param date The Date to convert
+     * @return The number of days between the epoch and the given date
+     */
+    static int dayOf(Date date) {
+        long millis = date.getTime();
+        long local = millis + TimeZone.getDefault().getOffset(millis);
+        return (int) (local >= 0 ? local / DAY_MILLIS : (local - DAY_MILLIS + 1) / DAY_MILLIS);
+    }
+
+    private void put(Long taxiId, Date date, Long id) {
+        calendarOf(taxiId).book(dayOf(date), id);
+    }
+
+    private void remove(Long taxiId, Date date, Long id) {
+        TaxiCalendar calendar = calendars.get(taxiId);
+        if (calendar != null) {
+            // Only free the day if it still belongs to this booking.
+            calendar.release(dayOf(date), id);
+        }
+    }
+
+    private TaxiCalendar calendarOf(Long taxiId) {
+        TaxiCalendar calendar = calendars.get(taxiId);
+        if (calendar == null) {
+            TaxiCalendar created = new TaxiCalendar();
+            calendar = calendars.putIfAbsent(taxiId, created);
+            if (calendar == null) {
+                calendar = created;
+            }
+        }
+        return calendar;
+    }
+
+    private void afterCommit(Runnable change) {
+        AfterCommit.run(txRegistry, change);
+    }
+}
@@ -16,6 +16,9 @@
  */
 package org.jboss.quickstarts.wfk.booking;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -26,26 +29,45 @@ import javax.ejb.NoSuchEntityException;
 import javax.ejb.Stateless;
 import javax.inject.Inject;
 import javax.inject.Named;
-import javax.persistence.NoResultException;
+import javax.interceptor.Interceptors;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityNotFoundException;
+import javax.persistence.LockTimeoutException;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PessimisticLockException;
+import javax.persistence.criteria.CriteriaQuery;
 import javax.validation.ConstraintViolation;
 import javax.validation.ConstraintViolationException;
 import javax.validation.ValidationException;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
 import javax.ws.rs.WebApplicationException;
 
 import org.jboss.quickstarts.wfk.customer.Customer;
 import org.jboss.quickstarts.wfk.customer.CustomerService;
 import org.jboss.quickstarts.wfk.taxi.Taxi;
 import org.jboss.quickstarts.wfk.taxi.TaxiService;
+import org.jboss.quickstarts.wfk.util.ConditionalGet;
+import org.jboss.quickstarts.wfk.util.DateParam;
+import org.jboss.quickstarts.wfk.util.IdempotencyStore;
+import org.jboss.quickstarts.wfk.util.JsonArrayStreamer;
+import org.jboss.quickstarts.wfk.util.Pagination;
+import org.jboss.quickstarts.wfk.util.RequestMetricsInterceptor;
 
 /**
  * <p>This class exposes the functionality of {@link BookingService} over HTTP endpoints as a RESTful resource via
@@ -54,6 +76,12 @@ import org.jboss.quickstarts.wfk.taxi.TaxiService;
  * <p>Full path for accessing the Booking resource is rest/bookings .</p>
  *
  * <p>The resource accepts and produces JSON.</p>
+ *
+ * <p>GET responses carry an ETag and Last-Modified so that clients can revalidate them, see {@link ConditionalGet}. As
+ * a Booking is sent with its Customer and Taxi, a change to either of those changes the Booking's ETag too.</p>
+ *
+ * <p>Creating or moving a Booking locks its taxi in the database until the transaction ends. A request that can not get
+ * the lock in time gets 503 (service unavailable) with a Retry-After header, and may be sent again as it is.</p>
  * 
  * @author Joshua Wilson
  * @see BookingService
@@ -73,24 +101,198 @@ import org.jboss.quickstarts.wfk.taxi.TaxiService;
 @Consumes(MediaType.APPLICATION_JSON)
 @Produces(MediaType.APPLICATION_JSON)
 @Stateless
+@Interceptors(RequestMetricsInterceptor.class)
 public class BookingRESTService {
     @Inject
     private @Named("logger") Logger log;
+
+    @Inject
+    private EntityManager em;
     
     @Inject
     private BookingService service;
 
+    @Inject
+    private JsonArrayStreamer streamer;
+
+    @Inject
+    private IdempotencyStore idempotency;
+
+    // Idempotency keys sent to createBooking are only matched against each other
+    private static final String IDEMPOTENCY_SCOPE = "bookings";
+
+    // The tables a list of Bookings is read from, Customers and Taxis being fetched with the Bookings
+    private static final Class<?>[] TABLES = {Booking.class, Customer.class, Taxi.class};
+
+    // How long a client whose taxi was locked is asked to wait before trying again
+    private static final int RETRY_AFTER_SECONDS = 1;
+
     
     
     /**
-     * <p>Search for and return all the Bookings.  They are sorted alphabetically by name.</p>
+     * <p>Search for and return all the Bookings.  They are sorted by id.</p>
+     *
+     * <p>If a limit is given only one page of Bookings is returned, see {@link Pagination}.</p>
+     *
+     * <p>If any of <i>from</i>, <i>to</i>, <i>taxiId</i> or <i>customerId</i> is given only the matching Bookings are
+     * returned instead, sorted by day and then id. They are streamed from the database as they are read, like
+     * {@link #exportAllBookings}, so a long range does not have to fit in memory. These can not be paged.</p>
+     *
+     * <p>With <code>?view=summary</code> a {@link BookingSummary} is returned for each Booking instead, see
+     * {@link #summaryView(String)}.</p>
      * 
+     * @param limit The number of Bookings per page; or null for all of them
+     * @param after The id of the last Booking of the previous page
+     * @param from The first day, as yyyy-MM-dd; or null
+     * @param to The last day, as yyyy-MM-dd; or null
+     * @param taxiId The id of the taxi whose Bookings are wanted; or null
+     * @param customerId The id of the customer whose Bookings are wanted; or null
+     * @param view "summary" for BookingSummary objects; or null or "full" for the Bookings
+     * @param uriInfo The URI of this request, used for the next page link
+     * @param request The request, checked for If-None-Match and If-Modified-Since
+     * @param headers The headers of the request
      * @return A Response containing a list of Bookings
      */
     @GET
-    public Response retrieveAllBookings() {
-        List<Booking> bookings = service.findAllOrderedByName();
-        return Response.ok(bookings).build();
+    public Response retrieveAllBookings(@QueryParam("limit") Integer limit, @QueryParam("after") Long after,
+                                        @QueryParam("from") DateParam from, @QueryParam("to") DateParam to,
+                                        @QueryParam("taxiId") Long taxiId, @QueryParam("customerId") Long customerId,
+                                        @QueryParam("view") String view, @Context UriInfo uriInfo, @Context Request request,
+                                        @Context HttpHeaders headers) {
+        boolean filtered = from != null || to != null || taxiId != null || customerId != null;
+        if (filtered && (limit != null || after != null)) {
+            throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST)
+                .entity("limit and after can not be combined with from, to, taxiId or customerId").build());
+        }
+        checkRange(from, to);
+        boolean summary = summaryView(view);
+
+        ConditionalGet validators = ConditionalGet.forTables(em, TABLES);
+        Response.ResponseBuilder notModified = validators.evaluate(request, headers);
+        if (notModified != null) {
+            return notModified.build();
+        }
+
+        if (filtered) {
+            final CriteriaQuery<?> query = summary
+                ? service.querySummariesBetween(DateParam.toDate(from), DateParam.toDate(to), taxiId, customerId)
+                : service.queryBetween(DateParam.toDate(from), DateParam.toDate(to), taxiId, customerId);
+            final JsonArrayStreamer exporter = streamer;
+            return validators.tag(Response.ok(new StreamingOutput() {
+                @Override
+                public void write(OutputStream output) throws IOException {
+                    exporter.writeAll(query, output);
+                }
+            })).build();
+        }
+
+        if (summary) {
+            if (limit == null && after == null) {
+                return validators.tag(Response.ok(service.findAllSummaries())).build();
+            }
+            int pageSize = Pagination.checkLimit(limit);
+            List<BookingSummary> summaries = service.findSummaryPage(after, pageSize);
+            Long lastId = summaries.size() > pageSize ? summaries.get(pageSize - 1).getBookingId() : null;
+            return validators.tag(Pagination.page(summaries, pageSize, lastId, uriInfo)).build();
+        }
+
+        if (limit == null && after == null) {
+            List<Booking> bookings = service.findAllOrderedByName();
+            return validators.tag(Response.ok(bookings)).build();
+        }
+        int pageSize = Pagination.checkLimit(limit);
+        List<Booking> bookings = service.findPage(after, pageSize);
+        Long lastId = bookings.size() > pageSize ? bookings.get(pageSize - 1).getId() : null;
+        return validators.tag(Pagination.page(bookings, pageSize, lastId, uriInfo)).build();
+    }
+
+    /**
+     * <p>Return all the Bookings as a streamed JSON array, in the same order as {@link #retrieveAllBookings}.</p>
+     *
+     * <p>The Bookings are written to the response as they are read from the database rather than collected into a List
+     * first, so this is the endpoint to use for full exports of large tables.</p>
+     *
+     * @param view "summary" to export a BookingSummary of each Booking; or null or "full" for the Bookings
+     * @param request The request, checked for If-None-Match and If-Modified-Since
+     * @param headers The headers of the request
+     * @return A Response streaming a list of Bookings
+     */
+    @GET
+    @Path("/export")
+    public Response exportAllBookings(@QueryParam("view") String view, @Context Request request,
+                                      @Context HttpHeaders headers) {
+        final String queryName = summaryView(view) ? Booking.FIND_ALL_SUMMARIES : Booking.FIND_ALL;
+        ConditionalGet validators = ConditionalGet.forTables(em, TABLES);
+        Response.ResponseBuilder notModified = validators.evaluate(request, headers);
+        if (notModified != null) {
+            return notModified.build();
+        }
+
+        final JsonArrayStreamer exporter = streamer;
+        return validators.tag(Response.ok(new StreamingOutput() {
+            @Override
+            public void write(OutputStream output) throws IOException {
+                exporter.writeAll(queryName, output);
+            }
+        })).build();
+    }
+
+    /**
+     * <p>Count the Bookings that {@link #retrieveAllBookings} would return for the same <i>from</i>, <i>to</i>,
+     * <i>taxiId</i> and <i>customerId</i>. The count is made by the database, no Booking is loaded, and a client that
+     * still has the current ETag is answered from the change counter of the table without counting at all.</p>
+     *
+     * @param from The first day, as yyyy-MM-dd; or null
+     * @param to The last day, as yyyy-MM-dd; or null
+     * @param taxiId The id of the taxi whose Bookings are counted; or null
+     * @param customerId The id of the customer whose Bookings are counted; or null
+     * @param request The request, checked for If-None-Match and If-Modified-Since
+     * @param headers The headers of the request
+     * @return A Response containing the <i>count</i>
+     */
+    @GET
+    @Path("/count")
+    public Response countBookings(@QueryParam("from") DateParam from, @QueryParam("to") DateParam to,
+                                  @QueryParam("taxiId") Long taxiId, @QueryParam("customerId") Long customerId,
+                                  @Context Request request, @Context HttpHeaders headers) {
+        checkRange(from, to);
+
+        ConditionalGet validators = ConditionalGet.forTables(em, Booking.class);
+        Response.ResponseBuilder notModified = validators.evaluate(request, headers);
+        if (notModified != null) {
+            return notModified.build();
+        }
+
+        Map<String, Long> count = new HashMap<String, Long>();
+        count.put("count", service.countBetween(DateParam.toDate(from), DateParam.toDate(to), taxiId, customerId));
+        return validators.tag(Response.ok(count)).build();
+    }
+
+    /**
+     * <p>Reads the <i>view</i> parameter of the list endpoints. A full Booking carries the whole of its Customer and
+     * Taxi, while a summary only has the columns the booking list shows, read straight into {@link BookingSummary}
+     * objects by the query.</p>
+     *
+     * @param view "summary"; or null or "full"
+     * @return true if summaries were asked for
+     * @throws WebApplicationException 400 Bad Request for any other view
+     */
+    private static boolean summaryView(String view) {
+        if (view == null || "full".equals(view)) {
+            return false;
+        }
+        if ("summary".equals(view)) {
+            return true;
+        }
+        throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST)
+            .entity("view must be full or summary, not " + view).build());
+    }
+
+    private static void checkRange(DateParam from, DateParam to) {
+        if (from != null && to != null && from.getDate().after(to.getDate())) {
+            throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST)
+                .entity("from must not be after to").build());
+        }
     }
 
  
@@ -98,14 +300,20 @@ public class BookingRESTService {
     
     @GET
     @Path("/customer/{id:[0-9]+}")
-    public Response retrieveBookingsByCustomer(@PathParam("id") long id) {
-        List<Booking> booking;
-        try {
-            booking = service.findByCustomer(id);
-        } catch (NoResultException e) {
-            throw new WebApplicationException(Response.Status.NOT_FOUND);
+    public Response retrieveBookingsByCustomer(@PathParam("id") long id, @QueryParam("view") String view,
+                                               @Context Request request, @Context HttpHeaders headers) {
+        boolean summary = summaryView(view);
+        ConditionalGet validators = ConditionalGet.forTables(em, TABLES);
+        Response.ResponseBuilder notModified = validators.evaluate(request, headers);
+        if (notModified != null) {
+            return notModified.build();
+        }
+
+        if (summary) {
+            return validators.tag(Response.ok(service.findSummariesByCustomer(id))).build();
         }
-        return Response.ok(booking).build();
+        List<Booking> booking = service.findByCustomer(id);
+        return validators.tag(Response.ok(booking)).build();
     }
     
     
@@ -118,52 +326,86 @@ public class BookingRESTService {
      *
      *
      * @param email The string parameter value provided as a Booking's taxi
+     * @param view "summary" for BookingSummary objects; or null or "full" for the Bookings
+     * @param request The request, checked for If-None-Match and If-Modified-Since
+     * @param headers The headers of the request
      * @return A Response containing a single Booking
      */
     @GET
     @Path("/taxi/{id:[0-9]+}")
-    public Response retrieveBookingsByTaxi(@PathParam("id") long id) {
-        List<Booking> booking;
-        try {
-            booking = service.findByTaxi(id);
-        } catch (NoResultException e) {
-            throw new WebApplicationException(Response.Status.NOT_FOUND);
+    public Response retrieveBookingsByTaxi(@PathParam("id") long id, @QueryParam("view") String view,
+                                           @Context Request request, @Context HttpHeaders headers) {
+        boolean summary = summaryView(view);
+        ConditionalGet validators = ConditionalGet.forTables(em, TABLES);
+        Response.ResponseBuilder notModified = validators.evaluate(request, headers);
+        if (notModified != null) {
+            return notModified.build();
+        }
+
+        if (summary) {
+            return validators.tag(Response.ok(service.findSummariesByTaxi(id))).build();
         }
-        return Response.ok(booking).build();
+        List<Booking> booking = service.findByTaxi(id);
+        return validators.tag(Response.ok(booking)).build();
     }
     
     /**
      * <p>Search for and return a Booking identified by id.</p>
      * 
      * @param id The long parameter value provided as a Booking's id
+     * @param request The request, checked for If-None-Match and If-Modified-Since
+     * @param headers The headers of the request
      * @return A Response containing a single Booking
      */
     @GET
     @Path("/{id:[0-9]+}")
-    public Response retrieveBookingById(@PathParam("id") long id) {
+    public Response retrieveBookingById(@PathParam("id") long id, @Context Request request,
+                                        @Context HttpHeaders headers) {
         Booking booking = service.findById(id);
         if (booking == null) {
             throw new WebApplicationException(Response.Status.NOT_FOUND);
         }
         log.info("findById " + id + ": found Booking = "  + booking.getCustomer() + " " + booking.getTaxi()+" "+booking.getBookingDate());
-        
-        return Response.ok(booking).build();
+
+        // The Customer or Taxi may have been deleted from under the Booking
+        Customer customer = booking.getCustomer();
+        Taxi taxi = booking.getTaxi();
+        ConditionalGet validators = ConditionalGet.forEntity(
+            ConditionalGet.latest(booking.getLastModified(), customer == null ? null : customer.getLastModified(),
+                taxi == null ? null : taxi.getLastModified()),
+            booking.getId(), booking.getVersion(), customer == null ? null : customer.getVersion(),
+            taxi == null ? null : taxi.getVersion());
+        Response.ResponseBuilder notModified = validators.evaluate(request, headers);
+        if (notModified != null) {
+            return notModified.build();
+        }
+        return validators.tag(Response.ok(booking)).build();
     }
 
     /**
      * <p>Creates a new booking from the values provided. Performs validation and will return a JAX-RS response with either 200 (ok)
      * or with a map of fields, and related errors.</p>
      * 
+     * <p>A client that may send the request again, because it never saw the answer, can give it an Idempotency-Key
+     * header. A repeat with the same key gets the first response back, rather than a second booking attempt that would
+     * fail with 409; see {@link IdempotencyStore}.</p>
+     *
      * @param booking The Booking object, constructed automatically from JSON input, to be <i>created</i> via {@link BookingService#create(Booking)}
+     * @param idempotencyKey The Idempotency-Key header; or null
      * @return A Response indicating the outcome of the create operation
      */
     @SuppressWarnings("unused")
     @POST
-    public Response createBooking(Booking booking) {
+    public Response createBooking(Booking booking, @HeaderParam(IdempotencyStore.HEADER) String idempotencyKey) {
         log.info("createBooking started. Booking = " + booking.getCustomer() + " " + booking.getTaxi()+" "+booking.getBookingDate());
         if (booking == null) {
             throw new WebApplicationException(Response.Status.BAD_REQUEST);
         }
+        Response replay = idempotency.begin(IDEMPOTENCY_SCOPE, idempotencyKey, booking);
+        if (replay != null) {
+            // A retry of a request that has been, or is being, handled already
+            return replay;
+        }
  
        
         Response.ResponseBuilder builder = null;
@@ -183,24 +425,89 @@ public class BookingRESTService {
         } catch (ValidationException e) {
             log.info("ValidationException - " + e.toString());
             // Handle the unique constrain violation
+            builder = Response.status(Response.Status.CONFLICT).entity(createConflictMessages(e));
+        } catch (LockTimeoutException e) {
+            log.info("LockTimeoutException - " + e.toString());
+            builder = createLockTimeoutResponse();
+        } catch (PessimisticLockException e) {
+            log.info("PessimisticLockException - " + e.toString());
+            builder = createLockTimeoutResponse();
+        } catch (Exception e) {
+            log.info("Exception - " + e.toString());
+            // Handle generic exceptions
             Map<String, String> responseObj = new HashMap<String, String>();
-            if(e.toString().contains("booking")){
-            	
-            responseObj.put("booking", "That booking is already used, please use another booking");
-            }
-            if(e.toString().contains("Customer")) {
-        
-            responseObj.put("booking", "That customer doesn't exist, please use another customer ID");
-            }
-            
-            if(e.toString().contains("Taxi"))
-            {
-                responseObj.put("booking", "That taxi doesn't exist, please use another taxi ID");
+            responseObj.put("error", e.getMessage());
+            builder = Response.status(Response.Status.BAD_REQUEST).entity(responseObj);
+        }
+
+        Response response = builder.build();
+        idempotency.finish(IDEMPOTENCY_SCOPE, idempotencyKey, response);
+        return response;
+    }
+
+
+    /**
+     * <p>Creates new bookings from a list of values in one transaction. All bookings are validated first, using a single
+     * lookup of the referenced customers and taxis, and the valid ones are then inserted in JDBC batches.</p>
+     *
+     * <p>Always returns 200 (ok) with one result per booking, in the order they were sent. Each result holds the
+     * <i>index</i> of the booking, its <i>status</i> (201, or the 400 / 409 {@link #createBooking(Booking)} would have
+     * returned) and either the new <i>id</i> or a map of <i>errors</i>. If another request books one of the same taxis
+     * and days while the batch is being written, the whole batch is rolled back and 409 (conflict) is returned.</p>
+     *
+     * @param bookings The Booking objects, constructed automatically from a JSON array, to be <i>created</i> via
+     * {@link BookingService#createAll(List)}
+     * @return A Response containing the outcome for each booking
+     */
+    @POST
+    @Path("/batch")
+    public Response createBookings(List<Booking> bookings) {
+        if (bookings == null) {
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        }
+        log.info("createBookings started. Bookings = " + bookings.size());
+
+        Response.ResponseBuilder builder = null;
+
+        try {
+            // Go add the valid Bookings.
+            Map<Integer, ValidationException> failures = service.createAll(bookings);
+
+            List<Map<String, Object>> results = new ArrayList<Map<String, Object>>(bookings.size());
+            for (int i = 0; i < bookings.size(); i++) {
+                Map<String, Object> result = new HashMap<String, Object>();
+                result.put("index", i);
+                ValidationException failure = failures.get(i);
+                if (failure == null) {
+                    result.put("status", Response.Status.CREATED.getStatusCode());
+                    result.put("id", bookings.get(i).getId());
+                } else if (failure instanceof ConstraintViolationException) {
+                    result.put("status", Response.Status.BAD_REQUEST.getStatusCode());
+                    result.put("errors", createViolationResponse(
+                        ((ConstraintViolationException) failure).getConstraintViolations()).build().getEntity());
+                } else {
+                    result.put("status", Response.Status.CONFLICT.getStatusCode());
+                    result.put("errors", createConflictMessages(failure));
+                }
+                results.add(result);
             }
-            builder = Response.status(Response.Status.CONFLICT).entity(responseObj);
+            builder = Response.ok(results);
+
+            log.info("createBookings completed. Bookings = " + (bookings.size() - failures.size()) + " created, "
+                + failures.size() + " rejected");
+        } catch (ValidationException e) {
+            log.info("ValidationException - " + e.toString());
+            // Another request took one of the taxis and days first, nothing from the batch has been written
+            builder = Response.status(Response.Status.CONFLICT).entity(createConflictMessages(e));
+        } catch (LockTimeoutException e) {
+            log.info("LockTimeoutException - " + e.toString());
+            builder = createLockTimeoutResponse();
+        } catch (PessimisticLockException e) {
+            log.info("PessimisticLockException - " + e.toString());
+            builder = createLockTimeoutResponse();
         } catch (Exception e) {
             log.info("Exception - " + e.toString());
-            // Handle generic exceptions
+            // Handle generic exceptions, nothing from the batch has been written
             Map<String, String> responseObj = new HashMap<String, String>();
             responseObj.put("error", e.getMessage());
             builder = Response.status(Response.Status.BAD_REQUEST).entity(responseObj);
@@ -209,22 +516,23 @@ public class BookingRESTService {
         return builder.build();
     }
 
-    
-    
-    
-    
     /**
      * <p>Updates a booking with the ID provided in the Booking. Performs validation, and will return a JAX-RS response with either 200 ok,
      * or with a map of fields, and related errors.</p>
+     *
+     * <p>The update only succeeds against the current version of the booking: the one named by an If-Match ETag, or else
+     * the version in the JSON. A stale one is answered with 412 Precondition Failed, an update with neither with 428
+     * Precondition Required, and an id that does not exist with 404 Not Found.</p>
      * 
      * @param booking The Booking object, constructed automatically from JSON input, to be <i>updated</i> via {@link BookingService#update(Booking)}
      * @param id The long parameter value provided as the id of the Booking to be updated
+     * @param headers The request headers, whose If-Match makes the update conditional on the booking's ETag
      * @return A Response indicating the outcome of the create operation
      */
     
     @PUT
     @Path("/{id:[0-9][0-9]*}")
-    public Response updateBooking(@PathParam("id") long id, Booking booking) {
+    public Response updateBooking(@PathParam("id") long id, Booking booking, @Context HttpHeaders headers) {
         if (booking == null) {
             throw new WebApplicationException(Response.Status.BAD_REQUEST);
         }
@@ -239,18 +547,16 @@ public class BookingRESTService {
             Response response = Response.status(Response.Status.CONFLICT).entity("The booking ID cannot be modified").build();
             throw new WebApplicationException(response);
         }
-        if (service.findById(booking.getId()) == null) {
-            // Verify if the booking exists. Return 404, if not present.
-            throw new WebApplicationException(Response.Status.NOT_FOUND);
-        }
+        // The ETag the client read the booking with outranks any version in the body, and one of the two is required
+        booking.setVersion(ConditionalGet.expectedVersion(headers, id, booking.getVersion()));
         
         Response.ResponseBuilder builder = null;
         
         try {
             // Apply the changes the Booking.
-            service.update(booking);
+            booking = service.update(booking);
 
-            // Create an OK Response and pass the booking back in case it is needed.
+            // Create an OK Response and pass the booking, with its new version, back in case it is needed.
             builder = Response.ok(booking);
 
             log.info("updateBooking completed. Booking = " + booking.getCustomer() + " " + booking.getTaxi()+" "+booking.getBookingDate()+""+booking.getId());
@@ -283,6 +589,22 @@ public class BookingRESTService {
             
             
             builder = Response.status(Response.Status.CONFLICT).entity(responseObj);
+        } catch (OptimisticLockException e) {
+            log.info("OptimisticLockException - " + e.toString());
+            // Someone else has changed the booking since the client read it
+            Map<String, String> responseObj = new HashMap<String, String>();
+            responseObj.put("error", "The booking has been changed by someone else, please reload it and try again");
+            builder = Response.status(Response.Status.PRECONDITION_FAILED).entity(responseObj);
+        } catch (EntityNotFoundException e) {
+            log.info("EntityNotFoundException - " + e.toString());
+            // There is no booking with that id to update
+            builder = Response.status(Response.Status.NOT_FOUND);
+        } catch (LockTimeoutException e) {
+            log.info("LockTimeoutException - " + e.toString());
+            builder = createLockTimeoutResponse();
+        } catch (PessimisticLockException e) {
+            log.info("PessimisticLockException - " + e.toString());
+            builder = createLockTimeoutResponse();
         } catch (Exception e) {
             log.info("Exception - " + e.toString());
             // Handle generic exceptions
@@ -349,5 +671,35 @@ public class BookingRESTService {
         return Response.status(Response.Status.BAD_REQUEST).entity(responseObj);
     }
 
+    /**
+     * <p>Creates the map of fields, and related errors, reported when a new booking fails {@link BookingValidator}'s
+     * uniqueness or existence checks.</p>
+     *
+     * @param e The ValidationException thrown by the validator
+     * @return A map of the violated field and its message
+     */
+    private Map<String, String> createConflictMessages(ValidationException e) {
+        Map<String, String> responseObj = new HashMap<String, String>();
+        if (e.toString().contains("booking")) {
+            responseObj.put("booking", "That booking is already used, please use another booking");
+        }
+        if (e.toString().contains("Customer")) {
+            responseObj.put("booking", "That customer doesn't exist, please use another customer ID");
+        }
+        if (e.toString().contains("Taxi")) {
+            responseObj.put("booking", "That taxi doesn't exist, please use another taxi ID");
+        }
+        return responseObj;
+    }
 
+    /*
+     * The taxi was locked by another transaction, possibly on another node, for longer than
+     * BookingRepository.LOCK_TIMEOUT_MILLIS. Nothing has been written, so the client may simply send the request again.
+     */
+    private Response.ResponseBuilder createLockTimeoutResponse() {
+        Map<String, String> responseObj = new HashMap<String, String>();
+        responseObj.put("error", "The taxi is being booked by another request, please try again");
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE).header("Retry-After", RETRY_AFTER_SECONDS)
+            .entity(responseObj);
+    }
 }
@@ -19,18 +19,32 @@ package org.jboss.quickstarts.wfk.booking;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityNotFoundException;
+import javax.persistence.LockModeType;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PersistenceException;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Join;
+import javax.persistence.criteria.JoinType;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 import javax.validation.ConstraintViolationException;
 import javax.validation.ValidationException;
 
 import org.jboss.quickstarts.wfk.customer.Customer;
 import org.jboss.quickstarts.wfk.taxi.Taxi;
+import org.jboss.quickstarts.wfk.util.ChangeCounter;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.logging.Logger;
 
 /**
@@ -46,11 +60,27 @@ import java.util.logging.Logger;
  */
 public class BookingRepository {
 
+    // Matches hibernate.jdbc.batch_size in persistence.xml
+    static final int BATCH_SIZE = 50;
+
+    /**
+     * How long to wait for another transaction, possibly on another node, to let go of a taxi before giving up. Hibernate
+     * passes it to the databases that take a lock timeout per statement; H2 ignores it and waits for its own
+     * LOCK_TIMEOUT instead.
+     */
+    static final int LOCK_TIMEOUT_MILLIS = 2000;
+
+    private static final Map<String, Object> LOCK_HINTS =
+        Collections.<String, Object>singletonMap("javax.persistence.lock.timeout", LOCK_TIMEOUT_MILLIS);
+
     @Inject
     private @Named("logger") Logger log;
 
     @Inject
     private EntityManager em;
+
+    @Inject
+    private BookingAvailabilityIndex availability;
     
     /**
      * <p>Returns a List of all persisted {@link Booking} objects, sorted alphabetically by last name.</p>
@@ -62,6 +92,45 @@ public class BookingRepository {
         return query.getResultList();
     }
 
+    /**
+     * <p>Returns one page of persisted {@link Booking} objects, sorted by id, starting after the given id.</p>
+     *
+     * <p>One more Booking than the limit is returned so that the caller can tell whether there is a next page.</p>
+     *
+     * @param after The id of the last Booking of the previous page; or null for the first page
+     * @param limit The page size
+     * @return Up to limit + 1 Booking objects
+     */
+    List<Booking> findPage(Long after, int limit) {
+        TypedQuery<Booking> query = after == null
+            ? em.createNamedQuery(Booking.FIND_ALL, Booking.class)
+            : em.createNamedQuery(Booking.FIND_PAGE_AFTER, Booking.class).setParameter("after", after);
+        return query.setMaxResults(limit + 1).getResultList();
+    }
+
+    /**
+     * <p>Returns a {@link BookingSummary} of every Booking, sorted by id.</p>
+     *
+     * @return List of BookingSummary objects
+     */
+    List<BookingSummary> findAllSummaries() {
+        return em.createNamedQuery(Booking.FIND_ALL_SUMMARIES, BookingSummary.class).getResultList();
+    }
+
+    /**
+     * <p>Returns the summaries of one page of Bookings, as {@link #findPage(Long, int)} does for the Bookings.</p>
+     *
+     * @param after The id of the last Booking of the previous page; or null for the first page
+     * @param limit The page size
+     * @return Up to limit + 1 BookingSummary objects
+     */
+    List<BookingSummary> findSummaryPage(Long after, int limit) {
+        TypedQuery<BookingSummary> query = after == null
+            ? em.createNamedQuery(Booking.FIND_ALL_SUMMARIES, BookingSummary.class)
+            : em.createNamedQuery(Booking.FIND_SUMMARY_PAGE_AFTER, BookingSummary.class).setParameter("after", after);
+        return query.setMaxResults(limit + 1).getResultList();
+    }
+
     /**
      * <p>Returns a single Booking object, specified by a Long id.<p/>
      *
@@ -93,24 +162,114 @@ public class BookingRepository {
     
  
     
+    List<BookingSummary> findSummariesByCustomer(long customerId) {
+        return em.createNamedQuery(Booking.FIND_SUMMARIES_BY_CUSTOMER, BookingSummary.class)
+            .setParameter("customerId", customerId).getResultList();
+    }
+
+    List<BookingSummary> findSummariesByTaxi(long taxiId) {
+        return em.createNamedQuery(Booking.FIND_SUMMARIES_BY_TAXI, BookingSummary.class)
+            .setParameter("taxiId", taxiId).getResultList();
+    }
+
+    /**
+     * <p>Returns every Booking on the given day, whatever its taxi, ordered by id.<p/>
+     *
+     * @param date The day of the Bookings to be returned
+     * @return The Bookings on that day, possibly none
+     */
+    List<Booking> findByDate(Date date) {
+        return em.createQuery(queryBetween(date, date, null, null)).getResultList();
+    }
+
     /**
-     * <p>Returns a single Booking object, specified by a String lastName.<p/>
+     * <p>Builds the query for the Bookings from one day to another, both included, optionally only those of one taxi or
+     * one customer. They are ordered by day and then id, and their customer and taxi are fetched with them.</p>
      *
-     * <p>If there is more then one, only the first will be returned.<p/>
+     * <p>The query is returned rather than run so that the caller can stream its results, see
+     * {@link org.jboss.quickstarts.wfk.util.JsonArrayStreamer#writeAll(CriteriaQuery, java.io.OutputStream)}. The
+     * conditions are only added for the arguments that are given, so the database can answer with a range scan of
+     * the index on the taxi and day, on the customer and day, or on the day (see {@link Booking}).</p>
      *
-     * @param lastName The lastName field of the Booking to be returned
-     * @return The first Booking with the specified lastName
+     * @param from The first day; or null for no lower bound
+     * @param to The last day; or null for no upper bound
+     * @param taxiId The id of the taxi; or null for every taxi
+     * @param customerId The id of the customer; or null for every customer
+     * @return The query for the matching Bookings
      */
-    Booking findByDate(Date date) {
+    CriteriaQuery<Booking> queryBetween(Date from, Date to, Long taxiId, Long customerId) {
         CriteriaBuilder cb = em.getCriteriaBuilder();
         CriteriaQuery<Booking> criteria = cb.createQuery(Booking.class);
         Root<Booking> booking = criteria.from(Booking.class);
-        // Swap criteria statements if you would like to try out type-safe criteria queries, a new feature in JPA 2.0.
-        // criteria.select(booking).where(cb.equal(booking.get(Booking_.lastName), lastName));
-        criteria.select(booking).where(cb.equal(booking.get("booking_date"),date));
+        booking.fetch("customer", JoinType.LEFT);
+        booking.fetch("taxi", JoinType.LEFT);
+        criteria.select(booking)
+            .where(between(cb, booking, from, to, taxiId, customerId))
+            .orderBy(cb.asc(booking.get("booking_date")), cb.asc(booking.get("id")));
+        return criteria;
+    }
+
+    /**
+     * <p>Builds the same query as {@link #queryBetween(Date, Date, Long, Long)}, but for {@link BookingSummary}
+     * objects. Only the columns of the summary are selected, and the customer and taxi are joined rather than fetched.
+     * </p>
+     *
+     * @param from The first day; or null for no lower bound
+     * @param to The last day; or null for no upper bound
+     * @param taxiId The id of the taxi; or null for every taxi
+     * @param customerId The id of the customer; or null for every customer
+     * @return The query for the summaries of the matching Bookings
+     */
+    CriteriaQuery<BookingSummary> querySummariesBetween(Date from, Date to, Long taxiId, Long customerId) {
+        CriteriaBuilder cb = em.getCriteriaBuilder();
+        CriteriaQuery<BookingSummary> criteria = cb.createQuery(BookingSummary.class);
+        Root<Booking> booking = criteria.from(Booking.class);
+        Join<Booking, Customer> customer = booking.join("customer", JoinType.LEFT);
+        Join<Booking, Taxi> taxi = booking.join("taxi", JoinType.LEFT);
+        criteria.select(cb.construct(BookingSummary.class, booking.get("id"), booking.get("booking_date"),
+                customer.get("id"), customer.get("customerName"), taxi.get("id"), taxi.get("reg")))
+            .where(between(cb, booking, from, to, taxiId, customerId))
+            .orderBy(cb.asc(booking.get("booking_date")), cb.asc(booking.get("id")));
+        return criteria;
+    }
+
+    /**
+     * <p>Counts the Bookings {@link #queryBetween(Date, Date, Long, Long)} would return, without loading any of them.</p>
+     *
+     * @param from The first day; or null for no lower bound
+     * @param to The last day; or null for no upper bound
+     * @param taxiId The id of the taxi; or null for every taxi
+     * @param customerId The id of the customer; or null for every customer
+     * @return The number of matching Bookings
+     */
+    long countBetween(Date from, Date to, Long taxiId, Long customerId) {
+        CriteriaBuilder cb = em.getCriteriaBuilder();
+        CriteriaQuery<Long> criteria = cb.createQuery(Long.class);
+        Root<Booking> booking = criteria.from(Booking.class);
+        criteria.select(cb.count(booking)).where(between(cb, booking, from, to, taxiId, customerId));
         return em.createQuery(criteria).getSingleResult();
     }
 
+    // The customer and taxi are compared on the foreign key columns, no join is needed for the conditions
+    private static Predicate[] between(CriteriaBuilder cb, Root<Booking> booking, Date from, Date to, Long taxiId,
+        Long customerId) {
+        List<Predicate> predicates = new ArrayList<Predicate>(4);
+        if (taxiId != null) {
+            predicates.add(cb.equal(booking.get("taxi").get("id"), taxiId));
+        }
+        if (customerId != null) {
+            predicates.add(cb.equal(booking.get("customer").get("id"), customerId));
+        }
+        Path<Date> date = booking.get("booking_date");
+        if (from != null) {
+            predicates.add(cb.greaterThanOrEqualTo(date, from));
+        }
+        if (to != null) {
+            predicates.add(cb.lessThanOrEqualTo(date, to));
+        }
+        return predicates.toArray(new Predicate[predicates.size()]);
+    }
+
     /**
      * <p>Persists the provided Booking object to the application database using the EntityManager.</p>
      *
@@ -119,19 +278,76 @@ public class BookingRepository {
      *
      * <p>persist(Object) will set the @GeneratedValue @Id for an object.</p>
      *
+     * <p>The insert is flushed straight away, so a taxi and day that another transaction has just booked is reported
+     * here, as a ValidationException, rather than when the transaction commits.</p>
+     *
+     * <p>The taxi's row is locked first and stays locked until the transaction ends, so only one transaction on any
+     * node books a given taxi at a time.</p>
+     *
      * @param booking The Booking object to be persisted
      * @return The Booking object that has been persisted
+     * @throws javax.persistence.LockTimeoutException if the taxi stays locked by another transaction for too long
      * @throws ConstraintViolationException, ValidationException, Exception
      */
     Booking create(Booking booking) throws ConstraintViolationException, ValidationException, Exception {
         log.info("BookingRepository.create() - Creating " + booking.getCustomer() + " " + booking.getTaxi()+" "+booking.getBookingDate()+" "+booking.getId());
         
         // Write the booking to the database.
+        lockTaxi(booking);
+        attach(booking);
         em.persist(booking);
+        flush();
+        ChangeCounter.bump(em, Booking.class);
+        availability.added(booking);
         
         return booking;
     }
 
+    /**
+     * <p>Persists all of the provided Booking objects in the current transaction.</p>
+     *
+     * <p>The persistence context is flushed and cleared every {@link #BATCH_SIZE} bookings, so Hibernate sends the
+     * inserts as JDBC batches (see hibernate.jdbc.batch_size in persistence.xml) and does not keep every new Booking
+     * in memory.</p>
+     *
+     * <p>If one of them takes a taxi and day that is already booked a ValidationException is thrown, and the whole
+     * transaction has to be rolled back.</p>
+     *
+     * <p>All of the taxis are locked before anything is written, as {@link #create(Booking)} locks one.</p>
+     *
+     * @param bookings The Booking objects to be persisted
+     * @return The Booking objects that have been persisted
+     * @throws javax.persistence.LockTimeoutException if a taxi stays locked by another transaction for too long
+     * @throws ConstraintViolationException, ValidationException, Exception
+     */
+    List<Booking> createAll(List<Booking> bookings) throws ConstraintViolationException, ValidationException, Exception {
+        log.info("BookingRepository.createAll() - Creating " + bookings.size() + " bookings");
+
+        // Lock the taxis in id order, so two batches sharing taxis can not each hold one the other is waiting for
+        SortedSet<Long> taxiIds = new TreeSet<Long>();
+        for (Booking booking : bookings) {
+            taxiIds.add(booking.getTaxiId());
+        }
+        for (Long taxiId : taxiIds) {
+            lockTaxi(taxiId);
+        }
+
+        int count = 0;
+        for (Booking booking : bookings) {
+            attach(booking);
+            em.persist(booking);
+            availability.added(booking);
+            if (++count % BATCH_SIZE == 0) {
+                flush();
+                em.clear();
+            }
+        }
+        flush();
+        ChangeCounter.bump(em, Booking.class);
+
+        return bookings;
+    }
+
     /**
      * <p>Updates an existing Booking object in the application database with the provided Booking object.</p>
      * 
@@ -143,15 +359,103 @@ public class BookingRepository {
      * 
      * @param booking The Booking object to be merged with an existing Booking
      * @return The Booking that has been merged
+     * @throws EntityNotFoundException if there is no booking with its id
+     * @throws OptimisticLockException if its @Version is missing or not the current one
+     * @throws javax.persistence.LockTimeoutException if its new taxi stays locked by another transaction for too long
      * @throws ConstraintViolationException, ValidationException, Exception
      */
     Booking update(Booking booking) throws ConstraintViolationException, ValidationException, Exception {
         log.info("BookingRepository.update() - Updating " +  booking.getCustomer() + " " + booking.getTaxi()+" "+booking.getBookingDate()+" "+booking.getId());
         
-        // Either update the booking or add it if it can't be found.
-        em.merge(booking);
+        lockTaxi(booking);
+
+        // Remember which taxi and day the booking held before the merge overwrites the managed copy.
+        Booking existing = booking.getId() == null ? null : em.find(Booking.class, booking.getId());
+        if (existing == null) {
+            throw new EntityNotFoundException("No booking with id " + booking.getId());
+        }
+        long oldTaxiId = existing.getTaxiId();
+        Date oldDate = existing.getBookingDate();
+        if (booking.getVersion() == null) {
+            // Without a version there is nothing to check the booking against
+            throw new OptimisticLockException("No version given for booking " + booking.getId());
+        }
+
+        // A stale version fails the merge, or the flush if another transaction got there first, with an
+        // OptimisticLockException; the availability index is only touched once the row has been written.
+        attach(booking);
+        Booking merged = em.merge(booking);
+        flush();
+        ChangeCounter.bump(em, Booking.class);
+        availability.moved(oldTaxiId, oldDate, merged);
         
-        return booking;
+        return merged;
+    }
+
+    /*
+     * Sends the pending inserts and updates to the database. A clash on the taxi and day, which BookingValidator could
+     * not see because the other booking was not committed yet, becomes the same ValidationException the validator
+     * throws; any other failure is passed on unchanged.
+     */
+    private void flush() {
+        try {
+            em.flush();
+        } catch (PersistenceException e) {
+            if (violates(e, Booking.TAXI_DATE_CONSTRAINT)) {
+                throw new ValidationException("Unique booking Violation", e);
+            }
+            throw e;
+        }
+    }
+
+    // Drivers differ in how they name the constraint (case, index suffixes), but they all put it in the message.
+    private static boolean violates(Throwable e, String constraint) {
+        String name = constraint.toUpperCase();
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause.getMessage() != null && cause.getMessage().toUpperCase().contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * A Customer or Taxi with no @Version looks unsaved to Hibernate, and persist or merge would refuse to link the
+     * booking to it. Clients that only send the id of the customer and taxi are common, so swap those for the managed
+     * copies, which are normally in the persistence context or second-level cache already.
+     */
+    private void attach(Booking booking) {
+        Customer customer = booking.getCustomer();
+        if (customer != null && customer.getId() != null && customer.getVersion() == null) {
+            Customer found = em.find(Customer.class, customer.getId());
+            if (found != null) {
+                booking.setCustomer(found);
+            }
+        }
+        Taxi taxi = booking.getTaxi();
+        if (taxi != null && taxi.getId() != null && taxi.getVersion() == null) {
+            Taxi found = em.find(Taxi.class, taxi.getId());
+            if (found != null) {
+                booking.setTaxi(found);
+            }
+        }
+    }
+
+    /*
+     * The availability index and its claims only cover the bookings made on this node. With several nodes sharing the
+     * database the taxi's row is locked as well, with SELECT ... FOR UPDATE, until the transaction ends: a second node
+     * booking the same taxi waits here until the first has committed or rolled back, and its insert then meets the
+     * first one's row in the unique constraint straight away. Waiting longer than LOCK_TIMEOUT_MILLIS throws a
+     * LockTimeoutException or PessimisticLockException, which BookingRESTService answers with 503.
+     */
+    private void lockTaxi(Booking booking) {
+        if (booking.getTaxi() != null && booking.getTaxi().getId() != null) {
+            lockTaxi(booking.getTaxiId());
+        }
+    }
+
+    private void lockTaxi(Long taxiId) {
+        em.find(Taxi.class, taxiId, LockModeType.PESSIMISTIC_WRITE, LOCK_HINTS);
     }
 
     /**
@@ -178,7 +482,10 @@ public class BookingRepository {
              * 
              * Therefore we merge first and then we can remove it.
              */
-            em.remove(em.merge(booking));
+            Booking managed = em.merge(booking);
+            em.remove(managed);
+            ChangeCounter.bump(em, Booking.class);
+            availability.removed(managed);
             
         } else {
             log.info("BookingRepository.delete() - No ID was found so can't Delete.");
@@ -26,17 +26,22 @@ import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
 import org.jboss.quickstarts.wfk.customer.Customer;
 import org.jboss.quickstarts.wfk.taxi.Taxi;
+import org.jboss.quickstarts.wfk.taxi.TaxiSeatIndex;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import javax.enterprise.context.Dependent;
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.persistence.criteria.CriteriaQuery;
 import javax.validation.ConstraintViolationException;
 import javax.validation.ValidationException;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 /**
@@ -66,6 +71,12 @@ public class BookingService {
     @Inject
     private BookingRepository crud;
 
+    @Inject
+    private BookingAvailabilityIndex availability;
+
+    @Inject
+    private TaxiSeatIndex seats;
+
     @Inject
     private @Named("httpClient") CloseableHttpClient httpClient;
     
@@ -78,6 +89,37 @@ public class BookingService {
         return crud.findAllOrderedByName();
     }
 
+    /**
+     * <p>Returns one page of persisted {@link Booking} objects, continuing after the Booking with the given id.<p/>
+     * 
+     * @param after The id of the last Booking of the previous page; or null for the first page
+     * @param limit The page size
+     * @return Up to limit + 1 Booking objects
+     */
+    List<Booking> findPage(Long after, int limit) {
+        return crud.findPage(after, limit);
+    }
+
+    /**
+     * <p>Returns a {@link BookingSummary} of every Booking, sorted by id.<p/>
+     *
+     * @return List of BookingSummary objects
+     */
+    List<BookingSummary> findAllSummaries() {
+        return crud.findAllSummaries();
+    }
+
+    /**
+     * <p>Returns the summaries of one page of Bookings, continuing after the Booking with the given id.<p/>
+     *
+     * @param after The id of the last Booking of the previous page; or null for the first page
+     * @param limit The page size
+     * @return Up to limit + 1 BookingSummary objects
+     */
+    List<BookingSummary> findSummaryPage(Long after, int limit) {
+        return crud.findSummaryPage(after, limit);
+    }
+
     /**
      * <p>Returns a single Booking object, specified by a Long id.<p/>
      * 
@@ -104,6 +146,77 @@ public class BookingService {
     {
     	return crud.findByCustomer(customerId);
     }
+
+    List<BookingSummary> findSummariesByTaxi(long taxiId) {
+        return crud.findSummariesByTaxi(taxiId);
+    }
+
+    List<BookingSummary> findSummariesByCustomer(long customerId) {
+        return crud.findSummariesByCustomer(customerId);
+    }
+
+    /**
+     * <p>Returns the query for the Bookings from one day to another, for one taxi or customer if given. The query is not
+     * run here; it is streamed to the client by the caller.<p/>
+     *
+     * @param from The first day; or null
+     * @param to The last day; or null
+     * @param taxiId The id of the taxi; or null
+     * @param customerId The id of the customer; or null
+     * @return The query for the matching Bookings
+     */
+    CriteriaQuery<Booking> queryBetween(Date from, Date to, Long taxiId, Long customerId) {
+        return crud.queryBetween(from, to, taxiId, customerId);
+    }
+
+    /**
+     * <p>Returns the query for the summaries of the Bookings {@link #queryBetween(Date, Date, Long, Long)} would
+     * return.<p/>
+     *
+     * @param from The first day; or null
+     * @param to The last day; or null
+     * @param taxiId The id of the taxi; or null
+     * @param customerId The id of the customer; or null
+     * @return The query for the summaries of the matching Bookings
+     */
+    CriteriaQuery<BookingSummary> querySummariesBetween(Date from, Date to, Long taxiId, Long customerId) {
+        return crud.querySummariesBetween(from, to, taxiId, customerId);
+    }
+
+    /**
+     * <p>Finds taxis with at least the given number of seats that are free on the given day, the smallest first.<p/>
+     *
+     * <p>Both the seats and the bookings are read from memory: the taxis come from the {@link TaxiSeatIndex} in order
+     * of seats, and each is checked against its calendar in the {@link BookingAvailabilityIndex} until there are
+     * enough. The cost depends on how many booked taxis have to be skipped, not on the size of the fleet.<p/>
+     *
+     * @param date The day the taxi is wanted
+     * @param minSeats The least number of seats
+     * @param limit The most taxis to return
+     * @return The ids of up to limit free taxis
+     */
+    List<Long> findFreeTaxiIds(Date date, int minSeats, int limit) {
+        final int day = BookingAvailabilityIndex.dayOf(date);
+        return seats.findIds(minSeats, limit, new TaxiSeatIndex.Filter() {
+            @Override
+            public boolean accept(long taxiId) {
+                return availability.findBookingId(taxiId, day) == null;
+            }
+        });
+    }
+
+    /**
+     * <p>Counts the Bookings {@link #queryBetween(Date, Date, Long, Long)} would return.<p/>
+     *
+     * @param from The first day; or null
+     * @param to The last day; or null
+     * @param taxiId The id of the taxi; or null
+     * @param customerId The id of the customer; or null
+     * @return The number of matching Bookings
+     */
+    long countBetween(Date from, Date to, Long taxiId, Long customerId) {
+        return crud.countBetween(from, to, taxiId, customerId);
+    }
    
     
 
@@ -131,6 +244,11 @@ public class BookingService {
      * <p>Writes the provided Booking object to the application database.<p/>
      *
      * <p>Validates the data in the provided Booking object using a {@link BookingValidator} object.<p/>
+     *
+     * <p>The validator only sees committed bookings, so two requests for the same taxi and day can both pass it. Before
+     * writing, the Booking therefore claims its taxi and day in the {@link BookingAvailabilityIndex}; only one
+     * transaction can hold that claim, and the others fail here with the same ValidationException as a duplicate,
+     * without an insert for the database to reject. Requests for different taxis never wait on each other.<p/>
      * 
      * @param booking The Booking object to be written to the database using a {@link BookingRepository} object
      * @return The Booking object that has been successfully written to the application database
@@ -142,12 +260,47 @@ public class BookingService {
         // Check to make sure the data fits with the parameters in the Booking model and passes validation.
         validator.validateBooking(booking);
 
-      
+        // Hold the taxi and day until this transaction ends, so a concurrent request for them is turned away here.
+        admit(booking);
 
         // Write the booking to the database.
         return crud.create(booking);
     }
 
+    /**
+     * <p>Writes all valid Bookings of the provided list to the application database in one transaction.<p/>
+     *
+     * <p>The whole list is validated up front by {@link BookingValidator#validateBookings(List)}. Invalid Bookings are
+     * skipped and the reason for each is returned, the rest are written using JDBC batching.<p/>
+     *
+     * <p>Each valid Booking also claims its taxi and day as {@link #create(Booking)} does; one whose taxi and day are
+     * being booked by another request at the same time is rejected like a duplicate.<p/>
+     * 
+     * @param bookings The Booking objects to be written to the database using a {@link BookingRepository} object
+     * @return The validation failure of each Booking that was not written, keyed by its index in the list
+     * @throws Exception
+     */
+    Map<Integer, ValidationException> createAll(List<Booking> bookings) throws Exception {
+        log.info("BookingService.createAll() - Creating " + bookings.size() + " bookings");
+
+        Map<Integer, ValidationException> failures = validator.validateBookings(bookings);
+
+        List<Booking> valid = new ArrayList<Booking>(bookings.size() - failures.size());
+        for (int i = 0; i < bookings.size(); i++) {
+            if (failures.containsKey(i)) {
+                continue;
+            }
+            if (availability.claim(bookings.get(i))) {
+                valid.add(bookings.get(i));
+            } else {
+                failures.put(i, new ValidationException("Unique booking Violation"));
+            }
+        }
+        crud.createAll(valid);
+
+        return failures;
+    }
+
     /**
      * <p>Updates an existing Booking object in the application database with the provided Booking object.<p/>
      *
@@ -163,6 +316,8 @@ public class BookingService {
         // Check to make sure the data fits with the parameters in the Booking model and passes validation.
         validator.validateBooking(booking);
 
+        // Hold the taxi and day the booking moves to, see create(Booking).
+        admit(booking);
 
         // Either update the booking or add it if it can't be found.
         return crud.update(booking);
@@ -189,4 +344,9 @@ public class BookingService {
         return deletedBooking;
     }
 
+    private void admit(Booking booking) throws ValidationException {
+        if (!availability.claim(booking)) {
+            throw new ValidationException("Unique booking Violation");
+        }
+    }
 }
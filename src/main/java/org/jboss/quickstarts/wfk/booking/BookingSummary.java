@@ -0,0 +1,79 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.booking;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * <p>The columns of a {@link Booking} that a list of bookings shows: its day, and the name of its customer and the
+ * registration of its taxi rather than the whole Customer and Taxi.</p>
+ *
+ * <p>Summaries are built by the database query itself with a constructor expression, see
+ * {@link Booking#FIND_ALL_SUMMARIES}. They are plain objects, not entities, so Hibernate neither keeps them in the
+ * persistence context nor checks them for changes.</p>
+ *
+ * <p>The list endpoints return them for <code>?view=summary</code>, see {@link BookingRESTService}.</p>
+ */
+public class BookingSummary implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Long bookingId;
+
+    private final Date date;
+
+    private final Long customerId;
+
+    private final String customerName;
+
+    private final Long taxiId;
+
+    private final String reg;
+
+    public BookingSummary(Long bookingId, Date date, Long customerId, String customerName, Long taxiId, String reg) {
+        this.bookingId = bookingId;
+        this.date = date;
+        this.customerId = customerId;
+        this.customerName = customerName;
+        this.taxiId = taxiId;
+        this.reg = reg;
+    }
+
+    public Long getBookingId() {
+        return bookingId;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public Long getCustomerId() {
+        return customerId;
+    }
+
+    public String getCustomerName() {
+        return customerName;
+    }
+
+    public Long getTaxiId() {
+        return taxiId;
+    }
+
+    public String getReg() {
+        return reg;
+    }
+}
@@ -17,12 +17,13 @@
 package org.jboss.quickstarts.wfk.booking;
 
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.inject.Inject;
-import javax.persistence.NoResultException;
 import javax.validation.ConstraintViolation;
 import javax.validation.ConstraintViolationException;
 import javax.validation.ValidationException;
@@ -46,7 +47,7 @@ public class BookingValidator {
     private Validator validator;
 
     @Inject
-    private BookingRepository crud;
+    private BookingAvailabilityIndex availability;
     @Inject
     private CustomerRepository CustomerCrud;
     @Inject
@@ -90,76 +91,97 @@ public class BookingValidator {
     }
 
     /**
-     * <p>Checks if a booking with the same taxi and date is already registered. This is the only way to easily capture the
-     * "@UniqueConstraint(columnNames = "id")" constraint from the Booking class.</p>
-     * 
-     * <p>Since Update will being using a taxi and date that is already in the database we need to make sure that it is the taxi
-     * from the record being updated.</p>
-     * 
-     * @param taxiId The taxi to check is unique
-     * @param id The user id to check the taxi against if it was found
-     * @return boolean which represents whether the taxi and date was found, and if so if it belongs to the user with id
+     * <p>Validates a whole batch of Bookings in one pass. This makes the same checks as
+     * {@link #validateBooking(Booking)} but looks up all referenced Customers and Taxis with one query each, rather
+     * than one per Booking, and also rejects a Booking whose taxi and date were claimed earlier in the same batch.</p>
+     *
+     * <p>Rather than throwing, the exception each invalid Booking would have caused is returned against its position in
+     * the list.</p>
+     *
+     * @param bookings The Booking objects to be validated
+     * @return A ConstraintViolationException or ValidationException per invalid Booking, keyed by its index
      */
-    
-    
-    //check the uniqueness of Taxi and Date 
-    boolean BookingAlreadyExists(long taxiId,Date date, Long id) {
-        List<Booking> booking = null;
-        Booking bookingWithID = null;
-        try {
-            booking = crud.findByTaxi(taxiId);
-        } catch (NoResultException e) {
-            // ignore
+    Map<Integer, ValidationException> validateBookings(List<Booking> bookings) {
+        Set<Long> customerIds = new HashSet<Long>();
+        Set<Long> taxiIds = new HashSet<Long>();
+        for (Booking booking : bookings) {
+            if (booking.getCustomer() != null && booking.getCustomer().getId() != null) {
+                customerIds.add(booking.getCustomer().getId());
+            }
+            if (booking.getTaxi() != null && booking.getTaxi().getId() != null) {
+                taxiIds.add(booking.getTaxi().getId());
+            }
         }
+        Set<Long> existingCustomers = CustomerCrud.findExistingIds(customerIds);
+        Set<Long> existingTaxis = TaxiCrud.findExistingIds(taxiIds);
+
+        Map<Integer, ValidationException> failures = new HashMap<Integer, ValidationException>();
+        Map<Long, Set<Integer>> claimedDays = new HashMap<Long, Set<Integer>>();
+        for (int i = 0; i < bookings.size(); i++) {
+            Booking booking = bookings.get(i);
+
+            Set<ConstraintViolation<Booking>> violations = validator.validate(booking);
+            if (!violations.isEmpty()) {
+                failures.put(i, new ConstraintViolationException(new HashSet<ConstraintViolation<?>>(violations)));
+                continue;
+            }
+
+            if (booking.getTaxi() == null || !existingTaxis.contains(booking.getTaxi().getId())) {
+                failures.put(i, new ValidationException("Taxi does not exist"));
+                continue;
+            }
+            Set<Integer> days = claimedDays.get(booking.getTaxiId());
+            if (days == null) {
+                days = new HashSet<Integer>();
+                claimedDays.put(booking.getTaxiId(), days);
+            }
+            if (BookingAlreadyExists(booking.getTaxiId(), booking.getBookingDate(), booking.getId())
+                || !days.add(BookingAvailabilityIndex.dayOf(booking.getBookingDate()))) {
+                failures.put(i, new ValidationException("Unique booking Violation"));
+                continue;
+            }
 
-         
-            try {
-            	
-            	for(Booking book:booking)
-            	{
-                bookingWithID = crud.findById(id);
-                if (book.getTaxiId()==taxiId && book.getBookingDate()==date) {
-                    bookingWithID=book;
-                }
-            	}
-            } catch (NoResultException e) {
-                // ignore
+            if (booking.getCustomer() == null || !existingCustomers.contains(booking.getCustomer().getId())) {
+                failures.put(i, new ValidationException("Customer does not exist"));
             }
-        
-        return bookingWithID!=null;
+        }
+        return failures;
+    }
+
+    /**
+     * <p>Checks if a booking with the same taxi and date is already registered. The database enforces the same rule (see
+     * {@link Booking#TAXI_DATE_CONSTRAINT}); checking here first turns most clashes away without an insert to roll back.</p>
+     * 
+     * <p>Since Update will being using a taxi and date that is already in the database we need to make sure that it is the
+     * booking being updated that holds them.</p>
+     *
+     * <p>The check is a single lookup in the {@link BookingAvailabilityIndex}, it does not touch the database.</p>
+     * 
+     * @param taxiId The taxi to check is free
+     * @param date The date to check the taxi on
+     * @param id The booking id to check the taxi and date against if they were found
+     * @return boolean which represents whether the taxi and date was found, and if so if it belongs to another booking
+     */
+    boolean BookingAlreadyExists(long taxiId, Date date, Long id) {
+        Long bookingId = availability.findBookingId(taxiId, date);
+        return bookingId != null && !bookingId.equals(id);
     }
     
+    /*
+     * The customer and taxi are looked up by id rather than counted. Both are in the second-level cache, so this seldom
+     * reaches the database, and BookingRepository links the booking to the same managed objects straight after, so a
+     * projection query here would add a round trip instead of saving one.
+     */
+
     //check if the customer exists 
     boolean  Customer_Not_Exists(Long id)
     {
-    	Customer customer=null;
-    	
-        try{
-            customer=CustomerCrud.findById(id);    
-         
-        }catch(NullPointerException e){
-          //ignore	
-        }
-         
-        
-        return  customer==null;
-    	
+        return id == null || CustomerCrud.findById(id) == null;
     }
    // check if the taxi exists
     boolean  Taxi_Not_Exists(Long id)
     {
-    	Taxi taxi=null;
-    	
-        try{
-            taxi=TaxiCrud.findById(id);    
-         
-        }catch(NullPointerException e){
-          //ignore	
-        }
-         
-        
-        return  taxi==null;
-    	
+        return id == null || TaxiCrud.findById(id) == null;
     }
 
 
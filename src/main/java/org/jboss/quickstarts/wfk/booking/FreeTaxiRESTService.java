@@ -0,0 +1,94 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.booking;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.ejb.Stateless;
+import javax.inject.Inject;
+import javax.interceptor.Interceptors;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.jboss.quickstarts.wfk.taxi.Taxi;
+import org.jboss.quickstarts.wfk.taxi.TaxiService;
+import org.jboss.quickstarts.wfk.util.DateParam;
+import org.jboss.quickstarts.wfk.util.Pagination;
+import org.jboss.quickstarts.wfk.util.RequestMetricsInterceptor;
+
+/**
+ * <p>Finds taxis that are free on a day and have enough seats, such as
+ * <code>rest/taxis/available?date=2026-12-24&amp;minSeats=6</code>.</p>
+ *
+ * <p>The search runs in memory, see {@link BookingService#findFreeTaxiIds(java.util.Date, int, int)}. The Taxis found
+ * are then loaded by id, which the second-level cache normally answers.</p>
+ */
+/*
+ * Like TaxiAvailabilityRESTService this needs the bookings, so it lives in the booking package. JAX-RS prefers the
+ * longer path, so these requests do not reach TaxiRESTService.
+ */
+@Path("/taxis/available")
+@Produces(MediaType.APPLICATION_JSON)
+@Stateless
+@Interceptors(RequestMetricsInterceptor.class)
+public class FreeTaxiRESTService {
+
+    /** The number of taxis returned when no limit is given. */
+    static final int DEFAULT_LIMIT = 20;
+
+    @Inject
+    private BookingService service;
+
+    @Inject
+    private TaxiService taxiService;
+
+    /**
+     * <p>Returns Taxis with at least <i>minSeats</i> seats that have no Booking on <i>date</i>. The Taxis with the
+     * fewest seats come first, so a small party is not given a large taxi that a larger party may need.</p>
+     *
+     * @param date The day, as yyyy-MM-dd
+     * @param minSeats The least number of seats; or null for any
+     * @param limit The most Taxis to return, up to {@link Pagination#MAX_LIMIT}; or null for {@link #DEFAULT_LIMIT}
+     * @return A Response containing a list of Taxis, possibly empty
+     */
+    @GET
+    public Response retrieveFreeTaxis(@QueryParam("date") DateParam date, @QueryParam("minSeats") Integer minSeats,
+                                      @QueryParam("limit") Integer limit) {
+        if (date == null) {
+            throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST)
+                .entity("date must be given").build());
+        }
+        int size = limit == null ? DEFAULT_LIMIT : Pagination.checkLimit(limit);
+
+        List<Long> ids = service.findFreeTaxiIds(date.getDate(), minSeats == null ? 0 : minSeats, size);
+        List<Taxi> taxis = new ArrayList<Taxi>(ids.size());
+        for (Long id : ids) {
+            Taxi taxi = taxiService.findById(id);
+            // Skip a taxi deleted since the search
+            if (taxi != null) {
+                taxis.add(taxi);
+            }
+        }
+        return Response.ok(taxis).build();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.booking;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.ejb.Stateless;
+import javax.inject.Inject;
+import javax.interceptor.Interceptors;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.jboss.quickstarts.wfk.taxi.TaxiService;
+import org.jboss.quickstarts.wfk.util.DateParam;
+import org.jboss.quickstarts.wfk.util.RequestMetricsInterceptor;
+
+/**
+ * <p>Tells which days a taxi is free and which it is booked, over a range of days.</p>
+ *
+ * <p>Full path for accessing the availability of a Taxi is rest/taxis/{id}/availability .</p>
+ *
+ * <p>The days are read from the {@link BookingAvailabilityIndex} in memory; the Bookings are not queried. Only the Taxi
+ * is looked up, to answer 404 for one that does not exist, and that normally comes from the second-level cache.</p>
+ *
+ * @see BookingAvailabilityIndex#findBookedDays(long, Date, Date)
+ */
+/*
+ * The availability of a taxi is worked out from its bookings, so the resource lives with them rather than in the taxi
+ * package, which knows nothing of bookings. JAX-RS prefers the longer path, so these requests do not reach
+ * TaxiRESTService.
+ */
+@Path("/taxis/{id:[0-9]+}/availability")
+@Produces(MediaType.APPLICATION_JSON)
+@Stateless
+@Interceptors(RequestMetricsInterceptor.class)
+public class TaxiAvailabilityRESTService {
+
+    /** The number of days looked at when no <i>to</i> is given. */
+    static final int DEFAULT_DAYS = 90;
+
+    /** The most days that can be asked for at once. */
+    static final int MAX_DAYS = 366;
+
+    @Inject
+    private TaxiService taxiService;
+
+    @Inject
+    private BookingAvailabilityIndex availability;
+
+    /**
+     * <p>Returns the days from <i>from</i> to <i>to</i>, both included, split into those on which the taxi is free
+     * and those on which it is booked. Without <i>from</i> the range starts today, and without <i>to</i> it is
+     * {@link #DEFAULT_DAYS} days long.</p>
+     *
+     * @param id The id of the Taxi
+     * @param from The first day, as yyyy-MM-dd; or null for today
+     * @param to The last day, as yyyy-MM-dd; or null
+     * @return A Response containing the <i>taxiId</i>, <i>from</i>, <i>to</i>, and the <i>free</i> and <i>booked</i>
+     * days
+     */
+    @GET
+    public Response retrieveAvailability(@PathParam("id") long id, @QueryParam("from") DateParam from,
+                                         @QueryParam("to") DateParam to) {
+        Date first = from == null ? today() : from.getDate();
+        Date last = to == null ? daysAfter(first, DEFAULT_DAYS - 1) : to.getDate();
+        int days = BookingAvailabilityIndex.dayOf(last) - BookingAvailabilityIndex.dayOf(first) + 1;
+        if (days < 1) {
+            throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST)
+                .entity("from must not be after to").build());
+        }
+        if (days > MAX_DAYS) {
+            throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST)
+                .entity("At most " + MAX_DAYS + " days can be asked for at once").build());
+        }
+        if (taxiService.findById(id) == null) {
+            throw new WebApplicationException(Response.Status.NOT_FOUND);
+        }
+
+        BitSet taken = availability.findBookedDays(id, first, last);
+        List<Date> free = new ArrayList<Date>(days - taken.cardinality());
+        List<Date> booked = new ArrayList<Date>(taken.cardinality());
+        Calendar day = Calendar.getInstance();
+        day.setTime(first);
+        for (int i = 0; i < days; i++) {
+            (taken.get(i) ? booked : free).add(day.getTime());
+            day.add(Calendar.DAY_OF_MONTH, 1);
+        }
+
+        Map<String, Object> availabilityObj = new LinkedHashMap<String, Object>();
+        availabilityObj.put("taxiId", id);
+        availabilityObj.put("from", first);
+        availabilityObj.put("to", last);
+        availabilityObj.put("free", free);
+        availabilityObj.put("booked", booked);
+        return Response.ok(availabilityObj).build();
+    }
+
+    private static Date today() {
+        Calendar today = Calendar.getInstance();
+        today.set(Calendar.HOUR_OF_DAY, 0);
+        today.set(Calendar.MINUTE, 0);
+        today.set(Calendar.SECOND, 0);
+        today.set(Calendar.MILLISECOND, 0);
+        return today.getTime();
+    }
+
+    private static Date daysAfter(Date date, int days) {
+        Calendar day = Calendar.getInstance();
+        day.setTime(date);
+        day.add(Calendar.DAY_OF_MONTH, days);
+        return day.getTime();
+    }
+}
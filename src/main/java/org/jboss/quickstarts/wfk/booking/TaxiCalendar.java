@@ -0,0 +1,149 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.booking;
+
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>The days one taxi is booked, kept by {@link BookingAvailabilityIndex}. Days are numbered as by
+ * {@link BookingAvailabilityIndex#dayOf(java.util.Date)}.</p>
+ *
+ * <p>Each booked day is held twice: against the id of its booking, to tell which booking holds a day, and as a bit in a
+ * bitmap, to read the occupancy of a range of days a 64 day word at a time. The bitmap only keeps the words that have a
+ * booked day in them, so a taxi booked now and then over years costs a few words rather than a bit for every day since
+ * the epoch.</p>
+ *
+ * <p>Changes are made one at a time, so that the booking ids and the bitmap always agree; reads take no lock.</p>
+ *
+ * <p>A day can also be claimed by a transaction that is about to book it, see {@link #claim(int, Long, Object)}. Only
+ * one claim on a day can be held at once, which is how two requests for the same taxi and day are kept from both
+ * being admitted.</p>
+ */
+final class TaxiCalendar {
+
+    // day -> id of the booking holding that day
+    private final ConcurrentMap<Integer, Long> bookings = new ConcurrentHashMap<Integer, Long>();
+
+    // day / 64 -> the days of that word that are booked, one bit each; words without a booked day are left out
+    private final ConcurrentMap<Integer, Long> words = new ConcurrentHashMap<Integer, Long>();
+
+    // day -> the claim of the transaction that is booking that day; only there until the transaction ends
+    private final ConcurrentMap<Integer, Object> claims = new ConcurrentHashMap<Integer, Object>();
+
+    /**
+     * @param day The day to look up
+     * @return The id of the booking holding the day; or null if it is free
+     */
+    Long bookingOn(int day) {
+        return bookings.get(day);
+    }
+
+    /**
+     * <p>Marks the day as held by the booking.</p>
+     */
+    synchronized void book(int day, Long id) {
+        bookings.put(day, id);
+        Long word = words.get(word(day));
+        words.put(word(day), (word == null ? 0L : word) | bit(day));
+    }
+
+    /**
+     * <p>Frees the day, unless it has been taken by another booking in the meantime.</p>
+     */
+    synchronized void release(int day, Long id) {
+        if (!bookings.remove(day, id)) {
+            return;
+        }
+        Long word = words.get(word(day));
+        if (word != null) {
+            long left = word & ~bit(day);
+            if (left == 0) {
+                words.remove(word(day));
+            } else {
+                words.put(word(day), left);
+            }
+        }
+    }
+
+    /**
+     * <p>Claims the day for a booking that is about to hold it. This is a single compare-and-set, no lock is taken: of
+     * any number of callers claiming the same free day at once, exactly one gets it.</p>
+     *
+     * <p>The day is checked for a booking after the claim is made. A committed booking is added to the calendar before
+     * the claim that admitted it is released, so a caller that gets the claim is sure to see that booking.</p>
+     *
+     * @param day The day to claim
+     * @param id The id of the booking claiming the day; or null for a new booking
+     * @param claim The claim, to be passed to {@link #unclaim(int, Object)} when the transaction ends
+     * @return true if the day was claimed; false if another booking holds or is claiming it
+     */
+    boolean claim(int day, Long id, Object claim) {
+        if (claims.putIfAbsent(day, claim) != null) {
+            return false;
+        }
+        Long holder = bookings.get(day);
+        if (holder != null && !holder.equals(id)) {
+            claims.remove(day, claim);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * <p>Releases a claim made by {@link #claim(int, Long, Object)}.</p>
+     */
+    void unclaim(int day, Object claim) {
+        claims.remove(day, claim);
+    }
+
+    /**
+     * <p>Reads the booked days from one day to another, both included.</p>
+     *
+     * @param from The first day
+     * @param to The last day, not before from
+     * @return The booked days, bit i being set if day from + i is booked
+     */
+    BitSet booked(int from, int to) {
+        BitSet booked = new BitSet(to - from + 1);
+        for (int w = word(from); w <= word(to); w++) {
+            Long word = words.get(w);
+            if (word == null) {
+                continue;
+            }
+            long bits = word;
+            while (bits != 0) {
+                int day = (w << 6) + Long.numberOfTrailingZeros(bits);
+                if (day >= from && day <= to) {
+                    booked.set(day - from);
+                }
+                bits &= bits - 1;
+            }
+        }
+        return booked;
+    }
+
+    // Shifting rounds towards minus infinity, so days before the epoch fall into the right word too
+    private static int word(int day) {
+        return day >> 6;
+    }
+
+    private static long bit(int day) {
+        return 1L << (day & 63);
+    }
+}
@@ -26,6 +26,8 @@ import javax.validation.constraints.Pattern;
 import javax.validation.constraints.Size;
 import javax.xml.bind.annotation.XmlRootElement;
 
+import org.hibernate.annotations.Index;
+import org.codehaus.jackson.annotate.JsonIgnore;
 import org.hibernate.validator.constraints.Email;
 import org.hibernate.validator.constraints.NotEmpty;
 
@@ -42,19 +44,39 @@ import org.hibernate.validator.constraints.NotEmpty;
  * The @NamedQueries included here are for searching against the table that reflects this object.  This is the most efficient
  * form of query in JPA though is it more error prone due to the syntax being in a String.  This makes it harder to debug.
  */
+/*
+ * Customers are read far more often than they are written (every booking looks its customer up), so they are kept in the
+ * second-level cache, see persistence.xml.
+ */
 @Entity
+@Cacheable
 @NamedQueries({
-    @NamedQuery(name = Customer.FIND_ALL, query = "SELECT c FROM Customer c ORDER BY c.customerName ASC, c.customerName ASC"),
-    @NamedQuery(name = Customer.FIND_BY_EMAIL, query = "SELECT c FROM Customer c WHERE c.email = :email")
+    @NamedQuery(name = Customer.FIND_ALL, query = "SELECT c FROM Customer c ORDER BY c.customerName ASC, c.id ASC"),
+    @NamedQuery(name = Customer.FIND_PAGE_AFTER, query = "SELECT c FROM Customer c "
+        + "WHERE c.customerName > :name OR (c.customerName = :name AND c.id > :id) "
+        + "ORDER BY c.customerName ASC, c.id ASC"),
+    @NamedQuery(name = Customer.FIND_BY_EMAIL, query = "SELECT c FROM Customer c WHERE c.email = :email",
+        hints = @QueryHint(name = "org.hibernate.cacheable", value = "true")),
+    @NamedQuery(name = Customer.FIND_ID_BY_EMAIL, query = "SELECT c.id FROM Customer c WHERE c.email = :email",
+        hints = @QueryHint(name = "org.hibernate.cacheable", value = "true")),
+    @NamedQuery(name = Customer.FIND_IDS, query = "SELECT c.id FROM Customer c WHERE c.id IN :ids"),
+    @NamedQuery(name = Customer.FIND_EMAILS, query = "SELECT c.email FROM Customer c")
 })
 @XmlRootElement
 @Table(name = "Customer", uniqueConstraints = @UniqueConstraint(columnNames = "email"))
+// The listing is sorted by name then id, this index lets the pages seek straight to their first row.
+@org.hibernate.annotations.Table(appliesTo = "Customer",
+    indexes = @Index(name = "Customer_name_id_idx", columnNames = {"customerName", "id"}))
 public class Customer implements Serializable {
     /** Default value included to remove warning. Remove or modify at will. **/
     private static final long serialVersionUID = 1L;
     
     public static final String FIND_ALL = "Customer.findAll";
+    public static final String FIND_PAGE_AFTER = "Customer.findPageAfter";
     public static final String FIND_BY_EMAIL = "Customer.findByEmail";
+    public static final String FIND_ID_BY_EMAIL = "Customer.findIdByEmail";
+    public static final String FIND_IDS = "Customer.findIds";
+    public static final String FIND_EMAILS = "Customer.findEmails";
 
     /*
      * The  error messages match the ones in the UI so that the user isn't confused by two similar error messages for
@@ -65,8 +87,10 @@ public class Customer implements Serializable {
      * Each variable name exactly matches the ones used on the HTML form name attribute so that when an error for that
      * variable occurs it can be sent to the correct input field on the form.  
      */
+    //ID generated from a pooled sequence, the database is read once per 50 customers
     @Id
-    @GeneratedValue(strategy = GenerationType.TABLE)
+    @SequenceGenerator(name = "Customer_seq", sequenceName = "Customer_seq", initialValue = 1, allocationSize = 50)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "Customer_seq")
     private Long id;
 
     @NotNull
@@ -86,6 +110,15 @@ public class Customer implements Serializable {
     @Column(name = "phone_number")
     private String phoneNumber;
 
+    // Incremented by Hibernate on every update, it is part of the customer's ETag
+    @Version
+    @Column(name = "version")
+    private Long version;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "last_modified")
+    private Date lastModified;
+
     public Long getId() {
         return id;
     }
@@ -118,4 +151,24 @@ public class Customer implements Serializable {
         this.phoneNumber = phoneNumber;
     }
 
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
+    // Sent as the Last-Modified header rather than in the body
+    @JsonIgnore
+    public Date getLastModified() {
+        return lastModified;
+    }
+
+    @PrePersist
+    @PreUpdate
+    void touch() {
+        lastModified = new Date();
+    }
+
 }
@@ -0,0 +1,85 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.customer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Inject;
+
+import org.jboss.quickstarts.wfk.util.BulkImporter;
+
+/**
+ * <p>Lets {@link BulkImporter} create Customers, whose unique key is their email.</p>
+ *
+ * <p>The email is checked against every email in use, read once per import, rather than by {@link CustomerValidator}
+ * with a query per Customer.</p>
+ *
+ * @see CustomerRESTService#importCustomers(String, java.io.InputStream)
+ */
+public class CustomerImport implements BulkImporter.Target<Customer> {
+
+    @Inject
+    private CustomerRepository crud;
+
+    @Override
+    public Class<Customer> getType() {
+        return Customer.class;
+    }
+
+    @Override
+    public Set<String> getRequiredProperties() {
+        return new HashSet<String>(Arrays.asList("name", "email", "phoneNumber"));
+    }
+
+    @Override
+    public Set<String> findKeys() {
+        return crud.findAllEmails();
+    }
+
+    @Override
+    public String keyOf(Customer customer) {
+        return customer.getEmail();
+    }
+
+    @Override
+    public boolean isTaken(String email) {
+        return crud.findIdByEmail(email) != null;
+    }
+
+    @Override
+    public Map<String, String> duplicateErrors() {
+        Map<String, String> responseObj = new HashMap<String, String>();
+        responseObj.put("email", "That email is already used, please use a unique email");
+        return responseObj;
+    }
+
+    @Override
+    public void reset(Customer customer) {
+        customer.setId(null);
+        customer.setVersion(null);
+    }
+
+    @Override
+    public void createAll(List<Customer> customers) throws Exception {
+        crud.createAll(customers);
+    }
+}
@@ -16,6 +16,9 @@
  */
 package org.jboss.quickstarts.wfk.customer;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -26,22 +29,40 @@ import javax.ejb.NoSuchEntityException;
 import javax.ejb.Stateless;
 import javax.inject.Inject;
 import javax.inject.Named;
-import javax.persistence.NoResultException;
+import javax.interceptor.Interceptors;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityNotFoundException;
+import javax.persistence.OptimisticLockException;
 import javax.validation.ConstraintViolation;
 import javax.validation.ConstraintViolationException;
 import javax.validation.ValidationException;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
 import javax.ws.rs.WebApplicationException;
 
+import org.jboss.quickstarts.wfk.util.BulkImporter;
+import org.jboss.quickstarts.wfk.util.ConditionalGet;
+import org.jboss.quickstarts.wfk.util.IdempotencyStore;
+import org.jboss.quickstarts.wfk.util.ImportReader;
+import org.jboss.quickstarts.wfk.util.JsonArrayStreamer;
+import org.jboss.quickstarts.wfk.util.Pagination;
+import org.jboss.quickstarts.wfk.util.RequestMetricsInterceptor;
+
 /**
  * <p>This class exposes the functionality of {@link CustomerService} over HTTP endpoints as a RESTful resource via
  * JAX-RS.</p>
@@ -49,6 +70,9 @@ import javax.ws.rs.WebApplicationException;
  * <p>Full path for accessing the Customer resource is rest/customers .</p>
  *
  * <p>The resource accepts and produces JSON.</p>
+ *
+ * <p>GET responses carry an ETag and Last-Modified, and a request whose If-None-Match or If-Modified-Since still matches
+ * is answered with 304 Not Modified, see {@link ConditionalGet}.</p>
  * 
  * @author Joshua Wilson
  * @see CustomerService
@@ -68,22 +92,92 @@ import javax.ws.rs.WebApplicationException;
 @Consumes(MediaType.APPLICATION_JSON)
 @Produces(MediaType.APPLICATION_JSON)
 @Stateless
+@Interceptors(RequestMetricsInterceptor.class)
 public class CustomerRESTService {
     @Inject
     private @Named("logger") Logger log;
+
+    @Inject
+    private EntityManager em;
     
     @Inject
     private CustomerService service;
+
+    @Inject
+    private JsonArrayStreamer streamer;
+
+    @Inject
+    private IdempotencyStore idempotency;
+
+    @Inject
+    private BulkImporter importer;
+
+    @Inject
+    private CustomerImport importTarget;
+
+    // Idempotency keys sent to createCustomer are only matched against each other
+    private static final String IDEMPOTENCY_SCOPE = "customers";
     
     /**
      * <p>Search for and return all the Customers.  They are sorted alphabetically by name.</p>
+     *
+     * <p>If a limit is given only one page of Customers is returned, see {@link Pagination}.</p>
      * 
+     * @param limit The number of Customers per page; or null for all of them
+     * @param after The cursor of the page, taken from the next link of the previous one
+     * @param uriInfo The URI of this request, used for the next page link
+     * @param request The request, checked for If-None-Match and If-Modified-Since
+     * @param headers The headers of the request
      * @return A Response containing a list of Customers
      */
     @GET
-    public Response retrieveAllCustomers() {
-        List<Customer> customers = service.findAllOrderedByName();
-        return Response.ok(customers).build();
+    public Response retrieveAllCustomers(@QueryParam("limit") Integer limit, @QueryParam("after") String after,
+                                         @Context UriInfo uriInfo, @Context Request request,
+                                         @Context HttpHeaders headers) {
+        // Checked before the query, so an unchanged list costs one read of its change counter instead of the whole list
+        ConditionalGet validators = ConditionalGet.forTables(em, Customer.class);
+        Response.ResponseBuilder notModified = validators.evaluate(request, headers);
+        if (notModified != null) {
+            return notModified.build();
+        }
+
+        if (limit == null && after == null) {
+            List<Customer> customers = service.findAllOrderedByName();
+            return validators.tag(Response.ok(customers)).build();
+        }
+        int pageSize = Pagination.checkLimit(limit);
+        List<Customer> customers = service.findPage(Pagination.Cursor.valueOf(after), pageSize);
+        Customer last = customers.size() > pageSize ? customers.get(pageSize - 1) : null;
+        Pagination.Cursor next = last == null ? null : new Pagination.Cursor(last.getName(), last.getId());
+        return validators.tag(Pagination.page(customers, pageSize, next, uriInfo)).build();
+    }
+
+    /**
+     * <p>Return all the Customers as a streamed JSON array, in the same order as {@link #retrieveAllCustomers}.</p>
+     *
+     * <p>The Customers are written to the response as they are read from the database rather than collected into a List
+     * first, so this is the endpoint to use for full exports of large tables.</p>
+     *
+     * @param request The request, checked for If-None-Match and If-Modified-Since
+     * @param headers The headers of the request
+     * @return A Response streaming a list of Customers
+     */
+    @GET
+    @Path("/export")
+    public Response exportAllCustomers(@Context Request request, @Context HttpHeaders headers) {
+        ConditionalGet validators = ConditionalGet.forTables(em, Customer.class);
+        Response.ResponseBuilder notModified = validators.evaluate(request, headers);
+        if (notModified != null) {
+            return notModified.build();
+        }
+
+        final JsonArrayStreamer exporter = streamer;
+        return validators.tag(Response.ok(new StreamingOutput() {
+            @Override
+            public void write(OutputStream output) throws IOException {
+                exporter.writeAll(Customer.FIND_ALL, output);
+            }
+        })).build();
     }
 
     /**
@@ -94,29 +188,33 @@ public class CustomerRESTService {
      *
      *
      * @param email The string parameter value provided as a Customer's email
+     * @param request The request, checked for If-None-Match and If-Modified-Since
+     * @param headers The headers of the request
      * @return A Response containing a single Customer
      */
     @GET
     @Path("/{email:^.+@.+$}")
-    public Response retrieveCustomersByEmail(@PathParam("email") String email) {
-        Customer customer;
-        try {
-            customer = service.findByEmail(email);
-        } catch (NoResultException e) {
+    public Response retrieveCustomersByEmail(@PathParam("email") String email, @Context Request request,
+                                             @Context HttpHeaders headers) {
+        Customer customer = service.findByEmail(email);
+        if (customer == null) {
             throw new WebApplicationException(Response.Status.NOT_FOUND);
         }
-        return Response.ok(customer).build();
+        return conditionalOk(customer, request, headers);
     }
     
     /**
      * <p>Search for and return a Customer identified by id.</p>
      * 
      * @param id The long parameter value provided as a Customer's id
+     * @param request The request, checked for If-None-Match and If-Modified-Since
+     * @param headers The headers of the request
      * @return A Response containing a single Customer
      */
     @GET
     @Path("/{id:[0-9]+}")
-    public Response retrieveCustomerById(@PathParam("id") long id) {
+    public Response retrieveCustomerById(@PathParam("id") long id, @Context Request request,
+                                         @Context HttpHeaders headers) {
         Customer customer = service.findById(id);
         if (customer == null) {
             throw new WebApplicationException(Response.Status.NOT_FOUND);
@@ -124,24 +222,44 @@ public class CustomerRESTService {
         log.info("findById " + id + ": found Customer = " + customer.getName() + " " + customer.getEmail() + " " + customer.getPhoneNumber() + " "
                  + customer.getId());
         
-        return Response.ok(customer).build();
+        return conditionalOk(customer, request, headers);
+    }
+
+    // A 304 if the client's copy of the customer is still current, otherwise the customer
+    private Response conditionalOk(Customer customer, Request request, HttpHeaders headers) {
+        ConditionalGet validators = ConditionalGet.forEntity(customer.getLastModified(), customer.getId(),
+            customer.getVersion());
+        Response.ResponseBuilder notModified = validators.evaluate(request, headers);
+        if (notModified != null) {
+            return notModified.build();
+        }
+        return validators.tag(Response.ok(customer)).build();
     }
 
     /**
      * <p>Creates a new customer from the values provided. Performs validation and will return a JAX-RS response with either 200 (ok)
      * or with a map of fields, and related errors.</p>
      * 
+     * <p>With an Idempotency-Key header the request is safe to send again: a retry with the same key is answered with
+     * the customer created the first time instead of a 409 for its email, see {@link IdempotencyStore}.</p>
+     *
      * @param customer The Customer object, constructed automatically from JSON input, to be <i>created</i> via {@link CustomerService#create(Customer)}
+     * @param idempotencyKey The Idempotency-Key header; or null
      * @return A Response indicating the outcome of the create operation
      */
     @SuppressWarnings("unused")
     @POST
-    public Response createCustomer(Customer customer) {
+    public Response createCustomer(Customer customer, @HeaderParam(IdempotencyStore.HEADER) String idempotencyKey) {
         log.info("createCustomer started. Customer = " + customer.getName()  + " " + customer.getEmail() + " " + customer.getPhoneNumber() + " "
              + customer.getId());
         if (customer == null) {
             throw new WebApplicationException(Response.Status.BAD_REQUEST);
         }
+        Response replay = idempotency.begin(IDEMPOTENCY_SCOPE, idempotencyKey, customer);
+        if (replay != null) {
+            // A retry of a request that has been, or is being, handled already
+            return replay;
+        }
         
         Response.ResponseBuilder builder = null;
 
@@ -172,20 +290,60 @@ public class CustomerRESTService {
             builder = Response.status(Response.Status.BAD_REQUEST).entity(responseObj);
         }
 
-        return builder.build();
+        Response response = builder.build();
+        idempotency.finish(IDEMPOTENCY_SCOPE, idempotencyKey, response);
+        return response;
+    }
+
+    /**
+     * <p>Creates a Customer for every record of a CSV or NDJSON upload, such as a corporate client's staff list, and
+     * streams back a report of the outcome as newline delimited JSON, see {@link BulkImporter}.</p>
+     *
+     * <p>A CSV upload starts with a header row naming the fields, for example <code>name,email,phoneNumber</code>. The
+     * upload is read while the report is written, so neither is held in memory, and the Customers are committed a chunk
+     * at a time: the response is always 200, and the report tells which records were turned away and why.</p>
+     *
+     * @param contentType The Content-Type of the upload, text/csv or application/x-ndjson
+     * @param upload The records to import
+     * @return A Response streaming the import report
+     */
+    @POST
+    @Path("/import")
+    @Consumes({ImportReader.CSV, ImportReader.NDJSON})
+    @Produces(ImportReader.NDJSON)
+    public Response importCustomers(@HeaderParam(HttpHeaders.CONTENT_TYPE) final String contentType,
+                                    final InputStream upload) {
+        if (upload == null) {
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        }
+        log.info("importCustomers started. Content-Type = " + contentType);
+
+        final BulkImporter customerImporter = importer;
+        final CustomerImport target = importTarget;
+        return Response.ok(new StreamingOutput() {
+            @Override
+            public void write(OutputStream output) throws IOException {
+                customerImporter.importAll(target, contentType, upload, output);
+            }
+        }).build();
     }
 
     /**
      * <p>Updates a customer with the ID provided in the Customer. Performs validation, and will return a JAX-RS response with either 200 ok,
      * or with a map of fields, and related errors.</p>
+     *
+     * <p>The update only succeeds against the current version of the customer: the one named by an If-Match ETag, or else
+     * the version in the JSON. A stale one is answered with 412 Precondition Failed, an update with neither with 428
+     * Precondition Required, and an id that does not exist with 404 Not Found.</p>
      * 
      * @param customer The Customer object, constructed automatically from JSON input, to be <i>updated</i> via {@link CustomerService#update(Customer)}
      * @param id The long parameter value provided as the id of the Customer to be updated
+     * @param headers The request headers, whose If-Match makes the update conditional on the customer's ETag
      * @return A Response indicating the outcome of the create operation
      */
     @PUT
     @Path("/{id:[0-9][0-9]*}")
-    public Response updateCustomer(@PathParam("id") long id, Customer customer) {
+    public Response updateCustomer(@PathParam("id") long id, Customer customer, @Context HttpHeaders headers) {
         if (customer == null) {
             throw new WebApplicationException(Response.Status.BAD_REQUEST);
         }
@@ -197,18 +355,16 @@ public class CustomerRESTService {
             Response response = Response.status(Response.Status.CONFLICT).entity("The customer ID cannot be modified").build();
             throw new WebApplicationException(response);
         }
-        if (service.findById(customer.getId()) == null) {
-            // Verify if the customer exists. Return 404, if not present.
-            throw new WebApplicationException(Response.Status.NOT_FOUND);
-        }
+        // The ETag the client read the customer with outranks any version in the body, and one of the two is required
+        customer.setVersion(ConditionalGet.expectedVersion(headers, id, customer.getVersion()));
         
         Response.ResponseBuilder builder = null;
         
         try {
             // Apply the changes the Customer.
-            service.update(customer);
+            customer = service.update(customer);
 
-            // Create an OK Response and pass the customer back in case it is needed.
+            // Create an OK Response and pass the customer, with its new version, back in case it is needed.
             builder = Response.ok(customer);
 
             log.info("updateCustomer completed. Customer = " + customer.getName() + " "  + customer.getEmail() + " " + customer.getPhoneNumber() + " "
@@ -225,6 +381,16 @@ public class CustomerRESTService {
             responseObj.put("error", "This is where errors are displayed that are not related to a specific field");
             responseObj.put("anotherError", "You can find this error message in /src/main/java/org/jboss/quickstarts/wfk/rest/CustomerRESTService.java line 242.");
             builder = Response.status(Response.Status.CONFLICT).entity(responseObj);
+        } catch (OptimisticLockException e) {
+            log.info("OptimisticLockException - " + e.toString());
+            // Someone else has changed the customer since the client read it
+            Map<String, String> responseObj = new HashMap<String, String>();
+            responseObj.put("error", "The customer has been changed by someone else, please reload it and try again");
+            builder = Response.status(Response.Status.PRECONDITION_FAILED).entity(responseObj);
+        } catch (EntityNotFoundException e) {
+            log.info("EntityNotFoundException - " + e.toString());
+            // There is no customer with that id to update
+            builder = Response.status(Response.Status.NOT_FOUND);
         } catch (Exception e) {
             log.info("Exception - " + e.toString());
             // Handle generic exceptions
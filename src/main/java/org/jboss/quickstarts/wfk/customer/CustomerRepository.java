@@ -19,6 +19,8 @@ package org.jboss.quickstarts.wfk.customer;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityNotFoundException;
+import javax.persistence.OptimisticLockException;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
@@ -26,7 +28,16 @@ import javax.persistence.criteria.Root;
 import javax.validation.ConstraintViolationException;
 import javax.validation.ValidationException;
 
+import org.hibernate.CacheMode;
+import org.hibernate.Session;
+import org.jboss.quickstarts.wfk.util.ChangeCounter;
+import org.jboss.quickstarts.wfk.util.Pagination;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Logger;
 
 /**
@@ -45,6 +56,12 @@ public class CustomerRepository {
     @Inject
     private @Named("logger") Logger log;
 
+    // The largest number of ids sent in a single IN list
+    private static final int ID_CHUNK_SIZE = 1000;
+
+    // Matches hibernate.jdbc.batch_size in persistence.xml
+    static final int BATCH_SIZE = 50;
+
     @Inject
     private EntityManager em;
     
@@ -58,6 +75,24 @@ public class CustomerRepository {
         return query.getResultList();
     }
 
+    /**
+     * <p>Returns one page of persisted {@link Customer} objects, sorted by name then id, starting after the given name
+     * and id.</p>
+     *
+     * <p>One more customer than the limit is returned so that the caller can tell whether there is a next page.</p>
+     *
+     * @param after The name and id of the last customer of the previous page; or null for the first page
+     * @param limit The page size
+     * @return Up to limit + 1 customer objects
+     */
+    List<Customer> findPage(Pagination.Cursor after, int limit) {
+        TypedQuery<Customer> query = after == null
+            ? em.createNamedQuery(Customer.FIND_ALL, Customer.class)
+            : em.createNamedQuery(Customer.FIND_PAGE_AFTER, Customer.class).setParameter("name", after.getKey())
+                .setParameter("id", after.getId());
+        return query.setMaxResults(limit + 1).getResultList();
+    }
+
     /**
      * <p>Returns a single customer object, specified by a Long id.<p/>
      *
@@ -68,17 +103,63 @@ public class CustomerRepository {
         return em.find(Customer.class, id);
     }
 
+    /**
+     * <p>Returns which of the given ids belong to a persisted Customer. Only the ids are read, no Customer objects are
+     * created.</p>
+     *
+     * <p>The ids are looked up 1000 at a time to keep the IN list within what every database accepts.<p/>
+     *
+     * @param ids The ids to look up
+     * @return The subset of ids for which a Customer exists
+     */
+    public Set<Long> findExistingIds(Collection<Long> ids) {
+        Set<Long> found = new HashSet<Long>();
+        List<Long> pending = new ArrayList<Long>(ids);
+        for (int from = 0; from < pending.size(); from += ID_CHUNK_SIZE) {
+            List<Long> chunk = pending.subList(from, Math.min(from + ID_CHUNK_SIZE, pending.size()));
+            found.addAll(em.createNamedQuery(Customer.FIND_IDS, Long.class).setParameter("ids", chunk).getResultList());
+        }
+        return found;
+    }
+
     /**
      * <p>Returns a single customer object, specified by a String email.</p>
      *
      * <p>If there is more than one customer with the specified email, only the first encountered will be returned.<p/>
      *
+     * <p>Returns null rather than throwing when there is no such customer. Not finding one is the usual outcome, as
+     * every registration checks its email is free, and a NoResultException would cost a stack trace and mark the
+     * transaction for rollback each time.</p>
+     *
      * @param email The email field of the customer to be returned
-     * @return The first customer with the specified email
+     * @return The first customer with the specified email; or null
      */
     Customer findByEmail(String email) {
         TypedQuery<Customer> query = em.createNamedQuery(Customer.FIND_BY_EMAIL, Customer.class).setParameter("email", email); 
-        return query.getSingleResult();
+        List<Customer> customers = query.setMaxResults(1).getResultList();
+        return customers.isEmpty() ? null : customers.get(0);
+    }
+
+    /**
+     * <p>Returns the id of the customer registered with the given email. Only the id is read, through the unique index
+     * on email, so no Customer is loaded.</p>
+     *
+     * @param email The email to look up
+     * @return The id of the customer with that email; or null if there is none
+     */
+    Long findIdByEmail(String email) {
+        List<Long> ids = em.createNamedQuery(Customer.FIND_ID_BY_EMAIL, Long.class).setParameter("email", email)
+            .setMaxResults(1).getResultList();
+        return ids.isEmpty() ? null : ids.get(0);
+    }
+
+    /**
+     * <p>Returns the email of every persisted customer, without loading the customers.</p>
+     *
+     * @return The emails in use
+     */
+    Set<String> findAllEmails() {
+        return new HashSet<String>(em.createNamedQuery(Customer.FIND_EMAILS, String.class).getResultList());
     }
 
     /**
@@ -87,7 +168,7 @@ public class CustomerRepository {
      * <p>If there is more then one, only the first will be returned.<p/>
      *
      * @param firstName The firstName field of the customer to be returned
-     * @return The first customer with the specified firstName
+     * @return The first customer with the specified firstName; or null
      */
     Customer findByName(String Name) {
         CriteriaBuilder cb = em.getCriteriaBuilder();
@@ -96,7 +177,8 @@ public class CustomerRepository {
         // Swap criteria statements if you would like to try out type-safe criteria queries, a new feature in JPA 2.0.
         // criteria.select(customer).where(cb.equal(customer.get(customer_.firstName), firstName));
         criteria.select(customer).where(cb.equal(customer.get("customerName"), Name));
-        return em.createQuery(criteria).getSingleResult();
+        List<Customer> customers = em.createQuery(criteria).setMaxResults(1).getResultList();
+        return customers.isEmpty() ? null : customers.get(0);
     }
 
     /**
@@ -126,10 +208,40 @@ public class CustomerRepository {
         
         // Write the customer to the database.
         em.persist(customer);
+        ChangeCounter.bump(em, Customer.class);
         
         return customer;
     }
 
+    /**
+     * <p>Persists all of the provided customer objects in the current transaction.</p>
+     *
+     * <p>The persistence context is flushed and cleared every {@link #BATCH_SIZE} customers, so the inserts go to the
+     * database as JDBC batches and the new customers do not pile up in memory. They are not put in the second-level
+     * cache either, where a large import would push out the customers that are actually being read.</p>
+     *
+     * @param customers The customer objects to be persisted
+     * @return The customer objects that have been persisted
+     * @throws ConstraintViolationException, ValidationException, Exception
+     */
+    List<Customer> createAll(List<Customer> customers) throws ConstraintViolationException, ValidationException, Exception {
+        log.info("customerRepository.createAll() - Creating " + customers.size() + " customers");
+
+        em.unwrap(Session.class).setCacheMode(CacheMode.GET);
+        int count = 0;
+        for (Customer customer : customers) {
+            em.persist(customer);
+            if (++count % BATCH_SIZE == 0) {
+                em.flush();
+                em.clear();
+            }
+        }
+        em.flush();
+        ChangeCounter.bump(em, Customer.class);
+
+        return customers;
+    }
+
     /**
      * <p>Updates an existing customer object in the application database with the provided customer object.</p>
      * 
@@ -141,15 +253,29 @@ public class CustomerRepository {
      * 
      * @param customer The customer object to be merged with an existing customer
      * @return The customer that has been merged
+     * @throws EntityNotFoundException if there is no customer with its id
+     * @throws OptimisticLockException if its @Version is missing or not the current one
      * @throws ConstraintViolationException, ValidationException, Exception
      */
     Customer update(Customer customer) throws ConstraintViolationException, ValidationException, Exception {
         log.info("customerRepository.update() - Updating " + customer.getName());
         
-        // Either update the customer or add it if it can't be found.
-        em.merge(customer);
-        
-        return customer;
+        // merge() would add a customer that can't be found, rather than report it missing
+        Customer existing = customer.getId() == null ? null : em.find(Customer.class, customer.getId());
+        if (existing == null) {
+            throw new EntityNotFoundException("No customer with id " + customer.getId());
+        }
+        // Without a version there is nothing to check the customer against, and Hibernate would treat it as new
+        if (customer.getVersion() == null) {
+            throw new OptimisticLockException("No version given for customer " + customer.getId());
+        }
+
+        // A version other than the one just read fails the merge, and one changed since by another transaction fails
+        // the flush, either way with an OptimisticLockException. The merged copy carries the new version.
+        Customer merged = em.merge(customer);
+        em.flush();
+        ChangeCounter.bump(em, Customer.class);
+        return merged;
     }
 
     /**
@@ -177,6 +303,7 @@ public class CustomerRepository {
              * Therefore we merge first and then we can remove it.
              */
             em.remove(em.merge(customer));
+            ChangeCounter.bump(em, Customer.class);
             
         } else {
             log.info("customerRepository.delete() - No ID was found so can't Delete.");
@@ -24,6 +24,7 @@ import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
+import org.jboss.quickstarts.wfk.util.Pagination;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
@@ -77,6 +78,17 @@ public class CustomerService {
         return crud.findAllOrderedByName();
     }
 
+    /**
+     * <p>Returns one page of persisted {@link Customer} objects, continuing after the given name and id.<p/>
+     * 
+     * @param after The name and id of the last Customer of the previous page; or null for the first page
+     * @param limit The page size
+     * @return Up to limit + 1 Customer objects
+     */
+    List<Customer> findPage(Pagination.Cursor after, int limit) {
+        return crud.findPage(after, limit);
+    }
+
     /**
      * <p>Returns a single Customer object, specified by a Long id.<p/>
      * 
@@ -93,7 +105,7 @@ public class CustomerService {
      * <p>If there is more than one Customer with the specified email, only the first encountered will be returned.<p/>
      * 
      * @param email The email field of the Customer to be returned
-     * @return The first Customer with the specified email
+     * @return The first Customer with the specified email; or null if there is none
      */
     Customer findByEmail(String email) {
         return crud.findByEmail(email);
@@ -105,7 +117,7 @@ public class CustomerService {
      * <p>If there is more then one, only the first will be returned.<p/>
      * 
      * @param firstName The firstName field of the Customer to be returned
-     * @return The first Customer with the specified firstName
+     * @return The first Customer with the specified firstName; or null if there is none
      */
     Customer findByName(String Name) {
         return crud.findByName(Name);
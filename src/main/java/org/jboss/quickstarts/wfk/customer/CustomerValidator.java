@@ -20,7 +20,6 @@ import java.util.HashSet;
 import java.util.Set;
 
 import javax.inject.Inject;
-import javax.persistence.NoResultException;
 import javax.validation.ConstraintViolation;
 import javax.validation.ConstraintViolationException;
 import javax.validation.ValidationException;
@@ -75,29 +74,15 @@ public class CustomerValidator {
      * <p>Since Update will being using an email that is already in the database we need to make sure that it is the email
      * from the record being updated.</p>
      * 
+     * <p>One query answers this, reading only the id of whoever holds the email.</p>
+     *
      * @param email The email to check is unique
      * @param id The user id to check the email against if it was found
      * @return boolean which represents whether the email was found, and if so if it belongs to the user with id
      */
     boolean emailAlreadyExists(String email, Long id) {
-        Customer customer = null;
-        Customer customerWithID = null;
-        try {
-            customer = crud.findByEmail(email);
-        } catch (NoResultException e) {
-            // ignore
-        }
-
-        if (customer != null && id != null) {
-            try {
-                customerWithID = crud.findById(id);
-                if (customerWithID != null && customerWithID.getEmail().equals(email)) {
-                    customer = null;
-                }
-            } catch (NoResultException e) {
-                // ignore
-            }
-        }
-        return customer != null;
+        // Emails are unique, so the email is free for this customer unless someone else holds it
+        Long holderId = crud.findIdByEmail(email);
+        return holderId != null && !holderId.equals(id);
     }
 }
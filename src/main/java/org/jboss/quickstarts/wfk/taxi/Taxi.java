@@ -12,6 +12,7 @@ import javax.validation.constraints.Pattern;
 import javax.validation.constraints.Size;
 import javax.xml.bind.annotation.XmlRootElement;
 
+import org.codehaus.jackson.annotate.JsonIgnore;
 import org.hibernate.validator.constraints.Email;
 import org.hibernate.validator.constraints.NotEmpty;
 
@@ -60,10 +61,19 @@ import org.hibernate.validator.constraints.NotEmpty;
  * The @NamedQueries included here are for searching against the table that reflects this object.  This is the most efficient
  * form of query in JPA though is it more error prone due to the syntax being in a String.  This makes it harder to debug.
  */
+// Taxis are read on every booking but rarely change, so they are kept in the second-level cache.
 @Entity
+@Cacheable
 @NamedQueries({
-    @NamedQuery(name = Taxi.FIND_ALL, query = "SELECT c FROM Taxi c ORDER BY c.reg ASC"),
-    @NamedQuery(name = Taxi.FIND_BY_REG, query = "SELECT c FROM Taxi c WHERE c.reg = :reg")
+    @NamedQuery(name = Taxi.FIND_ALL, query = "SELECT c FROM Taxi c ORDER BY c.reg ASC, c.id ASC"),
+    @NamedQuery(name = Taxi.FIND_PAGE_AFTER, query = "SELECT c FROM Taxi c "
+        + "WHERE c.reg > :reg OR (c.reg = :reg AND c.id > :id) ORDER BY c.reg ASC, c.id ASC"),
+    @NamedQuery(name = Taxi.FIND_BY_REG, query = "SELECT c FROM Taxi c WHERE c.reg = :reg",
+        hints = @QueryHint(name = "org.hibernate.cacheable", value = "true")),
+    @NamedQuery(name = Taxi.FIND_ID_BY_REG, query = "SELECT c.id FROM Taxi c WHERE c.reg = :reg",
+        hints = @QueryHint(name = "org.hibernate.cacheable", value = "true")),
+    @NamedQuery(name = Taxi.FIND_IDS, query = "SELECT c.id FROM Taxi c WHERE c.id IN :ids"),
+    @NamedQuery(name = Taxi.FIND_REGS, query = "SELECT c.reg FROM Taxi c")
 })
 @XmlRootElement
 @Table(name = "Taxi", uniqueConstraints = @UniqueConstraint(columnNames = "reg"))
@@ -72,7 +82,11 @@ public class Taxi implements Serializable {
     private static final long serialVersionUID = 1L;
     
     public static final String FIND_ALL = "Taxi.findAll";
+    public static final String FIND_PAGE_AFTER = "Taxi.findPageAfter";
     public static final String FIND_BY_REG = "Taxi.findByReg";
+    public static final String FIND_ID_BY_REG = "Taxi.findIdByReg";
+    public static final String FIND_IDS = "Taxi.findIds";
+    public static final String FIND_REGS = "Taxi.findRegs";
 
     /*
      * The  error messages match the ones in the UI so that the user isn't confused by two similar error messages for
@@ -84,8 +98,10 @@ public class Taxi implements Serializable {
      * Each variable name exactly matches the ones used on the HTML form name attribute so that when an error for that
      * variable occurs it can be sent to the correct input field on the form.  
      */
+    //ID generated from a pooled sequence, the database is read once per 50 taxis
     @Id
-    @GeneratedValue(strategy = GenerationType.TABLE)
+    @SequenceGenerator(name = "Taxi_seq", sequenceName = "Taxi_seq", initialValue = 1, allocationSize = 50)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "Taxi_seq")
     private Long id;
 
     @NotNull
@@ -101,6 +117,15 @@ public class Taxi implements Serializable {
     //@Pattern(regexp = "^[A-Z]{2}[0-9]{2}\\s[A-Z]{3,4}$")
     private String reg;
 
+    // Optimistic lock version, also used for the taxi's ETag
+    @Version
+    @Column(name = "version")
+    private Long version;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "last_modified")
+    private Date lastModified;
+
     public Long getId() {
         return id;
     }
@@ -126,6 +151,25 @@ public class Taxi implements Serializable {
         this.reg = reg;
     }
 
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
+    @JsonIgnore
+    public Date getLastModified() {
+        return lastModified;
+    }
+
+    @PrePersist
+    @PreUpdate
+    void touch() {
+        lastModified = new Date();
+    }
+
     
 
 }
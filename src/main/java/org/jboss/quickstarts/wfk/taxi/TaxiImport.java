@@ -0,0 +1,85 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.taxi;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Inject;
+
+import org.jboss.quickstarts.wfk.util.BulkImporter;
+
+/**
+ * <p>Lets {@link BulkImporter} create Taxis. A Taxi is known by its reg, and the regs already registered are read in
+ * one query at the start of the import.</p>
+ *
+ * <p>The Taxis created join the {@link TaxiSeatIndex} as each chunk commits.</p>
+ *
+ * @see TaxiRESTService#importTaxis(String, java.io.InputStream)
+ */
+public class TaxiImport implements BulkImporter.Target<Taxi> {
+
+    @Inject
+    private TaxiRepository crud;
+
+    @Override
+    public Class<Taxi> getType() {
+        return Taxi.class;
+    }
+
+    @Override
+    public Set<String> getRequiredProperties() {
+        return new HashSet<String>(Arrays.asList("numSeats", "reg"));
+    }
+
+    @Override
+    public Set<String> findKeys() {
+        return crud.findAllRegs();
+    }
+
+    @Override
+    public String keyOf(Taxi taxi) {
+        return taxi.getReg();
+    }
+
+    @Override
+    public boolean isTaken(String reg) {
+        return crud.findIdByReg(reg) != null;
+    }
+
+    @Override
+    public Map<String, String> duplicateErrors() {
+        Map<String, String> responseObj = new HashMap<String, String>();
+        responseObj.put("reg", "That reg is already used, please use a unique taxi reg");
+        return responseObj;
+    }
+
+    @Override
+    public void reset(Taxi taxi) {
+        taxi.setId(null);
+        taxi.setVersion(null);
+    }
+
+    @Override
+    public void createAll(List<Taxi> taxis) throws Exception {
+        crud.createAll(taxis);
+    }
+}
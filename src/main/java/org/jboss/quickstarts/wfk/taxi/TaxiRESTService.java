@@ -16,6 +16,9 @@
  */
 package org.jboss.quickstarts.wfk.taxi;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -26,28 +29,48 @@ import javax.ejb.NoSuchEntityException;
 import javax.ejb.Stateless;
 import javax.inject.Inject;
 import javax.inject.Named;
-import javax.persistence.NoResultException;
+import javax.interceptor.Interceptors;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityNotFoundException;
+import javax.persistence.OptimisticLockException;
 import javax.validation.ConstraintViolation;
 import javax.validation.ConstraintViolationException;
 import javax.validation.ValidationException;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
 import javax.ws.rs.WebApplicationException;
 
+import org.jboss.quickstarts.wfk.util.BulkImporter;
+import org.jboss.quickstarts.wfk.util.ConditionalGet;
+import org.jboss.quickstarts.wfk.util.IdempotencyStore;
+import org.jboss.quickstarts.wfk.util.ImportReader;
+import org.jboss.quickstarts.wfk.util.JsonArrayStreamer;
+import org.jboss.quickstarts.wfk.util.Pagination;
+import org.jboss.quickstarts.wfk.util.RequestMetricsInterceptor;
+
 /**
  * <p>This class exposes the functionality of {@link TaxiService} over HTTP endpoints as a RESTful resource via
  * JAX-RS.</p>
  *
  * <p>Full path for accessing the Taxi resource is rest/taxis .</p>
  *
+ * <p>GET responses carry an ETag and Last-Modified so that clients can revalidate them, see {@link ConditionalGet}.</p>
+ *
  * <p>The resource accepts and produces JSON.</p>
  * 
  * @author Joshua Wilson
@@ -68,22 +91,91 @@ import javax.ws.rs.WebApplicationException;
 @Consumes(MediaType.APPLICATION_JSON)
 @Produces(MediaType.APPLICATION_JSON)
 @Stateless
+@Interceptors(RequestMetricsInterceptor.class)
 public class TaxiRESTService {
     @Inject
     private @Named("logger") Logger log;
+
+    @Inject
+    private EntityManager em;
     
     @Inject
     private TaxiService service;
+
+    @Inject
+    private JsonArrayStreamer streamer;
+
+    @Inject
+    private IdempotencyStore idempotency;
+
+    @Inject
+    private BulkImporter importer;
+
+    @Inject
+    private TaxiImport importTarget;
+
+    // Idempotency keys sent to createTaxi are only matched against each other
+    private static final String IDEMPOTENCY_SCOPE = "taxis";
     
     /**
-     * <p>Search for and return all the Taxis.  They are sorted alphabetically by name.</p>
+     * <p>Search for and return all the Taxis.  They are sorted alphabetically by reg.</p>
+     *
+     * <p>If a limit is given only one page of Taxis is returned, see {@link Pagination}.</p>
      * 
+     * @param limit The number of Taxis per page; or null for all of them
+     * @param after The cursor of the page, taken from the next link of the previous one
+     * @param uriInfo The URI of this request, used for the next page link
+     * @param request The request, checked for If-None-Match and If-Modified-Since
+     * @param headers The headers of the request
      * @return A Response containing a list of Taxis
      */
     @GET
-    public Response retrieveAllTaxis() {
-        List<Taxi> taxis = service.findAllOrderedByReg();
-        return Response.ok(taxis).build();
+    public Response retrieveAllTaxis(@QueryParam("limit") Integer limit, @QueryParam("after") String after,
+                                     @Context UriInfo uriInfo, @Context Request request,
+                                     @Context HttpHeaders headers) {
+        ConditionalGet validators = ConditionalGet.forTables(em, Taxi.class);
+        Response.ResponseBuilder notModified = validators.evaluate(request, headers);
+        if (notModified != null) {
+            return notModified.build();
+        }
+
+        if (limit == null && after == null) {
+            List<Taxi> taxis = service.findAllOrderedByReg();
+            return validators.tag(Response.ok(taxis)).build();
+        }
+        int pageSize = Pagination.checkLimit(limit);
+        List<Taxi> taxis = service.findPage(Pagination.Cursor.valueOf(after), pageSize);
+        Taxi last = taxis.size() > pageSize ? taxis.get(pageSize - 1) : null;
+        Pagination.Cursor next = last == null ? null : new Pagination.Cursor(last.getReg(), last.getId());
+        return validators.tag(Pagination.page(taxis, pageSize, next, uriInfo)).build();
+    }
+
+    /**
+     * <p>Return all the Taxis as a streamed JSON array, in the same order as {@link #retrieveAllTaxis}.</p>
+     *
+     * <p>The Taxis are written to the response as they are read from the database rather than collected into a List
+     * first, so this is the endpoint to use for full exports of large tables.</p>
+     *
+     * @param request The request, checked for If-None-Match and If-Modified-Since
+     * @param headers The headers of the request
+     * @return A Response streaming a list of Taxis
+     */
+    @GET
+    @Path("/export")
+    public Response exportAllTaxis(@Context Request request, @Context HttpHeaders headers) {
+        ConditionalGet validators = ConditionalGet.forTables(em, Taxi.class);
+        Response.ResponseBuilder notModified = validators.evaluate(request, headers);
+        if (notModified != null) {
+            return notModified.build();
+        }
+
+        final JsonArrayStreamer exporter = streamer;
+        return validators.tag(Response.ok(new StreamingOutput() {
+            @Override
+            public void write(OutputStream output) throws IOException {
+                exporter.writeAll(Taxi.FIND_ALL, output);
+            }
+        })).build();
     }
 
     /**
@@ -94,52 +186,75 @@ public class TaxiRESTService {
      *
      *
      * @param reg The string parameter value provided as a Taxi's reg
+     * @param request The request, checked for If-None-Match and If-Modified-Since
+     * @param headers The headers of the request
      * @return A Response containing a single Taxi
      */
     @GET
     @Path("/{reg:[0-9]+}")
-    public Response retrieveTaxisByReg(@PathParam("reg") String reg) {
-        Taxi taxi;
-        try {
-            taxi = service.findByReg(reg);
-        } catch (NoResultException e) {
+    public Response retrieveTaxisByReg(@PathParam("reg") String reg, @Context Request request,
+                                       @Context HttpHeaders headers) {
+        Taxi taxi = service.findByReg(reg);
+        if (taxi == null) {
             throw new WebApplicationException(Response.Status.NOT_FOUND);
         }
-        return Response.ok(taxi).build();
+        return conditionalOk(taxi, request, headers);
     }
     
     /**
      * <p>Search for and return a Taxi identified by id.</p>
      * 
      * @param id The long parameter value provided as a Taxi's id
+     * @param request The request, checked for If-None-Match and If-Modified-Since
+     * @param headers The headers of the request
      * @return A Response containing a single Taxi
      */
     @GET
     @Path("/{id:[0-9]+}")
-    public Response retrieveTaxiById(@PathParam("id") long id) {
+    public Response retrieveTaxiById(@PathParam("id") long id, @Context Request request,
+                                     @Context HttpHeaders headers) {
         Taxi taxi = service.findById(id);
         if (taxi == null) {
             throw new WebApplicationException(Response.Status.NOT_FOUND);
         }
         log.info("findById " + id + ": found Taxi = " + taxi.getNumSeats() + " " + taxi.getReg() + " "  + taxi.getId());
         
-        return Response.ok(taxi).build();
+        return conditionalOk(taxi, request, headers);
+    }
+
+    // A 304 if the client's copy of the taxi is still current, otherwise the taxi
+    private Response conditionalOk(Taxi taxi, Request request, HttpHeaders headers) {
+        ConditionalGet validators = ConditionalGet.forEntity(taxi.getLastModified(), taxi.getId(), taxi.getVersion());
+        Response.ResponseBuilder notModified = validators.evaluate(request, headers);
+        if (notModified != null) {
+            return notModified.build();
+        }
+        return validators.tag(Response.ok(taxi)).build();
     }
 
     /**
      * <p>Creates a new taxi from the values provided. Performs validation and will return a JAX-RS response with either 200 (ok)
      * or with a map of fields, and related errors.</p>
      * 
+     * <p>An Idempotency-Key header makes the request safe to repeat, as for customers and bookings; see
+     * {@link IdempotencyStore}.</p>
+     *
      * @param taxi The Taxi object, constructed automatically from JSON input, to be <i>created</i> via {@link TaxiService#create(Taxi)}
+     * @param idempotencyKey The Idempotency-Key header; or null
      * @return A Response indicating the outcome of the create operation
      */
     @SuppressWarnings("unused")
     @POST
-    public Response createTaxi(Taxi taxi) {
+    public Response createTaxi(Taxi taxi, @HeaderParam(IdempotencyStore.HEADER) String idempotencyKey) {
         log.info("createTaxi started. Taxi = " +  taxi.getNumSeats() + " " + taxi.getReg() + " "  + taxi.getId());
         if (taxi == null) {
             throw new WebApplicationException(Response.Status.BAD_REQUEST);
         }
+        Response replay = idempotency.begin(IDEMPOTENCY_SCOPE, idempotencyKey, taxi);
+        if (replay != null) {
+            // A retry of a request that has been, or is being, handled already
+            return replay;
+        }
         
         Response.ResponseBuilder builder = null;
 
@@ -169,20 +284,60 @@ public class TaxiRESTService {
             builder = Response.status(Response.Status.BAD_REQUEST).entity(responseObj);
         }
 
-        return builder.build();
+        Response response = builder.build();
+        idempotency.finish(IDEMPOTENCY_SCOPE, idempotencyKey, response);
+        return response;
+    }
+
+    /**
+     * <p>Registers a whole fleet at once: creates a Taxi for every record of a CSV or NDJSON upload and streams back a
+     * newline delimited JSON report, see {@link BulkImporter}.</p>
+     *
+     * <p>CSV needs a header row, such as <code>reg,numSeats</code>. Records with an invalid or already registered reg
+     * are listed in the report and skipped; the rest are committed in chunks as the upload is read, so the status is
+     * 200 whatever the report says.</p>
+     *
+     * @param contentType The Content-Type of the upload, text/csv or application/x-ndjson
+     * @param upload The records to import
+     * @return A Response streaming the import report
+     */
+    @POST
+    @Path("/import")
+    @Consumes({ImportReader.CSV, ImportReader.NDJSON})
+    @Produces(ImportReader.NDJSON)
+    public Response importTaxis(@HeaderParam(HttpHeaders.CONTENT_TYPE) final String contentType,
+                                final InputStream upload) {
+        if (upload == null) {
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        }
+        log.info("importTaxis started. Content-Type = " + contentType);
+
+        final BulkImporter taxiImporter = importer;
+        final TaxiImport target = importTarget;
+        return Response.ok(new StreamingOutput() {
+            @Override
+            public void write(OutputStream output) throws IOException {
+                taxiImporter.importAll(target, contentType, upload, output);
+            }
+        }).build();
     }
 
     /**
      * <p>Updates a taxi with the ID provided in the Taxi. Performs validation, and will return a JAX-RS response with either 200 ok,
      * or with a map of fields, and related errors.</p>
+     *
+     * <p>The update only succeeds against the current version of the taxi: the one named by an If-Match ETag, or else
+     * the version in the JSON. A stale one is answered with 412 Precondition Failed, an update with neither with 428
+     * Precondition Required, and an id that does not exist with 404 Not Found.</p>
      * 
      * @param taxi The Taxi object, constructed automatically from JSON input, to be <i>updated</i> via {@link TaxiService#update(Taxi)}
      * @param id The long parameter value provided as the id of the Taxi to be updated
+     * @param headers The request headers, whose If-Match makes the update conditional on the taxi's ETag
      * @return A Response indicating the outcome of the create operation
      */
     @PUT
     @Path("/{id:[0-9][0-9]*}")
-    public Response updateTaxi(@PathParam("id") long id, Taxi taxi) {
+    public Response updateTaxi(@PathParam("id") long id, Taxi taxi, @Context HttpHeaders headers) {
         if (taxi == null) {
             throw new WebApplicationException(Response.Status.BAD_REQUEST);
         }
@@ -193,18 +348,16 @@ public class TaxiRESTService {
             Response response = Response.status(Response.Status.CONFLICT).entity("The taxi ID cannot be modified").build();
             throw new WebApplicationException(response);
         }
-        if (service.findById(taxi.getId()) == null) {
-            // Verify if the taxi exists. Return 404, if not present.
-            throw new WebApplicationException(Response.Status.BAD_REQUEST);
-        }
+        // The ETag the client read the taxi with outranks any version in the body, and one of the two is required
+        taxi.setVersion(ConditionalGet.expectedVersion(headers, id, taxi.getVersion()));
         
         Response.ResponseBuilder builder = null;
         
         try {
             // Apply the changes the Taxi.
-            service.update(taxi);
+            taxi = service.update(taxi);
 
-            // Create an OK Response and pass the taxi back in case it is needed.
+            // Create an OK Response and pass the taxi, with its new version, back in case it is needed.
             builder = Response.ok(taxi);
 
             log.info("updateTaxi completed. Taxi = " +  taxi.getNumSeats() + " " + taxi.getReg() + " " + taxi.getId());
@@ -220,6 +373,16 @@ public class TaxiRESTService {
             responseObj.put("error", "This is where errors are displayed that are not related to a specific field");
             responseObj.put("anotherError", "You can find this error message in /src/main/java/org/jboss/quickstarts/wfk/rest/TaxiRESTService.java line 242.");
             builder = Response.status(Response.Status.CONFLICT).entity(responseObj);
+        } catch (OptimisticLockException e) {
+            log.info("OptimisticLockException - " + e.toString());
+            // Someone else has changed the taxi since the client read it
+            Map<String, String> responseObj = new HashMap<String, String>();
+            responseObj.put("error", "The taxi has been changed by someone else, please reload it and try again");
+            builder = Response.status(Response.Status.PRECONDITION_FAILED).entity(responseObj);
+        } catch (EntityNotFoundException e) {
+            log.info("EntityNotFoundException - " + e.toString());
+            // There is no taxi with that id to update
+            builder = Response.status(Response.Status.NOT_FOUND);
         } catch (Exception e) {
             log.info("Exception - " + e.toString());
             // Handle generic exceptions
@@ -19,6 +19,8 @@ package org.jboss.quickstarts.wfk.taxi;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityNotFoundException;
+import javax.persistence.OptimisticLockException;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
@@ -26,7 +28,16 @@ import javax.persistence.criteria.Root;
 import javax.validation.ConstraintViolationException;
 import javax.validation.ValidationException;
 
+import org.hibernate.CacheMode;
+import org.hibernate.Session;
+import org.jboss.quickstarts.wfk.util.ChangeCounter;
+import org.jboss.quickstarts.wfk.util.Pagination;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Logger;
 
 /**
@@ -45,8 +56,17 @@ public class TaxiRepository {
     @Inject
     private @Named("logger") Logger log;
 
+    // The largest number of ids sent in a single IN list
+    private static final int ID_CHUNK_SIZE = 1000;
+
+    // Matches hibernate.jdbc.batch_size in persistence.xml
+    static final int BATCH_SIZE = 50;
+
     @Inject
     private EntityManager em;
+
+    @Inject
+    private TaxiSeatIndex seats;
     
     /**
      * <p>Returns a List of all persisted {@link Taxi} objects, sorted alphabetically by reg.</p>
@@ -58,6 +78,24 @@ public class TaxiRepository {
         return query.getResultList();
     }
 
+    /**
+     * <p>Returns one page of persisted {@link Taxi} objects, sorted by reg then id, starting after the given reg and id.
+     * </p>
+     *
+     * <p>One more Taxi than the limit is returned so that the caller can tell whether there is a next page.</p>
+     *
+     * @param after The reg and id of the last Taxi of the previous page; or null for the first page
+     * @param limit The page size
+     * @return Up to limit + 1 Taxi objects
+     */
+    List<Taxi> findPage(Pagination.Cursor after, int limit) {
+        TypedQuery<Taxi> query = after == null
+            ? em.createNamedQuery(Taxi.FIND_ALL, Taxi.class)
+            : em.createNamedQuery(Taxi.FIND_PAGE_AFTER, Taxi.class).setParameter("reg", after.getKey())
+                .setParameter("id", after.getId());
+        return query.setMaxResults(limit + 1).getResultList();
+    }
+
     /**
      * <p>Returns a single Taxi object, specified by a Long id.<p/>
      *
@@ -71,17 +109,61 @@ public class TaxiRepository {
     
     
    
+    /**
+     * <p>Returns which of the given ids belong to a persisted Taxi. Only the ids are read, no Taxi objects are
+     * created.</p>
+     *
+     * <p>The ids are looked up 1000 at a time to keep the IN list within what every database accepts.<p/>
+     *
+     * @param ids The ids to look up
+     * @return The subset of ids for which a Taxi exists
+     */
+    public Set<Long> findExistingIds(Collection<Long> ids) {
+        Set<Long> found = new HashSet<Long>();
+        List<Long> pending = new ArrayList<Long>(ids);
+        for (int from = 0; from < pending.size(); from += ID_CHUNK_SIZE) {
+            List<Long> chunk = pending.subList(from, Math.min(from + ID_CHUNK_SIZE, pending.size()));
+            found.addAll(em.createNamedQuery(Taxi.FIND_IDS, Long.class).setParameter("ids", chunk).getResultList());
+        }
+        return found;
+    }
+
     /**
      * <p>Returns a single Taxi object, specified by a String reg.</p>
      *
      * <p>If there is more than one Taxi with the specified reg, only the first encountered will be returned.<p/>
      *
+     * <p>As every new Taxi is checked against this, a missing reg is the common case; it is answered with null
+     * instead of a NoResultException.</p>
+     *
      * @param reg The reg field of the Taxi to be returned
-     * @return The first Taxi with the specified reg
+     * @return The first Taxi with the specified reg; or null
      */
     Taxi findByReg(String reg) {
         TypedQuery<Taxi> query = em.createNamedQuery(Taxi.FIND_BY_REG, Taxi.class).setParameter("reg", reg); 
-        return query.getSingleResult();
+        List<Taxi> taxis = query.setMaxResults(1).getResultList();
+        return taxis.isEmpty() ? null : taxis.get(0);
+    }
+
+    /**
+     * <p>Returns the id of the Taxi with the given reg, read from the unique index on reg without loading the Taxi.</p>
+     *
+     * @param reg The reg to look up
+     * @return The id of the Taxi with that reg; or null if there is none
+     */
+    Long findIdByReg(String reg) {
+        List<Long> ids = em.createNamedQuery(Taxi.FIND_ID_BY_REG, Long.class).setParameter("reg", reg)
+            .setMaxResults(1).getResultList();
+        return ids.isEmpty() ? null : ids.get(0);
+    }
+
+    /**
+     * <p>Returns the reg of every persisted Taxi. Only the regs are read.</p>
+     *
+     * @return The regs in use
+     */
+    Set<String> findAllRegs() {
+        return new HashSet<String>(em.createNamedQuery(Taxi.FIND_REGS, String.class).getResultList());
     }
 
     /**
@@ -90,7 +172,7 @@ public class TaxiRepository {
      * <p>If there is more then one, only the first will be returned.<p/>
      *
      * @param firstName The firstName field of the Taxi to be returned
-     * @return The first Taxi with the specified firstName
+     * @return The first Taxi with the specified firstName; or null
      */
     
     Taxi findByNumSeats(Integer numSeats) {
@@ -100,7 +182,8 @@ public class TaxiRepository {
         // Swap criteria statements if you would like to try out type-safe criteria queries, a new feature in JPA 2.0.
         // criteria.select(taxi).where(cb.equal(taxi.get(Taxi_.firstName), firstName));
         criteria.select(taxi).where(cb.equal(taxi.get("numSeats"), numSeats));
-        return em.createQuery(criteria).getSingleResult();
+        List<Taxi> taxis = em.createQuery(criteria).setMaxResults(1).getResultList();
+        return taxis.isEmpty() ? null : taxis.get(0);
     }
 
 
@@ -123,10 +206,42 @@ public class TaxiRepository {
         
         // Write the taxi to the database.
         em.persist(taxi);
+        ChangeCounter.bump(em, Taxi.class);
+        seats.saved(taxi);
         
         return taxi;
     }
 
+    /**
+     * <p>Persists all of the provided Taxi objects in the current transaction, and adds them to the seat index once it
+     * commits.</p>
+     *
+     * <p>Every {@link #BATCH_SIZE} taxis the persistence context is flushed, sending the inserts as one JDBC batch, and
+     * cleared. The new taxis are kept out of the second-level cache, which they would otherwise fill.</p>
+     *
+     * @param taxis The Taxi objects to be persisted
+     * @return The Taxi objects that have been persisted
+     * @throws ConstraintViolationException, ValidationException, Exception
+     */
+    List<Taxi> createAll(List<Taxi> taxis) throws ConstraintViolationException, ValidationException, Exception {
+        log.info("TaxiRepository.createAll() - Creating " + taxis.size() + " taxis");
+
+        em.unwrap(Session.class).setCacheMode(CacheMode.GET);
+        int count = 0;
+        for (Taxi taxi : taxis) {
+            em.persist(taxi);
+            seats.saved(taxi);
+            if (++count % BATCH_SIZE == 0) {
+                em.flush();
+                em.clear();
+            }
+        }
+        em.flush();
+        ChangeCounter.bump(em, Taxi.class);
+
+        return taxis;
+    }
+
     /**
      * <p>Updates an existing Taxi object in the application database with the provided Taxi object.</p>
      * 
@@ -138,15 +253,30 @@ public class TaxiRepository {
      * 
      * @param taxi The Taxi object to be merged with an existing Taxi
      * @return The Taxi that has been merged
+     * @throws EntityNotFoundException if there is no taxi with its id
+     * @throws OptimisticLockException if its @Version is missing or not the current one
      * @throws ConstraintViolationException, ValidationException, Exception
      */
     Taxi update(Taxi taxi) throws ConstraintViolationException, ValidationException, Exception {
         log.info("TaxiRepository.update() - Updating " + taxi.getReg());
         
-        // Either update the taxi or add it if it can't be found.
-        em.merge(taxi);
-        
-        return taxi;
+        // merge() would add a taxi that can't be found, rather than report it missing
+        Taxi existing = taxi.getId() == null ? null : em.find(Taxi.class, taxi.getId());
+        if (existing == null) {
+            throw new EntityNotFoundException("No taxi with id " + taxi.getId());
+        }
+        // Without a version there is nothing to check the taxi against, and Hibernate would treat it as new
+        if (taxi.getVersion() == null) {
+            throw new OptimisticLockException("No version given for taxi " + taxi.getId());
+        }
+
+        // A version other than the one just read fails the merge, and one changed since by another transaction fails
+        // the flush, either way with an OptimisticLockException. The merged copy carries the new version.
+        Taxi merged = em.merge(taxi);
+        em.flush();
+        ChangeCounter.bump(em, Taxi.class);
+        seats.saved(merged);
+        return merged;
     }
 
     /**
@@ -174,6 +304,8 @@ public class TaxiRepository {
              * Therefore we merge first and then we can remove it.
              */
             em.remove(em.merge(taxi));
+            ChangeCounter.bump(em, Taxi.class);
+            seats.removed(taxi);
             
         } else {
             log.info("TaxiRepository.delete() - No ID was found so can't Delete.");
@@ -0,0 +1,171 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.taxi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.persistence.EntityManager;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.jboss.quickstarts.wfk.util.AfterCommit;
+
+/**
+ * <p>An in-memory index of the taxis by number of seats, used to find the taxis with at least so many seats without
+ * going to the database.</p>
+ *
+ * <p>The index is built once from the Taxi table when the application starts and is then kept current by
+ * {@link TaxiRepository} on every create, update and delete, once the surrounding transaction has committed.</p>
+ *
+ * @see TaxiRepository
+ */
+/*
+ * Bean managed concurrency: reads go straight to the concurrent collections, and the few writes are synchronized so
+ * that a taxi is never in two seat counts at once.
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+public class TaxiSeatIndex {
+
+    /**
+     * <p>Decides whether a taxi found by {@link TaxiSeatIndex#findIds(int, int, Filter)} is wanted.</p>
+     */
+    public interface Filter {
+        boolean accept(long taxiId);
+    }
+
+    @Inject
+    private @Named("logger") Logger log;
+
+    @Inject
+    private EntityManager em;
+
+    @Resource
+    private TransactionSynchronizationRegistry txRegistry;
+
+    // number of seats -> ids of the taxis with that many seats, in id order
+    private final ConcurrentNavigableMap<Integer, NavigableSet<Long>> taxisBySeats =
+        new ConcurrentSkipListMap<Integer, NavigableSet<Long>>();
+
+    // taxi id -> number of seats, to find the taxi again when it changes
+    private final ConcurrentMap<Long, Integer> seatsById = new ConcurrentHashMap<Long, Integer>();
+
+    /**
+     * <p>Loads the id and number of seats of every persisted Taxi into the index, without creating Taxi entities.</p>
+     */
+    @PostConstruct
+    @TransactionAttribute(TransactionAttributeType.REQUIRED)
+    void load() {
+        List<Object[]> rows = em.createQuery("SELECT t.id, t.numSeats FROM Taxi t", Object[].class).getResultList();
+        for (Object[] row : rows) {
+            put((Long) row[0], (Integer) row[1]);
+        }
+        log.info("TaxiSeatIndex.load() - Indexed " + rows.size() + " taxis");
+    }
+
+    /**
+     * <p>Returns the ids of taxis with at least the given number of seats that the filter accepts. The taxis with the
+     * fewest seats come first, and those with as many seats as each other in id order.</p>
+     *
+     * @param minSeats The least number of seats
+     * @param limit The most ids to return
+     * @param filter Tells which of the taxis are wanted
+     * @return Up to limit taxi ids
+     */
+    public List<Long> findIds(int minSeats, int limit, Filter filter) {
+        List<Long> ids = new ArrayList<Long>(Math.min(limit, seatsById.size()));
+        for (NavigableSet<Long> taxis : taxisBySeats.tailMap(minSeats).values()) {
+            for (Long id : taxis) {
+                if (filter.accept(id)) {
+                    ids.add(id);
+                    if (ids.size() == limit) {
+                        return ids;
+                    }
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * <p>Adds the Taxi to the index, or moves it to its new number of seats, once the current transaction commits.</p>
+     *
+     * @param taxi The Taxi that has been persisted or updated
+     */
+    public void saved(Taxi taxi) {
+        final Long id = taxi.getId();
+        final Integer seats = taxi.getNumSeats();
+        AfterCommit.run(txRegistry, new Runnable() {
+            @Override
+            public void run() {
+                put(id, seats);
+            }
+        });
+    }
+
+    /**
+     * <p>Removes the Taxi from the index once the current transaction commits.</p>
+     *
+     * @param taxi The Taxi that has been deleted
+     */
+    public void removed(Taxi taxi) {
+        final Long id = taxi.getId();
+        AfterCommit.run(txRegistry, new Runnable() {
+            @Override
+            public void run() {
+                remove(id);
+            }
+        });
+    }
+
+    private synchronized void put(Long id, Integer seats) {
+        remove(id);
+        NavigableSet<Long> taxis = taxisBySeats.get(seats);
+        if (taxis == null) {
+            taxis = new ConcurrentSkipListSet<Long>();
+            taxisBySeats.put(seats, taxis);
+        }
+        taxis.add(id);
+        seatsById.put(id, seats);
+    }
+
+    private synchronized void remove(Long id) {
+        Integer seats = seatsById.remove(id);
+        if (seats != null) {
+            taxisBySeats.get(seats).remove(id);
+        }
+    }
+}
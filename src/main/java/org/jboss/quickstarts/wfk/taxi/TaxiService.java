@@ -24,6 +24,7 @@ import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
+import org.jboss.quickstarts.wfk.util.Pagination;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
@@ -77,6 +78,17 @@ public class TaxiService {
         return crud.findAllOrderedByReg();
     }
 
+    /**
+     * <p>Returns one page of persisted {@link Taxi} objects, continuing after the given reg and id.<p/>
+     * 
+     * @param after The reg and id of the last Taxi of the previous page; or null for the first page
+     * @param limit The page size
+     * @return Up to limit + 1 Taxi objects
+     */
+    List<Taxi> findPage(Pagination.Cursor after, int limit) {
+        return crud.findPage(after, limit);
+    }
+
     /**
      * <p>Returns a single Taxi object, specified by a Long id.<p/>
      * 
@@ -93,7 +105,7 @@ public class TaxiService {
      * <p>If there is more than one Taxi with the specified email, only the first encountered will be returned.<p/>
      * 
      * @param email The email field of the Taxi to be returned
-     * @return The first Taxi with the specified email
+     * @return The first Taxi with the specified email; or null if there is none
      */
     Taxi findByReg(String reg) {
         return crud.findByReg(reg);
@@ -115,7 +127,7 @@ public class TaxiService {
      * <p>If there is more then one, only the first will be returned.<p/>
      * 
      * @param lastName The lastName field of the Taxi to be returned
-     * @return The first Taxi with the specified lastName
+     * @return The first Taxi with the specified lastName; or null if there is none
      */
     Taxi findByNumSeats(Integer numSeats) {
         return crud.findByNumSeats(numSeats);
@@ -20,7 +20,6 @@ import java.util.HashSet;
 import java.util.Set;
 
 import javax.inject.Inject;
-import javax.persistence.NoResultException;
 import javax.validation.ConstraintViolation;
 import javax.validation.ConstraintViolationException;
 import javax.validation.ValidationException;
@@ -75,29 +74,15 @@ public class TaxiValidator {
      * <p>Since Update will being using a reg that is already in the database we need to make sure that it is the reg
      * from the record being updated.</p>
      * 
+     * <p>Only the id of the taxi holding the reg is selected, no Taxi is loaded.</p>
+     *
      * @param reg The reg to check is unique
      * @param id The user id to check the reg against if it was found
      * @return boolean which represents whether the reg was found, and if so if it belongs to the user with id
      */
     boolean regAlreadyExists(String reg, Long id) {
-        Taxi taxi = null;
-        Taxi taxiWithID = null;
-        try {
-            taxi = crud.findByReg(reg);
-        } catch (NoResultException e) {
-            // ignore
-        }
-
-        if (taxi != null && id != null) {
-            try {
-                taxiWithID = crud.findById(id);
-                if (taxiWithID != null && taxiWithID.getReg().equals(reg)) {
-                    taxi = null;
-                }
-            } catch (NoResultException e) {
-                // ignore
-            }
-        }
-        return taxi != null;
+        // A reg can only belong to one taxi, so it is taken unless that taxi is the one being checked
+        Long holderId = crud.findIdByReg(reg);
+        return holderId != null && !holderId.equals(id);
     }
 }
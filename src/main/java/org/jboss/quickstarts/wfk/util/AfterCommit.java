@@ -0,0 +1,81 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.util;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * <p>Defers a change to an in-memory index until the transaction that caused it has committed, so that the index never
+ * shows a row the database rolled back. Outside a transaction the change is made straight away.</p>
+ *
+ * @see org.jboss.quickstarts.wfk.booking.BookingAvailabilityIndex
+ * @see org.jboss.quickstarts.wfk.taxi.TaxiSeatIndex
+ */
+public final class AfterCommit {
+
+    private AfterCommit() {
+    }
+
+    /**
+     * @param txRegistry The registry of the current transaction
+     * @param change The change to make once the transaction has committed
+     */
+    public static void run(TransactionSynchronizationRegistry txRegistry, Runnable change) {
+        run(txRegistry, change, null);
+    }
+
+    /**
+     * <p>As {@link #run(TransactionSynchronizationRegistry, Runnable)}, then releases something that was only held
+     * while the transaction was open. The release is made however the transaction ends, and after the change if it
+     * committed.</p>
+     *
+     * @param txRegistry The registry of the current transaction
+     * @param change The change to make once the transaction has committed
+     * @param release What to do once the transaction has ended; or null
+     */
+    public static void run(TransactionSynchronizationRegistry txRegistry, final Runnable change,
+                           final Runnable release) {
+        if (txRegistry.getTransactionStatus() == Status.STATUS_NO_TRANSACTION) {
+            change.run();
+            if (release != null) {
+                release.run();
+            }
+            return;
+        }
+        txRegistry.registerInterposedSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+                // Nothing needed
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                try {
+                    if (status == Status.STATUS_COMMITTED) {
+                        change.run();
+                    }
+                } finally {
+                    if (release != null) {
+                        release.run();
+                    }
+                }
+            }
+        });
+    }
+}
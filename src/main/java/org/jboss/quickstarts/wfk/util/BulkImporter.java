@@ -0,0 +1,363 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.annotation.Resource;
+import javax.ejb.Stateless;
+import javax.ejb.TransactionManagement;
+import javax.ejb.TransactionManagementType;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.transaction.Status;
+import javax.transaction.UserTransaction;
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * <p>Imports a large upload of new entities, read one record at a time by an {@link ImportReader}, and writes a report
+ * of how it went as newline delimited JSON while it runs.</p>
+ *
+ * <p>Each record is checked with Bean Validation, and its unique key (a customer's email, a taxi's reg) against a set
+ * of the keys already taken. The set is read from the database once at the start and grows with each record accepted,
+ * so a key repeated within the upload is caught too, and no record costs a query of its own. The records that pass
+ * are inserted {@link #CHUNK_SIZE} at a time, each chunk in a transaction of its own, so an import of a few hundred
+ * thousand rows neither holds one huge transaction nor pays for one per row. Should a chunk fail anyway, because
+ * someone else took one of its keys since the set was read, it is rolled back and its records are inserted one by one
+ * so that only the culprit is turned away.</p>
+ *
+ * <p>The report has one line per record turned away, with the line of the upload it starts on, a status as the single
+ * create would have returned it (400 or 409) and the errors, for example
+ * <code>{"line":7,"status":409,"errors":{"email":"That email is already used, please use a unique email"}}</code>.
+ * After every chunk comes a progress line, <code>{"processed":1000,"created":996,"rejected":4}</code>, and the last
+ * line adds <code>"done":true</code>, or <code>"done":false</code> and an <code>"error"</code> if the import stopped
+ * early. The chunks committed before that stay committed.</p>
+ *
+ * <p>Like {@link JsonArrayStreamer} it is intended to be called from a JAX-RS {@link StreamingOutput}, after the
+ * resource method has returned, so that the report reaches the client while the upload is still being read. It
+ * manages its own transactions.</p>
+ *
+ * @see ImportReader
+ */
+@Stateless
+@TransactionManagement(TransactionManagementType.BEAN)
+public class BulkImporter {
+
+    /** The number of records inserted per transaction, a multiple of hibernate.jdbc.batch_size. */
+    static final int CHUNK_SIZE = 500;
+
+    // The SQLSTATE class of integrity constraint violations
+    private static final String INTEGRITY_VIOLATION = "23";
+
+    /**
+     * <p>What an import needs to know about the kind of entity it is creating.</p>
+     *
+     * @param <T> The type of entity imported
+     */
+    public interface Target<T> {
+
+        /**
+         * @return The type of entity imported
+         */
+        Class<T> getType();
+
+        /**
+         * @return The JSON properties every record has to have, the columns a CSV upload can not do without
+         */
+        Set<String> getRequiredProperties();
+
+        /**
+         * @return The unique keys of the entities already in the database
+         */
+        Set<String> findKeys();
+
+        /**
+         * @param entity An entity read from the upload
+         * @return Its unique key
+         */
+        String keyOf(T entity);
+
+        /**
+         * @param key A unique key
+         * @return Whether an entity in the database has that key
+         */
+        boolean isTaken(String key);
+
+        /**
+         * @return The errors reported for an entity whose unique key is already taken
+         */
+        Map<String, String> duplicateErrors();
+
+        /**
+         * <p>Clears the id and version of an entity read from the upload, so it is always inserted as a new one.</p>
+         *
+         * @param entity An entity read from the upload
+         */
+        void reset(T entity);
+
+        /**
+         * <p>Inserts the entities in the current transaction.</p>
+         *
+         * @param entities Valid entities with unique keys
+         * @throws Exception If the database turns one of them down
+         */
+        void createAll(List<T> entities) throws Exception;
+    }
+
+    @Inject
+    private @Named("logger") Logger log;
+
+    @Inject
+    private Validator validator;
+
+    @Inject
+    private JacksonConfig jacksonConfig;
+
+    @Resource
+    private UserTransaction transaction;
+
+    /**
+     * <p>Reads the upload to the end, creating an entity for every good record, and writes the report to the output
+     * stream as it goes.</p>
+     *
+     * @param target The kind of entity to create
+     * @param contentType The Content-Type of the upload, {@link ImportReader#CSV} or {@link ImportReader#NDJSON}
+     * @param input The upload
+     * @param output The stream the report is written to, it is flushed but not closed
+     * @throws IOException If the report can not be written, the import stops there
+     */
+    public <T> void importAll(Target<T> target, String contentType, InputStream input, OutputStream output)
+        throws IOException {
+        Report report = new Report(jacksonConfig.getContext(Object.class), output);
+        try {
+            ImportReader<T> reader = ImportReader.open(contentType, input, target.getType(),
+                jacksonConfig.getContext(target.getType()), target.getRequiredProperties());
+            Set<String> keys = findKeys(target);
+
+            List<T> chunk = new ArrayList<T>(CHUNK_SIZE);
+            List<Integer> lines = new ArrayList<Integer>(CHUNK_SIZE);
+            while (true) {
+                T entity;
+                try {
+                    entity = reader.next();
+                } catch (IllegalArgumentException e) {
+                    report.processed++;
+                    report.reject(reader.getLine(), 400, error(e.getMessage()));
+                    continue;
+                }
+                if (entity == null) {
+                    break;
+                }
+                report.processed++;
+                target.reset(entity);
+
+                Set<ConstraintViolation<T>> violations = validator.validate(entity);
+                if (!violations.isEmpty()) {
+                    report.reject(reader.getLine(), 400, errors(violations));
+                } else if (!keys.add(target.keyOf(entity))) {
+                    report.reject(reader.getLine(), 409, target.duplicateErrors());
+                } else {
+                    chunk.add(entity);
+                    lines.add(reader.getLine());
+                    if (chunk.size() == CHUNK_SIZE) {
+                        store(target, chunk, lines, report);
+                        report.progress();
+                    }
+                }
+            }
+            store(target, chunk, lines, report);
+            report.done(null);
+        } catch (IOException e) {
+            // The upload broke off, or the client went away
+            log.info("BulkImporter.importAll() - Stopped by " + e);
+            report.done(e.getMessage());
+            throw e;
+        } catch (Exception e) {
+            log.info("BulkImporter.importAll() - Stopped by " + e);
+            report.done(e.getMessage());
+        }
+    }
+
+    private <T> Set<String> findKeys(Target<T> target) throws Exception {
+        transaction.begin();
+        try {
+            Set<String> keys = target.findKeys();
+            transaction.commit();
+            return keys;
+        } catch (Exception e) {
+            transaction.rollback();
+            throw e;
+        }
+    }
+
+    private <T> boolean isTaken(Target<T> target, String key) throws Exception {
+        transaction.begin();
+        try {
+            boolean taken = target.isTaken(key);
+            transaction.commit();
+            return taken;
+        } catch (Exception e) {
+            transaction.rollback();
+            throw e;
+        }
+    }
+
+    // Inserts the chunk, the lists are emptied for the next one
+    private <T> void store(Target<T> target, List<T> chunk, List<Integer> lines, Report report) throws Exception {
+        if (chunk.isEmpty()) {
+            return;
+        }
+        try {
+            insert(target, chunk);
+            report.created += chunk.size();
+        } catch (Exception e) {
+            log.info("BulkImporter.store() - Retrying " + chunk.size() + " records one at a time after " + e);
+            for (int i = 0; i < chunk.size(); i++) {
+                T entity = chunk.get(i);
+                // The ids given out before the rollback are not in the database
+                target.reset(entity);
+                try {
+                    insert(target, Collections.singletonList(entity));
+                    report.created++;
+                } catch (Exception single) {
+                    // Any other constraint the database holds breaks with the same SQLSTATE class, so the record is
+                    // only turned away as a duplicate if its key really has been taken
+                    if (isIntegrityViolation(single) && isTaken(target, target.keyOf(entity))) {
+                        report.reject(lines.get(i), 409, target.duplicateErrors());
+                    } else {
+                        report.reject(lines.get(i), 400, error(single.getMessage()));
+                    }
+                }
+            }
+        }
+        chunk.clear();
+        lines.clear();
+    }
+
+    private <T> void insert(Target<T> target, List<T> entities) throws Exception {
+        transaction.begin();
+        try {
+            target.createAll(entities);
+            transaction.commit();
+        } catch (Exception e) {
+            // A failed commit has rolled back already
+            if (transaction.getStatus() != Status.STATUS_NO_TRANSACTION) {
+                transaction.rollback();
+            }
+            throw e;
+        }
+    }
+
+    private static boolean isIntegrityViolation(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException && ((SQLException) cause).getSQLState() != null
+                && ((SQLException) cause).getSQLState().startsWith(INTEGRITY_VIOLATION)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Map<String, String> error(String message) {
+        Map<String, String> responseObj = new HashMap<String, String>();
+        responseObj.put("error", message);
+        return responseObj;
+    }
+
+    // The same field to message map the REST services answer a single create with
+    private static <T> Map<String, String> errors(Set<ConstraintViolation<T>> violations) {
+        Map<String, String> responseObj = new HashMap<String, String>();
+        for (ConstraintViolation<T> violation : violations) {
+            responseObj.put(violation.getPropertyPath().toString(), violation.getMessage());
+        }
+        return responseObj;
+    }
+
+    /**
+     * <p>The counts so far, and the lines of the report.</p>
+     */
+    private static final class Report {
+
+        private final ObjectMapper mapper;
+
+        private final OutputStream output;
+
+        int processed;
+
+        int created;
+
+        int rejected;
+
+        Report(ObjectMapper mapper, OutputStream output) {
+            this.mapper = mapper;
+            this.output = output;
+        }
+
+        void reject(int line, int status, Map<String, String> errors) throws IOException {
+            rejected++;
+            Map<String, Object> entry = new LinkedHashMap<String, Object>();
+            entry.put("line", line);
+            entry.put("status", status);
+            entry.put("errors", errors);
+            write(entry);
+        }
+
+        void progress() throws IOException {
+            write(counts());
+            // Let the client see how far the import has got
+            output.flush();
+        }
+
+        void done(String error) throws IOException {
+            Map<String, Object> entry = counts();
+            entry.put("done", error == null);
+            if (error != null) {
+                entry.put("error", error);
+            }
+            write(entry);
+            output.flush();
+        }
+
+        private Map<String, Object> counts() {
+            Map<String, Object> entry = new LinkedHashMap<String, Object>();
+            entry.put("processed", processed);
+            entry.put("created", created);
+            entry.put("rejected", rejected);
+            return entry;
+        }
+
+        private void write(Map<String, Object> entry) throws IOException {
+            output.write(mapper.writeValueAsBytes(entry));
+            output.write('\n');
+        }
+    }
+}
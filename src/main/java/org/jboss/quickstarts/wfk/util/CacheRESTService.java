@@ -0,0 +1,82 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.ejb.Stateless;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.hibernate.Session;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.hibernate.stat.Statistics;
+
+/**
+ * <p>Exposes the hit and miss statistics of the Hibernate second-level and query caches over HTTP.</p>
+ *
+ * <p>Full path for accessing the statistics is rest/cache . The response holds one entry per cache region, plus one
+ * for the query cache, each with its hit, miss and put counts and the number of entries it currently holds.</p>
+ *
+ * @see org.hibernate.stat.Statistics
+ */
+@Path("/cache")
+@Produces(MediaType.APPLICATION_JSON)
+@Stateless
+public class CacheRESTService {
+
+    @Inject
+    private EntityManager em;
+
+    /**
+     * <p>Returns the current statistics of every second-level cache region and of the query cache.</p>
+     *
+     * @return A Response containing a map of region name to statistics
+     */
+    @GET
+    public Response retrieveCacheStatistics() {
+        Statistics statistics = em.unwrap(Session.class).getSessionFactory().getStatistics();
+
+        Map<String, Map<String, Long>> regions = new LinkedHashMap<String, Map<String, Long>>();
+        for (String regionName : statistics.getSecondLevelCacheRegionNames()) {
+            SecondLevelCacheStatistics region = statistics.getSecondLevelCacheStatistics(regionName);
+            regions.put(regionName, counts(region.getHitCount(), region.getMissCount(), region.getPutCount(),
+                region.getElementCountInMemory()));
+        }
+        regions.put("queries", counts(statistics.getQueryCacheHitCount(), statistics.getQueryCacheMissCount(),
+            statistics.getQueryCachePutCount(), -1));
+
+        return Response.ok(regions).build();
+    }
+
+    private Map<String, Long> counts(long hits, long misses, long puts, long size) {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        counts.put("hits", hits);
+        counts.put("misses", misses);
+        counts.put("puts", puts);
+        if (size >= 0) {
+            counts.put("size", size);
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.util;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EntityManager;
+import javax.persistence.Id;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+import javax.persistence.metamodel.EntityType;
+
+/**
+ * <p>The number of changes committed to one table, kept in a row of its own. It is what a collection read from the
+ * table is tagged with, see {@link ConditionalGet#forTables(EntityManager, Class...)}, so revalidating a list costs a
+ * lookup by primary key however long the list is.</p>
+ *
+ * <p>The repositories call {@link #bump(EntityManager, Class)} in the same transaction as every create, update and
+ * delete, once for a batch, so the count only moves when the changes are committed and never moves without them.</p>
+ *
+ * <p>The bump locks the row until the transaction ends, so the writes to one table commit one at a time. The
+ * repositories bump as the last step of each write, which keeps the row locked for little more than the commit.</p>
+ */
+@Entity
+@NamedQueries({
+    @NamedQuery(name = ChangeCounter.BUMP, query = "UPDATE ChangeCounter c SET c.changes = c.changes + 1 "
+        + "WHERE c.tableName = :tableName"),
+    @NamedQuery(name = ChangeCounter.FIND_BY_TABLES, query = "SELECT c.tableName, c.changes FROM ChangeCounter c "
+        + "WHERE c.tableName IN :tableNames")
+})
+@Table(name = "ChangeCounter")
+public class ChangeCounter implements Serializable {
+    /** Default value included to remove warning. Remove or modify at will. **/
+    private static final long serialVersionUID = 1L;
+
+    public static final String BUMP = "ChangeCounter.bump";
+    public static final String FIND_BY_TABLES = "ChangeCounter.findByTables";
+
+    // The entity name of the table counted, e.g. Booking
+    @Id
+    @Column(name = "table_name", length = 64)
+    private String tableName;
+
+    @Column(name = "changes", nullable = false)
+    private long changes;
+
+    public ChangeCounter() {
+    }
+
+    ChangeCounter(String tableName, long changes) {
+        this.tableName = tableName;
+        this.changes = changes;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public long getChanges() {
+        return changes;
+    }
+
+    /**
+     * <p>Counts a change to the table of the given entity, as part of the current transaction.</p>
+     *
+     * @param em The EntityManager of the transaction making the change
+     * @param entityClass The entity whose table has been written to
+     */
+    public static void bump(EntityManager em, Class<?> entityClass) {
+        String tableName = nameOf(em, entityClass);
+        int updated = em.createNamedQuery(BUMP).setParameter("tableName", tableName).executeUpdate();
+        if (updated == 0) {
+            // Only for a table added since createMissing() ran
+            em.persist(new ChangeCounter(tableName, 1));
+            em.flush();
+        }
+    }
+
+    /**
+     * <p>Reads the counts of the tables of the given entities, in one query.</p>
+     *
+     * @param em The EntityManager to read with
+     * @param entityClasses The entities whose tables are wanted
+     * @return The count of each table, in the order of the entities; 0 for a table that has no row yet
+     */
+    public static long[] read(EntityManager em, Class<?>... entityClasses) {
+        String[] tableNames = new String[entityClasses.length];
+        for (int i = 0; i < entityClasses.length; i++) {
+            tableNames[i] = nameOf(em, entityClasses[i]);
+        }
+        List<Object[]> rows = em.createNamedQuery(FIND_BY_TABLES, Object[].class)
+            .setParameter("tableNames", Arrays.asList(tableNames)).getResultList();
+        Map<String, Long> counts = new HashMap<String, Long>();
+        for (Object[] row : rows) {
+            counts.put((String) row[0], (Long) row[1]);
+        }
+
+        long[] changes = new long[tableNames.length];
+        for (int i = 0; i < tableNames.length; i++) {
+            Long count = counts.get(tableNames[i]);
+            changes[i] = count == null ? 0 : count;
+        }
+        return changes;
+    }
+
+    /**
+     * <p>Creates a row, at 0, for every entity of the persistence unit that does not have one yet. Run once at start up,
+     * so the first writes to a table do not race each other to insert its row.</p>
+     *
+     * @param em The EntityManager to write with, in a transaction
+     */
+    public static void createMissing(EntityManager em) {
+        for (EntityType<?> entity : em.getMetamodel().getEntities()) {
+            if (entity.getJavaType() != ChangeCounter.class && em.find(ChangeCounter.class, entity.getName()) == null) {
+                em.persist(new ChangeCounter(entity.getName(), 0));
+            }
+        }
+        em.flush();
+    }
+
+    private static String nameOf(EntityManager em, Class<?> entityClass) {
+        return em.getMetamodel().entity(entityClass).getName();
+    }
+}
@@ -0,0 +1,598 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * <p>Compresses REST responses and the wro4j bundles with gzip, or deflate, when the client accepts it.</p>
+ *
+ * <p>The first {@link #MIN_SIZE} bytes of a response are held back. A response that ends before then is sent as it
+ * is, as compressing it would save little and could even make it larger. So is one that is flushed before then, such
+ * as the progress report of an import, whose lines have to reach the client as they are written. Only text, JSON, JavaScript and XML are
+ * compressed, and only for 2xx responses other than 206. The Deflaters are pooled, as setting up zlib's buffers for
+ * every response costs more than compressing a small one.</p>
+ *
+ * <p>The ETag of a compressed response gets a suffix naming the encoding, as the bytes differ from the plain response,
+ * and the suffix is taken off again when the client sends the tag back in If-None-Match or If-Match. The JAX-RS
+ * resources never see it.</p>
+ *
+ * <p>This filter has to run before {@link JSONPRequestFilter}, so that the JSONP padding is compressed with the rest of
+ * the response. Filters declared with annotations run in no particular order, so the order is set in web.xml.</p>
+ */
+@WebFilter({"/rest/*", "/js/*", "/css/*"})
+public class CompressionFilter implements Filter {
+
+    /** Responses smaller than this are not compressed. */
+    static final int MIN_SIZE = 1024;
+
+    // Deflaters kept for reuse, per encoding; more than this many at once are created and thrown away as needed
+    private static final int POOL_SIZE = 32;
+
+    // On the booking list level 1 takes about a quarter of the time of the default level 6, for output 9% larger
+    private static final int LEVEL = Deflater.BEST_SPEED;
+
+    private final BlockingQueue<Compressor> gzipPool = new ArrayBlockingQueue<Compressor>(POOL_SIZE);
+
+    private final BlockingQueue<Compressor> deflatePool = new ArrayBlockingQueue<Compressor>(POOL_SIZE);
+
+    @Override
+    public void init(FilterConfig config) throws ServletException {
+        // Nothing needed
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException,
+        ServletException {
+        if (!(request instanceof HttpServletRequest)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        HttpServletResponse httpResponse = (HttpServletResponse) response;
+        // Caches must keep the compressed and plain responses apart
+        httpResponse.addHeader("Vary", "Accept-Encoding");
+
+        String encoding = negotiate(httpRequest.getHeaders("Accept-Encoding"));
+        HttpServletRequest taggedRequest = new UntaggedRequest(httpRequest);
+        if (encoding == null) {
+            chain.doFilter(taggedRequest, response);
+            return;
+        }
+
+        EncodedResponse encodedResponse = new EncodedResponse(httpResponse, encoding);
+        boolean finished = false;
+        try {
+            chain.doFilter(taggedRequest, encodedResponse);
+            encodedResponse.finish();
+            finished = true;
+        } finally {
+            if (!finished) {
+                encodedResponse.abandon();
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        // Deflaters hold native memory until they are ended
+        end(gzipPool);
+        end(deflatePool);
+    }
+
+    private static void end(BlockingQueue<Compressor> pool) {
+        Compressor compressor;
+        while ((compressor = pool.poll()) != null) {
+            compressor.deflater.end();
+        }
+    }
+
+    /**
+     * <p>Picks the encoding to use from the Accept-Encoding headers: gzip if it is accepted, else deflate, else null.
+     * </p>
+     */
+    static String negotiate(Enumeration<String> acceptEncodings) {
+        if (acceptEncodings == null) {
+            return null;
+        }
+        boolean deflate = false;
+        while (acceptEncodings.hasMoreElements()) {
+            for (String coding : acceptEncodings.nextElement().split(",")) {
+                String[] parts = coding.split(";");
+                String name = parts[0].trim().toLowerCase(Locale.ENGLISH);
+                if (isRefused(parts)) {
+                    continue;
+                }
+                if ("gzip".equals(name) || "x-gzip".equals(name) || "*".equals(name)) {
+                    return "gzip";
+                }
+                if ("deflate".equals(name)) {
+                    deflate = true;
+                }
+            }
+        }
+        return deflate ? "deflate" : null;
+    }
+
+    // True if the coding has q=0
+    private static boolean isRefused(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            String parameter = parts[i].trim();
+            if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2).trim()) <= 0;
+                } catch (NumberFormatException e) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase(Locale.ENGLISH);
+        return type.startsWith("text/") || type.startsWith("application/json")
+            || type.startsWith("application/javascript") || type.startsWith("application/xml")
+            || type.contains("+json") || type.contains("+xml");
+    }
+
+    private Compressor borrow(String encoding) {
+        boolean gzip = "gzip".equals(encoding);
+        Compressor compressor = (gzip ? gzipPool : deflatePool).poll();
+        return compressor != null ? compressor : new Compressor(gzip);
+    }
+
+    private void release(Compressor compressor) {
+        compressor.reset();
+        if (!(compressor.gzip ? gzipPool : deflatePool).offer(compressor)) {
+            compressor.deflater.end();
+        }
+    }
+
+    /**
+     * <p>A Deflater with the buffer and checksum that go with it. gzip is raw deflate data between a header and a
+     * trailer holding the CRC-32 and length; HTTP's deflate is the zlib format, which Deflater writes itself.</p>
+     */
+    static final class Compressor {
+
+        private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+        final boolean gzip;
+
+        final Deflater deflater;
+
+        private final CRC32 crc = new CRC32();
+
+        private final byte[] buffer = new byte[8192];
+
+        Compressor(boolean gzip) {
+            this.gzip = gzip;
+            this.deflater = new Deflater(LEVEL, gzip);
+        }
+
+        void start(OutputStream out) throws IOException {
+            if (gzip) {
+                out.write(GZIP_HEADER);
+            }
+        }
+
+        void write(byte[] b, int off, int len, OutputStream out) throws IOException {
+            if (gzip) {
+                crc.update(b, off, len);
+            }
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                drain(out);
+            }
+        }
+
+        void finish(OutputStream out) throws IOException {
+            deflater.finish();
+            while (!deflater.finished()) {
+                drain(out);
+            }
+            if (gzip) {
+                writeIntLE(out, crc.getValue());
+                writeIntLE(out, deflater.getBytesRead());
+            }
+        }
+
+        void reset() {
+            deflater.reset();
+            crc.reset();
+        }
+
+        private void drain(OutputStream out) throws IOException {
+            int length = deflater.deflate(buffer, 0, buffer.length);
+            if (length > 0) {
+                out.write(buffer, 0, length);
+            }
+        }
+
+        private static void writeIntLE(OutputStream out, long value) throws IOException {
+            out.write((int) value & 0xff);
+            out.write((int) (value >> 8) & 0xff);
+            out.write((int) (value >> 16) & 0xff);
+            out.write((int) (value >> 24) & 0xff);
+        }
+    }
+
+    /**
+     * <p>Takes the encoding suffix off the entity tags the client sends back, so they match the tags of the
+     * resource.</p>
+     */
+    private static class UntaggedRequest extends HttpServletRequestWrapper {
+
+        UntaggedRequest(HttpServletRequest request) {
+            super(request);
+        }
+
+        @Override
+        public String getHeader(String name) {
+            String value = super.getHeader(name);
+            return isTagHeader(name) ? untag(value) : value;
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            Enumeration<String> values = super.getHeaders(name);
+            if (!isTagHeader(name) || values == null) {
+                return values;
+            }
+            List<String> untagged = new ArrayList<String>();
+            while (values.hasMoreElements()) {
+                untagged.add(untag(values.nextElement()));
+            }
+            return Collections.enumeration(untagged);
+        }
+
+        private static boolean isTagHeader(String name) {
+            return "If-None-Match".equalsIgnoreCase(name) || "If-Match".equalsIgnoreCase(name);
+        }
+
+        private static String untag(String value) {
+            return value == null ? null : value.replace("--gzip\"", "\"").replace("--deflate\"", "\"");
+        }
+    }
+
+    /**
+     * <p>Holds back the start of the response until it is clear whether it is worth compressing, then either
+     * compresses everything written to it or passes it straight through.</p>
+     */
+    private class EncodedResponse extends HttpServletResponseWrapper {
+
+        private final String encoding;
+
+        private final byte[] held = new byte[MIN_SIZE];
+
+        private int heldLength;
+
+        // Set once the response is being compressed
+        private Compressor compressor;
+
+        // Set once the response is known not to be compressed
+        private boolean passThrough;
+
+        private int contentLength = -1;
+
+        private ServletOutputStream target;
+
+        private ServletOutputStream output;
+
+        private PrintWriter writer;
+
+        EncodedResponse(HttpServletResponse response, String encoding) {
+            super(response);
+            this.encoding = encoding;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            if (output == null) {
+                output = new ServletOutputStream() {
+                    private final byte[] single = new byte[1];
+
+                    @Override
+                    public void write(int b) throws IOException {
+                        single[0] = (byte) b;
+                        write(single, 0, 1);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        EncodedResponse.this.write(b, off, len);
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        EncodedResponse.this.flush();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        // finish() completes the response
+                        flush();
+                    }
+                };
+            }
+            return output;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        @Override
+        public void setContentLength(int len) {
+            contentLength = len;
+            if (passThrough) {
+                super.setContentLength(len);
+            }
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                setContentLength(Integer.parseInt(value));
+            } else {
+                super.setHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                setContentLength(Integer.parseInt(value));
+            } else {
+                super.addHeader(name, value);
+            }
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                setContentLength(value);
+            } else {
+                super.setIntHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addIntHeader(String name, int value) {
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                setContentLength(value);
+            } else {
+                super.addIntHeader(name, value);
+            }
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            flush();
+            if (passThrough || compressor != null) {
+                super.flushBuffer();
+            }
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            restart();
+        }
+
+        @Override
+        public void resetBuffer() {
+            super.resetBuffer();
+            restart();
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            discard();
+            super.sendError(sc);
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            discard();
+            super.sendError(sc, msg);
+        }
+
+        @Override
+        public void sendRedirect(String location) throws IOException {
+            discard();
+            super.sendRedirect(location);
+        }
+
+        void write(byte[] b, int off, int len) throws IOException {
+            if (compressor != null) {
+                compressor.write(b, off, len, target());
+                return;
+            }
+            if (passThrough) {
+                target().write(b, off, len);
+                return;
+            }
+            if (heldLength + len < MIN_SIZE && contentLength < 0) {
+                System.arraycopy(b, off, held, heldLength, len);
+                heldLength += len;
+                return;
+            }
+
+            // Big enough to decide
+            if (shouldCompress(heldLength + len)) {
+                startCompressing();
+                compressor.write(held, 0, heldLength, target());
+                compressor.write(b, off, len, target());
+            } else {
+                startPassThrough();
+                target().write(held, 0, heldLength);
+                target().write(b, off, len);
+            }
+            heldLength = 0;
+        }
+
+        /**
+         * <p>Sends what has been written so far. Anything still held back is too small to compress, so it is passed
+         * through, and so is the rest of the response. Until something has been written a flush does nothing, so that
+         * a response without a body can still have its headers changed by {@link #finish()}.</p>
+         */
+        void flush() throws IOException {
+            if (compressor == null && !passThrough && heldLength > 0) {
+                startPassThrough();
+                target().write(held, 0, heldLength);
+                heldLength = 0;
+            }
+            if (passThrough || compressor != null) {
+                target().flush();
+            }
+        }
+
+        /**
+         * <p>Writes out whatever is still held back and completes the compressed data.</p>
+         */
+        void finish() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            if (compressor != null) {
+                try {
+                    compressor.finish(target());
+                } finally {
+                    release(compressor);
+                    compressor = null;
+                }
+            } else if (!passThrough) {
+                if (heldLength > 0 && shouldCompress(heldLength)) {
+                    startCompressing();
+                    compressor.write(held, 0, heldLength, target());
+                    finish();
+                    return;
+                }
+                if (getStatus() == HttpServletResponse.SC_NOT_MODIFIED) {
+                    // The client holds the compressed response, so the tag has to match the one it was sent
+                    tagEncoding();
+                }
+                if (heldLength > 0) {
+                    startPassThrough();
+                    if (!isCommitted()) {
+                        super.setContentLength(heldLength);
+                    }
+                    target().write(held, 0, heldLength);
+                    heldLength = 0;
+                }
+            }
+        }
+
+        /**
+         * <p>Gives back the Deflater of a response that failed part way through.</p>
+         */
+        void abandon() {
+            if (compressor != null) {
+                release(compressor);
+                compressor = null;
+            }
+        }
+
+        private boolean shouldCompress(int length) {
+            int status = getStatus();
+            return (contentLength < 0 ? length : contentLength) >= MIN_SIZE
+                && status >= 200 && status < 300 && status != HttpServletResponse.SC_PARTIAL_CONTENT
+                && status != HttpServletResponse.SC_NO_CONTENT && !containsHeader("Content-Encoding")
+                && isCompressible(getContentType());
+        }
+
+        private void startCompressing() throws IOException {
+            super.setHeader("Content-Encoding", encoding);
+            tagEncoding();
+            compressor = borrow(encoding);
+            compressor.start(target());
+        }
+
+        private void startPassThrough() {
+            passThrough = true;
+            if (contentLength >= 0) {
+                super.setContentLength(contentLength);
+            }
+        }
+
+        private void tagEncoding() {
+            String tag = getHeader("ETag");
+            if (tag != null && tag.endsWith("\"")) {
+                super.setHeader("ETag", tag.substring(0, tag.length() - 1) + "--" + encoding + "\"");
+            }
+        }
+
+        private void restart() {
+            if (compressor != null) {
+                release(compressor);
+                compressor = null;
+            }
+            passThrough = false;
+            heldLength = 0;
+            contentLength = -1;
+        }
+
+        private void discard() {
+            restart();
+            passThrough = true;
+        }
+
+        private ServletOutputStream target() throws IOException {
+            if (target == null) {
+                target = super.getOutputStream();
+            }
+            return target;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.util;
+
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+
+/**
+ * <p>The validators of a GET response, a strong ETag and a Last-Modified time, and the conditional request handling
+ * that goes with them.</p>
+ *
+ * <p>A single entity is tagged with its id and @Version, see {@link #forEntity(Date, Object...)}. A collection is
+ * tagged with the {@link ChangeCounter} of each table it is read from, see {@link #forTables(EntityManager, Class...)},
+ * so a list can be revalidated with one lookup by primary key rather than by reading it. The counters are kept in the
+ * database, so every server of a cluster hands out the same tag for the same rows. Every response is sent with "Cache-Control: no-cache",
+ * which lets the browser keep it but makes it ask the server before using it again.</p>
+ *
+ * <p>Updates are made conditional on the ETag with If-Match, or on the version in their body, see
+ * {@link #expectedVersion(HttpHeaders, Object, Long)}.</p>
+ *
+ * <p>Used by a REST service method as follows:</p>
+ * <pre>
+ * ConditionalGet validators = ConditionalGet.forTables(em, Customer.class);
+ * Response.ResponseBuilder notModified = validators.evaluate(request, headers);
+ * if (notModified != null) {
+ *     return notModified.build();
+ * }
+ * ...
+ * return validators.tag(Response.ok(customers)).build();
+ * </pre>
+ */
+public final class ConditionalGet {
+
+    /** 428 Precondition Required, from RFC 6585, which JAX-RS 1.1 has no constant for. */
+    public static final int PRECONDITION_REQUIRED = 428;
+
+    private static final CacheControl REVALIDATE = new CacheControl();
+
+    static {
+        REVALIDATE.setNoCache(true);
+        REVALIDATE.setNoTransform(false);
+    }
+
+    private final EntityTag tag;
+
+    private final Date lastModified;
+
+    private ConditionalGet(EntityTag tag, Date lastModified) {
+        this.tag = tag;
+        // HTTP dates are whole seconds, anything finer would never match If-Modified-Since
+        this.lastModified = lastModified == null ? null : new Date(lastModified.getTime() / 1000 * 1000);
+    }
+
+    /**
+     * <p>Creates the validators of a single entity, or of anything else whose representation is fixed by a few values.
+     * </p>
+     *
+     * @param lastModified When the entity was last changed, or null if that is not known
+     * @param versions The values that change whenever the representation does, normally the id and @Version of the
+     * entity and of any other entities included in it
+     * @return The validators
+     */
+    public static ConditionalGet forEntity(Date lastModified, Object... versions) {
+        StringBuilder value = new StringBuilder();
+        for (Object version : versions) {
+            if (value.length() > 0) {
+                value.append('.');
+            }
+            value.append(version);
+        }
+        return new ConditionalGet(new EntityTag(value.toString()), lastModified);
+    }
+
+    /**
+     * <p>Creates the validators of a response read from the tables of the given entities.</p>
+     *
+     * <p>Each table contributes its {@link ChangeCounter} to the tag, which every committed create, update and delete
+     * moves on, so any change gives a new tag. The counters are read in one query by primary key, so the cost does not
+     * grow with the tables, nor with how far into a list a page is. A delete leaves no trace in the rows that are left,
+     * so there is no Last-Modified; a client revalidates a collection by its ETag alone.</p>
+     *
+     * @param em The EntityManager to read the counters with
+     * @param entityClasses The entities whose tables the response is read from
+     * @return The validators
+     */
+    public static ConditionalGet forTables(EntityManager em, Class<?>... entityClasses) {
+        long[] changes = ChangeCounter.read(em, entityClasses);
+        Object[] parts = new Object[changes.length];
+        for (int i = 0; i < changes.length; i++) {
+            parts[i] = changes[i];
+        }
+        return forEntity(null, parts);
+    }
+
+    /**
+     * <p>Returns the latest of the given times, ignoring nulls, or null if they are all null.</p>
+     */
+    public static Date latest(Date... times) {
+        Date latest = null;
+        for (Date time : times) {
+            if (time != null && (latest == null || time.after(latest))) {
+                latest = time;
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * <p>Reads the version an update expects the entity to be at from its If-Match header. The header has to hold a
+     * tag given out by {@link #forEntity(Date, Object...)} for the same entity, whose first two parts are its id and
+     * version. Any further parts, such as the versions of a booking's customer and taxi, play no part in the update.</p>
+     *
+     * @param headers The request headers, may be null when the method is called directly rather than over HTTP
+     * @param id The id of the entity being updated
+     * @return The expected version; or null if there is no If-Match header or it is "*"
+     * @throws WebApplicationException 412 Precondition Failed if the header holds anything else, as it can not match
+     */
+    public static Long ifMatchVersion(HttpHeaders headers, Object id) {
+        List<String> values = headers == null ? null : headers.getRequestHeader(HttpHeaders.IF_MATCH);
+        if (values == null || values.isEmpty() || "*".equals(values.get(0).trim())) {
+            return null;
+        }
+        String value = values.get(0).trim();
+        // A weak tag never matches for If-Match, and a list of tags can not name a single version
+        if (values.size() == 1 && value.length() > 2 && value.startsWith("\"") && value.endsWith("\"")
+            && value.indexOf(',') < 0) {
+            String[] parts = value.substring(1, value.length() - 1).split("\\.");
+            if (parts.length >= 2 && parts[0].equals(String.valueOf(id))) {
+                try {
+                    return Long.valueOf(parts[1]);
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        throw new WebApplicationException(Response.status(Response.Status.PRECONDITION_FAILED)
+            .entity("If-Match must hold the current ETag of the entity, not " + value).build());
+    }
+
+    /**
+     * <p>Works out the version an update has to find the entity at: the one named by its If-Match header, see
+     * {@link #ifMatchVersion(HttpHeaders, Object)}, or else the version in its body. An update that names neither
+     * would overwrite whatever is there, changes made by others since the client read the entity included, so it is
+     * refused.</p>
+     *
+     * @param headers The request headers, may be null when the method is called directly rather than over HTTP
+     * @param id The id of the entity being updated
+     * @param bodyVersion The version in the body of the update; or null if it has none
+     * @return The expected version
+     * @throws WebApplicationException 412 Precondition Failed if If-Match can not match, and 428 Precondition Required
+     *         if there is neither an If-Match tag nor a version in the body
+     */
+    public static Long expectedVersion(HttpHeaders headers, Object id, Long bodyVersion) {
+        Long expected = ifMatchVersion(headers, id);
+        if (expected != null) {
+            return expected;
+        }
+        if (bodyVersion != null) {
+            return bodyVersion;
+        }
+        throw new WebApplicationException(Response.status(PRECONDITION_REQUIRED)
+            .entity("An update must send the ETag it read in If-Match, or the version it read in its body").build());
+    }
+
+    /**
+     * <p>Checks the conditional headers of a GET request against these validators.</p>
+     *
+     * <p>If-None-Match is checked in preference to If-Modified-Since, as the ETag can tell apart changes made within
+     * the same second.</p>
+     *
+     * @param request The request, may be null when the method is called directly rather than over HTTP
+     * @param headers The request headers, may be null likewise
+     * @return A builder for the 304 (or 412) response to send instead, or null if the full response should be sent
+     */
+    public Response.ResponseBuilder evaluate(Request request, HttpHeaders headers) {
+        if (request == null) {
+            return null;
+        }
+        List<String> ifNoneMatch = headers == null ? null : headers.getRequestHeader(HttpHeaders.IF_NONE_MATCH);
+        Response.ResponseBuilder builder;
+        if (lastModified == null || (ifNoneMatch != null && !ifNoneMatch.isEmpty())) {
+            builder = request.evaluatePreconditions(tag);
+        } else {
+            builder = request.evaluatePreconditions(lastModified, tag);
+        }
+        return builder == null ? null : tag(builder);
+    }
+
+    /**
+     * <p>Adds the ETag, Last-Modified and Cache-Control headers to a response.</p>
+     *
+     * @param builder The response
+     * @return The same builder
+     */
+    public Response.ResponseBuilder tag(Response.ResponseBuilder builder) {
+        builder.tag(tag).cacheControl(REVALIDATE);
+        if (lastModified != null) {
+            builder.lastModified(lastModified);
+        }
+        return builder;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.util;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+
+/**
+ * <p>A day given as a query parameter, such as <code>?from=2016-02-02</code>. It uses the same yyyy-MM-dd format as the
+ * dates in the JSON (see {@link JacksonConfig}).</p>
+ *
+ * <p>JAX-RS builds it from the parameter's value. A value that is not a valid date is answered with 400 Bad Request;
+ * left to JAX-RS the failure would be reported as 404 Not Found.</p>
+ */
+public class DateParam {
+
+    private static final String FORMAT = "yyyy-MM-dd";
+
+    private final Date date;
+
+    public DateParam(String value) {
+        SimpleDateFormat format = new SimpleDateFormat(FORMAT);
+        format.setLenient(false);
+        ParsePosition position = new ParsePosition(0);
+        Date parsed = format.parse(value, position);
+        if (parsed == null || position.getIndex() != value.length()) {
+            throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST)
+                .entity("Dates must be given as " + FORMAT + ", not " + value).build());
+        }
+        date = parsed;
+    }
+
+    /**
+     * @param param A parameter, or null if it was not given
+     * @return The day at midnight in the server's time zone; or null
+     */
+    public static Date toDate(DateParam param) {
+        return param == null ? null : param.date;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.util;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
+import javax.transaction.TransactionSynchronizationRegistry;
+import javax.ws.rs.core.Response;
+
+/**
+ * <p>Remembers the response to each POST sent with an <code>Idempotency-Key</code> header, so that a client that sends
+ * the same request again, because it never saw the answer, gets the first answer back instead of a second customer,
+ * taxi or booking.</p>
+ *
+ * <p>A resource method calls {@link #begin(String, String, Object)} before doing anything and returns what it gets
+ * back, if anything; otherwise it handles the request and passes its response to
+ * {@link #finish(String, String, Response)}. While one request with a key is being handled, others with the same key
+ * wait for it and are then given its response, so duplicates sent at the same time are only handled once.</p>
+ *
+ * <p>A hash of the request body is kept with the key. A request that reuses a key with a different body is a client
+ * bug rather than a retry, and is turned away with 422 instead of being given the response to the other body.</p>
+ *
+ * <p>A response is only kept once its transaction has committed, and only if it is not a server error: a request that
+ * failed with a 5xx, or whose transaction rolled back, may be sent again with the same key and is handled afresh.
+ * Responses are kept for {@link #TTL_MILLIS}, and the oldest are dropped once there are more than
+ * {@link #MAX_ENTRIES}. They are kept per server; a cluster would need a shared store.</p>
+ */
+/*
+ * Bean managed concurrency: the map is guarded by its own lock, which is never held while a request waits.
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+public class IdempotencyStore {
+
+    /** The request header that carries the key. */
+    public static final String HEADER = "Idempotency-Key";
+
+    /** Added to a response that is a replay of an earlier one. */
+    public static final String REPLAYED_HEADER = "Idempotent-Replayed";
+
+    /** How long a response is kept for. */
+    static final long TTL_MILLIS = 24L * 60 * 60 * 1000;
+
+    /** The most responses kept at once. */
+    static final int MAX_ENTRIES = 10000;
+
+    /** How long a duplicate waits for the request handling the same key. */
+    static final int WAIT_SECONDS = 30;
+
+    /** The longest key accepted. */
+    static final int MAX_KEY_LENGTH = 255;
+
+    // Not in Response.Status in JAX-RS 1.1
+    private static final int UNPROCESSABLE_ENTITY = 422;
+
+    @Resource
+    private TransactionSynchronizationRegistry txRegistry;
+
+    @Inject
+    private JacksonConfig jacksonConfig;
+
+    // scope:key -> the request with that key, in the order they arrived
+    private final Map<String, Attempt> entries = new LinkedHashMap<String, Attempt>(16, 0.75f, false) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Attempt> eldest) {
+            // Only ever drops the one eldest entry, and not while it is still being handled, so the map can stay above
+            // MAX_ENTRIES for a while; begin() trims it from the head as well
+            return size() > MAX_ENTRIES && eldest.getValue().isDone();
+        }
+    };
+
+    /**
+     * <p>Starts a request with the given key. If there was a response to the same key already, or another request
+     * with it is being handled, that response is returned and the caller should return it in place of handling the
+     * request. Otherwise the caller now holds the key and must call {@link #finish(String, String, Response)}.</p>
+     *
+     * @param scope The kind of request, so that the same key can be used on different resources
+     * @param key The value of the Idempotency-Key header; or null if there was none
+     * @param request The body of the request, before it has been handled
+     * @return The response to return instead of handling the request; or null to handle it
+     */
+    public Response begin(String scope, String key, Object request) {
+        if (key == null) {
+            return null;
+        }
+        if (key.isEmpty() || key.length() > MAX_KEY_LENGTH) {
+            return error(Response.Status.BAD_REQUEST.getStatusCode(),
+                HEADER + " must be between 1 and " + MAX_KEY_LENGTH + " characters long");
+        }
+        String id = scope + ":" + key;
+        byte[] hash = hash(request);
+        while (true) {
+            Attempt attempt;
+            synchronized (entries) {
+                long now = System.currentTimeMillis();
+                evictExpired(now);
+                attempt = entries.get(id);
+                if (attempt == null || attempt.isExpired(now)) {
+                    entries.put(id, new Attempt(hash));
+                    return null;
+                }
+            }
+            if (!MessageDigest.isEqual(hash, attempt.hash)) {
+                return error(UNPROCESSABLE_ENTITY, "This " + HEADER + " was used before with a different request");
+            }
+            try {
+                if (!attempt.done.await(WAIT_SECONDS, TimeUnit.SECONDS)) {
+                    return error(Response.Status.CONFLICT.getStatusCode(),
+                        "A request with the same " + HEADER + " is still being handled, please try again");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return error(Response.Status.SERVICE_UNAVAILABLE.getStatusCode(), "Interrupted while waiting for the first request");
+            }
+            if (attempt.response != null) {
+                return Response.fromResponse(attempt.response).header(REPLAYED_HEADER, "true").build();
+            }
+            // The first request kept no response, so try to take the key over
+        }
+    }
+
+    /**
+     * <p>Records the response to a request started with {@link #begin(String, String, Object)}, once the current transaction
+     * has ended, and lets any duplicates waiting for it go.</p>
+     *
+     * @param scope The kind of request, as given to begin
+     * @param key The value of the Idempotency-Key header; or null if there was none
+     * @param response The response being returned to the client
+     */
+    public void finish(String scope, String key, final Response response) {
+        if (key == null) {
+            return;
+        }
+        final String id = scope + ":" + key;
+        final Attempt attempt;
+        synchronized (entries) {
+            attempt = entries.get(id);
+        }
+        if (attempt == null || attempt.isDone()) {
+            // Not started by begin(), which turned the request away
+            return;
+        }
+        AfterCommit.run(txRegistry, new Runnable() {
+            @Override
+            public void run() {
+                if (response.getStatus() < 500) {
+                    attempt.expires = System.currentTimeMillis() + TTL_MILLIS;
+                    attempt.response = response;
+                }
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                if (attempt.response == null) {
+                    synchronized (entries) {
+                        if (entries.get(id) == attempt) {
+                            entries.remove(id);
+                        }
+                    }
+                }
+                attempt.done.countDown();
+            }
+        });
+    }
+
+    /*
+     * The entries are in the order their requests arrived, so the expired ones are mostly at the head. Dropping them
+     * there on each begin() keeps the map to a day's keys without scanning all of it; it stops at the first entry that
+     * has not expired, which may leave a few expired ones behind it until their turn comes.
+     */
+    private void evictExpired(long now) {
+        Iterator<Attempt> head = entries.values().iterator();
+        while (head.hasNext() && head.next().isExpired(now)) {
+            head.remove();
+        }
+    }
+
+    /*
+     * The SHA-256 of the request as the application's ObjectMapper writes it. A body too incomplete to be written, a
+     * booking without a customer say, is hashed by the reason it could not be; it will only get a 400 either way.
+     */
+    private byte[] hash(Object request) {
+        byte[] bytes;
+        try {
+            bytes = jacksonConfig.getContext(Object.class).writeValueAsBytes(request);
+        } catch (IOException e) {
+            bytes = String.valueOf(e.getMessage()).getBytes();
+        }
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Response error(int status, String message) {
+        Map<String, String> responseObj = new HashMap<String, String>();
+        responseObj.put("error", message);
+        return Response.status(status).entity(responseObj).build();
+    }
+
+    private static final class Attempt {
+
+        final CountDownLatch done = new CountDownLatch(1);
+
+        final byte[] hash;
+
+        volatile Response response;
+
+        volatile long expires;
+
+        Attempt(byte[] hash) {
+            this.hash = hash;
+        }
+
+        boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        boolean isExpired(long now) {
+            return isDone() && now > expires;
+        }
+    }
+}
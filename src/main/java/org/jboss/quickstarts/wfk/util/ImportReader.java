@@ -0,0 +1,309 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.jackson.map.BeanPropertyDefinition;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.introspect.BasicBeanDescription;
+
+/**
+ * <p>Reads the records of an upload one at a time, as entities of the given type, without holding more than one record
+ * in memory.</p>
+ *
+ * <p>Two formats are read:</p>
+ * <ul>
+ * <li><b>CSV</b> ({@value #CSV}): a header row naming the JSON properties of the entity, such as
+ * <code>name,email,phoneNumber</code>, then one row per record. The header is checked against the entity before any
+ * row is read: it must name every required property and nothing the entity does not have. Fields may be quoted, with
+ * "" for a quote; empty fields are left unset. A record may run over several lines inside quotes, but not for more
+ * than {@link #MAX_RECORD_LENGTH} characters, so that a stray quote costs one record rather than the rest of the
+ * upload.</li>
+ * <li><b>NDJSON</b> ({@value #NDJSON}): one JSON object per line, the same as the body of a single create.</li>
+ * </ul>
+ *
+ * <p>Blank lines are skipped in both. A record that can not be read is reported with an IllegalArgumentException and
+ * reading carries on with the next one. The upload is left open for whoever opened it to close.</p>
+ *
+ * @param <T> The type of entity read
+ * @see BulkImporter
+ */
+public abstract class ImportReader<T> {
+
+    /** The media type of comma separated values with a header row. */
+    public static final String CSV = "text/csv";
+
+    /** The media type of newline delimited JSON. */
+    public static final String NDJSON = "application/x-ndjson";
+
+    /** The most characters a CSV record may span, across all of its lines. */
+    public static final int MAX_RECORD_LENGTH = 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    final BufferedReader in;
+
+    final Class<T> type;
+
+    final ObjectMapper mapper;
+
+    // The line the record last returned starts on, counting from 1
+    int line;
+
+    // The number of lines read so far
+    int linesRead;
+
+    ImportReader(BufferedReader in, Class<T> type, ObjectMapper mapper) {
+        this.in = in;
+        this.type = type;
+        this.mapper = mapper;
+    }
+
+    /**
+     * <p>Returns a reader for the given content type, honouring its charset parameter. UTF-8 is assumed when there is
+     * none.</p>
+     *
+     * @param contentType The Content-Type of the upload
+     * @param input The upload
+     * @param type The type of entity in it
+     * @param mapper The mapper that turns a record into an entity
+     * @param required The JSON properties every record must have, a CSV header has to name them all
+     * @return A reader positioned at the first record
+     * @throws IllegalArgumentException If the content type is neither CSV nor NDJSON, or names an unknown charset, or
+     *         the CSV header does not match the entity
+     * @throws IOException If the upload can not be read
+     */
+    public static <T> ImportReader<T> open(String contentType, InputStream input, Class<T> type, ObjectMapper mapper,
+        Collection<String> required) throws IOException {
+        if (contentType == null) {
+            throw new IllegalArgumentException("The upload has no content type, send " + CSV + " or " + NDJSON);
+        }
+        // Taken apart here rather than by MediaType.valueOf(), which needs a JAX-RS implementation to be present
+        String[] parts = contentType.split(";");
+        String mediaType = parts[0].trim().toLowerCase(Locale.ENGLISH);
+        Charset charset = UTF_8;
+        for (int i = 1; i < parts.length; i++) {
+            String parameter = parts[i].trim();
+            if (parameter.toLowerCase(Locale.ENGLISH).startsWith("charset=")) {
+                charset = Charset.forName(parameter.substring("charset=".length()).replace("\"", "").trim());
+            }
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(input, charset));
+
+        if (CSV.equals(mediaType)) {
+            return new CsvReader<T>(in, type, mapper, required);
+        }
+        if (NDJSON.equals(mediaType)) {
+            return new NdjsonReader<T>(in, type, mapper);
+        }
+        throw new IllegalArgumentException("Can not import " + mediaType + ", send " + CSV + " or " + NDJSON);
+    }
+
+    /**
+     * <p>Reads the next record.</p>
+     *
+     * @return The next record; or null once the upload has been read to the end
+     * @throws IllegalArgumentException If the record can not be read as an entity, it has been skipped
+     * @throws IOException If the upload can not be read
+     */
+    public abstract T next() throws IOException;
+
+    /**
+     * @return The line of the upload the record last returned by {@link #next()} starts on
+     */
+    public int getLine() {
+        return line;
+    }
+
+    String readLine() throws IOException {
+        String text = in.readLine();
+        if (text != null && ++linesRead == 1 && text.startsWith("\uFEFF")) {
+            // A byte order mark, as spreadsheets like to write
+            text = text.substring(1);
+        }
+        return text;
+    }
+
+    private static final class NdjsonReader<T> extends ImportReader<T> {
+
+        NdjsonReader(BufferedReader in, Class<T> type, ObjectMapper mapper) {
+            super(in, type, mapper);
+        }
+
+        @Override
+        public T next() throws IOException {
+            String text;
+            do {
+                text = readLine();
+                if (text == null) {
+                    return null;
+                }
+            } while (text.trim().isEmpty());
+            line = linesRead;
+            try {
+                return mapper.readValue(text, type);
+            } catch (IOException e) {
+                // Only this line is bad, the next one is read on its own. Jackson puts the location on a second line
+                // of its message, which means nothing to the client.
+                String message = e.getMessage();
+                int end = message == null ? -1 : message.indexOf('\n');
+                throw new IllegalArgumentException(end < 0 ? message : message.substring(0, end), e);
+            }
+        }
+    }
+
+    private static final class CsvReader<T> extends ImportReader<T> {
+
+        // The columns of the header row; or null if the upload is empty
+        private final List<String> header;
+
+        CsvReader(BufferedReader in, Class<T> type, ObjectMapper mapper, Collection<String> required)
+            throws IOException {
+            super(in, type, mapper);
+            header = readRow();
+            if (header != null) {
+                for (int i = 0; i < header.size(); i++) {
+                    header.set(i, header.get(i).trim());
+                }
+                checkHeader(required);
+            }
+        }
+
+        // Matches the header against the properties Jackson can set on the entity, once rather than on every row
+        private void checkHeader(Collection<String> required) {
+            BasicBeanDescription bean = mapper.getDeserializationConfig().introspect(mapper.constructType(type));
+            Set<String> ignored = bean.getIgnoredPropertyNamesForDeser();
+            Set<String> known = new LinkedHashSet<String>();
+            for (BeanPropertyDefinition property : bean.findProperties()) {
+                if (property.couldDeserialize() && (ignored == null || !ignored.contains(property.getName()))) {
+                    known.add(property.getName());
+                }
+            }
+            Set<String> seen = new LinkedHashSet<String>();
+            for (String column : header) {
+                if (!known.contains(column)) {
+                    throw new IllegalArgumentException("Unknown column \"" + column
+                        + "\" in the header, the columns are " + known);
+                }
+                if (!seen.add(column)) {
+                    throw new IllegalArgumentException("Column \"" + column + "\" appears twice in the header");
+                }
+            }
+            for (String column : required) {
+                if (!seen.contains(column)) {
+                    throw new IllegalArgumentException("The header has no \"" + column + "\" column");
+                }
+            }
+        }
+
+        @Override
+        public T next() throws IOException {
+            if (header == null) {
+                return null;
+            }
+            List<String> fields = readRow();
+            if (fields == null) {
+                return null;
+            }
+            if (fields.size() != header.size()) {
+                throw new IllegalArgumentException("Expected " + header.size() + " fields but found " + fields.size());
+            }
+            Map<String, String> properties = new HashMap<String, String>();
+            for (int i = 0; i < fields.size(); i++) {
+                if (!fields.get(i).isEmpty()) {
+                    properties.put(header.get(i), fields.get(i));
+                }
+            }
+            // Throws IllegalArgumentException itself for a value of the wrong type
+            return mapper.convertValue(properties, type);
+        }
+
+        // The fields of the next row that is not blank, which may span lines inside quotes; or null at the end
+        private List<String> readRow() throws IOException {
+            String text;
+            do {
+                text = readLine();
+                if (text == null) {
+                    return null;
+                }
+            } while (text.trim().isEmpty());
+            line = linesRead;
+
+            List<String> fields = new ArrayList<String>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            int length = text.length();
+            int i = 0;
+            while (true) {
+                if (i == text.length()) {
+                    if (!quoted) {
+                        break;
+                    }
+                    // A line break inside quotes belongs to the field
+                    String more = readLine();
+                    if (more == null) {
+                        throw new IllegalArgumentException("Unterminated quoted field");
+                    }
+                    length += more.length() + 1;
+                    if (length > MAX_RECORD_LENGTH) {
+                        // Most likely a quote that was never closed. The lines read so far are given up, and the next
+                        // record is looked for on the line after.
+                        throw new IllegalArgumentException("Quoted field is still open after " + MAX_RECORD_LENGTH
+                            + " characters, is a closing quote missing?");
+                    }
+                    field.append('\n');
+                    text = more;
+                    i = 0;
+                    continue;
+                }
+                char c = text.charAt(i++);
+                if (quoted) {
+                    if (c != '"') {
+                        field.append(c);
+                    } else if (i < text.length() && text.charAt(i) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else {
+                    field.append(c);
+                }
+            }
+            fields.add(field.toString());
+            return fields;
+        }
+    }
+}
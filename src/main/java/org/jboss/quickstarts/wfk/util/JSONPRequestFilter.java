@@ -16,8 +16,8 @@
  */
 package org.jboss.quickstarts.wfk.util;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.util.regex.Pattern;
 
@@ -39,7 +39,9 @@ import javax.servlet.http.HttpServletResponseWrapper;
  *
  * <p>To qualify for wrapping the request must be made to the <i>/rest/*</i> path, and contain a query parameter call
  * <i>jsoncallback<i/> that defines the JSONP callback method to use with the response.</p>
- * 
+ *
+ * <p>It runs inside {@link CompressionFilter} (see web.xml), so the padding is written to the compressed stream.</p>
+ *
  * @author balunasj
  * @see javax.servlet.Filter
  */
@@ -81,39 +83,14 @@ public class JSONPRequestFilter implements Filter {
                 throw new ServletException("JSONP Callback method '" + CALLBACK_METHOD + "' parameter not valid function");
             }
 
-            // Will stream updated response
-            final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-
-            // Create a custom response wrapper to adding in the padding
-            HttpServletResponseWrapper responseWrapper = new HttpServletResponseWrapper(httpResponse) {
-
-                @Override
-                public ServletOutputStream getOutputStream() throws IOException {
-                    return new ServletOutputStream() {
-                        @Override
-                        public void write(int b) throws IOException {
-                            byteStream.write(b);
-                        }
-                    };
-                }
-
-                @Override
-                public PrintWriter getWriter() throws IOException {
-                    return new PrintWriter(byteStream);
-                }
-            };
+            // The padding goes either side of the response, which is passed straight through as it is written.
+            byte[] prefix = (callback + "(").getBytes("UTF-8");
+            PaddedResponse paddedResponse = new PaddedResponse(httpResponse, prefix);
 
             // Process the rest of the filter chain, including the JAX-RS request
-            chain.doFilter(request, responseWrapper);
-
-            // Override response content and encoding
-            response.setContentType(CONTENT_TYPE);
-            response.setCharacterEncoding("UTF-8");
+            chain.doFilter(request, paddedResponse);
 
-            // Write the padded updates to the output stream.
-            response.getOutputStream().write((callback + "(").getBytes());
-            response.getOutputStream().write(byteStream.toByteArray());
-            response.getOutputStream().write(");".getBytes());
+            paddedResponse.finish();
         }
     }
 
@@ -130,4 +107,233 @@ public class JSONPRequestFilter implements Filter {
     public void destroy() {
         // Nothing to do
     }
+
+    /**
+     * <p>Writes the callback before the downstream response and the closing padding after it, without buffering the
+     * response itself. The content type is fixed to {@link #CONTENT_TYPE}, and the content length is dropped as the
+     * padding changes it.</p>
+     *
+     * <p>Only a 2xx response with a body is padded. Whether to pad is decided at the first write, by which point the
+     * status has been set; until then the content headers are held back, and a response that is not padded gets them
+     * unchanged. So an error, a 204 or a 304 reaches the client just as the chain produced it.</p>
+     */
+    private static class PaddedResponse extends HttpServletResponseWrapper {
+
+        private static final byte[] SUFFIX = {')', ';'};
+
+        // Not decided yet, padding, or passing the response through unchanged
+        private enum Mode { UNDECIDED, PADDED, PASS_THROUGH }
+
+        private final byte[] prefix;
+
+        private final ServletOutputStream output;
+
+        private Mode mode = Mode.UNDECIDED;
+
+        private PrintWriter writer;
+
+        // The content headers set downstream, applied if the response is passed through
+        private String contentType;
+
+        private String characterEncoding;
+
+        private int contentLength = -1;
+
+        PaddedResponse(HttpServletResponse response, byte[] prefix) {
+            super(response);
+            this.prefix = prefix;
+
+            output = new ServletOutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    target().write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    target().write(b, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    // Nothing has been written until the mode is decided
+                    if (mode != Mode.UNDECIDED) {
+                        getResponse().getOutputStream().flush();
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    // The padding may still have to be written, finish() completes the response
+                    flush();
+                }
+            };
+        }
+
+        // The underlying stream, once the mode has been decided
+        private ServletOutputStream target() throws IOException {
+            decide();
+            return getResponse().getOutputStream();
+        }
+
+        private void decide() throws IOException {
+            if (mode != Mode.UNDECIDED) {
+                return;
+            }
+            HttpServletResponse response = (HttpServletResponse) getResponse();
+            if (isPadded(response.getStatus())) {
+                mode = Mode.PADDED;
+                response.setContentType(CONTENT_TYPE);
+                response.setCharacterEncoding("UTF-8");
+                response.getOutputStream().write(prefix);
+            } else {
+                mode = Mode.PASS_THROUGH;
+                if (contentType != null) {
+                    response.setContentType(contentType);
+                }
+                if (characterEncoding != null) {
+                    response.setCharacterEncoding(characterEncoding);
+                }
+                if (contentLength >= 0) {
+                    response.setContentLength(contentLength);
+                }
+            }
+        }
+
+        void finish() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            // Nothing was written: a 2xx still calls back, with no arguments
+            decide();
+            if (mode == Mode.PADDED) {
+                getResponse().getOutputStream().write(SUFFIX);
+            }
+        }
+
+        private static boolean isPadded(int status) {
+            return status >= 200 && status < 300 && status != SC_NO_CONTENT;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            return output;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                decide();
+                writer = mode == Mode.PADDED ? new PrintWriter(new OutputStreamWriter(output, "UTF-8"))
+                    : getResponse().getWriter();
+            }
+            return writer;
+        }
+
+        @Override
+        public void setContentType(String type) {
+            contentType = type;
+            if (mode == Mode.PASS_THROUGH) {
+                super.setContentType(type);
+            }
+        }
+
+        @Override
+        public void setCharacterEncoding(String charset) {
+            characterEncoding = charset;
+            if (mode == Mode.PASS_THROUGH) {
+                super.setCharacterEncoding(charset);
+            }
+        }
+
+        @Override
+        public void setContentLength(int len) {
+            contentLength = len;
+            if (mode == Mode.PASS_THROUGH) {
+                super.setContentLength(len);
+            }
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if (!holdHeader(name, value)) {
+                super.setHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if (!holdHeader(name, value)) {
+                super.addHeader(name, value);
+            }
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+            if (!holdHeader(name, Integer.toString(value))) {
+                super.setIntHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addIntHeader(String name, int value) {
+            if (!holdHeader(name, Integer.toString(value))) {
+                super.addIntHeader(name, value);
+            }
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            mode = Mode.PASS_THROUGH;
+            super.sendError(sc);
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            mode = Mode.PASS_THROUGH;
+            super.sendError(sc, msg);
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            if (mode != Mode.UNDECIDED) {
+                super.flushBuffer();
+            }
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            // The status may change, so decide again, and the callback goes back in if it is still wanted
+            mode = Mode.UNDECIDED;
+            writer = null;
+            contentType = null;
+            characterEncoding = null;
+            contentLength = -1;
+        }
+
+        @Override
+        public void resetBuffer() {
+            super.resetBuffer();
+            if (mode == Mode.PADDED) {
+                // Put back the callback the reset has discarded
+                mode = Mode.UNDECIDED;
+            }
+        }
+
+        // Notes a content header and returns true, unless the response is passed through
+        private boolean holdHeader(String name, String value) {
+            if ("Content-Type".equalsIgnoreCase(name)) {
+                contentType = value;
+            } else if ("Content-Length".equalsIgnoreCase(name)) {
+                contentLength = value == null ? -1 : Integer.parseInt(value);
+            } else {
+                return false;
+            }
+            return mode != Mode.PASS_THROUGH;
+        }
+    }
 }
@@ -0,0 +1,118 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.ejb.Stateless;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.SerializationConfig;
+import org.hibernate.CacheMode;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+
+/**
+ * <p>Writes the result of a named or criteria query to an OutputStream as a JSON array, one element at a time.</p>
+ *
+ * <p>The rows are read through a forward only Hibernate {@link ScrollableResults} and each one is serialized with the
+ * application's {@link ObjectMapper} as soon as it has been read. The persistence context is cleared every
+ * {@link #FETCH_SIZE} rows so memory use stays flat however large the table is. The mapper would flush the stream after
+ * every row, so that is turned off for the rows and the stream is flushed once per fetch instead.</p>
+ *
+ * <p>This is an EJB so that each call gets its own transaction, which keeps the JDBC cursor open while the response is
+ * written. It is intended to be called from a JAX-RS {@link StreamingOutput}, after the resource method has returned.</p>
+ *
+ * @see JacksonConfig
+ */
+@Stateless
+public class JsonArrayStreamer {
+
+    /** The number of rows fetched per round trip, and the number written between flushes. */
+    static final int FETCH_SIZE = 100;
+
+    @Inject
+    private EntityManager em;
+
+    @Inject
+    private JacksonConfig jacksonConfig;
+
+    /**
+     * <p>Runs the named query and writes every entity it returns to the output stream as one JSON array.</p>
+     *
+     * @param queryName The name of a parameterless @NamedQuery
+     * @param output The stream to write to, it is flushed but not closed
+     * @throws IOException If the stream can not be written to
+     */
+    public void writeAll(String queryName, OutputStream output) throws IOException {
+        write(em.unwrap(Session.class).getNamedQuery(queryName), output);
+    }
+
+    /**
+     * <p>Runs the criteria query and writes every entity it returns to the output stream as one JSON array.</p>
+     *
+     * @param criteria A query built with this persistence unit's CriteriaBuilder
+     * @param output The stream to write to, it is flushed but not closed
+     * @throws IOException If the stream can not be written to
+     */
+    public void writeAll(CriteriaQuery<?> criteria, OutputStream output) throws IOException {
+        write(em.createQuery(criteria).unwrap(Query.class), output);
+    }
+
+    private void write(Query query, OutputStream output) throws IOException {
+        ObjectMapper mapper = jacksonConfig.getContext(Object.class);
+        SerializationConfig rowConfig = mapper.copySerializationConfig()
+            .without(SerializationConfig.Feature.FLUSH_AFTER_WRITE_VALUE);
+        Session session = em.unwrap(Session.class);
+
+        ScrollableResults results = query
+            .setReadOnly(true)
+            .setFetchSize(FETCH_SIZE)
+            .setCacheMode(CacheMode.IGNORE)
+            .scroll(ScrollMode.FORWARD_ONLY);
+
+        JsonGenerator generator = mapper.getJsonFactory().createJsonGenerator(output, JsonEncoding.UTF8);
+        try {
+            generator.writeStartArray();
+            int count = 0;
+            while (results.next()) {
+                mapper.writeValue(generator, results.get(0), rowConfig);
+                count++;
+                if (count == 1) {
+                    // Send the first element straight away so the client starts receiving data.
+                    generator.flush();
+                } else if (count % FETCH_SIZE == 0) {
+                    generator.flush();
+                    session.clear();
+                }
+            }
+            generator.writeEndArray();
+            generator.flush();
+        } finally {
+            results.close();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A lock free histogram of request durations over fixed buckets, from half a millisecond to ten seconds.</p>
+ *
+ * <p>The buckets are roughly exponential (1, 2.5, 5 per decade) so the relative error is the same for fast and slow
+ * requests, and they are fixed so the counts of two servers, or of one server over time, can be added together. They
+ * are written out as a Prometheus histogram by {@link RequestMetrics}.</p>
+ */
+public class LatencyHistogram {
+
+    /** The upper bound of each bucket, as written in the Prometheus "le" label. */
+    static final String[] BOUNDS = {"0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25",
+        "0.5", "1", "2.5", "5", "10"};
+
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            BOUNDS_NANOS[i] = (long) (Double.parseDouble(BOUNDS[i]) * TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    // One count per bucket, plus one for everything slower than the last bound
+    private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+
+    private final AtomicLong sumNanos = new AtomicLong();
+
+    /**
+     * <p>Adds one duration to the histogram.</p>
+     *
+     * @param nanos The duration in nanoseconds
+     */
+    public void record(long nanos) {
+        int bucket = 0;
+        while (bucket < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[bucket]) {
+            bucket++;
+        }
+        counts.incrementAndGet(bucket);
+        sumNanos.addAndGet(nanos);
+    }
+
+    /**
+     * <p>Returns the number of durations no longer than each bound of {@link #BOUNDS}, followed by the total number of
+     * durations. The counts are cumulative, as Prometheus expects.</p>
+     */
+    long[] cumulativeCounts() {
+        long[] cumulative = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < cumulative.length; i++) {
+            total += counts.get(i);
+            cumulative[i] = total;
+        }
+        return cumulative;
+    }
+
+    /**
+     * <p>Returns the sum of all of the durations, in seconds.</p>
+     */
+    double sumSeconds() {
+        return sumNanos.get() / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+}
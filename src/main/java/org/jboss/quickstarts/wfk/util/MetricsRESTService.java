@@ -0,0 +1,52 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.util;
+
+import javax.ejb.Stateless;
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+
+/**
+ * <p>Exposes the per-route request metrics of the REST services over HTTP, for Prometheus to scrape.</p>
+ *
+ * <p>Full path for accessing the metrics is rest/metrics . For every route of the bookings, customers and taxis
+ * resources it gives the number of requests and errors, the bytes received and sent, and a histogram of how long the
+ * requests took.</p>
+ *
+ * @see RequestMetrics
+ */
+@Path("/metrics")
+@Stateless
+public class MetricsRESTService {
+
+    @Inject
+    private RequestMetrics metrics;
+
+    /**
+     * <p>Returns the metrics of every route that has been requested since the application started.</p>
+     *
+     * @return A Response containing the metrics in the Prometheus text format
+     */
+    @GET
+    @Produces(RequestMetrics.CONTENT_TYPE)
+    public Response retrieveMetrics() {
+        return Response.ok(metrics.toPrometheusText()).build();
+    }
+}
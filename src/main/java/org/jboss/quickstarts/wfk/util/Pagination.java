@@ -0,0 +1,139 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.util;
+
+import java.util.List;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+
+/**
+ * <p>Helpers for the keyset (cursor) pagination used by the list endpoints.</p>
+ *
+ * <p>A page is requested with <code>?limit=N</code> and continued with <code>?limit=N&amp;after=CURSOR</code>, where
+ * CURSOR holds the sort key of the last item of the previous page. For a list sorted by id that is the id; for one
+ * sorted by another column it is that column's value and the id, see {@link Cursor}. The repositories seek past the
+ * cursor using the index on the sort columns, so each page costs the same no matter how deep into the list it is, and
+ * a page still follows on correctly when the last item of the previous one has since been deleted. The ETag of a page
+ * is read from the {@link ChangeCounter} of each table, so it costs the same at any depth too.</p>
+ *
+ * <p>When there are more items the response carries a <code>Link: &lt;...&gt;; rel="next"</code> header pointing at the
+ * following page.</p>
+ */
+public final class Pagination {
+
+    /** The largest page a client may ask for. */
+    public static final int MAX_LIMIT = 1000;
+
+    private Pagination() {
+    }
+
+    /**
+     * <p>Checks the requested page size and throws a 400 Bad Request if it is out of range.</p>
+     *
+     * @param limit The page size provided by the client
+     * @return The page size
+     */
+    public static int checkLimit(Integer limit) {
+        if (limit == null || limit < 1 || limit > MAX_LIMIT) {
+            throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST)
+                .entity("limit must be between 1 and " + MAX_LIMIT).build());
+        }
+        return limit;
+    }
+
+    /**
+     * <p>Builds the response for one page. The repositories are asked for one item more than the limit, if that extra
+     * item came back there is a next page; it is dropped from the body and a next link is added instead.</p>
+     *
+     * @param items Up to limit + 1 items, in sort order
+     * @param limit The page size
+     * @param after The cursor of the next page, the id or {@link Cursor} of the last item that will be returned
+     * @param uriInfo The URI of the current request, used to build the next link
+     * @return A 200 OK ResponseBuilder for the page
+     */
+    public static Response.ResponseBuilder page(List<?> items, int limit, Object after, UriInfo uriInfo) {
+        if (items.size() <= limit) {
+            return Response.ok(items);
+        }
+        String next = uriInfo.getRequestUriBuilder()
+            .replaceQueryParam("after", after)
+            .replaceQueryParam("limit", limit)
+            .build().toString();
+        return Response.ok(items.subList(0, limit)).header("Link", "<" + next + ">; rel=\"next\"");
+    }
+
+    /**
+     * <p>The position of an item in a list sorted by some column and then by id: the value of the column and the id,
+     * written as <code>value:id</code>. The id breaks ties between items with the same value, and the value may
+     * itself hold a colon, as the id never does.</p>
+     */
+    public static final class Cursor {
+
+        private final String key;
+
+        private final long id;
+
+        public Cursor(String key, long id) {
+            this.key = key;
+            this.id = id;
+        }
+
+        /**
+         * <p>Reads the <i>after</i> parameter of a list endpoint.</p>
+         *
+         * @param after The parameter; or null for the first page
+         * @return The cursor; or null for the first page
+         * @throws WebApplicationException 400 Bad Request if it is not a cursor handed out in a next link
+         */
+        public static Cursor valueOf(String after) {
+            if (after == null) {
+                return null;
+            }
+            int colon = after.lastIndexOf(':');
+            if (colon >= 0) {
+                try {
+                    return new Cursor(after.substring(0, colon), Long.parseLong(after.substring(colon + 1)));
+                } catch (NumberFormatException e) {
+                    // Reported below
+                }
+            }
+            throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST)
+                .entity("after must be the cursor from a next link, not " + after).build());
+        }
+
+        /**
+         * @return The value of the sort column of the item
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return The id of the item
+         */
+        public long getId() {
+            return id;
+        }
+
+        @Override
+        public String toString() {
+            return key + ":" + id;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.enterprise.context.ApplicationScoped;
+
+/**
+ * <p>Holds the request count, error count, payload sizes and latency histogram of every REST route, and writes them
+ * out in the Prometheus text format.</p>
+ *
+ * <p>A route is an HTTP method and a @Path template, such as "GET /bookings/{id}", so all of the requests for one
+ * resource method are counted together whatever ids they carry. {@link RequestMetricsInterceptor} names the route of
+ * the current request and {@link RequestMetricsFilter} records it once the response has been written.</p>
+ *
+ * @see MetricsRESTService
+ */
+@ApplicationScoped
+public class RequestMetrics {
+
+    /** The content type of the Prometheus text format. */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    // The HTTP method and route template of the request being handled on this thread
+    private static final ThreadLocal<String[]> ROUTE = new ThreadLocal<String[]>();
+
+    private final ConcurrentMap<String, RouteMetrics> routes = new ConcurrentHashMap<String, RouteMetrics>();
+
+    /**
+     * <p>Forgets the route of the previous request handled on the current thread.</p>
+     */
+    static void startRequest() {
+        ROUTE.remove();
+    }
+
+    /**
+     * <p>Sets the route of the request being handled on the current thread.</p>
+     *
+     * @param httpMethod The HTTP method, e.g. GET
+     * @param template The @Path template, e.g. /bookings/{id}
+     */
+    static void setRoute(String httpMethod, String template) {
+        ROUTE.set(new String[] {httpMethod, template});
+    }
+
+    /**
+     * <p>Returns the HTTP method and template set for the current request, or null if it did not reach a REST
+     * resource method.</p>
+     */
+    static String[] getRoute() {
+        return ROUTE.get();
+    }
+
+    /**
+     * <p>Records one finished request.</p>
+     *
+     * @param httpMethod The HTTP method of the route
+     * @param template The @Path template of the route
+     * @param nanos How long the request took, including writing the response
+     * @param status The HTTP status of the response; 400 and above count as errors
+     * @param requestBytes The size of the request body
+     * @param responseBytes The size of the response body
+     */
+    void record(String httpMethod, String template, long nanos, int status, long requestBytes, long responseBytes) {
+        String key = httpMethod + " " + template;
+        RouteMetrics route = routes.get(key);
+        if (route == null) {
+            RouteMetrics created = new RouteMetrics(httpMethod, template);
+            route = routes.putIfAbsent(key, created);
+            if (route == null) {
+                route = created;
+            }
+        }
+
+        route.requests.incrementAndGet();
+        if (status >= 400) {
+            route.errors.incrementAndGet();
+        }
+        route.requestBytes.addAndGet(requestBytes);
+        route.responseBytes.addAndGet(responseBytes);
+        route.latency.record(nanos);
+    }
+
+    /**
+     * <p>Writes every route's metrics in the Prometheus text exposition format, version 0.0.4.</p>
+     *
+     * @return The metrics, one sample per line
+     */
+    public String toPrometheusText() {
+        // Sorted so the output is stable from one scrape to the next
+        Map<String, RouteMetrics> sorted = new TreeMap<String, RouteMetrics>(routes);
+        StringBuilder text = new StringBuilder();
+
+        header(text, "http_requests_total", "counter", "Requests handled, by route");
+        for (RouteMetrics route : sorted.values()) {
+            sample(text, "http_requests_total", route, null, route.requests.get());
+        }
+        header(text, "http_request_errors_total", "counter", "Requests answered with a 4xx or 5xx status, by route");
+        for (RouteMetrics route : sorted.values()) {
+            sample(text, "http_request_errors_total", route, null, route.errors.get());
+        }
+        header(text, "http_request_size_bytes_total", "counter", "Bytes of request bodies received, by route");
+        for (RouteMetrics route : sorted.values()) {
+            sample(text, "http_request_size_bytes_total", route, null, route.requestBytes.get());
+        }
+        header(text, "http_response_size_bytes_total", "counter", "Bytes of response bodies sent, by route");
+        for (RouteMetrics route : sorted.values()) {
+            sample(text, "http_response_size_bytes_total", route, null, route.responseBytes.get());
+        }
+
+        header(text, "http_request_duration_seconds", "histogram", "Time taken to handle requests, by route");
+        for (RouteMetrics route : sorted.values()) {
+            long[] counts = route.latency.cumulativeCounts();
+            for (int i = 0; i < LatencyHistogram.BOUNDS.length; i++) {
+                sample(text, "http_request_duration_seconds_bucket", route, LatencyHistogram.BOUNDS[i], counts[i]);
+            }
+            long count = counts[counts.length - 1];
+            sample(text, "http_request_duration_seconds_bucket", route, "+Inf", count);
+            sample(text, "http_request_duration_seconds_sum", route, null, route.latency.sumSeconds());
+            sample(text, "http_request_duration_seconds_count", route, null, count);
+        }
+        return text.toString();
+    }
+
+    private static void header(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder text, String name, RouteMetrics route, String le, Object value) {
+        text.append(name).append("{method=\"").append(route.httpMethod).append("\",route=\"")
+            .append(escape(route.template)).append('"');
+        if (le != null) {
+            text.append(",le=\"").append(le).append('"');
+        }
+        text.append("} ").append(value).append('\n');
+    }
+
+    // Backslash, double quote and new line are the only characters that need escaping in a label value
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static class RouteMetrics {
+        final String httpMethod;
+        final String template;
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong requestBytes = new AtomicLong();
+        final AtomicLong responseBytes = new AtomicLong();
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        RouteMetrics(String httpMethod, String template) {
+            this.httpMethod = httpMethod;
+            this.template = template;
+        }
+    }
+}
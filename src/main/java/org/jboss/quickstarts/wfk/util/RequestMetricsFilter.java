@@ -0,0 +1,226 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import javax.inject.Inject;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * <p>Times every REST request and counts the bytes of its request and response bodies, then records them in
+ * {@link RequestMetrics} against the route named by {@link RequestMetricsInterceptor}.</p>
+ *
+ * <p>The request body is counted as it is read rather than taken from Content-Length, which a chunked request does not
+ * have. A body the resource never reads, as when a request is refused before its entity is needed, counts as what was
+ * read of it.</p>
+ *
+ * <p>Requests that never reach a resource method, such as those for an unknown path, are not recorded.</p>
+ */
+@WebFilter("/rest/*")
+public class RequestMetricsFilter implements Filter {
+
+    @Inject
+    private RequestMetrics metrics;
+
+    @Override
+    public void init(FilterConfig config) throws ServletException {
+        // Nothing needed
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException,
+        ServletException {
+        if (!(request instanceof HttpServletRequest)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        CountingRequest countingRequest = new CountingRequest((HttpServletRequest) request);
+        HttpServletResponse httpResponse = (HttpServletResponse) response;
+        CountingResponse countingResponse = new CountingResponse(httpResponse);
+
+        RequestMetrics.startRequest();
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            chain.doFilter(countingRequest, countingResponse);
+            countingResponse.flushWriter();
+            failed = false;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            String[] route = RequestMetrics.getRoute();
+            if (route != null) {
+                // An exception escaping the chain is sent to the client as a 500
+                int status = failed ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR : httpResponse.getStatus();
+                metrics.record(route[0], route[1], nanos, status, countingRequest.bytes, countingResponse.bytes);
+            }
+            RequestMetrics.startRequest();
+        }
+    }
+
+    @Override
+    public void destroy() {
+        // Nothing to do
+    }
+
+    /**
+     * <p>Passes the request body straight through as it is read, counting the bytes as it goes.</p>
+     */
+    private static class CountingRequest extends HttpServletRequestWrapper {
+
+        long bytes;
+
+        private ServletInputStream input;
+
+        private BufferedReader reader;
+
+        CountingRequest(HttpServletRequest request) {
+            super(request);
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            if (input == null) {
+                final ServletInputStream source = super.getInputStream();
+                input = new ServletInputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        int b = source.read();
+                        if (b != -1) {
+                            bytes++;
+                        }
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        int length = source.read(b, off, len);
+                        if (length > 0) {
+                            bytes += length;
+                        }
+                        return length;
+                    }
+
+                    @Override
+                    public int available() throws IOException {
+                        return source.available();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        source.close();
+                    }
+                };
+            }
+            return input;
+        }
+
+        @Override
+        public BufferedReader getReader() throws IOException {
+            if (reader == null) {
+                String charset = getCharacterEncoding();
+                reader = new BufferedReader(new InputStreamReader(getInputStream(),
+                    charset == null ? "ISO-8859-1" : charset));
+            }
+            return reader;
+        }
+    }
+
+    /**
+     * <p>Passes everything written to the response straight through, counting the bytes as it goes.</p>
+     */
+    private static class CountingResponse extends HttpServletResponseWrapper {
+
+        long bytes;
+
+        private ServletOutputStream output;
+
+        private PrintWriter writer;
+
+        CountingResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (output == null) {
+                final ServletOutputStream target = super.getOutputStream();
+                output = new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        target.write(b);
+                        bytes++;
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        target.write(b, off, len);
+                        bytes += len;
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        target.flush();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        target.close();
+                    }
+                };
+            }
+            return output;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            flushWriter();
+            super.flushBuffer();
+        }
+
+        void flushWriter() {
+            if (writer != null) {
+                writer.flush();
+            }
+        }
+    }
+}
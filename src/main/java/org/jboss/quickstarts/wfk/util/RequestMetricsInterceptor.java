@@ -0,0 +1,99 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.util;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import javax.interceptor.AroundInvoke;
+import javax.interceptor.InvocationContext;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.Path;
+
+/**
+ * <p>An EJB interceptor that tells {@link RequestMetrics} which route the current request was dispatched to.</p>
+ *
+ * <p>JAX-RS 1.1 has no request filters, so the route is worked out from the @Path and HTTP method annotations of the
+ * resource method being called. Add it to a REST service with <code>@Interceptors(RequestMetricsInterceptor.class)</code>.
+ * The timing is done by {@link RequestMetricsFilter}, so that it includes writing the response.</p>
+ */
+public class RequestMetricsInterceptor {
+
+    // Matches the regular expression part of a template parameter, as in {id:[0-9]+}
+    private static final Pattern PARAM_REGEX = Pattern.compile("\\{\\s*([\\w.\\-]+)\\s*:[^/]*\\}");
+
+    // Methods that are not resource methods map to an empty array, as a ConcurrentMap can not hold null
+    private static final ConcurrentMap<Method, String[]> ROUTES = new ConcurrentHashMap<Method, String[]>();
+
+    @AroundInvoke
+    public Object nameRoute(InvocationContext context) throws Exception {
+        Method method = context.getMethod();
+        String[] route = ROUTES.get(method);
+        if (route == null) {
+            route = routeOf(method);
+            ROUTES.putIfAbsent(method, route);
+        }
+        if (route.length > 0) {
+            RequestMetrics.setRoute(route[0], route[1]);
+        }
+        return context.proceed();
+    }
+
+    /**
+     * <p>Returns the HTTP method and path template of a resource method, e.g. {"GET", "/bookings/{id}"}, or an empty
+     * array if it has no HTTP method annotation.</p>
+     */
+    static String[] routeOf(Method method) {
+        String httpMethod = null;
+        for (Annotation annotation : method.getAnnotations()) {
+            HttpMethod designator = annotation.annotationType().getAnnotation(HttpMethod.class);
+            if (designator != null) {
+                httpMethod = designator.value();
+            }
+        }
+        if (httpMethod == null) {
+            return new String[0];
+        }
+
+        StringBuilder template = new StringBuilder();
+        appendPath(template, method.getDeclaringClass().getAnnotation(Path.class));
+        appendPath(template, method.getAnnotation(Path.class));
+        if (template.length() == 0) {
+            template.append('/');
+        }
+        return new String[] {httpMethod, PARAM_REGEX.matcher(template).replaceAll("{$1}")};
+    }
+
+    private static void appendPath(StringBuilder template, Path path) {
+        if (path == null) {
+            return;
+        }
+        String value = path.value();
+        if (value.startsWith("/")) {
+            value = value.substring(1);
+        }
+        if (value.endsWith("/")) {
+            value = value.substring(0, value.length() - 1);
+        }
+        if (value.length() > 0) {
+            template.append('/').append(value);
+        }
+    }
+}
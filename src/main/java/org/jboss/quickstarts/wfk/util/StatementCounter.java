@@ -0,0 +1,60 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.util;
+
+import org.hibernate.EmptyInterceptor;
+
+/**
+ * <p>A Hibernate interceptor that counts the SQL statements prepared on the current thread.</p>
+ *
+ * <p>It is registered for the whole persistence unit with the <code>hibernate.ejb.interceptor</code> property in
+ * persistence.xml. {@link StatementCountFilter} resets the count at the start of every REST request and logs it at the
+ * end, which makes N+1 query patterns easy to spot.</p>
+ */
+public class StatementCounter extends EmptyInterceptor {
+    /** Default value included to remove warning. **/
+    private static final long serialVersionUID = 1L;
+
+    private static final ThreadLocal<int[]> COUNT = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    /**
+     * <p>Sets the count for the current thread back to zero.</p>
+     */
+    public static void reset() {
+        COUNT.get()[0] = 0;
+    }
+
+    /**
+     * <p>Returns the number of SQL statements prepared on the current thread since the last {@link #reset()}.</p>
+     *
+     * @return The number of statements
+     */
+    public static int get() {
+        return COUNT.get()[0];
+    }
+
+    @Override
+    public String onPrepareStatement(String sql) {
+        COUNT.get()[0]++;
+        return sql;
+    }
+}
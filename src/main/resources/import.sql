@@ -16,11 +16,15 @@
 --
 
 -- You can use this file to load seed data into the database using SQL statements
--- Since the database doesn't know to increase the Sequence to match what is manually loaded here it starts at 1 and tries
---  to enter a record with the same PK and create an error.  If we use a high we don't interfere with the sequencing (at least until later).
+-- The database doesn't know to increase the Sequence to match what is manually loaded here, so the sequences are
+--  restarted above the seeded ids at the end of the file. Hibernate reads each sequence value as the highest id of a
+--  block of 50 (allocationSize), so the restart values leave a gap of at least 50 above the last seeded id.
 -- NOTE: this file should be removed for production systems. 
-insert into Customer (id, customerName, email, phone_number) values (10001, 'John',  'john.smith@mailinator.com', '05263987417')
-insert into Customer (id, customerName, email, phone_number) values (10002, 'Davey', 'davey.jones@locker.com', '02935687415')
-insert into Taxi (id, num_seats, reg) values (100001,7,'p799sng')
-insert into Taxi (id, num_seats, reg) values (100002,5,'p799snh')
-insert into Booking (id,customerId,taxiId,booking_date) values (1000001,10001,100001,'2016-08-07')
\ No newline at end of file
+insert into Customer (id, customerName, email, phone_number, version) values (10001, 'John',  'john.smith@mailinator.com', '05263987417', 0)
+insert into Customer (id, customerName, email, phone_number, version) values (10002, 'Davey', 'davey.jones@locker.com', '02935687415', 0)
+insert into Taxi (id, num_seats, reg, version) values (100001,7,'p799sng', 0)
+insert into Taxi (id, num_seats, reg, version) values (100002,5,'p799snh', 0)
+insert into Booking (id,customerId,taxiId,booking_date,version) values (1000001,10001,100001,'2016-08-07',0)
+alter sequence Customer_seq restart with 10101
+alter sequence Taxi_seq restart with 100101
+alter sequence Booking_seq restart with 1000101
@@ -24,8 +24,8 @@
     config.$inject = ['$httpProvider', '$routeProvider'];
 
     function config($httpProvider, $routeProvider) {
-        //Use a HTTP interceptor to add a nonce to every GET request to prevent MSIE from caching responses.
-        $httpProvider.interceptors.push('ajaxNonceInterceptor');
+        //Use a HTTP interceptor to make the browser revalidate cached GET responses against their ETags.
+        $httpProvider.interceptors.push('revalidateInterceptor');
 
         //Note that this app is a single page app, composed of multiple 'views'
         //Each 'view' is some combination of a template and a controller
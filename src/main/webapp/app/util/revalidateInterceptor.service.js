@@ -18,19 +18,19 @@
     'use strict';
     angular
         .module('app.util')
-        //Defines the ajaxNonceInterceptor factory, gets invoked for each request
-        .factory('ajaxNonceInterceptor', ajaxNonceInterceptor);
-
-    //ajaxNonceInterceptor factory function, gets called after each http request
-    function ajaxNonceInterceptor() {
-        // This interceptor is equivalent to the behavior induced by jQuery's $.ajaxSetup({cache:false});
-        var param_start = /\?/;
+        //Defines the revalidateInterceptor factory, gets invoked for each request
+        .factory('revalidateInterceptor', revalidateInterceptor);
 
+    //revalidateInterceptor factory function, gets called before each http request
+    function revalidateInterceptor() {
+        // The REST services send an ETag with every GET response. Rather than adding a nonce to the URL so that nothing
+        // is ever reused, ask the browser to revalidate its copy; it sends If-None-Match and gets a 304 back if the
+        // data has not changed. Older MSIE releases would otherwise reuse cached responses without asking.
         return {
             request: function (config) {
                 if (config.method == 'GET') {
-                    // Add a query parameter named '_' to the URL, with a value equal to the current timestamp
-                    config.url += (param_start.test(config.url) ? "&" : "?") + '_=' + new Date().getTime();
+                    config.headers = config.headers || {};
+                    config.headers['Cache-Control'] = 'max-age=0';
                 }
                 return config;
             }
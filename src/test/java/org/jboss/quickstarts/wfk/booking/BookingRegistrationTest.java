@@ -17,32 +17,75 @@
 package org.jboss.quickstarts.wfk.booking;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+import javax.ejb.EJBException;
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.transaction.UserTransaction;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.codehaus.jackson.map.ObjectMapper;
 
 import org.jboss.arquillian.container.test.api.Deployment;
 import org.jboss.arquillian.junit.Arquillian;
 import org.jboss.arquillian.junit.InSequence;
 import org.jboss.quickstarts.wfk.customer.Customer;
+import org.jboss.quickstarts.wfk.customer.CustomerImport;
 import org.jboss.quickstarts.wfk.customer.CustomerRESTService;
 import org.jboss.quickstarts.wfk.customer.CustomerRegistrationTest;
 import org.jboss.quickstarts.wfk.customer.CustomerRepository;
 import org.jboss.quickstarts.wfk.customer.CustomerService;
 import org.jboss.quickstarts.wfk.customer.CustomerValidator;
 import org.jboss.quickstarts.wfk.taxi.Taxi;
+import org.jboss.quickstarts.wfk.taxi.TaxiImport;
 import org.jboss.quickstarts.wfk.taxi.TaxiRESTService;
 import org.jboss.quickstarts.wfk.taxi.TaxiRepository;
+import org.jboss.quickstarts.wfk.taxi.TaxiSeatIndex;
 import org.jboss.quickstarts.wfk.taxi.TaxiService;
 import org.jboss.quickstarts.wfk.taxi.TaxiValidator;
+import org.jboss.quickstarts.wfk.util.AfterCommit;
+import org.jboss.quickstarts.wfk.util.ChangeCounter;
+import org.jboss.quickstarts.wfk.util.ChangeCounters;
+import org.jboss.quickstarts.wfk.util.BulkImporter;
+import org.jboss.quickstarts.wfk.util.IdempotencyStore;
+import org.jboss.quickstarts.wfk.util.ImportReader;
+import org.jboss.quickstarts.wfk.util.JacksonConfig;
+import org.jboss.quickstarts.wfk.util.JsonArrayStreamer;
+import org.jboss.quickstarts.wfk.util.ConditionalGet;
+import org.jboss.quickstarts.wfk.util.DateParam;
+import org.jboss.quickstarts.wfk.util.LatencyHistogram;
+import org.jboss.quickstarts.wfk.util.Pagination;
+import org.jboss.quickstarts.wfk.util.RequestMetrics;
+import org.jboss.quickstarts.wfk.util.RequestMetricsInterceptor;
 import org.jboss.quickstarts.wfk.util.Resources;
+import org.jboss.quickstarts.wfk.util.RestStubs;
+import org.jboss.quickstarts.wfk.util.StatementCounter;
 import org.jboss.shrinkwrap.api.Archive;
 import org.jboss.shrinkwrap.api.ShrinkWrap;
 import org.jboss.shrinkwrap.api.asset.EmptyAsset;
@@ -87,17 +130,41 @@ public class BookingRegistrationTest {
                         CustomerRepository.class, 
                         CustomerValidator.class, 
                         CustomerService.class, 
+                        CustomerImport.class,
                         Taxi.class, 
                         TaxiRESTService.class, 
                         TaxiRepository.class, 
                         TaxiValidator.class, 
                         TaxiService.class,
+                        TaxiSeatIndex.class,
+                        TaxiImport.class,
                         Booking.class, 
                         BookingRESTService.class, 
                         BookingRepository.class, 
                         BookingValidator.class, 
                         BookingService.class,
-                        Resources.class)
+                        BookingSummary.class,
+                        BookingAvailabilityIndex.class,
+                        TaxiCalendar.class,
+                        TaxiAvailabilityRESTService.class,
+                        FreeTaxiRESTService.class,
+                        AfterCommit.class,
+                        ChangeCounter.class,
+                        ChangeCounters.class,
+                        IdempotencyStore.class,
+                        BulkImporter.class,
+                        ImportReader.class,
+                        Resources.class,
+                        Pagination.class,
+                        JsonArrayStreamer.class,
+                        JacksonConfig.class,
+                        StatementCounter.class,
+                        RequestMetrics.class,
+                        RequestMetricsInterceptor.class,
+                        LatencyHistogram.class,
+                        ConditionalGet.class,
+                        DateParam.class,
+                        RestStubs.class)
             .addAsLibraries(libs)
             .addAsResource("META-INF/test-persistence.xml", "META-INF/persistence.xml")
             .addAsWebInfResource("arquillian-ds.xml")
@@ -117,6 +184,16 @@ public class BookingRegistrationTest {
     @Inject
     TaxiService taxiService;
     @Inject
+    TaxiAvailabilityRESTService taxiAvailabilityRESTService;
+    @Inject
+    FreeTaxiRESTService freeTaxiRESTService;
+    @Inject
+    BookingAvailabilityIndex availability;
+    @Inject
+    EntityManager em;
+    @Inject
+    UserTransaction transaction;
+    @Inject
     @Named("logger") Logger log;
 
     //Set millis 498484800000 from 1985-10-10T12:00:00.000Z
@@ -143,11 +220,11 @@ public class BookingRegistrationTest {
     @InSequence(1)
     public void testRegister() throws Exception {
         
-    	customerRESTService.createCustomer(customer);
-        taxiRESTService.createTaxi(taxi);
+    	customerRESTService.createCustomer(customer, null);
+        taxiRESTService.createTaxi(taxi, null);
         
         Booking booking = createBookingInstance(customer.getId(),taxi.getId(),date);
-        Response response = bookingRESTService.createBooking(booking);
+        Response response = bookingRESTService.createBooking(booking, null);
         
         assertEquals("Unexpected response status", 201, response.getStatus());
         log.info(" New booking was persisted and returned status " + response.getStatus());
@@ -161,7 +238,7 @@ public class BookingRegistrationTest {
     public void testInvalidRegister() throws Exception {
        
         Booking booking=createBookingInstance((long)99999,(long)99999,date);
-        Response response = bookingRESTService.createBooking(booking);
+        Response response = bookingRESTService.createBooking(booking, null);
         
         //Check that it's a bad request (error 400)
         assertEquals("Unexpected response status", 400, response.getStatus());
@@ -179,20 +256,20 @@ public class BookingRegistrationTest {
     public void testDuplicateBooking() throws Exception {
         
     	// Create two customers and a taxi object
-    	customerRESTService.createCustomer(customer2);
-    	customerRESTService.createCustomer(customer3);
-        taxiRESTService.createTaxi(taxi2);
+    	customerRESTService.createCustomer(customer2, null);
+    	customerRESTService.createCustomer(customer3, null);
+        taxiRESTService.createTaxi(taxi2, null);
         
         // Register a booking
         Booking booking1 = createBookingInstance(customer2.getId(),taxi2.getId(),date);
-        Response response1 = bookingRESTService.createBooking(booking1);
+        Response response1 = bookingRESTService.createBooking(booking1, null);
         
       	// Register a second booking with same date and taxi
         Booking booking2 = createBookingInstance(customer3.getId(),taxi2.getId(),date);
-        Response response2 = bookingRESTService.createBooking(booking2);
+        Response response2 = bookingRESTService.createBooking(booking2, null);
 
         assertEquals("Unexpected response status",201, response1.getStatus());
-    	assertEquals("Unexpected response status",400, response2.getStatus());
+    	assertEquals("Unexpected response status",409, response2.getStatus());
         assertEquals("Unexpected response.getEntity(). It contains" + response2.getEntity(), 1,
             ((Map<String, String>) response2.getEntity()).size());
         log.info("Duplicate customer register attempt failed with return code " + response2.getStatus());
@@ -205,12 +282,12 @@ public class BookingRegistrationTest {
     public void testRetrieveAllBookings() throws Exception {
         
         Booking booking1 = createBookingInstance((long)10001,(long)10001, date);
-        bookingRESTService.createBooking(booking1);
+        bookingRESTService.createBooking(booking1, null);
         
         Booking booking2 = createBookingInstance((long)10002,(long)10002, date);
-        bookingRESTService.createBooking(booking2);
+        bookingRESTService.createBooking(booking2, null);
         
-        Response response = bookingRESTService.retrieveAllBookings();
+        Response response = bookingRESTService.retrieveAllBookings(null, null, null, null, null, null, null, null, null, null);
 
         assertEquals("Unexpected response status", 200, response.getStatus());
         log.info("List of all bookings was persisted and returned status " + response.getStatus());
@@ -221,8 +298,8 @@ public class BookingRegistrationTest {
    @InSequence(5)
    public void testDeleteBooking() throws Exception {
    
-   		customerRESTService.createCustomer(customer4);
-        taxiRESTService.createTaxi(taxi3);
+   		customerRESTService.createCustomer(customer4, null);
+        taxiRESTService.createTaxi(taxi3, null);
         
         Booking booking3 = createBookingInstance(customer4.getId(),taxi3.getId(),date);
         Response response = bookingRESTService.deleteBooking(booking3.getId()); 
@@ -232,6 +309,512 @@ public class BookingRegistrationTest {
         
     }
 
+    //Test that a batch reports a result per booking and rejects a taxi/date claimed twice within the batch
+    @SuppressWarnings("unchecked")
+    @Test
+    @InSequence(6)
+    public void testBatchRegister() throws Exception {
+
+        customerRESTService.createCustomer(customer5, null);
+        taxiRESTService.createTaxi(taxi4, null);
+        taxiRESTService.createTaxi(taxi5, null);
+
+        List<Booking> bookings = new ArrayList<Booking>();
+        bookings.add(createBookingInstance(customer5.getId(), taxi4.getId(), date));
+        bookings.add(createBookingInstance(customer5.getId(), taxi5.getId(), date));
+        bookings.add(createBookingInstance(customer5.getId(), taxi4.getId(), date));
+        Response response = bookingRESTService.createBookings(bookings);
+
+        assertEquals("Unexpected response status", 200, response.getStatus());
+        List<Map<String, Object>> results = (List<Map<String, Object>>) response.getEntity();
+        assertEquals("Unexpected number of results", 3, results.size());
+        assertEquals("Unexpected status for first booking", 201, results.get(0).get("status"));
+        assertEquals("Unexpected status for second booking", 201, results.get(1).get("status"));
+        assertEquals("Unexpected status for duplicate booking", 409, results.get(2).get("status"));
+        log.info("Batch booking register returned " + results);
+    }
+
+    //Test that listing bookings takes the same number of SQL statements however many customers and taxis they refer to
+    @Test
+    @InSequence(7)
+    public void testRetrieveAllBookingsStatementCount() throws Exception {
+
+        StatementCounter.reset();
+        Response before = bookingRESTService.retrieveAllBookings(null, null, null, null, null, null, null, null, null, null);
+        int statementsBefore = StatementCounter.get();
+
+        // Add bookings for customers and taxis that no other booking refers to yet
+        customerRESTService.createCustomer(customer1, null);
+        taxiRESTService.createTaxi(taxi1, null);
+        bookingRESTService.createBooking(createBookingInstance(customer1.getId(), taxi1.getId(), date), null);
+        bookingRESTService.createBooking(createBookingInstance(customer.getId(), taxi1.getId(), new Date(2016, 01, 03)), null);
+
+        StatementCounter.reset();
+        Response after = bookingRESTService.retrieveAllBookings(null, null, null, null, null, null, null, null, null, null);
+        int statementsAfter = StatementCounter.get();
+
+        assertEquals("Unexpected number of bookings", ((List<?>) before.getEntity()).size() + 2,
+            ((List<?>) after.getEntity()).size());
+        assertEquals("Listing bookings should not issue a statement per customer or taxi", statementsBefore,
+            statementsAfter);
+        log.info("Listing bookings took " + statementsAfter + " SQL statements");
+    }
+
+    //Test that the bookings of a taxi over a range of days can be listed and counted
+    @SuppressWarnings("unchecked")
+    @Test
+    @InSequence(8)
+    public void testRetrieveBookingsBetween() throws Exception {
+
+        Customer rangeCustomer = createCustomerInstance("Tom", "tom@mailinator.com", "01225593235");
+        Taxi rangeTaxi = createTaxiInstance(6, "p811snd");
+        customerRESTService.createCustomer(rangeCustomer, null);
+        taxiRESTService.createTaxi(rangeTaxi, null);
+        Date nextDay = new Date(2016, 01, 03);
+        bookingRESTService.createBooking(createBookingInstance(rangeCustomer.getId(), rangeTaxi.getId(), date), null);
+        bookingRESTService.createBooking(createBookingInstance(rangeCustomer.getId(), rangeTaxi.getId(), nextDay), null);
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+        DateParam from = new DateParam(format.format(date));
+        DateParam to = new DateParam(format.format(nextDay));
+
+        Response count = bookingRESTService.countBookings(from, from, rangeTaxi.getId(), null, null, null);
+        assertEquals("Unexpected response status", 200, count.getStatus());
+        assertEquals("Unexpected count", Long.valueOf(1), ((Map<String, Long>) count.getEntity()).get("count"));
+
+        Response response = bookingRESTService.retrieveAllBookings(null, null, from, to, rangeTaxi.getId(), null, null,
+            null, null, null);
+        assertEquals("Unexpected response status", 200, response.getStatus());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(output);
+        List<Map<String, Object>> bookings = new ObjectMapper().readValue(output.toByteArray(), List.class);
+        assertEquals("Unexpected number of bookings", 2, bookings.size());
+        log.info("Bookings between " + from.getDate() + " and " + to.getDate() + ": " + bookings);
+    }
+
+    //Test that a taxi's bookings can be listed as summaries, with the customer's name and the taxi's reg
+    @SuppressWarnings("unchecked")
+    @Test
+    @InSequence(9)
+    public void testRetrieveBookingSummaries() throws Exception {
+
+        Customer summaryCustomer = createCustomerInstance("Sue", "sue@mailinator.com", "01225593236");
+        Taxi summaryTaxi = createTaxiInstance(4, "s811sum");
+        customerRESTService.createCustomer(summaryCustomer, null);
+        taxiRESTService.createTaxi(summaryTaxi, null);
+        Booking booking = createBookingInstance(summaryCustomer.getId(), summaryTaxi.getId(), date);
+        bookingRESTService.createBooking(booking, null);
+
+        Response response = bookingRESTService.retrieveBookingsByTaxi(summaryTaxi.getId(), "summary", null, null);
+        assertEquals("Unexpected response status", 200, response.getStatus());
+        List<BookingSummary> summaries = (List<BookingSummary>) response.getEntity();
+        assertEquals("Unexpected number of summaries", 1, summaries.size());
+        BookingSummary summary = summaries.get(0);
+        assertEquals("Unexpected booking", booking.getId(), summary.getBookingId());
+        assertEquals("Unexpected customer", summaryCustomer.getId(), summary.getCustomerId());
+        assertEquals("Unexpected customer name", "Sue", summary.getCustomerName());
+        assertEquals("Unexpected reg", "s811sum", summary.getReg());
+        log.info("Summary of booking " + summary.getBookingId() + ": " + summary.getCustomerName() + " in "
+            + summary.getReg() + " on " + summary.getDate());
+    }
+
+    //Test that a taxi's availability shows the day it is booked, and the days either side of it as free
+    @SuppressWarnings("unchecked")
+    @Test
+    @InSequence(10)
+    public void testRetrieveTaxiAvailability() throws Exception {
+
+        Customer availabilityCustomer = createCustomerInstance("Ava", "ava@mailinator.com", "01225593237");
+        Taxi availabilityTaxi = createTaxiInstance(5, "a811val");
+        customerRESTService.createCustomer(availabilityCustomer, null);
+        taxiRESTService.createTaxi(availabilityTaxi, null);
+        bookingRESTService.createBooking(createBookingInstance(availabilityCustomer.getId(), availabilityTaxi.getId(),
+            date), null);
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+        DateParam from = new DateParam(format.format(new Date(date.getTime() - 24 * 60 * 60 * 1000)));
+        DateParam to = new DateParam(format.format(new Date(date.getTime() + 24 * 60 * 60 * 1000)));
+        Response response = taxiAvailabilityRESTService.retrieveAvailability(availabilityTaxi.getId(), from, to);
+        assertEquals("Unexpected response status", 200, response.getStatus());
+        Map<String, Object> availability = (Map<String, Object>) response.getEntity();
+        assertEquals("Unexpected booked days", 1, ((List<Date>) availability.get("booked")).size());
+        assertEquals("Unexpected booked day", format.format(date),
+            format.format(((List<Date>) availability.get("booked")).get(0)));
+        assertEquals("Unexpected free days", 2, ((List<Date>) availability.get("free")).size());
+        log.info("Availability of taxi " + availabilityTaxi.getId() + ": " + availability);
+    }
+
+    //Test that a search for free taxis finds a large enough taxi that is free, and not one booked that day
+    @SuppressWarnings("unchecked")
+    @Test
+    @InSequence(11)
+    public void testRetrieveFreeTaxis() throws Exception {
+
+        Customer freeCustomer = createCustomerInstance("Fay", "fay@mailinator.com", "01225593238");
+        Taxi bookedTaxi = createTaxiInstance(20, "b811fre");
+        Taxi freeTaxi = createTaxiInstance(20, "f811fre");
+        customerRESTService.createCustomer(freeCustomer, null);
+        taxiRESTService.createTaxi(bookedTaxi, null);
+        taxiRESTService.createTaxi(freeTaxi, null);
+        bookingRESTService.createBooking(createBookingInstance(freeCustomer.getId(), bookedTaxi.getId(), date), null);
+
+        DateParam day = new DateParam(new SimpleDateFormat("yyyy-MM-dd").format(date));
+        Response response = freeTaxiRESTService.retrieveFreeTaxis(day, 20, 1000);
+        assertEquals("Unexpected response status", 200, response.getStatus());
+        List<Long> ids = new ArrayList<Long>();
+        for (Taxi taxi : (List<Taxi>) response.getEntity()) {
+            assertTrue("A taxi with too few seats was found", taxi.getNumSeats() >= 20);
+            ids.add(taxi.getId());
+        }
+        assertTrue("The free taxi was not found", ids.contains(freeTaxi.getId()));
+        assertFalse("The booked taxi was found", ids.contains(bookedTaxi.getId()));
+        log.info("Free taxis with 20 seats on " + day.getDate() + ": " + ids);
+    }
+
+    //Test that of many concurrent requests for the same taxis and days, exactly one per taxi and day is booked
+    @Test
+    @InSequence(12)
+    public void testConcurrentBookingAdmission() throws Exception {
+
+        final int taxis = 5;
+        final int days = 4;
+        final int requests = 10000;
+
+        final Customer rushCustomer = createCustomerInstance("Ray", "ray@mailinator.com", "01225593239");
+        customerRESTService.createCustomer(rushCustomer, null);
+        final List<Taxi> rushTaxis = new ArrayList<Taxi>();
+        for (int t = 0; t < taxis; t++) {
+            Taxi rushTaxi = createTaxiInstance(4, "r81" + t + "run");
+            taxiRESTService.createTaxi(rushTaxi, null);
+            rushTaxis.add(rushTaxi);
+        }
+
+        // Every request goes for one of taxis * days slots, so each slot is fought over by requests / slots requests
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        List<Future<Integer>> statuses = new ArrayList<Future<Integer>>(requests);
+        for (int i = 0; i < requests; i++) {
+            final Taxi rushTaxi = rushTaxis.get(i % taxis);
+            final Date day = new Date(2016, 02, 1 + (i / taxis) % days);
+            statuses.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    Booking booking = new Booking();
+                    booking.setCustomer(rushCustomer);
+                    booking.setTaxi(rushTaxi);
+                    booking.setBookingDate(day);
+                    return bookingRESTService.createBooking(booking, null).getStatus();
+                }
+            }));
+        }
+        executor.shutdown();
+        assertTrue("The requests did not finish", executor.awaitTermination(5, TimeUnit.MINUTES));
+
+        int[] created = new int[taxis * days];
+        for (int i = 0; i < requests; i++) {
+            int status = statuses.get(i).get();
+            if (status == 201) {
+                created[i % (taxis * days)]++;
+            } else {
+                assertEquals("Unexpected response status", 409, status);
+            }
+        }
+        for (int slot = 0; slot < created.length; slot++) {
+            assertEquals("Unexpected number of bookings for taxi " + slot % taxis + " on day " + slot / taxis, 1,
+                created[slot]);
+        }
+        for (Taxi rushTaxi : rushTaxis) {
+            Response response = bookingRESTService.retrieveBookingsByTaxi(rushTaxi.getId(), null, null, null);
+            assertEquals("Unexpected number of bookings persisted", days, ((List<?>) response.getEntity()).size());
+        }
+        log.info(requests + " concurrent booking requests for " + taxis * days + " taxi days were all admitted once");
+    }
+
+    //Test a booking against a taxi that another node has booked or is booking, behind this node's availability index
+    @Test
+    @InSequence(13)
+    public void testBookingLockedByAnotherNode() throws Exception {
+
+        final Customer lockCustomer = createCustomerInstance("Lou", "lou@mailinator.com", "01225593240");
+        final Taxi lockTaxi = createTaxiInstance(4, "l811ock");
+        customerRESTService.createCustomer(lockCustomer, null);
+        taxiRESTService.createTaxi(lockTaxi, null);
+        Date bookedDay = new Date(2016, 03, 01);
+        Date lockedDay = new Date(2016, 03, 02);
+
+        // Another node books the taxi; it writes to the same database but not to this node's index
+        transaction.begin();
+        Booking elsewhere = new Booking();
+        elsewhere.setCustomer(em.find(Customer.class, lockCustomer.getId()));
+        elsewhere.setTaxi(em.find(Taxi.class, lockTaxi.getId()));
+        elsewhere.setBookingDate(bookedDay);
+        em.persist(elsewhere);
+        transaction.commit();
+
+        Response duplicate = bookingRESTService.createBooking(createBookingInstance(lockCustomer.getId(),
+            lockTaxi.getId(), bookedDay), null);
+        assertEquals("Unexpected response status", 409, duplicate.getStatus());
+
+        // Another node is in the middle of booking the taxi, and holds its row until told to finish
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        ExecutorService otherNode = Executors.newSingleThreadExecutor();
+        Future<?> holder = otherNode.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                transaction.begin();
+                try {
+                    em.find(Taxi.class, lockTaxi.getId(), LockModeType.PESSIMISTIC_WRITE);
+                    locked.countDown();
+                    finish.await(1, TimeUnit.MINUTES);
+                } finally {
+                    transaction.rollback();
+                }
+                return null;
+            }
+        });
+        assertTrue("The other node did not lock the taxi", locked.await(1, TimeUnit.MINUTES));
+
+        Response waiting = bookingRESTService.createBooking(createBookingInstance(lockCustomer.getId(),
+            lockTaxi.getId(), lockedDay), null);
+        finish.countDown();
+        holder.get();
+        otherNode.shutdown();
+        assertEquals("Unexpected response status", 503, waiting.getStatus());
+        assertNotNull("No Retry-After header", waiting.getMetadata().getFirst("Retry-After"));
+
+        // Once the other node has let go the same request goes through
+        Response retried = bookingRESTService.createBooking(createBookingInstance(lockCustomer.getId(),
+            lockTaxi.getId(), lockedDay), null);
+        assertEquals("Unexpected response status", 201, retried.getStatus());
+        log.info("Booking behind another node's lock returned " + waiting.getStatus() + ", then "
+            + retried.getStatus());
+    }
+
+    //Test that the same booking sent many times at once with one Idempotency-Key is only made once
+    @Test
+    @InSequence(14)
+    public void testConcurrentIdempotentBooking() throws Exception {
+
+        final Customer keyCustomer = createCustomerInstance("Kit", "kit@mailinator.com", "01225593241");
+        final Taxi keyTaxi = createTaxiInstance(4, "k811eys");
+        customerRESTService.createCustomer(keyCustomer, null);
+        taxiRESTService.createTaxi(keyTaxi, null);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Response>> responses = new ArrayList<Future<Response>>();
+        for (int i = 0; i < 8; i++) {
+            responses.add(executor.submit(new Callable<Response>() {
+                @Override
+                public Response call() {
+                    Booking booking = new Booking();
+                    booking.setCustomer(keyCustomer);
+                    booking.setTaxi(keyTaxi);
+                    booking.setBookingDate(date);
+                    return bookingRESTService.createBooking(booking, "kit-booking-1");
+                }
+            }));
+        }
+        executor.shutdown();
+
+        Long bookingId = null;
+        int replayed = 0;
+        for (Future<Response> future : responses) {
+            Response response = future.get(1, TimeUnit.MINUTES);
+            assertEquals("Unexpected response status", 201, response.getStatus());
+            Long id = ((Booking) response.getEntity()).getId();
+            if (bookingId == null) {
+                bookingId = id;
+            }
+            assertEquals("A duplicate made a booking of its own", bookingId, id);
+            if (response.getMetadata().getFirst(IdempotencyStore.REPLAYED_HEADER) != null) {
+                replayed++;
+            }
+        }
+        assertEquals("Unexpected number of replays", 7, replayed);
+        Response bookings = bookingRESTService.retrieveBookingsByTaxi(keyTaxi.getId(), null, null, null);
+        assertEquals("Unexpected number of bookings persisted", 1, ((List<?>) bookings.getEntity()).size());
+        log.info("8 requests with one Idempotency-Key made booking " + bookingId);
+    }
+
+    //Tests that the streamed export writes every booking, in full and as summaries, flushing per fetch rather than per
+    //booking
+    @Test
+    @InSequence(15)
+    public void testExportAllBookings() throws Exception {
+        List<?> bookings = (List<?>) bookingRESTService.retrieveAllBookings(null, null, null, null, null, null, null,
+            null, null, null).getEntity();
+        assertTrue("Too few bookings to tell a flush per booking apart", bookings.size() > 3);
+
+        for (String view : new String[] {null, "summary"}) {
+            Response response = bookingRESTService.exportAllBookings(view, null, null);
+            assertEquals("Unexpected response status", 200, response.getStatus());
+
+            final int[] flushes = {0};
+            ByteArrayOutputStream output = new ByteArrayOutputStream() {
+                @Override
+                public void flush() {
+                    flushes[0]++;
+                }
+            };
+            ((StreamingOutput) response.getEntity()).write(output);
+
+            List<?> exported = new ObjectMapper().readValue(output.toByteArray(), List.class);
+            assertEquals("Unexpected number of bookings exported in view " + view, bookings.size(), exported.size());
+            // After the first booking and at the end
+            assertTrue("The export was flushed " + flushes[0] + " times for " + bookings.size() + " bookings",
+                flushes[0] <= 3);
+        }
+    }
+
+    //Tests that a taxi and day booked where neither the validator nor the availability index can see it is still
+    //refused with 409, by the unique constraint when the insert or update is flushed
+    @Test
+    @InSequence(16)
+    public void testDuplicateBehindValidator() throws Exception {
+
+        Customer hiddenCustomer = createCustomerInstance("Vic", "vic@mailinator.com", "01225593242");
+        Taxi hiddenTaxi = createTaxiInstance(4, "v811dat");
+        customerRESTService.createCustomer(hiddenCustomer, null);
+        taxiRESTService.createTaxi(hiddenTaxi, null);
+        Date hiddenDay = new Date(2016, 04, 01);
+
+        // Written straight to the table, in a transaction of its own, so BookingRepository never indexes it
+        transaction.begin();
+        Booking hidden = new Booking();
+        hidden.setCustomer(em.find(Customer.class, hiddenCustomer.getId()));
+        hidden.setTaxi(em.find(Taxi.class, hiddenTaxi.getId()));
+        hidden.setBookingDate(hiddenDay);
+        em.persist(hidden);
+        transaction.commit();
+        assertNull("The index saw the booking", availability.findBookingId(hiddenTaxi.getId(), hiddenDay));
+
+        Response created = bookingRESTService.createBooking(createBookingInstance(hiddenCustomer.getId(),
+            hiddenTaxi.getId(), hiddenDay), null);
+        assertEquals("Unexpected response status", 409, created.getStatus());
+        assertNotNull("Not reported as a clash of bookings", ((Map<?, ?>) created.getEntity()).get("booking"));
+
+        // Moving another booking of the taxi onto the day goes through the same flush
+        Response other = bookingRESTService.createBooking(createBookingInstance(hiddenCustomer.getId(),
+            hiddenTaxi.getId(), new Date(2016, 04, 02)), null);
+        assertEquals("Unexpected response status", 201, other.getStatus());
+        Booking moved = createBookingInstance(hiddenCustomer.getId(), hiddenTaxi.getId(), hiddenDay);
+        moved.setId(((Booking) other.getEntity()).getId());
+        moved.setVersion(((Booking) other.getEntity()).getVersion());
+        Response updated = bookingRESTService.updateBooking(moved.getId(), moved, null);
+        assertEquals("Unexpected response status", 409, updated.getStatus());
+
+        Response bookings = bookingRESTService.retrieveBookingsByTaxi(hiddenTaxi.getId(), null, null, null);
+        assertEquals("Unexpected number of bookings persisted", 2, ((List<?>) bookings.getEntity()).size());
+        log.info("Bookings behind the validator returned " + created.getStatus() + " and " + updated.getStatus());
+    }
+
+    //Tests that an update is refused with 412 once the ETag in its If-Match is stale, even though the body holds the
+    //current version, and that the refused update leaves the booking as it was
+    @Test
+    @InSequence(17)
+    public void testStaleIfMatchBookingUpdate() throws Exception {
+
+        Customer matchCustomer = createCustomerInstance("Ira", "ira@mailinator.com", "01225593243");
+        Taxi matchTaxi = createTaxiInstance(4, "i811fma");
+        customerRESTService.createCustomer(matchCustomer, null);
+        taxiRESTService.createTaxi(matchTaxi, null);
+        Response created = bookingRESTService.createBooking(createBookingInstance(matchCustomer.getId(),
+            matchTaxi.getId(), new Date(2016, 05, 01)), null);
+        long id = ((Booking) created.getEntity()).getId();
+        EntityTag tag = (EntityTag) bookingRESTService.retrieveBookingById(id, null, null).getMetadata()
+            .getFirst(HttpHeaders.ETAG);
+        HttpHeaders ifMatch = RestStubs.headers(HttpHeaders.IF_MATCH, "\"" + tag.getValue() + "\"");
+
+        Date movedDay = new Date(2016, 05, 02);
+        Booking first = createBookingInstance(matchCustomer.getId(), matchTaxi.getId(), movedDay);
+        first.setId(id);
+        Response updated = bookingRESTService.updateBooking(id, first, ifMatch);
+        assertEquals("Unexpected response status", 200, updated.getStatus());
+        Long version = ((Booking) updated.getEntity()).getVersion();
+
+        // The body is at the current version, the tag is still the one read before the first update
+        Booking second = createBookingInstance(matchCustomer.getId(), matchTaxi.getId(), new Date(2016, 05, 03));
+        second.setId(id);
+        second.setVersion(version);
+        Response stale = bookingRESTService.updateBooking(id, second, ifMatch);
+        assertEquals("Unexpected response status", 412, stale.getStatus());
+
+        // A tag that was never one of ours can not match either
+        try {
+            bookingRESTService.updateBooking(id, second, RestStubs.headers(HttpHeaders.IF_MATCH, "\"stale\""));
+            fail("An update with a foreign If-Match tag was not refused");
+        } catch (EJBException e) {
+            // Called as an EJB rather than over HTTP, the container wraps what JAX-RS would have sent as the response
+            assertTrue("Unexpected failure " + e.getCause(), e.getCause() instanceof WebApplicationException);
+            assertEquals("Unexpected response status", 412,
+                ((WebApplicationException) e.getCause()).getResponse().getStatus());
+        }
+
+        Booking after = (Booking) bookingRESTService.retrieveBookingById(id, null, null).getEntity();
+        assertEquals("A refused update moved the booking", BookingAvailabilityIndex.dayOf(movedDay),
+            BookingAvailabilityIndex.dayOf(after.getBookingDate()));
+        assertEquals("A refused update changed the version", version, after.getVersion());
+        assertEquals("The index followed a refused update", Long.valueOf(id),
+            availability.findBookingId(matchTaxi.getId(), movedDay));
+    }
+
+    //Tests that a page from the end of the list, ETag included, takes as many SQL statements as the first page
+    @Test
+    @InSequence(18)
+    public void testDeepPageStatementCount() throws Exception {
+        List<?> bookings = (List<?>) bookingRESTService.retrieveAllBookings(null, null, null, null, null, null, null,
+            null, null, null).getEntity();
+        assertTrue("Too few bookings to page through", bookings.size() > 4);
+        Long deep = ((Booking) bookings.get(bookings.size() - 3)).getId();
+        String uri = "http://localhost/test/rest/bookings?limit=2";
+
+        StatementCounter.reset();
+        Response first = bookingRESTService.retrieveAllBookings(2, null, null, null, null, null, null,
+            RestStubs.uriInfo(uri), null, null);
+        int statementsFirst = StatementCounter.get();
+
+        StatementCounter.reset();
+        Response last = bookingRESTService.retrieveAllBookings(2, deep, null, null, null, null, null,
+            RestStubs.uriInfo(uri), null, null);
+        int statementsDeep = StatementCounter.get();
+
+        assertEquals("Unexpected page size", 2, ((List<?>) first.getEntity()).size());
+        assertEquals("Unexpected page size", 2, ((List<?>) last.getEntity()).size());
+        assertNotNull("The page has no ETag", last.getMetadata().getFirst(HttpHeaders.ETAG));
+        assertEquals("A deep page took more statements than the first", statementsFirst, statementsDeep);
+        log.info("A page of bookings took " + statementsDeep + " SQL statements, ETag included");
+    }
+
+    //Tests that revalidating the count and a filtered list reads the change counters only, not the Bookings
+    @Test
+    @InSequence(19)
+    public void testFilteredRevalidationStatementCount() throws Exception {
+        List<?> bookings = (List<?>) bookingRESTService.retrieveAllBookings(null, null, null, null, null, null, null,
+            null, null, null).getEntity();
+        Long taxiId = ((Booking) bookings.get(0)).getTaxi().getId();
+
+        Response count = bookingRESTService.countBookings(null, null, taxiId, null, null, null);
+        EntityTag countTag = (EntityTag) count.getMetadata().getFirst(HttpHeaders.ETAG);
+        assertNotNull("The count has no ETag", countTag);
+        HttpHeaders headers = RestStubs.headers(HttpHeaders.IF_NONE_MATCH, "\"" + countTag.getValue() + "\"");
+        StatementCounter.reset();
+        Response countUnchanged = bookingRESTService.countBookings(null, null, taxiId, null,
+            RestStubs.request(headers), headers);
+        assertEquals("Unexpected response status", 304, countUnchanged.getStatus());
+        assertEquals("Revalidating the count read more than the change counters", 1, StatementCounter.get());
+
+        Response list = bookingRESTService.retrieveAllBookings(null, null, null, null, taxiId, null, null, null, null,
+            null);
+        EntityTag listTag = (EntityTag) list.getMetadata().getFirst(HttpHeaders.ETAG);
+        assertNotNull("The filtered list has no ETag", listTag);
+        headers = RestStubs.headers(HttpHeaders.IF_NONE_MATCH, "\"" + listTag.getValue() + "\"");
+        StatementCounter.reset();
+        Response listUnchanged = bookingRESTService.retrieveAllBookings(null, null, null, null, taxiId, null, null,
+            null, RestStubs.request(headers), headers);
+        assertEquals("Unexpected response status", 304, listUnchanged.getStatus());
+        assertEquals("Revalidating the filtered list read more than the change counters", 1, StatementCounter.get());
+    }
+
     /**
      * <p>A utility method to construct a {@link org.jboss.quickstarts.wfk.Booking.Booking Booking} object for use in
      * testing. This object is not persisted.</p>
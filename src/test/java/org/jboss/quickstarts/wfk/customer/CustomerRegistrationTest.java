@@ -17,26 +17,59 @@
 package org.jboss.quickstarts.wfk.customer;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.net.URLDecoder;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import javax.ejb.EJBException;
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.transaction.UserTransaction;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.jboss.arquillian.container.test.api.Deployment;
 import org.jboss.arquillian.junit.Arquillian;
 import org.jboss.arquillian.junit.InSequence;
 import org.jboss.quickstarts.wfk.customer.Customer;
+import org.jboss.quickstarts.wfk.customer.CustomerImport;
 import org.jboss.quickstarts.wfk.customer.CustomerRESTService;
 import org.jboss.quickstarts.wfk.customer.CustomerRepository;
 import org.jboss.quickstarts.wfk.customer.CustomerService;
 import org.jboss.quickstarts.wfk.customer.CustomerValidator;
+import org.jboss.quickstarts.wfk.util.AfterCommit;
+import org.jboss.quickstarts.wfk.util.ChangeCounter;
+import org.jboss.quickstarts.wfk.util.ChangeCounters;
+import org.jboss.quickstarts.wfk.util.BulkImporter;
+import org.jboss.quickstarts.wfk.util.IdempotencyStore;
+import org.jboss.quickstarts.wfk.util.ImportReader;
+import org.jboss.quickstarts.wfk.util.JacksonConfig;
+import org.jboss.quickstarts.wfk.util.JsonArrayStreamer;
+import org.jboss.quickstarts.wfk.util.ConditionalGet;
+import org.jboss.quickstarts.wfk.util.LatencyHistogram;
+import org.jboss.quickstarts.wfk.util.Pagination;
+import org.jboss.quickstarts.wfk.util.RequestMetrics;
+import org.jboss.quickstarts.wfk.util.RequestMetricsInterceptor;
 import org.jboss.quickstarts.wfk.util.Resources;
+import org.jboss.quickstarts.wfk.util.RestStubs;
+import org.jboss.quickstarts.wfk.util.StatementCounter;
 import org.jboss.shrinkwrap.api.Archive;
 import org.jboss.shrinkwrap.api.ShrinkWrap;
 import org.jboss.shrinkwrap.api.asset.EmptyAsset;
@@ -81,7 +114,23 @@ public class CustomerRegistrationTest {
                         CustomerRepository.class, 
                         CustomerValidator.class, 
                         CustomerService.class, 
-                        Resources.class)
+                        Resources.class,
+                        Pagination.class,
+                        JsonArrayStreamer.class,
+                        JacksonConfig.class,
+                        StatementCounter.class,
+                        RequestMetrics.class,
+                        RequestMetricsInterceptor.class,
+                        LatencyHistogram.class,
+                        ConditionalGet.class,
+                        AfterCommit.class,
+                        ChangeCounter.class,
+                        ChangeCounters.class,
+                        IdempotencyStore.class,
+                        CustomerImport.class,
+                        BulkImporter.class,
+                        ImportReader.class,
+                        RestStubs.class)
             .addAsLibraries(libs)
             .addAsResource("META-INF/test-persistence.xml", "META-INF/persistence.xml")
             .addAsWebInfResource("arquillian-ds.xml")
@@ -92,6 +141,12 @@ public class CustomerRegistrationTest {
 
     @Inject
     CustomerRESTService customerRESTService;
+
+    @Inject
+    CustomerRepository customerRepository;
+
+    @Inject
+    UserTransaction transaction;
     
     @Inject
     @Named("logger") Logger log;
@@ -103,7 +158,7 @@ public class CustomerRegistrationTest {
     @InSequence(1)
     public void testRegister() throws Exception {
         Customer customer = createCustomerInstance("Jack", "jack@mailinator.com", "07545214575");
-        Response response = customerRESTService.createCustomer(customer);
+        Response response = customerRESTService.createCustomer(customer, null);
 
         assertEquals("Unexpected response status", 201, response.getStatus());
         log.info(" New customer was persisted and returned status " + response.getStatus());
@@ -114,7 +169,7 @@ public class CustomerRegistrationTest {
     @InSequence(2)
     public void testInvalidRegister() throws Exception {
         Customer customer = createCustomerInstance("", "", "");
-        Response response = customerRESTService.createCustomer(customer);
+        Response response = customerRESTService.createCustomer(customer, null);
 
         assertEquals("Unexpected response status", 400, response.getStatus());
         assertNotNull("response.getEntity() should not be null", response.getEntity());
@@ -130,11 +185,11 @@ public class CustomerRegistrationTest {
         // Register an initial user
     	
     	Customer customer = createCustomerInstance("Jane", "jane@mailinator.com", "01234569874");
-        customerRESTService.createCustomer(customer);
+        customerRESTService.createCustomer(customer, null);
 
         // Register a different user with the same email
         Customer anotherCustomer = createCustomerInstance("John", "jane@mailinator.com", "05555555555");
-        Response response = customerRESTService.createCustomer(anotherCustomer);
+        Response response = customerRESTService.createCustomer(anotherCustomer, null);
 
         assertEquals("Unexpected response status", 409, response.getStatus());
         assertNotNull("response.getEntity() should not be null", response.getEntity());
@@ -149,33 +204,319 @@ public class CustomerRegistrationTest {
     @InSequence(4)
     public void testRetrieveAllCustomers() throws Exception {
         Customer customer = createCustomerInstance("Jack", "jack@mailinator.com", "07545214575");
-        customerRESTService.createCustomer(customer);
+        customerRESTService.createCustomer(customer, null);
         
         Customer anotherCustomer = createCustomerInstance("John", "jane@mailinator.com", "05555555555");
-        customerRESTService.createCustomer(anotherCustomer);
+        customerRESTService.createCustomer(anotherCustomer, null);
         
-        Response response = customerRESTService.retrieveAllCustomers();
+        Response response = customerRESTService.retrieveAllCustomers(null, null, null, null, null);
 
         assertEquals("Unexpected response status", 200, response.getStatus());
         log.info(" List of all customers was persisted and returned status " + response.getStatus());
     }
 
+    //Tests that the streamed export writes every customer as one JSON array
+    @Test
+    @InSequence(5)
+    public void testExportAllCustomers() throws Exception {
+        Response response = customerRESTService.exportAllCustomers(null, null);
+        assertEquals("Unexpected response status", 200, response.getStatus());
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(output);
+        String json = output.toString("UTF-8");
+
+        assertTrue("Export is not a JSON array: " + json, json.startsWith("[") && json.endsWith("]"));
+        assertTrue("Export is missing a customer: " + json, json.contains("jane@mailinator.com"));
+        log.info(" Streamed export of all customers returned " + json.length() + " characters");
+    }
+
 	
 	//Delete customer method has been disabled so it instead logs a message saying unsupported operation
 	//So the method should still work and should receive a 201 message, even though deleting is disabled
 	@SuppressWarnings("unchecked") 
    	@Test
-   	@InSequence(5)
+   	@InSequence(6)
    	public void testDeleteCustomer() throws Exception {
    
    		Customer custToDelete = createCustomerInstance("Alex","alex@deleted.com","04545214575");
-   		Response response = customerRESTService.createCustomer(custToDelete);
+   		Response response = customerRESTService.createCustomer(custToDelete, null);
         
         assertEquals("Unexpected response status", 201, response.getStatus());
-        log.info(" Customer not deleted and returned status " + response.getStatus());   
-        
+        log.info(" Customer not deleted and returned status " + response.getStatus());
+
+    }
+
+    //Tests that an update with neither an If-Match tag nor a version is refused with 428 and leaves the customer as it
+    //was, and that the customer's ETag changes once it is updated
+    @Test
+    @InSequence(7)
+    public void testCustomerETagChangesOnUpdate() throws Exception {
+        Customer customer = createCustomerInstance("Etta", "etta@mailinator.com", "07545214576");
+        customerRESTService.createCustomer(customer, null);
+
+        Response before = customerRESTService.retrieveCustomerById(customer.getId(), null, null);
+        assertNotNull("No ETag was sent", before.getMetadata().getFirst("ETag"));
+
+        Customer blind = createCustomerInstance("Etta", "etta@mailinator.com", "07545214575");
+        blind.setId(customer.getId());
+        try {
+            customerRESTService.updateCustomer(customer.getId(), blind, null);
+            fail("An update without If-Match or a version was not refused");
+        } catch (EJBException e) {
+            // Called as an EJB rather than over HTTP, the container wraps what JAX-RS would have sent as the response
+            assertTrue("Unexpected failure " + e.getCause(), e.getCause() instanceof WebApplicationException);
+            assertEquals("Unexpected response status", 428,
+                ((WebApplicationException) e.getCause()).getResponse().getStatus());
+        }
+        Customer unchanged = (Customer) customerRESTService.retrieveCustomerById(customer.getId(), null, null)
+            .getEntity();
+        assertEquals("A refused update changed the customer", "07545214576", unchanged.getPhoneNumber());
+        assertEquals("A refused update changed the version", customer.getVersion(), unchanged.getVersion());
+
+        Customer changed = createCustomerInstance("Etta", "etta@mailinator.com", "07545214577");
+        changed.setId(customer.getId());
+        changed.setVersion(unchanged.getVersion());
+        Response updated = customerRESTService.updateCustomer(customer.getId(), changed, null);
+        assertEquals("Unexpected response status", 200, updated.getStatus());
+
+        Response after = customerRESTService.retrieveCustomerById(customer.getId(), null, null);
+        assertTrue("The version did not go up", ((Customer) after.getEntity()).getVersion() > 0);
+        assertFalse("The ETag did not change", before.getMetadata().getFirst("ETag")
+            .equals(after.getMetadata().getFirst("ETag")));
+        log.info(" Customer ETag went from " + before.getMetadata().getFirst("ETag") + " to "
+            + after.getMetadata().getFirst("ETag"));
+    }
+
+    //Tests that an update made against an old version is refused, and that one for a missing customer is a 404
+    @Test
+    @InSequence(8)
+    public void testStaleCustomerUpdate() throws Exception {
+        Customer customer = createCustomerInstance("Stan", "stan@mailinator.com", "07545214578");
+        customerRESTService.createCustomer(customer, null);
+
+        Customer first = createCustomerInstance("Stan", "stan@mailinator.com", "07545214579");
+        first.setId(customer.getId());
+        first.setVersion(customer.getVersion());
+        assertEquals("Unexpected response status", 200,
+            customerRESTService.updateCustomer(customer.getId(), first, null).getStatus());
+
+        // Still the version read before the first update
+        Customer second = createCustomerInstance("Stan", "stan@mailinator.com", "07545214570");
+        second.setId(customer.getId());
+        second.setVersion(customer.getVersion());
+        Response stale = customerRESTService.updateCustomer(customer.getId(), second, null);
+        assertEquals("Unexpected response status", 412, stale.getStatus());
+
+        Customer missing = createCustomerInstance("Stan", "stan.missing@mailinator.com", "07545214571");
+        missing.setId(Long.MAX_VALUE);
+        missing.setVersion(0L);
+        Response notFound = customerRESTService.updateCustomer(Long.MAX_VALUE, missing, null);
+        assertEquals("Unexpected response status", 404, notFound.getStatus());
+        log.info(" Stale update returned " + stale.getStatus() + ", missing customer " + notFound.getStatus());
+    }
+
+    @Test
+    @InSequence(9)
+    public void testIdempotentCustomerCreate() throws Exception {
+        Customer customer = createCustomerInstance("Ida", "ida@mailinator.com", "07545214572");
+        Response first = customerRESTService.createCustomer(customer, "ida-signup-1");
+        assertEquals("Unexpected response status", 201, first.getStatus());
+
+        // The form sent again, as a browser on a flaky network would
+        Customer again = createCustomerInstance("Ida", "ida@mailinator.com", "07545214572");
+        Response retry = customerRESTService.createCustomer(again, "ida-signup-1");
+        assertEquals("Unexpected response status", 201, retry.getStatus());
+        assertEquals("The retry did not get the first customer back", customer.getId(),
+            ((Customer) retry.getEntity()).getId());
+        assertEquals("The retry was not marked as a replay", "true",
+            retry.getMetadata().getFirst(IdempotencyStore.REPLAYED_HEADER));
+        assertNull("The retry was handled again", again.getId());
+
+        // The same key with another body is a client bug, not a retry
+        Response reused = customerRESTService.createCustomer(createCustomerInstance("Ida", "ida@mailinator.com",
+            "07545214573"), "ida-signup-1");
+        assertEquals("Unexpected response status", 422, reused.getStatus());
+
+        // A different key is a different request, and this one is a duplicate
+        Response other = customerRESTService.createCustomer(createCustomerInstance("Ida", "ida@mailinator.com",
+            "07545214572"), "ida-signup-2");
+        assertEquals("Unexpected response status", 409, other.getStatus());
+        log.info("Idempotent create returned " + first.getStatus() + ", its retry " + retry.getStatus());
+    }
+
+
+    //Tests that a CSV import creates the good rows and reports the rest by line
+    @Test
+    @InSequence(10)
+    public void testImportCustomers() throws Exception {
+        String csv = "name,email,phoneNumber\n"
+            + "Kim,kim@mailinator.com,07545214501\n"
+            + "\"Lee\",lee@mailinator.com,07545214502\n"
+            + "Jack,jack@mailinator.com,07545214503\n"
+            + "Max,not-an-email,07545214504\n"
+            + "Kim,kim@mailinator.com,07545214505\n"
+            + "Ned,ned@mailinator.com,07545214506\n";
+        Response response = customerRESTService.importCustomers(ImportReader.CSV,
+            new ByteArrayInputStream(csv.getBytes("UTF-8")));
+        assertEquals("Unexpected response status", 200, response.getStatus());
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(output);
+        String[] report = output.toString("UTF-8").split("\n");
+
+        assertEquals("Unexpected report " + output, 4, report.length);
+        // jack registered earlier, an invalid email, and kim twice in the same upload
+        assertTrue("Unexpected report line " + report[0], report[0].startsWith("{\"line\":4,\"status\":409,"));
+        assertTrue("Unexpected report line " + report[1], report[1].startsWith("{\"line\":5,\"status\":400,"));
+        assertTrue("Unexpected report line " + report[2], report[2].startsWith("{\"line\":6,\"status\":409,"));
+        assertEquals("Unexpected summary", "{\"processed\":6,\"created\":3,\"rejected\":3,\"done\":true}", report[3]);
+
+        Response ned = customerRESTService.retrieveCustomersByEmail("ned@mailinator.com", null, null);
+        assertEquals("The imported customer was not found", 200, ned.getStatus());
+        log.info("Customer import reported " + report[3]);
+    }
+
+    //Tests that a CSV header naming an unknown column, or missing a required one, stops the import before any row
+    @Test
+    @InSequence(11)
+    public void testImportBadHeader() throws Exception {
+        String[] report = importCsv("name,email,phone\nOla,ola@mailinator.com,07545214511\n");
+        assertEquals("Unexpected report", 1, report.length);
+        assertTrue("Unexpected summary " + report[0], report[0].startsWith(
+            "{\"processed\":0,\"created\":0,\"rejected\":0,\"done\":false,\"error\":\"Unknown column"));
+
+        report = importCsv("name,email\nOla,ola@mailinator.com\n");
+        assertEquals("Unexpected report", 1, report.length);
+        assertTrue("Unexpected summary " + report[0], report[0].contains("\"done\":false"));
+        assertTrue("Unexpected summary " + report[0], report[0].contains("phoneNumber"));
+
+        Response ola = customerRESTService.retrieveCustomersByEmail("ola@mailinator.com", null, null);
+        assertEquals("A customer was imported under a bad header", 404, ola.getStatus());
     }
 
+    //Tests that a quote left open costs its own record and not the rest of the upload
+    @Test
+    @InSequence(12)
+    public void testImportStrayQuote() throws Exception {
+        StringBuilder csv = new StringBuilder("name,email,phoneNumber\n\"Pat,pat@mailinator.com,07545214512\n");
+        // Enough lines without a closing quote to run past the longest record allowed
+        String filler = "Rae,rae@mailinator.com,07545214513\n";
+        for (int length = 0; length <= ImportReader.MAX_RECORD_LENGTH; length += filler.length()) {
+            csv.append(filler);
+        }
+        csv.append("Sam,sam@mailinator.com,07545214514\n");
+
+        // Reading carries on from the line after the one that ran past the limit
+        String[] report = importCsv(csv.toString());
+        String summary = report[report.length - 1];
+        assertTrue("Unexpected report line " + report[0], report[0].startsWith("{\"line\":2,\"status\":400,"));
+        assertTrue("Unexpected summary " + summary, summary.endsWith("\"rejected\":1,\"done\":true}"));
+
+        Response sam = customerRESTService.retrieveCustomersByEmail("sam@mailinator.com", null, null);
+        assertEquals("The customer after the stray quote was not imported", 200, sam.getStatus());
+    }
+
+    //Tests that an upload of several chunks reports progress after each, and that a chunk the database turns down is
+    //retried one row at a time so only the bad row is lost
+    @Test
+    @InSequence(13)
+    public void testImportChunks() throws Exception {
+        // An email the validator accepts but the 255 character column can not hold
+        StringBuilder domain = new StringBuilder("mailinator");
+        while (domain.length() < 300) {
+            domain.append(".mailinator");
+        }
+        // Two full chunks of 500 and part of a third
+        StringBuilder csv = new StringBuilder("name,email,phoneNumber\n");
+        for (int i = 0; i < 1200; i++) {
+            String email = i == 700 ? "long@" + domain + ".com" : "bulk" + i + "@mailinator.com";
+            csv.append("Bulk,").append(email).append(",0").append(String.format("%010d", i)).append('\n');
+        }
+
+        String[] report = importCsv(csv.toString());
+        assertEquals("Unexpected report " + Arrays.toString(report), 4, report.length);
+        assertEquals("Unexpected progress", "{\"processed\":500,\"created\":500,\"rejected\":0}", report[0]);
+        assertTrue("Unexpected report line " + report[1], report[1].startsWith("{\"line\":702,\"status\":400,"));
+        assertEquals("Unexpected progress", "{\"processed\":1000,\"created\":999,\"rejected\":1}", report[2]);
+        assertEquals("Unexpected summary", "{\"processed\":1200,\"created\":1199,\"rejected\":1,\"done\":true}",
+            report[3]);
+
+        // The rest of the chunk the bad row was in
+        Response neighbour = customerRESTService.retrieveCustomersByEmail("bulk701@mailinator.com", null, null);
+        assertEquals("A row retried after the chunk failed was not imported", 200, neighbour.getStatus());
+    }
+
+    //Tests that the list is answered with 304 while the client's ETag still matches, and in full once it has changed
+    @Test
+    @InSequence(14)
+    public void testListNotModified() throws Exception {
+        Response first = customerRESTService.retrieveAllCustomers(null, null, null, null, null);
+        EntityTag tag = (EntityTag) first.getMetadata().getFirst(HttpHeaders.ETAG);
+        assertNotNull("The list has no ETag", tag);
+
+        HttpHeaders headers = RestStubs.headers(HttpHeaders.IF_NONE_MATCH, "\"" + tag.getValue() + "\"");
+        Response unchanged = customerRESTService.retrieveAllCustomers(null, null, null, RestStubs.request(headers),
+            headers);
+        assertEquals("Unexpected response status", 304, unchanged.getStatus());
+
+        customerRESTService.createCustomer(createCustomerInstance("Uma", "uma@mailinator.com", "07545214520"), null);
+        Response changed = customerRESTService.retrieveAllCustomers(null, null, null, RestStubs.request(headers),
+            headers);
+        assertEquals("Unexpected response status", 200, changed.getStatus());
+        assertFalse("The ETag did not change", tag.equals(changed.getMetadata().getFirst(HttpHeaders.ETAG)));
+    }
+
+    //Tests that a page boundary between Customers with the same name is kept by id, also when the last Customer of the
+    //previous page has been deleted in between
+    @Test
+    @InSequence(15)
+    @SuppressWarnings("unchecked")
+    public void testPagingSameName() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            Response response = customerRESTService.createCustomer(
+                createCustomerInstance("Quinn", "quinn" + i + "@mailinator.com", "0754521453" + i), null);
+            assertEquals("Unexpected response status", 201, response.getStatus());
+        }
+
+        String uri = "http://localhost/rest/customers?limit=2&after=Quinn:0";
+        Response first = customerRESTService.retrieveAllCustomers(2, "Quinn:0", RestStubs.uriInfo(uri), null, null);
+        assertEquals("Unexpected response status", 200, first.getStatus());
+        List<Customer> page = (List<Customer>) first.getEntity();
+        assertEquals("Unexpected page size", 2, page.size());
+        assertEquals("Unexpected first Customer", "quinn0@mailinator.com", page.get(0).getEmail());
+        assertEquals("Unexpected last Customer", "quinn1@mailinator.com", page.get(1).getEmail());
+        String after = nextCursor(first);
+        assertEquals("Unexpected cursor", "Quinn:" + page.get(1).getId(), after);
+
+        transaction.begin();
+        customerRepository.delete(page.get(1));
+        transaction.commit();
+
+        Response second = customerRESTService.retrieveAllCustomers(2, after, RestStubs.uriInfo(uri), null, null);
+        assertEquals("Unexpected response status", 200, second.getStatus());
+        page = (List<Customer>) second.getEntity();
+        assertEquals("Unexpected Customer", "quinn2@mailinator.com", page.get(0).getEmail());
+    }
+
+    // The after parameter of the next link of a page
+    private String nextCursor(Response response) throws Exception {
+        Object link = response.getMetadata().getFirst("Link");
+        assertNotNull("The page has no next link", link);
+        Matcher matcher = Pattern.compile("[?&]after=([^&>]*)").matcher(link.toString());
+        assertTrue("The next link has no cursor: " + link, matcher.find());
+        return URLDecoder.decode(matcher.group(1), "UTF-8");
+    }
+
+    // Imports the CSV and returns the lines of the report
+    private String[] importCsv(String csv) throws Exception {
+        Response response = customerRESTService.importCustomers(ImportReader.CSV,
+            new ByteArrayInputStream(csv.getBytes("UTF-8")));
+        assertEquals("Unexpected response status", 200, response.getStatus());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(output);
+        return output.toString("UTF-8").split("\n");
+    }
 
     /**
      * <p>A utility method to construct a {@link org.jboss.quickstarts.wfk.Customer.Customer Customer} object for use in
@@ -17,22 +17,52 @@
 package org.jboss.quickstarts.wfk.taxi;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.net.URLDecoder;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import javax.ejb.EJBException;
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.transaction.UserTransaction;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.jboss.arquillian.container.test.api.Deployment;
 import org.jboss.arquillian.junit.Arquillian;
 import org.jboss.arquillian.junit.InSequence;
 
+import org.jboss.quickstarts.wfk.util.IdempotencyStore;
+import org.jboss.quickstarts.wfk.util.ImportReader;
+import org.jboss.quickstarts.wfk.util.JacksonConfig;
+import org.jboss.quickstarts.wfk.util.JsonArrayStreamer;
+import org.jboss.quickstarts.wfk.util.AfterCommit;
+import org.jboss.quickstarts.wfk.util.ChangeCounter;
+import org.jboss.quickstarts.wfk.util.ChangeCounters;
+import org.jboss.quickstarts.wfk.util.BulkImporter;
+import org.jboss.quickstarts.wfk.util.ConditionalGet;
+import org.jboss.quickstarts.wfk.util.LatencyHistogram;
+import org.jboss.quickstarts.wfk.util.Pagination;
+import org.jboss.quickstarts.wfk.util.RequestMetrics;
+import org.jboss.quickstarts.wfk.util.RequestMetricsInterceptor;
 import org.jboss.quickstarts.wfk.util.Resources;
+import org.jboss.quickstarts.wfk.util.RestStubs;
+import org.jboss.quickstarts.wfk.util.StatementCounter;
 import org.jboss.shrinkwrap.api.Archive;
 import org.jboss.shrinkwrap.api.ShrinkWrap;
 import org.jboss.shrinkwrap.api.asset.EmptyAsset;
@@ -77,7 +107,24 @@ public class TaxiRegistrationTest {
                         TaxiRepository.class, 
                         TaxiValidator.class, 
                         TaxiService.class, 
-                        Resources.class)
+                        TaxiSeatIndex.class,
+                        AfterCommit.class,
+                        ChangeCounter.class,
+                        ChangeCounters.class,
+                        Resources.class,
+                        Pagination.class,
+                        JsonArrayStreamer.class,
+                        JacksonConfig.class,
+                        StatementCounter.class,
+                        RequestMetrics.class,
+                        RequestMetricsInterceptor.class,
+                        LatencyHistogram.class,
+                        ConditionalGet.class,
+                        IdempotencyStore.class,
+                        TaxiImport.class,
+                        BulkImporter.class,
+                        ImportReader.class,
+                        RestStubs.class)
             .addAsLibraries(libs)
             .addAsResource("META-INF/test-persistence.xml", "META-INF/persistence.xml")
             .addAsWebInfResource("arquillian-ds.xml")
@@ -88,6 +135,12 @@ public class TaxiRegistrationTest {
 
     @Inject
     TaxiRESTService taxiRESTService;
+
+    @Inject
+    TaxiRepository taxiRepository;
+
+    @Inject
+    UserTransaction transaction;
     
     @Inject
     @Named("logger") Logger log;
@@ -97,7 +150,7 @@ public class TaxiRegistrationTest {
     @InSequence(1)
     public void testRegister() throws Exception {
         Taxi taxi = createTaxiInstance(7, "p799sna");
-        Response response = taxiRESTService.createTaxi(taxi);
+        Response response = taxiRESTService.createTaxi(taxi, null);
 
         assertEquals("Unexpected response status", 201, response.getStatus());
         log.info(" New taxi was persisted and returned status " + response.getStatus());
@@ -108,7 +161,7 @@ public class TaxiRegistrationTest {
     @InSequence(2)
     public void testInvalidRegister() throws Exception {
         Taxi taxi = createTaxiInstance(30, "");
-        Response response = taxiRESTService.createTaxi(taxi);
+        Response response = taxiRESTService.createTaxi(taxi, null);
 
         assertEquals("Unexpected response status", 400, response.getStatus());
         assertNotNull("response.getEntity() should not be null", response.getEntity());
@@ -123,11 +176,11 @@ public class TaxiRegistrationTest {
     public void testDuplicateReg() throws Exception {
         // Register an initial user
         Taxi taxi = createTaxiInstance(8, "p799snb");
-        taxiRESTService.createTaxi(taxi);
+        taxiRESTService.createTaxi(taxi, null);
 
         // Register a different user with the same email
         Taxi anotherTaxi = createTaxiInstance(9, "p799snb");
-        Response response = taxiRESTService.createTaxi(anotherTaxi);
+        Response response = taxiRESTService.createTaxi(anotherTaxi, null);
 
         assertEquals("Unexpected response status", 409, response.getStatus());
         assertNotNull("response.getEntity() should not be null", response.getEntity());
@@ -141,12 +194,12 @@ public class TaxiRegistrationTest {
     @InSequence(4)
     public void testRetrieveAllTaxis() throws Exception {
         Taxi taxi = createTaxiInstance(7, "j799snh");
-        taxiRESTService.createTaxi(taxi);
+        taxiRESTService.createTaxi(taxi, null);
         
         Taxi anotherTaxi = createTaxiInstance(6, "k798snf");
-        taxiRESTService.createTaxi(anotherTaxi);
+        taxiRESTService.createTaxi(anotherTaxi, null);
         
-        Response response = taxiRESTService.retrieveAllTaxis();
+        Response response = taxiRESTService.retrieveAllTaxis(null, null, null, null, null);
 
         assertEquals("Unexpected response status", 200, response.getStatus());
         log.info(" List of all taxis was persisted and returned status " + response.getStatus());
@@ -160,7 +213,7 @@ public class TaxiRegistrationTest {
    	public void testDeleteTaxi() throws Exception {
    
    		Taxi taxiToDelete = createTaxiInstance(7,"p798dnu");
-   		Response response = taxiRESTService.createTaxi(taxiToDelete);
+   		Response response = taxiRESTService.createTaxi(taxiToDelete, null);
         
         assertEquals("Unexpected response status", 201, response.getStatus());
         log.info(" Taxi not deleted and returned status " + response.getStatus());   
@@ -168,6 +221,145 @@ public class TaxiRegistrationTest {
     }
 
 
+    //Tests that an NDJSON import creates the good taxis and reports the rest
+    @Test
+    @InSequence(6)
+    public void testImportTaxis() throws Exception {
+        String ndjson = "{\"reg\":\"imp0001\",\"numSeats\":4}\n"
+            + "{\"reg\":\"imp0002\",\"numSeats\":6}\n"
+            + "\n"
+            + "{\"reg\":\"p799sna\",\"numSeats\":4}\n"
+            + "{\"reg\":\"imp0003\",\"numSeats\":40}\n"
+            + "{\"reg\":\"imp0004\",\n";
+        Response response = taxiRESTService.importTaxis(ImportReader.NDJSON,
+            new ByteArrayInputStream(ndjson.getBytes("UTF-8")));
+        assertEquals("Unexpected response status", 200, response.getStatus());
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(output);
+        String[] report = output.toString("UTF-8").split("\n");
+
+        assertEquals("Unexpected report " + output, 4, report.length);
+        // p799sna was registered by testRegister, 40 seats is too many and the last line is cut short
+        assertTrue("Unexpected report line " + report[0], report[0].startsWith("{\"line\":4,\"status\":409,"));
+        assertTrue("Unexpected report line " + report[1], report[1].startsWith("{\"line\":5,\"status\":400,"));
+        assertTrue("Unexpected report line " + report[2], report[2].startsWith("{\"line\":6,\"status\":400,"));
+        assertEquals("Unexpected summary", "{\"processed\":5,\"created\":2,\"rejected\":3,\"done\":true}", report[3]);
+        log.info("Taxi import reported " + report[3]);
+    }
+
+    //Tests that pages split at the limit, that the last page has no next link, and that a page still follows on when
+    //the last Taxi of the previous one has been deleted in between
+    @Test
+    @InSequence(7)
+    @SuppressWarnings("unchecked")
+    public void testPaging() throws Exception {
+        Taxi[] taxis = {createTaxiInstance(4, "zzpag01"), createTaxiInstance(4, "zzpag02"),
+            createTaxiInstance(4, "zzpag03")};
+        for (Taxi taxi : taxis) {
+            assertEquals("Unexpected response status", 201, taxiRESTService.createTaxi(taxi, null).getStatus());
+        }
+
+        // Every other reg sorts before "zz"
+        String uri = "http://localhost/rest/taxis?limit=2&after=zz:0";
+        Response first = taxiRESTService.retrieveAllTaxis(2, "zz:0", RestStubs.uriInfo(uri), null, null);
+        assertEquals("Unexpected response status", 200, first.getStatus());
+        List<Taxi> page = (List<Taxi>) first.getEntity();
+        assertEquals("Unexpected page size", 2, page.size());
+        assertEquals("Unexpected first Taxi", "zzpag01", page.get(0).getReg());
+        assertEquals("Unexpected last Taxi", "zzpag02", page.get(1).getReg());
+        String after = nextCursor(first);
+        assertEquals("Unexpected cursor", "zzpag02:" + page.get(1).getId(), after);
+
+        transaction.begin();
+        taxiRepository.delete(page.get(1));
+        transaction.commit();
+
+        Response second = taxiRESTService.retrieveAllTaxis(2, after, RestStubs.uriInfo(uri), null, null);
+        assertEquals("Unexpected response status", 200, second.getStatus());
+        page = (List<Taxi>) second.getEntity();
+        assertEquals("Unexpected page size", 1, page.size());
+        assertEquals("Unexpected Taxi", "zzpag03", page.get(0).getReg());
+        assertNull("The last page has a next link", second.getMetadata().getFirst("Link"));
+    }
+
+    //Tests that the streamed export writes every taxi as one JSON array, flushing per fetch rather than per taxi
+    @Test
+    @InSequence(8)
+    @SuppressWarnings("unchecked")
+    public void testExportAllTaxis() throws Exception {
+        int taxis = ((List<Taxi>) taxiRESTService.retrieveAllTaxis(null, null, null, null, null).getEntity()).size();
+        assertTrue("Too few taxis to tell a flush per taxi apart", taxis > 3);
+
+        Response response = taxiRESTService.exportAllTaxis(null, null);
+        assertEquals("Unexpected response status", 200, response.getStatus());
+
+        final int[] flushes = {0};
+        ByteArrayOutputStream output = new ByteArrayOutputStream() {
+            @Override
+            public void flush() {
+                flushes[0]++;
+            }
+        };
+        ((StreamingOutput) response.getEntity()).write(output);
+        String json = output.toString("UTF-8");
+
+        assertTrue("Export is not a JSON array: " + json, json.startsWith("[") && json.endsWith("]"));
+        assertTrue("Export is missing a taxi: " + json, json.contains("zzpag03"));
+        assertEquals("Unexpected number of taxis exported", taxis, json.split("\"reg\"").length - 1);
+        // After the first taxi and at the end
+        assertTrue("The export was flushed " + flushes[0] + " times for " + taxis + " taxis", flushes[0] <= 3);
+    }
+
+    //Tests that an update is refused with 412 once the ETag in its If-Match is stale, even though the body holds the
+    //current version, and that the refused update leaves the taxi as it was
+    @Test
+    @InSequence(9)
+    public void testStaleIfMatchTaxiUpdate() throws Exception {
+        Taxi taxi = createTaxiInstance(4, "m811tch");
+        taxiRESTService.createTaxi(taxi, null);
+        EntityTag tag = (EntityTag) taxiRESTService.retrieveTaxiById(taxi.getId(), null, null).getMetadata()
+            .getFirst(HttpHeaders.ETAG);
+        HttpHeaders ifMatch = RestStubs.headers(HttpHeaders.IF_MATCH, "\"" + tag.getValue() + "\"");
+
+        Taxi first = createTaxiInstance(5, "m811tch");
+        first.setId(taxi.getId());
+        Response updated = taxiRESTService.updateTaxi(taxi.getId(), first, ifMatch);
+        assertEquals("Unexpected response status", 200, updated.getStatus());
+
+        // The body is at the current version, the tag is still the one read before the first update
+        Taxi second = createTaxiInstance(6, "m811tch");
+        second.setId(taxi.getId());
+        second.setVersion(((Taxi) updated.getEntity()).getVersion());
+        Response stale = taxiRESTService.updateTaxi(taxi.getId(), second, ifMatch);
+        assertEquals("Unexpected response status", 412, stale.getStatus());
+
+        // A tag that was never one of ours can not match either
+        try {
+            taxiRESTService.updateTaxi(taxi.getId(), second, RestStubs.headers(HttpHeaders.IF_MATCH, "\"stale\""));
+            fail("An update with a foreign If-Match tag was not refused");
+        } catch (EJBException e) {
+            // Called as an EJB rather than over HTTP, the container wraps what JAX-RS would have sent as the response
+            assertTrue("Unexpected failure " + e.getCause(), e.getCause() instanceof WebApplicationException);
+            assertEquals("Unexpected response status", 412,
+                ((WebApplicationException) e.getCause()).getResponse().getStatus());
+        }
+
+        Taxi after = (Taxi) taxiRESTService.retrieveTaxiById(taxi.getId(), null, null).getEntity();
+        assertEquals("A refused update changed the taxi", Integer.valueOf(5), after.getNumSeats());
+        assertEquals("A refused update changed the version", ((Taxi) updated.getEntity()).getVersion(),
+            after.getVersion());
+    }
+
+    // The after parameter of the next link of a page
+    private String nextCursor(Response response) throws Exception {
+        Object link = response.getMetadata().getFirst("Link");
+        assertNotNull("The page has no next link", link);
+        Matcher matcher = Pattern.compile("[?&]after=([^&>]*)").matcher(link.toString());
+        assertTrue("The next link has no cursor: " + link, matcher.find());
+        return URLDecoder.decode(matcher.group(1), "UTF-8");
+    }
+
     /**
      * <p>A utility method to construct a {@link org.jboss.quickstarts.wfk.Booking.Taxi Taxi} object for use in
      * testing. This object is not persisted.</p>
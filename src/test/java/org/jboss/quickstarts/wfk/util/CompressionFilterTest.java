@@ -0,0 +1,263 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>Runs {@link CompressionFilter} over {@link ServletStubs}, without a container.</p>
+ */
+public class CompressionFilterTest {
+
+    private CompressionFilter filter;
+
+    private ServletStubs.Response response;
+
+    @Before
+    public void setUp() throws Exception {
+        filter = new CompressionFilter();
+        filter.init(null);
+        response = new ServletStubs.Response();
+    }
+
+    @After
+    public void tearDown() {
+        filter.destroy();
+    }
+
+    //Tests that each progress line of an import reaches the client when it is flushed, not once 1k has piled up
+    @Test
+    public void testFlushPassesHeldBytesThrough() throws Exception {
+        final byte[] line = "{\"processed\":500,\"created\":500,\"rejected\":0}\n".getBytes("UTF-8");
+        filter.doFilter(new ServletStubs.Request().header("Accept-Encoding", "gzip"), response, new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse chainResponse) throws IOException,
+                ServletException {
+                chainResponse.setContentType(ImportReader.NDJSON);
+                ServletOutputStream output = chainResponse.getOutputStream();
+                output.write(line);
+                output.flush();
+                assertEquals("The first line was held back", line.length, response.getBody().length);
+                output.write(line);
+                output.flush();
+                assertEquals("The second line was held back", 2 * line.length, response.getBody().length);
+            }
+        });
+
+        assertNull("The report was compressed", response.getHeader("Content-Encoding"));
+        assertEquals("Unexpected body", new String(line, "UTF-8") + new String(line, "UTF-8"),
+            new String(response.getBody(), "UTF-8"));
+    }
+
+    //Tests that a flush before anything is written leaves a 304 free to have its tag marked with the encoding
+    @Test
+    public void testEarlyFlushKeepsHoldBack() throws Exception {
+        filter.doFilter(new ServletStubs.Request().header("Accept-Encoding", "gzip"), response, new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse chainResponse) throws IOException,
+                ServletException {
+                HttpServletResponse httpResponse = (HttpServletResponse) chainResponse;
+                httpResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                httpResponse.setHeader("ETag", "\"7\"");
+                httpResponse.getOutputStream().flush();
+            }
+        });
+
+        assertEquals("Unexpected ETag", "\"7--gzip\"", response.getHeader("ETag"));
+    }
+
+    //Tests that a large JSON body comes back gzipped, and unzips to what the chain wrote
+    @Test
+    public void testGzipRoundTrip() throws Exception {
+        byte[] body = json(4 * CompressionFilter.MIN_SIZE);
+        filter.doFilter(new ServletStubs.Request().header("Accept-Encoding", "gzip, deflate"), response,
+            respond(HttpServletResponse.SC_OK, "application/json", body));
+
+        assertEquals("Unexpected encoding", "gzip", response.getHeader("Content-Encoding"));
+        assertEquals("Unexpected Vary", "Accept-Encoding", response.getHeader("Vary"));
+        assertNull("The length of the plain body was kept", response.getHeader("Content-Length"));
+        assertArrayEquals("Unexpected body", body, readAll(new GZIPInputStream(
+            new ByteArrayInputStream(response.getBody()))));
+    }
+
+    //Tests that a client that only takes deflate gets the zlib format, and that it inflates to what the chain wrote
+    @Test
+    public void testDeflateRoundTrip() throws Exception {
+        byte[] body = json(4 * CompressionFilter.MIN_SIZE);
+        filter.doFilter(new ServletStubs.Request().header("Accept-Encoding", "deflate"), response,
+            respond(HttpServletResponse.SC_OK, "application/json", body));
+
+        assertEquals("Unexpected encoding", "deflate", response.getHeader("Content-Encoding"));
+        assertArrayEquals("Unexpected body", body, readAll(new InflaterInputStream(
+            new ByteArrayInputStream(response.getBody()))));
+    }
+
+    //Tests that the pooled Deflaters are reset between responses
+    @Test
+    public void testReusedDeflater() throws Exception {
+        byte[] body = json(2 * CompressionFilter.MIN_SIZE);
+        for (int i = 0; i < 3; i++) {
+            response = new ServletStubs.Response();
+            filter.doFilter(new ServletStubs.Request().header("Accept-Encoding", "gzip"), response,
+                respond(HttpServletResponse.SC_OK, "application/json", body));
+            assertArrayEquals("Unexpected body of response " + i, body, readAll(new GZIPInputStream(
+                new ByteArrayInputStream(response.getBody()))));
+        }
+    }
+
+    //Tests that a body smaller than MIN_SIZE is sent as it is, with its length
+    @Test
+    public void testSmallBodyPassesThrough() throws Exception {
+        byte[] body = json(CompressionFilter.MIN_SIZE - 1);
+        filter.doFilter(new ServletStubs.Request().header("Accept-Encoding", "gzip"), response,
+            respond(HttpServletResponse.SC_OK, "application/json", body));
+
+        assertNull("A small body was compressed", response.getHeader("Content-Encoding"));
+        assertEquals("Unexpected content length", Integer.toString(body.length),
+            response.getHeader("Content-Length"));
+        assertArrayEquals("Unexpected body", body, response.getBody());
+    }
+
+    //Tests that an error is sent as it is, however large
+    @Test
+    public void testErrorPassesThrough() throws Exception {
+        byte[] body = json(4 * CompressionFilter.MIN_SIZE);
+        filter.doFilter(new ServletStubs.Request().header("Accept-Encoding", "gzip"), response,
+            respond(HttpServletResponse.SC_BAD_REQUEST, "application/json", body));
+
+        assertEquals("Unexpected status", HttpServletResponse.SC_BAD_REQUEST, response.getStatus());
+        assertNull("An error was compressed", response.getHeader("Content-Encoding"));
+        assertArrayEquals("Unexpected body", body, response.getBody());
+    }
+
+    //Tests that a type that is already compressed, or is not text, is sent as it is
+    @Test
+    public void testIncompressibleTypePassesThrough() throws Exception {
+        byte[] body = json(4 * CompressionFilter.MIN_SIZE);
+        filter.doFilter(new ServletStubs.Request().header("Accept-Encoding", "gzip"), response,
+            respond(HttpServletResponse.SC_OK, "image/png", body));
+
+        assertNull("An image was compressed", response.getHeader("Content-Encoding"));
+        assertArrayEquals("Unexpected body", body, response.getBody());
+    }
+
+    //Tests that a client that does not accept an encoding gets the plain body
+    @Test
+    public void testUnacceptedEncodingPassesThrough() throws Exception {
+        byte[] body = json(4 * CompressionFilter.MIN_SIZE);
+        filter.doFilter(new ServletStubs.Request().header("Accept-Encoding", "gzip;q=0, identity"), response,
+            respond(HttpServletResponse.SC_OK, "application/json", body));
+
+        assertNull("The body was compressed", response.getHeader("Content-Encoding"));
+        assertArrayEquals("Unexpected body", body, response.getBody());
+    }
+
+    //Tests that a compressed response has its tag marked with the encoding, and that the mark is taken off the tag
+    //the client sends back before the resource sees it
+    @Test
+    public void testTagRoundTrip() throws Exception {
+        byte[] body = json(4 * CompressionFilter.MIN_SIZE);
+        filter.doFilter(new ServletStubs.Request().header("Accept-Encoding", "gzip"), response,
+            respond(HttpServletResponse.SC_OK, "application/json", body, "\"7\""));
+        assertEquals("Unexpected ETag", "\"7--gzip\"", response.getHeader("ETag"));
+
+        response = new ServletStubs.Response();
+        filter.doFilter(new ServletStubs.Request().header("Accept-Encoding", "gzip")
+            .header("If-None-Match", "\"7--gzip\""), response, new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse chainResponse) throws IOException,
+                ServletException {
+                assertEquals("The resource saw the encoding", "\"7\"",
+                    ((HttpServletRequest) request).getHeader("If-None-Match"));
+                HttpServletResponse httpResponse = (HttpServletResponse) chainResponse;
+                httpResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                httpResponse.setHeader("ETag", "\"7\"");
+            }
+        });
+
+        assertEquals("Unexpected status", HttpServletResponse.SC_NOT_MODIFIED, response.getStatus());
+        assertEquals("Unexpected ETag", "\"7--gzip\"", response.getHeader("ETag"));
+        assertEquals("A 304 was given a body", 0, response.getBody().length);
+    }
+
+    // A JSON array of about the given length, repetitive enough to compress well
+    private static byte[] json(int length) throws IOException {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; builder.length() < length - 1; i++) {
+            builder.append(i == 0 ? "" : ",").append("{\"id\":").append(i).append('}');
+        }
+        byte[] bytes = builder.append(']').toString().getBytes("UTF-8");
+        return bytes.length > length ? Arrays.copyOf(bytes, length) : bytes;
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[512];
+        int length;
+        while ((length = input.read(buffer)) != -1) {
+            output.write(buffer, 0, length);
+        }
+        input.close();
+        return output.toByteArray();
+    }
+
+    private static FilterChain respond(int status, String contentType, byte[] body) {
+        return respond(status, contentType, body, null);
+    }
+
+    // A chain that answers with the status, tag and body, as JAX-RS does
+    private static FilterChain respond(final int status, final String contentType, final byte[] body,
+        final String tag) {
+        return new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException,
+                ServletException {
+                HttpServletResponse httpResponse = (HttpServletResponse) response;
+                httpResponse.setStatus(status);
+                if (tag != null) {
+                    httpResponse.setHeader("ETag", tag);
+                }
+                httpResponse.setContentType(contentType);
+                httpResponse.setContentLength(body.length);
+                httpResponse.getOutputStream().write(body);
+                httpResponse.getOutputStream().flush();
+            }
+        };
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.transaction.Status;
+import javax.transaction.TransactionSynchronizationRegistry;
+import javax.ws.rs.core.Response;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>Runs {@link IdempotencyStore} outside a transaction, so each response is kept as soon as it is finished.</p>
+ */
+public class IdempotencyStoreTest {
+
+    private IdempotencyStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new IdempotencyStore();
+        set(store, "jacksonConfig", new JacksonConfig());
+        set(store, "txRegistry", Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] {TransactionSynchronizationRegistry.class}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if ("getTransactionStatus".equals(method.getName())) {
+                        return Status.STATUS_NO_TRANSACTION;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            }));
+    }
+
+    //Tests that the same body sent again with the key gets the first response back
+    @Test
+    public void testReplaysSameBody() throws Exception {
+        assertNull("The first request was not handled", store.begin("taxi", "k1", body("p799sna")));
+        store.finish("taxi", "k1", Response.status(Response.Status.CREATED).build());
+
+        Response replay = store.begin("taxi", "k1", body("p799sna"));
+        assertEquals("Unexpected response status", 201, replay.getStatus());
+        assertEquals("The retry was not marked as a replay", "true",
+            replay.getMetadata().getFirst(IdempotencyStore.REPLAYED_HEADER));
+    }
+
+    //Tests that another body with the same key is refused, also while the first request is still being handled
+    @Test
+    public void testRefusesOtherBody() throws Exception {
+        assertNull("The first request was not handled", store.begin("taxi", "k1", body("p799sna")));
+        assertEquals("Unexpected response status", 422, store.begin("taxi", "k1", body("p799snb")).getStatus());
+
+        store.finish("taxi", "k1", Response.status(Response.Status.CREATED).build());
+        assertEquals("Unexpected response status", 422, store.begin("taxi", "k1", body("p799snb")).getStatus());
+        // The key is scoped, another resource may use it
+        assertNull("The key was not scoped", store.begin("booking", "k1", body("p799snb")));
+    }
+
+    //Tests that expired responses are dropped from the head when the next request begins
+    @Test
+    public void testEvictsExpiredFromHead() throws Exception {
+        for (String key : new String[] {"k1", "k2", "k3"}) {
+            store.begin("taxi", key, body(key));
+            store.finish("taxi", key, Response.status(Response.Status.CREATED).build());
+        }
+        Map<String, ?> entries = entries();
+        // The first two have expired, the third has not
+        set(entries.get("taxi:k1"), "expires", 0L);
+        set(entries.get("taxi:k2"), "expires", 0L);
+
+        store.begin("taxi", "k4", body("k4"));
+        assertFalse("An expired response was kept", entries.containsKey("taxi:k1") || entries.containsKey("taxi:k2"));
+        assertTrue("A live response was dropped", entries.containsKey("taxi:k3"));
+        assertEquals("Unexpected number of entries", 2, entries.size());
+    }
+
+    private static Map<String, String> body(String reg) {
+        return Collections.singletonMap("reg", reg);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, ?> entries() throws Exception {
+        Field field = IdempotencyStore.class.getDeclaredField("entries");
+        field.setAccessible(true);
+        return (Map<String, ?>) field.get(store);
+    }
+
+    private static void set(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+}
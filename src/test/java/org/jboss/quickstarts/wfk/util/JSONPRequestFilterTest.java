@@ -0,0 +1,143 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>Runs {@link JSONPRequestFilter} over {@link ServletStubs}, without a container.</p>
+ */
+public class JSONPRequestFilterTest {
+
+    private JSONPRequestFilter filter;
+
+    private ServletStubs.Request request;
+
+    private ServletStubs.Response response;
+
+    @Before
+    public void setUp() throws Exception {
+        filter = new JSONPRequestFilter();
+        filter.init(null);
+        request = new ServletStubs.Request().parameter("jsonpcallback", "show");
+        response = new ServletStubs.Response();
+    }
+
+    //Tests that a 200 is wrapped in the callback, with the JavaScript content type and no stale length
+    @Test
+    public void testPadsOk() throws Exception {
+        filter.doFilter(request, response, respond(HttpServletResponse.SC_OK, "application/json", "{\"id\":1}"));
+
+        assertEquals("Unexpected body", "show({\"id\":1});", new String(response.getBody(), "UTF-8"));
+        assertEquals("Unexpected content type", JSONPRequestFilter.CONTENT_TYPE, response.getContentType());
+        assertNull("The length of the unpadded body was kept", response.getHeader("Content-Length"));
+    }
+
+    //Tests that a body written through the writer is padded too
+    @Test
+    public void testPadsWriter() throws Exception {
+        filter.doFilter(request, response, new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest chainRequest, ServletResponse chainResponse) throws IOException,
+                ServletException {
+                chainResponse.getWriter().write("[]");
+            }
+        });
+
+        assertEquals("Unexpected body", "show([]);", new String(response.getBody(), "UTF-8"));
+    }
+
+    //Tests that an error is passed through as the chain wrote it, so a JSONP client sees the failure
+    @Test
+    public void testPassesErrorThrough() throws Exception {
+        filter.doFilter(request, response, respond(HttpServletResponse.SC_NOT_FOUND, "text/plain", "No such taxi"));
+
+        assertEquals("Unexpected status", HttpServletResponse.SC_NOT_FOUND, response.getStatus());
+        assertEquals("Unexpected body", "No such taxi", new String(response.getBody(), "UTF-8"));
+        assertEquals("Unexpected content type", "text/plain", response.getContentType());
+        assertEquals("Unexpected content length", "12", response.getHeader("Content-Length"));
+    }
+
+    //Tests that a 204 keeps its empty body
+    @Test
+    public void testPassesNoContentThrough() throws Exception {
+        filter.doFilter(request, response, respond(HttpServletResponse.SC_NO_CONTENT, null, null));
+
+        assertEquals("Unexpected status", HttpServletResponse.SC_NO_CONTENT, response.getStatus());
+        assertEquals("A 204 was given a body", 0, response.getBody().length);
+    }
+
+    //Tests that a 304 keeps its empty body and its validator
+    @Test
+    public void testPassesNotModifiedThrough() throws Exception {
+        filter.doFilter(request, response, new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest chainRequest, ServletResponse chainResponse) throws IOException,
+                ServletException {
+                HttpServletResponse httpResponse = (HttpServletResponse) chainResponse;
+                httpResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                httpResponse.setHeader("ETag", "\"7\"");
+                httpResponse.getOutputStream().flush();
+            }
+        });
+
+        assertEquals("A 304 was given a body", 0, response.getBody().length);
+        assertEquals("Unexpected ETag", "\"7\"", response.getHeader("ETag"));
+        assertNull("A 304 was given a content type", response.getContentType());
+    }
+
+    //Tests that a request without a callback is left alone
+    @Test
+    public void testIgnoresPlainRequest() throws Exception {
+        filter.doFilter(new ServletStubs.Request(), response,
+            respond(HttpServletResponse.SC_OK, "application/json", "{\"id\":1}"));
+
+        assertEquals("Unexpected body", "{\"id\":1}", new String(response.getBody(), "UTF-8"));
+        assertEquals("Unexpected content type", "application/json", response.getContentType());
+    }
+
+    // A chain that answers with the status, and the body if there is one, as JAX-RS does
+    private static FilterChain respond(final int status, final String contentType, final String body) {
+        return new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException,
+                ServletException {
+                HttpServletResponse httpResponse = (HttpServletResponse) response;
+                httpResponse.setStatus(status);
+                if (body != null) {
+                    byte[] bytes = body.getBytes("UTF-8");
+                    httpResponse.setContentType(contentType);
+                    httpResponse.setContentLength(bytes.length);
+                    httpResponse.getOutputStream().write(bytes);
+                }
+                httpResponse.getOutputStream().flush();
+            }
+        };
+    }
+}
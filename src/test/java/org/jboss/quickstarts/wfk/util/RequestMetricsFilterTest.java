@@ -0,0 +1,132 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.util;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>Runs {@link RequestMetricsFilter} over {@link ServletStubs}, without a container, and reads back what it recorded
+ * from {@link RequestMetrics}.</p>
+ */
+public class RequestMetricsFilterTest {
+
+    private static final String ROUTE = "{method=\"POST\",route=\"/taxis\"}";
+
+    private RequestMetricsFilter filter;
+
+    private RequestMetrics metrics;
+
+    @Before
+    public void setUp() throws Exception {
+        metrics = new RequestMetrics();
+        filter = new RequestMetricsFilter();
+        Field field = RequestMetricsFilter.class.getDeclaredField("metrics");
+        field.setAccessible(true);
+        field.set(filter, metrics);
+        filter.init(null);
+    }
+
+    //Tests that a body sent with its Content-Length is counted, along with the response
+    @Test
+    public void testCountsBody() throws Exception {
+        byte[] body = "{\"reg\":\"p799sna\",\"seats\":4}".getBytes("UTF-8");
+        filter.doFilter(new ServletStubs.Request().body(body), new ServletStubs.Response(), readAndAnswer(false));
+
+        assertSample("http_request_size_bytes_total", body.length);
+        assertSample("http_response_size_bytes_total", 2);
+        assertSample("http_requests_total", 1);
+    }
+
+    //Tests that a chunked body, which has no Content-Length, is counted by what is read of it
+    @Test
+    public void testCountsChunkedBody() throws Exception {
+        byte[] body = "{\"reg\":\"p799sna\",\"seats\":4}".getBytes("UTF-8");
+        filter.doFilter(new ServletStubs.Request().chunked(body), new ServletStubs.Response(), readAndAnswer(false));
+
+        assertSample("http_request_size_bytes_total", body.length);
+    }
+
+    //Tests that a body read through the reader is counted too
+    @Test
+    public void testCountsBodyReadAsText() throws Exception {
+        byte[] body = "{\"reg\":\"p799sna\"}".getBytes("UTF-8");
+        filter.doFilter(new ServletStubs.Request().chunked(body), new ServletStubs.Response(), readAndAnswer(true));
+
+        assertSample("http_request_size_bytes_total", body.length);
+    }
+
+    //Tests that a body the resource never reads is not counted from its Content-Length
+    @Test
+    public void testUnreadBodyCountsNothing() throws Exception {
+        filter.doFilter(new ServletStubs.Request().body(new byte[100]), new ServletStubs.Response(),
+            new FilterChain() {
+                @Override
+                public void doFilter(ServletRequest request, ServletResponse response) throws IOException,
+                    ServletException {
+                    RequestMetrics.setRoute("POST", "/taxis");
+                    ((HttpServletResponse) response).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                }
+            });
+
+        assertSample("http_request_size_bytes_total", 0);
+        assertSample("http_request_errors_total", 1);
+    }
+
+    // A chain that routes the request to POST /taxis, reads all of its body and answers {}
+    private static FilterChain readAndAnswer(final boolean asText) {
+        return new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException,
+                ServletException {
+                RequestMetrics.setRoute("POST", "/taxis");
+                if (asText) {
+                    BufferedReader reader = request.getReader();
+                    while (reader.read() != -1) {
+                        // Read to the end
+                    }
+                } else {
+                    InputStream input = request.getInputStream();
+                    byte[] buffer = new byte[8];
+                    while (input.read(buffer) != -1) {
+                        // Read to the end
+                    }
+                }
+                response.getOutputStream().write("{}".getBytes("UTF-8"));
+            }
+        };
+    }
+
+    private void assertSample(String name, long value) {
+        String sample = name + ROUTE + " " + value + "\n";
+        String text = metrics.toPrometheusText();
+        assertTrue("Expected " + sample + "in\n" + text, text.contains(sample));
+    }
+}
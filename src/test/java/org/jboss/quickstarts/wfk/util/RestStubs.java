@@ -0,0 +1,141 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriBuilder;
+import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.core.Variant;
+
+/**
+ * <p>The JAX-RS context objects a REST service method is given, for tests that call the method directly: request
+ * headers, the request URI, and a Request that checks If-None-Match and If-Match as the JAX-RS runtime would.</p>
+ */
+public final class RestStubs {
+
+    private RestStubs() {
+    }
+
+    /**
+     * @param name The name of the only header
+     * @param value Its value
+     * @return Headers holding just that one
+     */
+    public static HttpHeaders headers(final String name, final String value) {
+        return (HttpHeaders) Proxy.newProxyInstance(HttpHeaders.class.getClassLoader(),
+            new Class<?>[] {HttpHeaders.class}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if ("getRequestHeader".equals(method.getName())) {
+                        return name.equalsIgnoreCase((String) args[0]) ? Collections.singletonList(value) : null;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+    }
+
+    /**
+     * @param uri The URI of the request
+     * @return The UriInfo of a request to that URI
+     */
+    public static UriInfo uriInfo(final String uri) {
+        return (UriInfo) Proxy.newProxyInstance(UriInfo.class.getClassLoader(), new Class<?>[] {UriInfo.class},
+            new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if ("getRequestUri".equals(method.getName())) {
+                        return URI.create(uri);
+                    }
+                    if ("getRequestUriBuilder".equals(method.getName())) {
+                        return UriBuilder.fromUri(uri);
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+    }
+
+    /**
+     * @param headers The headers of the request
+     * @return A GET request with those headers
+     */
+    public static Request request(final HttpHeaders headers) {
+        return new Request() {
+            @Override
+            public String getMethod() {
+                return "GET";
+            }
+
+            @Override
+            public Variant selectVariant(List<Variant> variants) {
+                throw new UnsupportedOperationException("selectVariant");
+            }
+
+            @Override
+            public Response.ResponseBuilder evaluatePreconditions(EntityTag tag) {
+                List<String> ifMatch = headers.getRequestHeader(HttpHeaders.IF_MATCH);
+                if (ifMatch != null && !matches(ifMatch, tag)) {
+                    return Response.status(Response.Status.PRECONDITION_FAILED);
+                }
+                List<String> ifNoneMatch = headers.getRequestHeader(HttpHeaders.IF_NONE_MATCH);
+                if (ifNoneMatch != null && matches(ifNoneMatch, tag)) {
+                    return Response.notModified(tag);
+                }
+                return null;
+            }
+
+            @Override
+            public Response.ResponseBuilder evaluatePreconditions(Date lastModified, EntityTag tag) {
+                return evaluatePreconditions(tag);
+            }
+
+            @Override
+            public Response.ResponseBuilder evaluatePreconditions(Date lastModified) {
+                return null;
+            }
+
+            @Override
+            public Response.ResponseBuilder evaluatePreconditions() {
+                return null;
+            }
+        };
+    }
+
+    // A strong comparison against each tag of a header, or * for any
+    private static boolean matches(List<String> values, EntityTag tag) {
+        String quoted = "\"" + tag.getValue() + "\"";
+        for (String value : values) {
+            for (String candidate : value.split(",")) {
+                candidate = candidate.trim();
+                if ("*".equals(candidate) || (!tag.isWeak() && quoted.equals(candidate))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
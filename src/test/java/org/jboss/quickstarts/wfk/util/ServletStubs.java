@@ -0,0 +1,328 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014, Red Hat, Inc. and/or its affiliates, and individual
+ * contributors by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.quickstarts.wfk.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * <p>Just enough of a servlet container to run the filters outside one: a request with headers, parameters and a body,
+ * and a response that keeps what is written to it. Anything else the filters might call fails the test with an
+ * UnsupportedOperationException.</p>
+ */
+final class ServletStubs {
+
+    private ServletStubs() {
+    }
+
+    // An implementation of the interface in which every method throws
+    @SuppressWarnings("unchecked")
+    private static <T> T unsupported(Class<T> type) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * <p>A request with the headers, parameters and body it is given.</p>
+     */
+    static class Request extends HttpServletRequestWrapper {
+
+        private final Map<String, List<String>> headers = new TreeMap<String, List<String>>(
+            String.CASE_INSENSITIVE_ORDER);
+
+        private final Map<String, String> parameters = new HashMap<String, String>();
+
+        private byte[] body = new byte[0];
+
+        private int contentLength = -1;
+
+        Request() {
+            super(unsupported(HttpServletRequest.class));
+        }
+
+        Request header(String name, String value) {
+            if (!headers.containsKey(name)) {
+                headers.put(name, new ArrayList<String>());
+            }
+            headers.get(name).add(value);
+            return this;
+        }
+
+        Request parameter(String name, String value) {
+            parameters.put(name, value);
+            return this;
+        }
+
+        // A body sent with its Content-Length
+        Request body(byte[] body) {
+            this.body = body;
+            this.contentLength = body.length;
+            return this;
+        }
+
+        // A body sent chunked, without a Content-Length
+        Request chunked(byte[] body) {
+            this.body = body;
+            this.contentLength = -1;
+            return this;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            List<String> values = headers.get(name);
+            return values == null ? null : values.get(0);
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            List<String> values = headers.get(name);
+            return Collections.enumeration(values == null ? Collections.<String>emptyList() : values);
+        }
+
+        @Override
+        public String getParameter(String name) {
+            return parameters.get(name);
+        }
+
+        @Override
+        public int getContentLength() {
+            return contentLength;
+        }
+
+        @Override
+        public String getCharacterEncoding() {
+            return null;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() {
+            final ByteArrayInputStream input = new ByteArrayInputStream(body);
+            return new ServletInputStream() {
+                @Override
+                public int read() {
+                    return input.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    return input.read(b, off, len);
+                }
+            };
+        }
+    }
+
+    /**
+     * <p>A response that keeps its status, headers and body, and notes how much of the body had been written each time
+     * it was flushed.</p>
+     */
+    static class Response extends HttpServletResponseWrapper {
+
+        private final Map<String, List<String>> headers = new TreeMap<String, List<String>>(
+            String.CASE_INSENSITIVE_ORDER);
+
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        // The length of the body at each flush
+        final List<Integer> flushes = new ArrayList<Integer>();
+
+        private int status = SC_OK;
+
+        private String contentType;
+
+        private String characterEncoding = "ISO-8859-1";
+
+        private boolean committed;
+
+        private ServletOutputStream output;
+
+        private PrintWriter writer;
+
+        Response() {
+            super(unsupported(HttpServletResponse.class));
+        }
+
+        byte[] getBody() {
+            return body.toByteArray();
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            if (output == null) {
+                output = new ServletOutputStream() {
+                    @Override
+                    public void write(int b) {
+                        body.write(b);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                        body.write(b, off, len);
+                    }
+
+                    @Override
+                    public void flush() {
+                        committed = true;
+                        flushes.add(body.size());
+                    }
+                };
+            }
+            return output;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), characterEncoding));
+            }
+            return writer;
+        }
+
+        @Override
+        public void setStatus(int sc) {
+            status = sc;
+        }
+
+        @Override
+        public int getStatus() {
+            return status;
+        }
+
+        @Override
+        public void sendError(int sc) {
+            status = sc;
+            committed = true;
+        }
+
+        @Override
+        public void sendError(int sc, String msg) {
+            sendError(sc);
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            headers.remove(name);
+            addHeader(name, value);
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if (!headers.containsKey(name)) {
+                headers.put(name, new ArrayList<String>());
+            }
+            headers.get(name).add(value);
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+            setHeader(name, Integer.toString(value));
+        }
+
+        @Override
+        public void addIntHeader(String name, int value) {
+            addHeader(name, Integer.toString(value));
+        }
+
+        @Override
+        public boolean containsHeader(String name) {
+            return headers.containsKey(name);
+        }
+
+        @Override
+        public String getHeader(String name) {
+            List<String> values = headers.get(name);
+            return values == null ? null : values.get(0);
+        }
+
+        @Override
+        public Collection<String> getHeaders(String name) {
+            List<String> values = headers.get(name);
+            return values == null ? Collections.<String>emptyList() : values;
+        }
+
+        @Override
+        public void setContentType(String type) {
+            contentType = type;
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public void setContentLength(int len) {
+            setIntHeader("Content-Length", len);
+        }
+
+        @Override
+        public void setCharacterEncoding(String charset) {
+            characterEncoding = charset;
+        }
+
+        @Override
+        public String getCharacterEncoding() {
+            return characterEncoding;
+        }
+
+        @Override
+        public boolean isCommitted() {
+            return committed;
+        }
+
+        @Override
+        public void flushBuffer() {
+            committed = true;
+        }
+
+        @Override
+        public void reset() {
+            resetBuffer();
+            headers.clear();
+            status = SC_OK;
+        }
+
+        @Override
+        public void resetBuffer() {
+            body.reset();
+        }
+    }
+}
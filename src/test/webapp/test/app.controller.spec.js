@@ -41,7 +41,7 @@
                 new Contact(this.testData[1])
             ];
             this.$httpBackend = injector.get('$httpBackend');
-            this.$httpBackend.expectGET(/rest\/contacts[?&]_=[0-9]+$/).respond(200, this.testContacts);
+            this.$httpBackend.expectGET(/rest\/contacts$/).respond(200, this.testContacts);
             $controller('AppController', {
                 $scope: this.$scope,
                 $filter: $filter,
@@ -77,7 +77,7 @@
     });
 
     QUnit.test('"ContactController" correctly handles routeParams and requests the appropriate Contact.', function(assert) {
-        this.$httpBackend.expectGET(/rest\/contacts\/10001[?&]_=[0-9]+$/).respond(200, this.testData[1]);
+        this.$httpBackend.expectGET(/rest\/contacts\/10001$/).respond(200, this.testData[1]);
         $controller('ContactController', {
             $scope: this.$scope,
             $routeParams: {contactId: 10001},
@@ -95,7 +95,7 @@
 
     QUnit.test('"ContactController" correctly attempts to update a specified Contact.', function(assert) {
         expect(1);
-        this.$httpBackend.expectGET(/rest\/contacts\/10001[?&]_=[0-9]+$/).respond(200, this.testData[1]);
+        this.$httpBackend.expectGET(/rest\/contacts\/10001$/).respond(200, this.testData[1]);
         $controller('ContactController', {
             $scope: this.$scope,
             $routeParams: {contactId: 10001},
@@ -115,7 +115,7 @@
 
     QUnit.test('"ContactController" correctly attempts to delete a specified Contact.', function(assert) {
         expect(1);
-        this.$httpBackend.expectGET(/rest\/contacts\/10001[?&]_=[0-9]+$/).respond(200, this.testData[1]);
+        this.$httpBackend.expectGET(/rest\/contacts\/10001$/).respond(200, this.testData[1]);
         $controller('ContactController', {
             $scope: this.$scope,
             $routeParams: {contactId: 10001},